@@ -0,0 +1,105 @@
+package uk.gov.dvla.osg.appPwdUpdate.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.crypto.KeyGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.gov.dvla.osg.appPwdUpdate.persistence.CredentialStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.EncryptedCredentialStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PropertiesCredentialStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PropertiesFormat;
+import uk.gov.dvla.osg.appPwdUpdate.utils.RandomPasswordGenerator;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Cost of reading and of changing and flushing a single password, in a properties file and in
+ * an encrypted store, as the number of applications grows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CredentialStoreBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int apps;
+
+	@Param({ "properties", "encrypted" })
+	public String backend;
+
+	private Path dir;
+	private CredentialStore store;
+
+	@Setup
+	public void createStore() throws IOException, NoSuchAlgorithmException {
+		dir = Files.createTempDirectory("store-benchmark");
+		PasswordStore passwords = new PasswordStore(apps);
+		for (int i = 0; i < apps; i++) {
+			passwords.put("APP" + i, RandomPasswordGenerator.generatePswd());
+		}
+		if ("encrypted".equals(backend)) {
+			KeyGenerator keys = KeyGenerator.getInstance("AES");
+			keys.init(256);
+			store = new EncryptedCredentialStore(dir.resolve("passwords.enc"), keys.generateKey());
+			store.load();
+			for (int i = 0; i < apps; i++) {
+				try (Secret password = Secret.of(passwords.valueAt(i))) {
+					store.compareAndSet(passwords.keyAt(i), null, password);
+				}
+			}
+			store.flush();
+		} else {
+			PropertiesFormat.replace(dir.resolve("passwords.properties"), passwords);
+			store = new PropertiesCredentialStore(dir.resolve("passwords.properties"));
+			store.load();
+		}
+	}
+
+	@TearDown
+	public void deleteStore() throws IOException {
+		store.close();
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public int lookup() throws IOException {
+		try (Secret password = store.get("APP" + ThreadLocalRandom.current().nextInt(apps))) {
+			return password.length();
+		}
+	}
+
+	@Benchmark
+	public boolean updateAndFlush() throws IOException {
+		String appName = "APP" + ThreadLocalRandom.current().nextInt(apps);
+		try (Secret current = store.get(appName); Secret newPassword = RandomPasswordGenerator.generateSecret()) {
+			boolean changed = store.compareAndSet(appName, current, newPassword);
+			store.flush();
+			return changed;
+		}
+	}
+}
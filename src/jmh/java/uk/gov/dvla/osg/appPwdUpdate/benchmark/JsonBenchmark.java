@@ -0,0 +1,56 @@
+package uk.gov.dvla.osg.appPwdUpdate.benchmark;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.gov.dvla.osg.appPwdUpdate.networking.LoginBadResponseModel;
+import uk.gov.dvla.osg.appPwdUpdate.utils.JsonUtils;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Cost of building the update request body and reading the RPD login responses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+	static final String LOGIN_RESPONSE = "{\"token\":\"4f1c2b7e-93a0-4d5e-8c61-0b9f2a7d3e15\",\"user\":\"APP01\"}";
+	static final String ERROR_RESPONSE = "{\"attributeErrors\":{},\"generalErrors\":[{\"name\":\"authentication\","
+			+ "\"code\":\"RPD-0042\",\"time\":\"2018-01-18T10:15:30\",\"severity\":\"ERROR\","
+			+ "\"message\":\"Invalid credentials\",\"action\":\"Check user name and password\"}]}";
+
+	private final Secret oldPassword = Secret.of("Abcdefg1!");
+	private final Secret newPassword = Secret.of("hijKlmn2@pq");
+
+	@Benchmark
+	public byte[] encodeUpdateBody() {
+		// Path used by the request entity
+		return JsonUtils.encodeUpdateBody(oldPassword, newPassword);
+	}
+
+	@Benchmark
+	public String getTokenFromJson() {
+		return JsonUtils.getTokenFromJson(LOGIN_RESPONSE);
+	}
+
+	@Benchmark
+	public String parseLoginBadResponse() {
+		// Mirrors the error handling in RestClient
+		LoginBadResponseModel br = JsonUtils.readErrors(new StringReader(ERROR_RESPONSE));
+		return br.getCode();
+	}
+}
@@ -0,0 +1,56 @@
+package uk.gov.dvla.osg.appPwdUpdate.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.RandomPasswordGenerator;
+
+/**
+ * Cost of generating random passwords, singly, concurrently and in batches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordGeneratorBenchmark {
+
+	static final int BATCH = 100;
+
+	@State(Scope.Thread)
+	public static class Buffers {
+		final char[] buffer = new char[BATCH * RandomPasswordGenerator.MAX_LENGTH];
+		final int[] ends = new int[BATCH];
+	}
+
+	@Benchmark
+	public String generatePswd() {
+		return RandomPasswordGenerator.generatePswd();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String generatePswdConcurrent() {
+		return RandomPasswordGenerator.generatePswd();
+	}
+
+	/**
+	 * Passwords written back to back into a reused buffer, without allocating per password.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int generatePswds(Buffers buffers) {
+		return RandomPasswordGenerator.generatePswds(buffers.buffer, BATCH, buffers.ends);
+	}
+}
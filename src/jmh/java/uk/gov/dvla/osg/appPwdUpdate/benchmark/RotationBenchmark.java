@@ -0,0 +1,127 @@
+package uk.gov.dvla.osg.appPwdUpdate.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.gov.dvla.osg.appPwdUpdate.networking.NetworkConfig;
+import uk.gov.dvla.osg.appPwdUpdate.networking.RpdTransport;
+import uk.gov.dvla.osg.appPwdUpdate.networking.SessionManager;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordJournal;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordPublisher;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PropertiesCredentialStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PropertiesFormat;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint;
+import uk.gov.dvla.osg.appPwdUpdate.rotation.RotationEngine;
+import uk.gov.dvla.osg.appPwdUpdate.simulator.RpdSimulator;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Full login, rotation and logout of a set of applications against the RPD simulator,
+ * covering the HTTP round trip, journal writes, publishing to the passwords file and password
+ * generation together, with each update sent on its own or in batches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RotationBenchmark {
+
+	@Param({ "100" })
+	public int apps;
+
+	@Param({ "1", "4" })
+	public int parallelism;
+
+	@Param({ "false", "true" })
+	public boolean batchUpdates;
+
+	private RpdSimulator simulator;
+	private NetworkConfig config;
+	private Path dir;
+	private PasswordJournal journal;
+	private PasswordPublisher publisher;
+	private RotationCheckpoint checkpoint;
+	private Map<String, String> passwords;
+
+	@Setup(Level.Trial)
+	public void startServer() throws IOException {
+		simulator = RpdSimulator.builder().batchUpdates(batchUpdates).start();
+		config = simulator.networkConfig();
+		config.setParallelism(parallelism);
+
+		dir = Files.createTempDirectory("rotation-benchmark");
+		passwords = new LinkedHashMap<>();
+		for (int i = 0; i < apps; i++) {
+			passwords.put("APP" + i, "Abcdefg1!");
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void openJournal() throws IOException {
+		journal = new PasswordJournal(dir.resolve("passwords.properties"));
+		PasswordStore passwordsFile = new PasswordStore(apps);
+		passwords.forEach(passwordsFile::put);
+		PropertiesFormat.replace(dir.resolve("passwords.properties"), passwordsFile);
+		PropertiesCredentialStore store = new PropertiesCredentialStore(dir.resolve("passwords.properties"));
+		store.load();
+		publisher = new PasswordPublisher(store, config.getPublishBatchSize(), TimeUnit.SECONDS.toMillis(config.getPublishIntervalSeconds()));
+		checkpoint = new RotationCheckpoint(dir.resolve("passwords.properties"));
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeJournal() throws IOException {
+		journal.close();
+		checkpoint.delete();
+		Files.deleteIfExists(dir.resolve("passwords.properties.journal"));
+		Files.deleteIfExists(dir.resolve("passwords.properties"));
+	}
+
+	@TearDown(Level.Trial)
+	public void stopServer() throws IOException {
+		RpdTransport.close();
+		simulator.close();
+		Files.deleteIfExists(dir);
+	}
+
+	@Benchmark
+	public Map<String, Secret> rotate() {
+		// The session wipes its passwords on logout, so it is given its own copies
+		SessionManager session = new SessionManager(config, secrets());
+		session.login();
+		Map<String, Secret> apps = secrets();
+		Map<String, Secret> updated = new RotationEngine(config, session, journal, publisher, checkpoint).rotate(apps);
+		publisher.flush();
+		session.logout();
+		apps.values().forEach(Secret::clear);
+		// Next invocation starts from the passwords RPD now holds
+		updated.forEach((appName, newPassword) -> passwords.put(appName, newPassword.reveal()));
+		return updated;
+	}
+
+	private Map<String, Secret> secrets() {
+		Map<String, Secret> secrets = new LinkedHashMap<>();
+		passwords.forEach((appName, password) -> secrets.put(appName, Secret.of(password)));
+		return secrets;
+	}
+}
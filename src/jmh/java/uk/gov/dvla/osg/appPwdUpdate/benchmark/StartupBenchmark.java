@@ -0,0 +1,121 @@
+package uk.gov.dvla.osg.appPwdUpdate.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PropertiesFormat;
+import uk.gov.dvla.osg.appPwdUpdate.simulator.RpdSimulator;
+
+/**
+ * Cold start of the packaged application, as run from crontab. Each invocation starts a new JVM
+ * running --plan against the RPD simulator, which loads both files, logs in and logs out, so the
+ * time is dominated by JVM start and class loading. Compares no class data sharing, the JDK's
+ * default archive, and the AppCDS archive built by the startup profile. Needs JDK 13 or later,
+ * and the jar and archive are built first:
+ * <p>
+ * mvn -Pstartup package &amp;&amp; mvn -Pbenchmark verify -Djmh.include=StartupBenchmark
+ * <p>
+ * The jar and archive are read from target, or from the startup.jar and startup.archive system properties.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+	@Param({ "off", "default", "app" })
+	public String sharing;
+
+	private RpdSimulator simulator;
+	private Path dir;
+	private List<String> command;
+
+	@Setup
+	public void startServer() throws IOException {
+		simulator = RpdSimulator.builder().start();
+		dir = Files.createTempDirectory("startup-benchmark");
+		Path configFile = dir.resolve("config.json");
+		try (Writer out = Files.newBufferedWriter(configFile, StandardCharsets.UTF_8)) {
+			new Gson().toJson(simulator.networkConfig(), out);
+		}
+		Path passwordsFile = dir.resolve("passwords.properties");
+		PasswordStore passwords = new PasswordStore();
+		for (int i = 0; i < 10; i++) {
+			passwords.put("APP" + i, "Abcdefg1!");
+		}
+		try (OutputStream out = Files.newOutputStream(passwordsFile)) {
+			PropertiesFormat.write(out, passwords);
+		}
+
+		Path jar = Paths.get(System.getProperty("startup.jar", "target/appPwdUpdate.jar")).toAbsolutePath();
+		Path archive = Paths.get(System.getProperty("startup.archive", "target/appPwdUpdate.jsa")).toAbsolutePath();
+		if (!Files.exists(jar)) {
+			throw new IllegalStateException(jar + " not found, build with -Pstartup");
+		}
+		command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		if ("off".equals(sharing)) {
+			command.add("-Xshare:off");
+		} else if ("app".equals(sharing)) {
+			if (!Files.exists(archive)) {
+				throw new IllegalStateException(archive + " not found, build with -Pstartup on JDK 13 or later");
+			}
+			command.add("-XX:SharedArchiveFile=" + archive);
+		}
+		command.add("-jar");
+		command.add(jar.toString());
+		command.add("--plan");
+		command.add(configFile.toString());
+		command.add(passwordsFile.toString());
+	}
+
+	@TearDown
+	public void stopServer() throws IOException {
+		simulator.close();
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public int start() throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command)
+				.directory(dir.toFile())
+				.redirectErrorStream(true)
+				.redirectOutput(dir.resolve("output.log").toFile())
+				.start();
+		int status = process.waitFor();
+		if (status != 0) {
+			throw new IllegalStateException("Application exited with status " + status + ", see " + dir.resolve("output.log"));
+		}
+		return status;
+	}
+}
@@ -11,6 +11,7 @@ public class Credentials {
 	String port;
 	String from;
 	String username;
+	String digestWindow;
 	
 	@XmlElement(name="username")
 	public String getUsername() {
@@ -55,4 +56,13 @@ public class Credentials {
 	public void setFrom(String from) {
 		this.from = from;
 	}
+
+	@XmlElement(name="digestWindow")
+	public String getDigestWindow() {
+		return digestWindow;
+	}
+
+	public void setDigestWindow(String digestWindow) {
+		this.digestWindow = digestWindow;
+	}
 }
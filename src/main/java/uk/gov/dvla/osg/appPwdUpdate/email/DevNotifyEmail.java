@@ -9,6 +9,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.*;
 import javax.mail.internet.AddressException;
@@ -20,13 +21,17 @@ import javax.xml.bind.Unmarshaller;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.FileVersion;
+import uk.gov.dvla.osg.appPwdUpdate.utils.LogFields;
 
 public class DevNotifyEmail {
 	
 	private static final Logger LOG = LogManager.getLogger();
-	private static final String credentialsFile;
-	private static final String contactsFile;
 	private static final String OS = System.getProperty("os.name").toLowerCase();
+	private static String credentialsFile;
+	private static String contactsFile;
 	
 	static {
 		// Windows locations set for dev environment otherwise uses Unix filepath
@@ -37,35 +42,99 @@ public class DevNotifyEmail {
 			credentialsFile = "//aiw//osg//resources//config//email.xml";
 			contactsFile = "//aiw//osg//resources//config//contacts.xml";
 		}
+		// Either location may be overridden, e.g. -DappPwdUpdate.emailConfig=/tmp/email.xml
+		credentialsFile = System.getProperty("appPwdUpdate.emailConfig", credentialsFile);
+		contactsFile = System.getProperty("appPwdUpdate.contactsFile", contactsFile);
 	}
 	
+	// Parsed configuration, reloaded only when the file on disk changes. Guarded by DevNotifyEmail.class
+	private static JAXBContext jaxbContext;
+	private static Credentials credentials;
+	private static FileVersion credentialsVersion;
+	private static long digestWindow;
+	private static Address[] contacts;
+	private static FileVersion contactsVersion;
+	private static Session emailSession;
+	
+	private static final long DEFAULT_DIGEST_WINDOW = 60;
+	private static final NotificationQueue QUEUE = new NotificationQueue(DevNotifyEmail::sendDigest, DevNotifyEmail::getDigestWindow);
+
+	/**
+	 * Queue an error for the Dev Team. Returns immediately, errors are collected and sent
+	 * as a single digest email once the notification window has passed.
+	 * @param detail description of the error
+	 */
+	public static void send(String detail) {
+		send(null, null, detail);
+	}
+
+	/**
+	 * Queue an error for the Dev Team. Returns immediately, errors are collected and sent
+	 * as a single digest email once the notification window has passed. When several RPD
+	 * servers are rotated at once the server is taken from the {@link LogFields#TARGET} thread context entry.
+	 * @param appName application the error relates to, may be null
+	 * @param errorCode RPD error code or failure type, may be null
+	 * @param detail description of the error
+	 */
+	public static void send(String appName, String errorCode, String detail) {
+		QUEUE.offer(new ErrorNotification(ThreadContext.get(LogFields.TARGET), appName, errorCode, detail));
+	}
+
+	/**
+	 * Send any errors still queued and stop the notification thread. Also runs when the JVM exits.
+	 */
+	public static void shutdown() {
+		QUEUE.shutdown();
+	}
+
 	/**
 	 * Constructs email from settings in the email config file and sends to Dev Team members.
-	 * @param subjectLine Subject line of the email
-	 * @param msgText Email text body
-	 * @param recipients comma separated list of email addresses
+	 * @param errors errors collected during the notification window
+	 * @param dropped number of errors discarded because the queue was full
 	 */
-	public static void send() {
+	static void sendDigest(List<ErrorNotification> errors, int dropped) {
 		
 		DateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm");
+		DateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
 		String timeStamp = dateFormat.format(new Date());
+		int total = errors.size() + dropped;
 		
-		String subjectLine = "AppPwdUpdate - Error";
-		String msgText = timeStamp + " : An error entry has been made in the AppPwdUpdate log file.";
+		String subjectLine = "AppPwdUpdate - Error" + (total > 1 ? " (" + total + ")" : "");
+		StringBuilder msgText = new StringBuilder(timeStamp);
+		if (total == 1) {
+			msgText.append(" : An error entry has been made in the AppPwdUpdate log file.\n");
+		} else {
+			msgText.append(" : ").append(total).append(" error entries have been made in the AppPwdUpdate log file.\n");
+		}
+		for (ErrorNotification error : errors) {
+			msgText.append('\n').append(timeFormat.format(error.getTime())).append(" - ");
+			if (error.getTarget() != null) {
+				msgText.append(error.getTarget()).append(" - ");
+			}
+			if (error.getAppName() != null) {
+				msgText.append(error.getAppName()).append(" - ");
+			}
+			if (error.getErrorCode() != null) {
+				msgText.append(error.getErrorCode()).append(" - ");
+			}
+			msgText.append(error.getDetail());
+		}
+		if (dropped > 0) {
+			msgText.append("\n\n").append(dropped).append(" further errors were not listed as the notification queue was full.");
+		}
 
 		// load SMTP configuration from config file
 		Credentials security = null;
+		Session emailSession = null;
 		try {
 			security = DevNotifyEmail.loadCredentials();
-		} catch (JAXBException ex) {
-			LOG.error("Unable to load data from email config file: {}", credentialsFile);
+			emailSession = getSession();
+		} catch (JAXBException | RuntimeException ex) {
+			// JAXB reports a missing file as an IllegalArgumentException
+			LOG.error("Unable to load data from email config file: {}", getCredentialsFile());
 			return;
 		}
 		
-		String username = security.getUsername();
-		String password = security.getPassword();
-		String host = security.getHost();
-		String port = security.getPort();
 		String from = security.getFrom();
 		
 		// load dev team contact email addresses
@@ -73,10 +142,10 @@ public class DevNotifyEmail {
 		try {
 			contacts = getContacts();
 		} catch (IOException ex) {
-			LOG.error("Unable to load contacts file: {}", contactsFile);
+			LOG.error("Unable to load contacts file: {}", getContactsFile());
 			return;
 		} catch (AddressException ex) {
-			LOG.error("Contacts file contains an invalid email address: {}", contactsFile);
+			LOG.error("Contacts file contains an invalid email address: {}", getContactsFile());
 			return;
 		}
 		
@@ -84,20 +153,6 @@ public class DevNotifyEmail {
 		String bodyHead = "Hello,\n\n";
 		String bodyFoot = "\n\nPlease investigate ASAP\n\nThanks";
 
-		// Setup mail server
-		Properties properties = new Properties();
-		properties.put("mail.smtp.host", host);
-		properties.put("mail.smtp.port", port);
-		properties.put("mail.smtp.auth", "false");
-		properties.put("mail.smtp.starttls.ename", "false");
-
-		// Setup authentication, get session
-		Session emailSession = Session.getInstance(properties, new Authenticator() {
-			protected PasswordAuthentication getPasswordAuthentication() {
-				return new PasswordAuthentication(username, password);
-			}
-		});
-
 		try {
 			// Create a default MimeMessage object.
 			MimeMessage message = new MimeMessage(emailSession);
@@ -117,30 +172,135 @@ public class DevNotifyEmail {
 	}
 
 	/**
-	 * Converts the XML in the SMTP config file into a credetials object
+	 * Time to collect errors for before a digest is sent, set by the optional digestWindow
+	 * element in the email config file. Taken from the cached config, which is checked for
+	 * changes each time a digest is sent, so the file is only read here before the first load.
+	 * @return window in milliseconds, defaults to 60 seconds
+	 */
+	static synchronized long getDigestWindow() {
+		if (credentials == null) {
+			try {
+				loadCredentials();
+			} catch (JAXBException | RuntimeException ex) {
+				// Reported when the digest is sent
+				return TimeUnit.SECONDS.toMillis(DEFAULT_DIGEST_WINDOW);
+			}
+		}
+		return digestWindow;
+	}
+
+	/**
+	 * @param window digestWindow element of the email config file in seconds, may be null
+	 * @return window in milliseconds, the default if not set or invalid
+	 */
+	private static long parseDigestWindow(String window) {
+		long seconds = DEFAULT_DIGEST_WINDOW;
+		if (window != null) {
+			try {
+				seconds = Long.parseLong(window.trim());
+			} catch (NumberFormatException ex) {
+				LOG.warn("Invalid digest window in email config file: {}", credentialsFile);
+			}
+		}
+		return TimeUnit.SECONDS.toMillis(seconds);
+	}
+
+	/**
+	 * Point the notifications at different config files, e.g. for a test environment.
+	 * Cached configuration is discarded and loaded from the new files on next use.
+	 * @param credentialsFile SMTP config file
+	 * @param contactsFile dev team email addresses, one per line
+	 */
+	public static synchronized void setConfigFiles(String credentialsFile, String contactsFile) {
+		DevNotifyEmail.credentialsFile = credentialsFile;
+		DevNotifyEmail.contactsFile = contactsFile;
+		credentials = null;
+		credentialsVersion = null;
+		contacts = null;
+		contactsVersion = null;
+		emailSession = null;
+	}
+
+	private static synchronized String getCredentialsFile() {
+		return credentialsFile;
+	}
+
+	private static synchronized String getContactsFile() {
+		return contactsFile;
+	}
+
+	/**
+	 * Converts the XML in the SMTP config file into a credetials object. The file is only
+	 * read again once it has changed on disk.
 	 * @return SMTP configuration information.
 	 * @throws JAXBException file does not contain valid XML.
 	 */
-	private static Credentials loadCredentials() throws JAXBException {
+	static synchronized Credentials loadCredentials() throws JAXBException {
 		File file = new File(credentialsFile);
-		JAXBContext jc = JAXBContext.newInstance(Credentials.class);
-		Unmarshaller unmarshaller = jc.createUnmarshaller();
-		return (Credentials) unmarshaller.unmarshal(file);
+		FileVersion version = new FileVersion(file);
+		if (credentials == null || !version.equals(credentialsVersion)) {
+			if (jaxbContext == null) {
+				jaxbContext = JAXBContext.newInstance(Credentials.class);
+			}
+			Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+			credentials = (Credentials) unmarshaller.unmarshal(file);
+			credentialsVersion = version;
+			digestWindow = parseDigestWindow(credentials.getDigestWindow());
+			// Session holds the SMTP settings so must be rebuilt
+			emailSession = null;
+			LOG.trace("Loaded email config file: {}", credentialsFile);
+		}
+		return credentials;
 	}
 	
 	/**
-	 * Gets the list of dev team members' email addresses from the config file.
+	 * Mail session for the current SMTP settings, built once per version of the config file.
+	 * @return mail session
+	 * @throws JAXBException config file does not contain valid XML.
+	 */
+	private static synchronized Session getSession() throws JAXBException {
+		Credentials security = loadCredentials();
+		if (emailSession == null) {
+			String username = security.getUsername();
+			String password = security.getPassword();
+
+			// Setup mail server
+			Properties properties = new Properties();
+			properties.put("mail.smtp.host", security.getHost());
+			properties.put("mail.smtp.port", security.getPort());
+			properties.put("mail.smtp.auth", "false");
+			properties.put("mail.smtp.starttls.ename", "false");
+
+			// Setup authentication, get session
+			emailSession = Session.getInstance(properties, new Authenticator() {
+				protected PasswordAuthentication getPasswordAuthentication() {
+					return new PasswordAuthentication(username, password);
+				}
+			});
+		}
+		return emailSession;
+	}
+
+	/**
+	 * Gets the list of dev team members' email addresses from the config file. The file is
+	 * only read and validated again once it has changed on disk.
 	 * @return dev team email addresses.
 	 * @throws IOException config file cannot be located.
 	 * @throws AddressException file contains an invalid email address.
 	 */
-	private static Address[] getContacts() throws IOException, AddressException {
-		List<String> list = Files.readAllLines(Paths.get(contactsFile));
-		Address[] addresses = new Address[list.size()];
-		for (int i = 0; i < list.size(); i++) {
-		    addresses[i] = new InternetAddress(list.get(i));
+	private static synchronized Address[] getContacts() throws IOException, AddressException {
+		FileVersion version = new FileVersion(new File(contactsFile));
+		if (contacts == null || !version.equals(contactsVersion)) {
+			List<String> list = Files.readAllLines(Paths.get(contactsFile));
+			Address[] addresses = new Address[list.size()];
+			for (int i = 0; i < list.size(); i++) {
+			    addresses[i] = new InternetAddress(list.get(i));
+			}
+			contacts = addresses;
+			contactsVersion = version;
+			LOG.trace("Loaded contacts file: {}", contactsFile);
 		}
-		return addresses;
+		return contacts;
 	}
 	
 }
@@ -0,0 +1,48 @@
+package uk.gov.dvla.osg.appPwdUpdate.email;
+
+import java.util.Date;
+
+/**
+ * A single error waiting to be included in the next notification email.
+ */
+class ErrorNotification {
+
+	private final Date time = new Date();
+	private final String target;
+	private final String appName;
+	private final String errorCode;
+	private final String detail;
+
+	/**
+	 * @param target RPD server the error relates to, may be null
+	 * @param appName application the error relates to, may be null
+	 * @param errorCode RPD error code or failure type, may be null
+	 * @param detail description of the error
+	 */
+	ErrorNotification(String target, String appName, String errorCode, String detail) {
+		this.target = target;
+		this.appName = appName;
+		this.errorCode = errorCode;
+		this.detail = detail;
+	}
+
+	Date getTime() {
+		return time;
+	}
+
+	String getTarget() {
+		return target;
+	}
+
+	String getAppName() {
+		return appName;
+	}
+
+	String getErrorCode() {
+		return errorCode;
+	}
+
+	String getDetail() {
+		return detail;
+	}
+}
@@ -0,0 +1,153 @@
+package uk.gov.dvla.osg.appPwdUpdate.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded queue of errors drained by a single background thread. The first error starts a
+ * collection window, everything queued before the window closes is sent as one digest.
+ * Callers never wait for the mail server; if the queue is full further errors are counted
+ * and reported in the next digest instead.
+ */
+class NotificationQueue {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	private static final int CAPACITY = 1000;
+	private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+	// Wakes the worker so the remaining errors are sent immediately
+	private static final ErrorNotification SHUTDOWN = new ErrorNotification(null, null, null, null);
+
+	private final BlockingQueue<ErrorNotification> queue = new ArrayBlockingQueue<>(CAPACITY);
+	private final AtomicInteger dropped = new AtomicInteger();
+	private final BiConsumer<List<ErrorNotification>, Integer> sender;
+	private final LongSupplier windowMillis;
+	private Thread worker;
+	private boolean shutdown;
+
+	/**
+	 * @param sender sends a digest of errors, along with the number dropped since the last digest
+	 * @param windowMillis time to collect errors for after the first one arrives
+	 */
+	NotificationQueue(BiConsumer<List<ErrorNotification>, Integer> sender, LongSupplier windowMillis) {
+		this.sender = sender;
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Queue an error for the next digest without blocking.
+	 * @param notification error to report
+	 */
+	void offer(ErrorNotification notification) {
+		if (!start()) {
+			LOG.warn("Notification queue shut down, error not emailed: {}", notification.getDetail());
+			return;
+		}
+		if (!queue.offer(notification)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Send everything still queued and stop the worker. Waits up to 30 seconds for the final digest.
+	 */
+	void shutdown() {
+		Thread thread;
+		synchronized (this) {
+			if (shutdown) {
+				return;
+			}
+			shutdown = true;
+			thread = worker;
+		}
+		if (thread == null) {
+			return;
+		}
+		try {
+			if (queue.offer(SHUTDOWN, SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				thread.join(SHUTDOWN_TIMEOUT);
+			}
+			if (thread.isAlive()) {
+				LOG.warn("Timed out sending final error notification");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Start the worker on first use, and make sure queued errors are sent if the JVM exits.
+	 * @return false if the queue has been shut down
+	 */
+	private synchronized boolean start() {
+		if (shutdown) {
+			return false;
+		}
+		if (worker == null) {
+			worker = new Thread(this::run, "notification");
+			worker.setDaemon(true);
+			worker.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "notification-shutdown"));
+		}
+		return true;
+	}
+
+	private void run() {
+		boolean running = true;
+		while (running) {
+			List<ErrorNotification> batch = new ArrayList<>();
+			try {
+				running = collect(batch);
+			} catch (InterruptedException ex) {
+				running = false;
+			} catch (RuntimeException ex) {
+				// Send what has been collected, the worker must keep running or every later error is lost
+				LOG.error("Unable to collect error notifications", ex);
+			}
+			queue.drainTo(batch);
+			batch.remove(SHUTDOWN);
+			int droppedCount = dropped.getAndSet(0);
+			if (!batch.isEmpty() || droppedCount > 0) {
+				try {
+					sender.accept(batch, droppedCount);
+				} catch (RuntimeException ex) {
+					LOG.error("Unable to send error notification", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for an error, then collect errors until the window closes.
+	 * @param batch receives the errors collected
+	 * @return false if the queue has been shut down
+	 * @throws InterruptedException worker interrupted
+	 */
+	private boolean collect(List<ErrorNotification> batch) throws InterruptedException {
+		ErrorNotification first = queue.take();
+		if (first == SHUTDOWN) {
+			return false;
+		}
+		batch.add(first);
+		long deadline = System.currentTimeMillis() + windowMillis.getAsLong();
+		long remaining;
+		while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+			ErrorNotification next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+			if (next == SHUTDOWN) {
+				return false;
+			} else if (next != null) {
+				batch.add(next);
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,121 @@
+package uk.gov.dvla.osg.appPwdUpdate.main;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.CronSchedule;
+
+/**
+ * Keeps the JVM running and rotates on a schedule, instead of being started by crontab for
+ * every run. The connection pool, loaded classes and parsed config files stay warm between runs.
+ * <p>
+ * Runs take place one at a time on a single scheduler thread and never overlap. If a run is
+ * still going when the next one is due, that run is skipped and the schedule picks up at the
+ * following time. On shutdown a run in progress is given time to finish.
+ */
+class Daemon {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	/** Time a run in progress has to finish on shutdown, the journal and checkpoint cover a run that does not */
+	private static final long SHUTDOWN_WAIT_MINUTES = 5;
+
+	private final CronSchedule schedule;
+	private final BooleanSupplier rotation;
+	private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "scheduler"));
+	private volatile ZonedDateTime nextRun;
+
+	/**
+	 * @param schedule when to rotate
+	 * @param rotation one complete run, returning false if any RPD server could not be rotated
+	 */
+	Daemon(CronSchedule schedule, BooleanSupplier rotation) {
+		this.schedule = schedule;
+		this.rotation = rotation;
+		// A run that is only waiting to start is dropped on shutdown
+		scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * Schedule the first run and wait until the JVM is shut down.
+	 * @param onShutdown called once any run in progress has finished
+	 */
+	void run(Runnable onShutdown) {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			stop();
+			onShutdown.run();
+		}, "scheduler-shutdown"));
+		LOG.info("Running as daemon with schedule '{}'", schedule);
+		scheduleNext(ZonedDateTime.now());
+		try {
+			scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return time the next rotation is scheduled for, null before the first is scheduled
+	 */
+	ZonedDateTime getNextRun() {
+		return nextRun;
+	}
+
+	private void scheduleNext(ZonedDateTime after) {
+		ZonedDateTime next = schedule.next(after);
+		LOG.info("Next rotation at {}", next);
+		long delay = Math.max(0, Duration.between(ZonedDateTime.now(), next).toMillis());
+		scheduler.schedule(() -> rotate(next), delay, TimeUnit.MILLISECONDS);
+		nextRun = next;
+	}
+
+	/**
+	 * Run one rotation on the scheduler thread and schedule the next from the time it ends.
+	 * @param due time the rotation was scheduled for
+	 */
+	void rotate(ZonedDateTime due) {
+		try {
+			LOG.info("----- Scheduled Rotation Started -----");
+			if (!rotation.getAsBoolean()) {
+				LOG.error("Not every RPD server could be rotated, will try again at the next scheduled time");
+			}
+			LOG.info("----- Scheduled Rotation Ended -----");
+		} catch (RuntimeException ex) {
+			// Jobs report their own errors, the daemon must keep running whatever happens
+			LOG.error("Scheduled rotation failed", ex);
+		} finally {
+			ZonedDateTime now = ZonedDateTime.now();
+			ZonedDateTime missed = schedule.next(due);
+			if (missed.isBefore(now)) {
+				LOG.warn("Rotation due at {} skipped as the previous rotation was still running", missed);
+			}
+			try {
+				scheduleNext(now);
+			} catch (RejectedExecutionException ex) {
+				LOG.trace("Daemon stopping, no further rotations scheduled");
+			}
+		}
+	}
+
+	/**
+	 * Stop scheduling rotations and wait for a run in progress to finish.
+	 */
+	void stop() {
+		LOG.info("Stopping daemon");
+		scheduler.shutdown();
+		try {
+			if (!scheduler.awaitTermination(SHUTDOWN_WAIT_MINUTES, TimeUnit.MINUTES)) {
+				LOG.warn("Rotation still running after {} minutes, stopping anyway. Run with --resume to complete it", SHUTDOWN_WAIT_MINUTES);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -1,31 +1,39 @@
 package uk.gov.dvla.osg.appPwdUpdate.main;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Enumeration;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.gson.Gson;
-
 import uk.gov.dvla.osg.appPwdUpdate.email.DevNotifyEmail;
-import uk.gov.dvla.osg.appPwdUpdate.networking.NetworkConfig;
-import uk.gov.dvla.osg.appPwdUpdate.networking.RestClient;
-import uk.gov.dvla.osg.appPwdUpdate.utils.RandomPasswordGenerator;
+import uk.gov.dvla.osg.appPwdUpdate.metrics.RunMetrics;
+import uk.gov.dvla.osg.appPwdUpdate.networking.RpdTransport;
+import uk.gov.dvla.osg.appPwdUpdate.rotation.RotationPlan;
+import uk.gov.dvla.osg.appPwdUpdate.utils.CronSchedule;
 
 
 /**
  * Update passwords for all applications that login with RPD.
  * Each application will be given its own password and stored in a common
  * password file on the RPD server.
- * Application to be run on a scheduled basis from Crontab.
+ * Application to be run on a scheduled basis from Crontab, or with --daemon to stay running
+ * and rotate on its own schedule, e.g. --daemon "0 2 * * *" for 2am every day. Several RPD
+ * servers, each with its own config and passwords file, can be rotated in parallel by one invocation.
+ * One run report covers every server, so the config files must not name different metrics files.
+ * Run with --resume to rotate only the applications an incomplete run did not complete, or
+ * with --plan to estimate how long a rotation would take without changing any password.
  * ******************** REVISION HISTORY *****************************************
  * 18/01/2018 - Initial version -  Pete Broomhall
  * *******************************************************************************
@@ -34,10 +42,14 @@ import uk.gov.dvla.osg.appPwdUpdate.utils.RandomPasswordGenerator;
  */
 public class Main {
 	
-	private static Properties appPasswords;
-	private static NetworkConfig networkConfig;
-	private static String passwordsFile, configFile, token, appName, appPwd, loggedInApp;
-	private static boolean loggedIn;
+	private static final String RESUME = "--resume";
+	private static final String PLAN = "--plan";
+	private static final String DAEMON = "--daemon";
+	private static final String USAGE = "Usage: appPwdUpdate.jar [--resume] [--plan | --daemon {schedule}] {config_file} {data_file} [{config_file} {data_file} ...]";
+
+	private static List<RotationJob> jobs;
+	private static boolean plan;
+	private static CronSchedule schedule;
 	static final Logger LOG = LogManager.getLogger();
 	
 	public static void main(String[] args) {
@@ -45,184 +57,217 @@ public class Main {
 		LOG.info("----- Application Started -----");
 		// Process command line args
 		processArgs(args);
-		// Load passwords file
-		setProperties();
-		// Loop through the applications with new random passwords
-		updatePasswords();
-		// Logout of session
-		logout();
-		// Save properties to disk
-		saveProperties();
+		if (schedule != null) {
+			// Stay running and rotate on schedule until the JVM is stopped
+			new Daemon(schedule, () -> {
+				RunMetrics.reset();
+				try {
+					return rotate();
+				} finally {
+					// Drop the client so the next run picks up any change to the timeouts or pool size
+					RpdTransport.close();
+				}
+			}).run(() -> {
+				RpdTransport.close();
+				DevNotifyEmail.shutdown();
+				LOG.info("----- Application Ended -----");
+				LogManager.shutdown();
+			});
+			return;
+		}
+		boolean loaded;
+		if (plan) {
+			// Estimate the rotation for each RPD server without changing any password
+			loaded = planJobs();
+			RpdTransport.close();
+		} else {
+			// Rotate the passwords for each RPD server
+			loaded = rotate();
+			// Release the connections held open to RPD
+			RpdTransport.close();
+		}
+		// Send any outstanding error notifications
+		DevNotifyEmail.shutdown();
 		LOG.info("----- Application Ended -----");
-		
+		if (!loaded) {
+			exit(1);
+		}
+		LogManager.shutdown();
+	}
+
+	/**
+	 * Stop the JVM once the log events still queued by the async loggers have been written.
+	 * Log4j's own shutdown hook is disabled so that the daemon can log until it has stopped.
+	 * @param status exit status
+	 */
+	private static void exit(int status) {
+		LogManager.shutdown();
+		System.exit(status);
 	}
 
 	/**
-	 * Loads properties file and network configuration file
-	 * Usage: AppPwdUpdate.jar {config_file} {data_file}
+	 * Creates a rotation job for each pair of config and passwords files
+	 * Usage: AppPwdUpdate.jar [--resume] [--plan | --daemon {schedule}] {config_file} {data_file} [{config_file} {data_file} ...]
 	 * @param args command line arguments
 	 */
-	private static void processArgs(String[] args) {
+	static void processArgs(String[] args) {
 		
 		LOG.trace("Processing command line args");
 		
-		if (args.length == 2) {
-			
-			configFile = args[0];
-			LOG.debug("configFile = {}", configFile);
-			passwordsFile = args[1];
-			LOG.debug("passwordsFile = {}", passwordsFile);
-			
-			if (!(new File(passwordsFile).exists())) {
-				LOG.fatal("Data file '{}' doesn't exist!", passwordsFile);
-				System.exit(1);
+		boolean resume = false;
+		plan = false;
+		schedule = null;
+		int first = 0;
+		while (first < args.length && args[first].startsWith("--")) {
+			if (RESUME.equals(args[first])) {
+				resume = true;
+			} else if (PLAN.equals(args[first])) {
+				plan = true;
+			} else if (DAEMON.equals(args[first]) && first + 1 < args.length) {
+				try {
+					schedule = CronSchedule.parse(args[++first]);
+				} catch (IllegalArgumentException ex) {
+					LOG.fatal("{}. {}", ex.getMessage(), USAGE);
+					exit(1);
+				}
+			} else {
+				LOG.fatal("Unknown option {}. {}", args[first], USAGE);
+				exit(1);
 			}
-			if (!(new File(configFile).exists())) {
-				LOG.fatal("Config file '{}' doesn't exist!", configFile);
-				System.exit(1);
+			first++;
+		}
+		if (plan && schedule != null) {
+			LOG.fatal("--plan cannot be used with --daemon. {}", USAGE);
+			exit(1);
+		}
+		args = Arrays.copyOfRange(args, first, args.length);
+
+		if (args.length >= 2 && args.length % 2 == 0) {
+			jobs = new ArrayList<>(args.length / 2);
+			for (int i = 0; i < args.length; i += 2) {
+				String configFile = args[i];
+				LOG.debug("configFile = {}", configFile);
+				String passwordsFile = args[i + 1];
+				LOG.debug("passwordsFile = {}", passwordsFile);
+				// Label log entries and notifications only when they could come from more than one server
+				String label = args.length > 2 ? Paths.get(passwordsFile).getFileName().toString() : null;
+				RotationJob job = new RotationJob(configFile, passwordsFile, label, resume);
+				if (!job.validate()) {
+					exit(1);
+				}
+				jobs.add(job);
 			}
 		} else {
-			LOG.fatal("Incorrect number of args. Usage: appPwdUpdate.jar {config_file} {data_file}");
-			System.exit(1);
+			LOG.fatal("Incorrect number of args. {}", USAGE);
+			exit(1);
 		}
-	}
-	
-	/**
-	 * Load in the properties from the two config files
-	 */
-	private static void setProperties() {
-		LOG.trace("Loading Properties file");
-		try {
-			// load application properties
-			byte[] fileContents = Files.readAllBytes(Paths.get(passwordsFile));
-			InputStream reader = new ByteArrayInputStream(fileContents);
-			appPasswords = new Properties();
-			appPasswords.load(reader);
-		} catch (Exception ex) {
-			error("Unable to load application properties.", ex);
-			System.exit(1);
-		}
-		
-		// load network properties from JSON file
-		LOG.trace("Loading JSON file");
-		try {
-			networkConfig = new Gson().fromJson(new FileReader(configFile), NetworkConfig.class);
-		} catch (Exception ex) {
-			error("Unable to read JSON file", ex);
-			System.exit(1);
+		// One report covers every RPD server, so it can only be written to one file
+		Set<String> metricsFiles = metricsFiles(RotationJob::readMetricsFile);
+		if (metricsFiles.size() > 1) {
+			LOG.fatal("Config files name different metrics files {}, one report covers every RPD server. {}", metricsFiles, USAGE);
+			exit(1);
 		}
 	}
-	
+
 	/**
-	 * Log an application in with with RPD. The app used to login is stored in the
-	 * LoggedInApp variable to be used for logging out once complete.
-	 * Create a new password according to RPDs complexity rules and send the
-	 * old and new passwords to RPD.
+	 * @param metricsFile metrics file configured for a job, null if it has none
+	 * @return distinct metrics files configured, compared as absolute paths
 	 */
-	private static void updatePasswords() {
-		// Get a list of all usernames
-		Enumeration em = appPasswords.keys();
-		// Log in once and use this session token to update all applications
-		loggedIn = false;
-		// Loop through all applications
-        while (em.hasMoreElements()) {
-            // Get key value pairs from props
-            appName = (String) em.nextElement();
-            LOG.debug("appName = {}", appName);
-            appPwd = appPasswords.getProperty(appName);
-            LOG.debug("appPwd = {}", appPwd);
-            
-            // Use the first application to login and retrieve token 
-            if (!loggedIn) {
-            	LOG.info("Logging in with application {}", appName);
-            	token = RestClient.rpdLogin(networkConfig, appName, appPwd);
-            	loggedInApp = appName;
-            	// Log in was successful if token isn't empty
-            	if (!token.equals("")) {
-					loggedIn = true;
-					LOG.trace("Log in successful.");
-				} else {
-					error("Unable to log in with application " + appName);
-				} 
-            }
-            
-            // once token retrieved, construct JSON for HTML body and transmit to RPD
-            if (loggedIn) {
-            	
-            	boolean success = false;
-				int retry = 0;
-				String newPassword;
-				
-				/* Send new pasword to RPD - update may fail RPD deems the new password
-				 * to be too similar to previous one. As this is unlikely due to the randomization
-				 * algorithms being used to build the new password, we allow RPD to make this check.
-				 * Two attempts are made as RPD will lock the account after the third attempt and 
-				 * this would prevent the application from working.
-				 */
-				do {
-	            	// Generate random password
-	                newPassword = RandomPasswordGenerator.generatePswd();
-	                LOG.debug("newPassword = {}", newPassword);
-					// Manually Construct JSON
-					String json = "{\"User.password\":\"" + appPwd + "\"," 
-								+ "\"User.passwordNew\":\"" + newPassword + "\","
-								+ "\"User.passwordConfirm\":\"" + newPassword + "\"}";
-					LOG.trace("json = {}", json);
-					success = RestClient.rpdUpdatePwd(networkConfig, appName, token, json);
-					retry++;
-					LOG.debug("Transmitted to RPD {}, Attempt {}, Success {}", appName, retry, success);
-				} while (!success && retry < 2);
-				
-				// Update password in properties object if accepted by RPD, error email sent in RestClient
-				if (success) {
-					appPasswords.setProperty(appName, newPassword);
-					LOG.info("Password updated for {}", appName);
-				} else {
-					error("Unable to set password for " + appName);
-				}
-			}
-        }
+	private static Set<String> metricsFiles(Function<RotationJob, String> metricsFile) {
+		return jobs.stream()
+				.map(metricsFile)
+				.filter(Objects::nonNull)
+				.map(file -> Paths.get(file).toAbsolutePath().normalize().toString())
+				.collect(Collectors.toCollection(TreeSet::new));
 	}
-	
+
 	/**
-	 * Write the changed passwords back to the password file
+	 * Rotate the passwords for every RPD server and write the run report.
+	 * @return false if any job could not load its files or failed unexpectedly
 	 */
-	private static void saveProperties() {
-		
-		LOG.trace("Saving application properties file : {}", passwordsFile);
-		
-		try (FileOutputStream fileOut = new FileOutputStream(new File(passwordsFile))) {
-			appPasswords.store(fileOut, null);
-		} catch (Exception e) {
-			error("Unable to save password file", e);
-		} 
+	static boolean rotate() {
+		boolean loaded = runJobs(RotationJob::run).stream().allMatch(Boolean.TRUE::equals);
+		// Write timings for the run
+		writeMetrics();
+		return loaded;
 	}
-	
+
 	/**
-	 * Send data to Rest Client to log session app out of RPD.
+	 * Plan every job and report the time the whole run is expected to take. Jobs run in
+	 * parallel so the run takes as long as the longest job.
+	 * @return false if any job could not be planned
 	 */
-	private static void logout() {
-		if (loggedIn) {
-			RestClient.rpdLogOut(networkConfig, loggedInApp, token);
+	static boolean planJobs() {
+		List<RotationPlan> plans = runJobs(RotationJob::plan);
+		long longest = 0;
+		for (RotationPlan jobPlan : plans) {
+			if (jobPlan == null) {
+				return false;
+			}
+			longest = Math.max(longest, jobPlan.getEstimatedNanos());
+		}
+		if (plans.size() > 1) {
+			LOG.info("Plan: {} RPD servers in parallel, estimated {}", plans.size(), RotationPlan.format(longest));
 		}
+		return true;
 	}
-	
+
 	/**
-	 * Log the error to the rolling file and send a notification email to dev team
-	 * @param msg Message to add to log file
+	 * Run a task for every job, in parallel when there is more than one. A failure against
+	 * one RPD server is reported by its job and does not stop the others.
+	 * @param task work to run for each job
+	 * @return result of each job in argument order, null where the job failed unexpectedly
 	 */
-	private static void error(String msg) {
-		LOG.error(msg);
-		DevNotifyEmail.send();
+	private static <T> List<T> runJobs(Function<RotationJob, T> task) {
+		List<T> outcomes = new ArrayList<>(jobs.size());
+		if (jobs.size() == 1) {
+			outcomes.add(task.apply(jobs.get(0)));
+			return outcomes;
+		}
+		LOG.info("Processing {} RPD servers", jobs.size());
+		ExecutorService pool = Executors.newFixedThreadPool(jobs.size());
+		try {
+			List<Future<T>> results = new ArrayList<>(jobs.size());
+			for (RotationJob job : jobs) {
+				results.add(pool.submit(() -> task.apply(job)));
+			}
+			for (Future<T> result : results) {
+				try {
+					outcomes.add(result.get());
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					LOG.error("Interrupted while waiting for rotation to complete");
+					outcomes.add(null);
+				} catch (ExecutionException ex) {
+					// Jobs report their own errors, this is only reached on an Error
+					LOG.error("Rotation failed", ex.getCause());
+					outcomes.add(null);
+				}
+			}
+			return outcomes;
+		} finally {
+			pool.shutdown();
+		}
 	}
 	
 	/**
-	 * Log the error to the rolling file and send a notification email to dev team
-	 * @param msg Message to add to log file
-	 * @param ex caught Exception
+	 * Write the run report if one has been configured. The report covers every RPD server
+	 * rotated. Differing metrics files are refused at start up, but a config file changed while
+	 * the daemon is running may name another, in which case only the first is written.
 	 */
-	private static void error(String msg, Exception ex) {
-		LOG.error(msg, ex);
-		DevNotifyEmail.send();
+	private static void writeMetrics() {
+		Set<String> metricsFiles = metricsFiles(job -> job.getNetworkConfig() == null ? null : job.getNetworkConfig().getMetricsFile());
+		if (metricsFiles.isEmpty()) {
+			return;
+		}
+		String metricsFile = metricsFiles.iterator().next();
+		if (metricsFiles.size() > 1) {
+			LOG.warn("Config files name different metrics files {}, report written to {} only", metricsFiles, metricsFile);
+		}
+		try {
+			RunMetrics.writeReport(Paths.get(metricsFile));
+		} catch (Exception e) {
+			LOG.warn("Unable to write metrics report {}", metricsFile, e);
+		}
 	}
 }
@@ -0,0 +1,592 @@
+package uk.gov.dvla.osg.appPwdUpdate.main;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import com.google.gson.Gson;
+
+import uk.gov.dvla.osg.appPwdUpdate.email.DevNotifyEmail;
+import uk.gov.dvla.osg.appPwdUpdate.metrics.RunMetrics;
+import uk.gov.dvla.osg.appPwdUpdate.networking.NetworkConfig;
+import uk.gov.dvla.osg.appPwdUpdate.networking.RestClient;
+import uk.gov.dvla.osg.appPwdUpdate.networking.SessionManager;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.CredentialStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordJournal;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordPublisher;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint.State;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationHistory;
+import uk.gov.dvla.osg.appPwdUpdate.rotation.RotationEngine;
+import uk.gov.dvla.osg.appPwdUpdate.rotation.RotationPlan;
+import uk.gov.dvla.osg.appPwdUpdate.rotation.RotationPolicy;
+import uk.gov.dvla.osg.appPwdUpdate.utils.FileVersion;
+import uk.gov.dvla.osg.appPwdUpdate.utils.LogFields;
+import uk.gov.dvla.osg.appPwdUpdate.utils.RandomPasswordGenerator;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Rotates the passwords held in one passwords file against the RPD server named in its config
+ * file: load, log in, rotate, save and log out. Each job has its own session, journal and rate
+ * limiter so a failure against one RPD server does not affect the others.
+ * <p>
+ * The applications rotated, and their order, are chosen by the {@link RotationPolicy} from the
+ * time each was last rotated. Progress is recorded in a checkpoint. When resuming, applications
+ * the checkpoint shows as rotated are skipped. For an application left in flight RPD may or may
+ * not hold the new password staged in the journal, so the job logs in with the staged password
+ * and then the current one to find out: the staged password is committed if RPD accepts it,
+ * and the application rotated again if RPD still accepts the current one. An application with
+ * no staged password, e.g. after a torn journal write, is checked with the current one only. An
+ * application neither password logs in with is reported and skipped, and is not used to open
+ * the session, as a third refused login would lock its account. Once the passwords file holds
+ * the password RPD has, the next resumed run rotates it.
+ * <p>
+ * A job can be run repeatedly, as it is by the daemon. The config file and credential store are
+ * kept loaded between runs and only read again once they have changed on disk. The passwords
+ * file is opened with {@link CredentialStore#open(java.nio.file.Path)}, so may be a properties
+ * file or an encrypted store.
+ */
+public class RotationJob {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	private final String configFile, passwordsFile, label;
+	private final boolean resume;
+	private final Set<String> recovered = new HashSet<>();
+	// Passwords committed in the journal, read but not applied to the store when planning
+	private final Map<String, Secret> journalPasswords = new LinkedHashMap<>();
+	private CredentialStore store;
+	private NetworkConfig networkConfig;
+	private FileVersion configVersion;
+	private PasswordJournal journal;
+	private PasswordPublisher publisher;
+	private RotationCheckpoint checkpoint;
+	private RotationHistory history;
+	private List<String> selected;
+	private SessionManager session;
+	private int skipped;
+
+	/**
+	 * @param configFile network configuration file for the RPD server
+	 * @param passwordsFile passwords file for the applications on that server
+	 * @param label identifies the job in log entries and notifications, null when there is only one job
+	 * @param resume continue from the checkpoint left by an incomplete run
+	 */
+	public RotationJob(String configFile, String passwordsFile, String label, boolean resume) {
+		this.configFile = configFile;
+		this.passwordsFile = passwordsFile;
+		this.label = label;
+		this.resume = resume;
+	}
+
+	/**
+	 * Check both files exist before any job is started.
+	 * @return true if the config and passwords files exist
+	 */
+	public boolean validate() {
+		if (!(new File(passwordsFile).exists())) {
+			LOG.fatal("Data file '{}' doesn't exist!", passwordsFile);
+			return false;
+		}
+		if (!(new File(configFile).exists())) {
+			LOG.fatal("Config file '{}' doesn't exist!", configFile);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Run the job to completion. Errors are logged and notified, never thrown. However the run
+	 * ends the session is logged out and the journal and checkpoint files are released.
+	 * @return false if the files could not be loaded or the run failed unexpectedly, true otherwise
+	 */
+	public boolean run() {
+		if (label != null) {
+			ThreadContext.put(LogFields.TARGET, label);
+		}
+		session = null;
+		journal = null;
+		checkpoint = null;
+		try {
+			// Load passwords file
+			if (!setProperties(false)) {
+				return false;
+			}
+			// Record or restore progress through the applications
+			if (!startCheckpoint()) {
+				return false;
+			}
+			// Find out which password RPD holds for applications an earlier run left in flight
+			resolveInFlight();
+			// Loop through the applications with new random passwords
+			updatePasswords();
+			// Save properties to disk
+			if (saveProperties()) {
+				finishCheckpoint();
+			}
+			return true;
+		} catch (IOException | RuntimeException ex) {
+			error("Unexpected failure rotating passwords", ex);
+			return false;
+		} finally {
+			// Logout of session
+			logout();
+			if (journal != null) {
+				journal.close();
+			}
+			if (checkpoint != null) {
+				checkpoint.close();
+			}
+			ThreadContext.remove(LogFields.TARGET);
+		}
+	}
+
+	/**
+	 * Work out how long the job would take without changing any password. Logs in and out
+	 * once to measure RPD latency, and generates but does not send the new passwords. The
+	 * credential store, journal, checkpoint and rotation history are read but not written, and passwords
+	 * committed in the journal are used to log in without being applied to the store. However
+	 * planning ends the session is logged out and the journal file released.
+	 * @return the plan, or null if the files could not be loaded or RPD would not log in
+	 */
+	public RotationPlan plan() {
+		if (label != null) {
+			ThreadContext.put(LogFields.TARGET, label);
+		}
+		session = null;
+		journal = null;
+		checkpoint = null;
+		try {
+			if (!setProperties(true)) {
+				return null;
+			}
+			List<String> apps = planSelection();
+
+			session = new SessionManager(networkConfig, credentials());
+			long start = System.nanoTime();
+			if (!session.login()) {
+				error("Unable to log in to RPD, rotation not planned");
+				return null;
+			}
+			long loginNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < apps.size(); i++) {
+				RandomPasswordGenerator.generateSecret().clear();
+			}
+			long generateNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			session.logout();
+			long logoutNanos = System.nanoTime() - start;
+
+			RotationPlan plan = new RotationPlan(networkConfig, apps.size(), loginNanos, logoutNanos, generateNanos);
+			LOG.info("Plan: {}", plan);
+			return plan;
+		} catch (IOException | RuntimeException ex) {
+			error("Unexpected failure planning rotation", ex);
+			return null;
+		} finally {
+			// Already logged out unless planning failed once logged in
+			logout();
+			if (journal != null) {
+				journal.close();
+			}
+			journalPasswords.values().forEach(Secret::clear);
+			journalPasswords.clear();
+			ThreadContext.remove(LogFields.TARGET);
+		}
+	}
+
+	/**
+	 * @return network configuration, null until the job has loaded it
+	 */
+	public NetworkConfig getNetworkConfig() {
+		return networkConfig;
+	}
+
+	/**
+	 * Load in the properties from the two config files, unless they are unchanged since the last run
+	 * @param dryRun read the journal without applying it to the store or changing it
+	 * @return false if either file cannot be read
+	 */
+	private boolean setProperties(boolean dryRun) {
+		recovered.clear();
+		skipped = 0;
+		LOG.trace("Loading Properties file");
+		long start = System.nanoTime();
+		try {
+			// load application passwords, unless the store is unchanged since the last run
+			boolean reload = store != null;
+			if (store == null) {
+				store = CredentialStore.open(Paths.get(passwordsFile));
+			}
+			// Planning must not write, so the store is not created, locked or repaired
+			if ((dryRun ? store.loadReadOnly() : store.load()) && reload) {
+				LOG.info("Passwords file {} has changed, reloading", passwordsFile);
+			}
+			// Apply any passwords accepted by RPD during a run that did not complete
+			journal = new PasswordJournal(Paths.get(passwordsFile), store);
+			if (dryRun) {
+				journalPasswords.putAll(journal.readCommitted());
+				recovered.addAll(journalPasswords.keySet());
+				if (!recovered.isEmpty()) {
+					LOG.warn("{} passwords in journal of incomplete run will be recovered", recovered.size());
+				}
+			} else if (journal.replay(store, recovered::add) > 0) {
+				LOG.warn("Recovered {} passwords from journal of incomplete run", recovered.size());
+			}
+			// Last rotation time of each application, recovered passwords were rotated by the incomplete run
+			history = new RotationHistory(Paths.get(passwordsFile));
+			history.load();
+			long now = System.currentTimeMillis();
+			recovered.forEach(appName -> history.recordRotation(appName, now));
+			RunMetrics.recordPhase(RunMetrics.LOAD, start);
+		} catch (Exception ex) {
+			error("Unable to load application properties.", ex);
+			return false;
+		}
+
+		// load network properties from JSON file
+		try {
+			loadNetworkConfig();
+		} catch (Exception ex) {
+			error("Unable to read JSON file", ex);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the report file named in the config file before the job is run, so that the files
+	 * named by several jobs can be checked. The config file is kept loaded for the run.
+	 * @return metrics file, or null if none is configured or the config file cannot be read,
+	 *         which is reported when the job is run
+	 */
+	public String readMetricsFile() {
+		try {
+			loadNetworkConfig();
+			return networkConfig.getMetricsFile();
+		} catch (Exception ex) {
+			LOG.debug("Unable to read metrics file from {}", configFile, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Load the network config file, unless it is unchanged since it was last loaded.
+	 * @throws IOException config file cannot be read
+	 */
+	private void loadNetworkConfig() throws IOException {
+		LOG.trace("Loading JSON file");
+		FileVersion version = new FileVersion(new File(configFile));
+		if (networkConfig != null && version.equals(configVersion)) {
+			return;
+		}
+		try (Reader in = new FileReader(configFile)) {
+			if (networkConfig != null) {
+				LOG.info("Config file {} has changed, reloading", configFile);
+			}
+			networkConfig = new Gson().fromJson(in, NetworkConfig.class);
+			configVersion = version;
+		}
+	}
+
+	/**
+	 * Select the applications to rotate and start a new checkpoint for them. When resuming the
+	 * applications are those in the previous checkpoint, and any passwords recovered from the
+	 * journal are recorded as rotated.
+	 * @return false if the checkpoint cannot be read or written
+	 */
+	private boolean startCheckpoint() {
+		checkpoint = new RotationCheckpoint(Paths.get(passwordsFile));
+		RotationPolicy policy = networkConfig.getRotationPolicy();
+		try {
+			if (resume && checkpoint.exists()) {
+				checkpoint.load();
+				for (String appName : recovered) {
+					checkpoint.mark(appName, State.ROTATED);
+				}
+				LOG.info("Resuming from checkpoint of incomplete run");
+				selected = policy.order(checkpoint.getApps());
+			} else {
+				if (resume) {
+					LOG.info("No checkpoint to resume from, selecting applications by rotation policy");
+				} else if (checkpoint.exists()) {
+					LOG.warn("Replacing checkpoint of incomplete run, use --resume to continue it instead");
+				}
+				selected = policy.select(store.appNames(), history, System.currentTimeMillis());
+				checkpoint.start(selected);
+			}
+			return true;
+		} catch (Exception ex) {
+			error("Unable to open checkpoint", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Log in with the password staged for each application left in flight by the run being
+	 * resumed, then with its current password, to find out which one RPD holds. Each password
+	 * is tried once, as a refused login counts towards RPD locking the account. An application
+	 * with no staged password is only tried with its current one.
+	 * @throws IOException journal, store or checkpoint could not be read or written
+	 */
+	private void resolveInFlight() throws IOException {
+		List<String> inFlight = new ArrayList<>();
+		for (String appName : checkpoint.getApps()) {
+			if (checkpoint.getState(appName) == State.IN_FLIGHT) {
+				inFlight.add(appName);
+			}
+		}
+		if (inFlight.isEmpty()) {
+			return;
+		}
+		Map<String, Secret> staged = journal.readUncommitted();
+		try {
+			long now = System.currentTimeMillis();
+			for (String appName : inFlight) {
+				Secret newPassword = staged.get(appName);
+				String token;
+				if (newPassword != null) {
+					token = RestClient.rpdLogin(networkConfig, appName, newPassword);
+					if (token == null) {
+						LOG.warn("RPD is unreachable, unable to check which password RPD holds for applications left in flight");
+						return;
+					}
+					if (!token.isEmpty()) {
+						RestClient.rpdLogOut(networkConfig, appName, token);
+						journal.commit(appName);
+						try (Secret current = store.get(appName)) {
+							store.compareAndSet(appName, current, newPassword);
+						}
+						history.recordRotation(appName, now);
+						checkpoint.mark(appName, State.ROTATED);
+						LOG.warn("RPD holds the new password for {} sent by the incomplete run, recovered from journal", appName);
+						continue;
+					}
+				} else {
+					// The staged record was lost, e.g. torn by a crash, so only the current password can be tried
+					LOG.warn("No new password staged in journal for {}, checking RPD still holds the current one", appName);
+				}
+				try (Secret current = store.get(appName)) {
+					token = RestClient.rpdLogin(networkConfig, appName, current);
+				}
+				if (token == null) {
+					LOG.warn("RPD is unreachable, unable to check which password RPD holds for applications left in flight");
+					return;
+				}
+				if (!token.isEmpty()) {
+					RestClient.rpdLogOut(networkConfig, appName, token);
+					journal.abort(appName);
+					checkpoint.mark(appName, State.PENDING);
+					LOG.warn("RPD did not take the new password for {} sent by the incomplete run, rotating it again", appName);
+				}
+			}
+		} finally {
+			staged.values().forEach(Secret::clear);
+		}
+	}
+
+	/**
+	 * Select the applications a run would rotate without starting a checkpoint.
+	 * @return applications that would be sent to RPD
+	 */
+	private List<String> planSelection() {
+		RotationPolicy policy = networkConfig.getRotationPolicy();
+		RotationCheckpoint previous = new RotationCheckpoint(Paths.get(passwordsFile));
+		if (resume && previous.exists()) {
+			try {
+				previous.load();
+				List<String> apps = new ArrayList<>();
+				for (String appName : policy.order(previous.getApps())) {
+					if (!recovered.contains(appName) && previous.getState(appName) != State.ROTATED) {
+						apps.add(appName);
+					}
+				}
+				return apps;
+			} catch (Exception ex) {
+				LOG.warn("Unable to read checkpoint, planning by rotation policy", ex);
+			}
+		}
+		return policy.select(store.appNames(), history, System.currentTimeMillis());
+	}
+
+	/**
+	 * Remove the checkpoint if every application now has a new password, otherwise leave it
+	 * for the next run to resume.
+	 */
+	private void finishCheckpoint() {
+		if (!checkpoint.isComplete()) {
+			LOG.warn("Not all applications rotated, run with --resume to retry only those");
+			return;
+		}
+		try {
+			checkpoint.delete();
+		} catch (Exception ex) {
+			LOG.warn("Unable to remove checkpoint", ex);
+		}
+	}
+
+	/**
+	 * Log an application in with with RPD. The session manager tries each application in turn
+	 * until one is accepted and keeps the session open for the rest of the run.
+	 * The remaining applications are handed to the rotation engine which creates new
+	 * passwords according to RPDs complexity rules and sends the old and new passwords to RPD.
+	 */
+	private void updatePasswords() throws IOException {
+		// Log in once and use this session to update all applications
+		session = new SessionManager(networkConfig, credentials());
+		if (!session.login() && session.isUnreachable()) {
+			// Nothing was sent, so the whole run is left for a resumed run rather than failed application by application
+			LOG.error("RPD is unreachable, {} applications deferred, run with --resume to rotate them", selected.size());
+			DevNotifyEmail.send(null, "RPD_UNREACHABLE", "RPD unreachable, " + selected.size() + " applications deferred");
+		}
+
+		// Applications RPD would not log in with are not rotated, their password may be wrong
+		for (String appName : store.appNames()) {
+			if (session.loginFailed(appName)) {
+				error("Unable to log in with application " + appName);
+			}
+		}
+
+		// Applications queued for update once logged in, in the order chosen by the rotation policy
+		Map<String, Secret> apps = new LinkedHashMap<>();
+		for (String appName : selected) {
+			LOG.debug("appName = {}", appName);
+			Secret appPwd = store.get(appName);
+
+			if (appPwd != null && !session.loginFailed(appName) && session.isLoggedIn() && isDue(appName)) {
+				apps.put(appName, appPwd);
+			} else if (appPwd != null) {
+				appPwd.clear();
+			}
+		}
+
+		if (skipped > 0) {
+			LOG.info("Skipping {} applications already rotated", skipped);
+		}
+
+		// Passwords accepted by RPD are published to the credential store in batches during the run,
+		// errors reported by the engine
+		publisher = new PasswordPublisher(store, networkConfig.getPublishBatchSize(), TimeUnit.SECONDS.toMillis(networkConfig.getPublishIntervalSeconds()));
+		Map<String, Secret> updated = new RotationEngine(networkConfig, session, journal, publisher, checkpoint).rotate(apps);
+		publisher.flush();
+		apps.values().forEach(Secret::clear);
+		long now = System.currentTimeMillis();
+		updated.forEach((appName, newPassword) -> {
+			newPassword.clear();
+			history.recordRotation(appName, now);
+		});
+	}
+
+	/**
+	 * Applications still in flight once resolved have already had both passwords refused, and
+	 * a third refused login would lock the account, so they are left out.
+	 * @return every other application's current password in store order, for the session to log in with
+	 * @throws IOException a password cannot be read from the store
+	 */
+	private Map<String, Secret> credentials() throws IOException {
+		Map<String, Secret> credentials = new LinkedHashMap<>();
+		for (String appName : store.appNames()) {
+			if (checkpoint != null && checkpoint.getState(appName) == State.IN_FLIGHT) {
+				continue;
+			}
+			Secret committed = journalPasswords.get(appName);
+			credentials.put(appName, committed != null ? committed.copy() : store.get(appName));
+		}
+		return credentials;
+	}
+
+	/**
+	 * @param appName application name
+	 * @return false if the checkpoint shows the application should not be sent to RPD
+	 */
+	private boolean isDue(String appName) {
+		switch (checkpoint.getState(appName)) {
+		case ROTATED:
+			LOG.debug("Skipping {}, already rotated", appName);
+			skipped++;
+			return false;
+		case IN_FLIGHT:
+			error("Skipping " + appName + ", previous update had no response from RPD and neither password logs in. "
+					+ "Put the password RPD holds in the passwords file and run with --resume again");
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Log the session out of RPD, if one was opened.
+	 */
+	private void logout() {
+		if (session != null) {
+			session.logout();
+		}
+	}
+
+	/**
+	 * Flush the changed passwords to the credential store. The journal is only removed once the
+	 * store is on disk, and is kept in full if the store would not take every new password.
+	 * @return true if the credential store was written
+	 */
+	private boolean saveProperties() {
+
+		LOG.trace("Saving application properties file : {}", passwordsFile);
+
+		long start = System.nanoTime();
+		try {
+			if (publisher.getUnsaved() > 0) {
+				// Applied to the store from the journal by the next run
+				store.flush();
+				LOG.warn("{} new passwords not saved in credential store, journal kept", publisher.getUnsaved());
+			} else {
+				journal.compact(store);
+			}
+			RunMetrics.recordPhase(RunMetrics.SAVE, start);
+		} catch (Exception e) {
+			error("Unable to save password file, new passwords remain in journal", e);
+			return false;
+		}
+		try {
+			history.save();
+		} catch (Exception e) {
+			// Only affects which applications the next run selects
+			LOG.warn("Unable to save rotation times", e);
+		}
+		return true;
+	}
+
+	/**
+	 * Log the error to the rolling file and queue a notification email to dev team
+	 * @param msg Message to add to log file
+	 */
+	private void error(String msg) {
+		LOG.error(msg);
+		DevNotifyEmail.send(msg);
+	}
+
+	/**
+	 * Log the error to the rolling file and queue a notification email to dev team
+	 * @param msg Message to add to log file
+	 * @param ex caught Exception
+	 */
+	private void error(String msg, Exception ex) {
+		LOG.error(msg, ex);
+		DevNotifyEmail.send(msg + ": " + ex);
+	}
+}
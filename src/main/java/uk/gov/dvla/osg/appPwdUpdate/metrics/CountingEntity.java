@@ -0,0 +1,68 @@
+package uk.gov.dvla.osg.appPwdUpdate.metrics;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.LongConsumer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Wraps an HTTP entity to count the body bytes sent or received through it.
+ */
+public class CountingEntity extends HttpEntityWrapper {
+
+	private final LongConsumer counter;
+
+	/**
+	 * @param entity entity to wrap
+	 * @param counter receives the number of bytes as they pass through
+	 */
+	public CountingEntity(HttpEntity entity, LongConsumer counter) {
+		super(entity);
+		this.counter = counter;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return new FilterInputStream(super.getContent()) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) {
+					counter.accept(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int off, int len) throws IOException {
+				int read = super.read(buffer, off, len);
+				if (read > 0) {
+					counter.accept(read);
+				}
+				return read;
+			}
+		};
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		super.writeTo(new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				counter.accept(1);
+			}
+
+			@Override
+			public void write(byte[] buffer, int off, int len) throws IOException {
+				out.write(buffer, off, len);
+				counter.accept(len);
+			}
+		});
+	}
+}
@@ -0,0 +1,65 @@
+package uk.gov.dvla.osg.appPwdUpdate.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed bucket boundaries, safe to update from several threads.
+ * Buckets are cumulative when reported, as Prometheus expects.
+ */
+public class Histogram {
+
+	/** Upper bounds of each bucket in seconds, the final +Inf bucket is implied */
+	static final double[] BOUNDS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+	private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumNanos = new LongAdder();
+
+	Histogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos observed duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		double seconds = nanos / 1e9;
+		int i = 0;
+		while (i < BOUNDS.length && seconds > BOUNDS[i]) {
+			i++;
+		}
+		buckets[i].increment();
+		count.increment();
+		sumNanos.add(nanos);
+	}
+
+	/**
+	 * @return number of observations
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return total of all observations in seconds
+	 */
+	public double getSumSeconds() {
+		return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+
+	/**
+	 * @return observations at or below each bound in {@link #BOUNDS}, followed by the total count
+	 */
+	public long[] getCumulativeCounts() {
+		long[] cumulative = new long[buckets.length];
+		long running = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			running += buckets[i].sum();
+			cumulative[i] = running;
+		}
+		return cumulative;
+	}
+}
@@ -0,0 +1,254 @@
+package uk.gov.dvla.osg.appPwdUpdate.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.LogFields;
+
+/**
+ * Timings and counters collected during a rotation run. Updated from the rotation workers
+ * and written out once at the end of the run, either as a Prometheus textfile for the node
+ * exporter (any file name not ending .json) or as a JSON document.
+ * <p>
+ * When several RPD servers are rotated in one run the report covers them all. The result of
+ * each application is recorded against the server in the {@link LogFields#TARGET} thread
+ * context entry, so applications of the same name on different servers are reported separately.
+ */
+public class RunMetrics {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	/** Phases of a run, used as the phase label of the duration histogram */
+	public static final String LOAD = "load", LOGIN = "login", UPDATE = "update", LOGOUT = "logout", SAVE = "save";
+	/** Time requests were held back by the client side rate limiter */
+	public static final String THROTTLE = "throttle";
+	/** Batch password update requests, each carrying the updates of several applications */
+	public static final String BATCH_UPDATE = "batch_update";
+
+	private static final String PREFIX = "apppwdupdate_";
+
+	private static final ConcurrentMap<String, Histogram> phases = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, LongAdder> responses = new ConcurrentHashMap<>();
+	// Application results by RPD server label, empty when only one server is rotated, then by application
+	private static final ConcurrentMap<String, ConcurrentMap<String, AppResult>> apps = new ConcurrentHashMap<>();
+	private static final LongAdder bytesSent = new LongAdder();
+	private static final LongAdder bytesReceived = new LongAdder();
+	private static volatile long runStart = System.nanoTime();
+
+	/**
+	 * Clear all metrics and start timing a new run.
+	 */
+	public static void reset() {
+		phases.clear();
+		responses.clear();
+		apps.clear();
+		bytesSent.reset();
+		bytesReceived.reset();
+		runStart = System.nanoTime();
+	}
+
+	/**
+	 * @param phase one of the phase constants
+	 * @param startNanos value of System.nanoTime() when the phase started
+	 */
+	public static void recordPhase(String phase, long startNanos) {
+		phases.computeIfAbsent(phase, key -> new Histogram()).record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param operation RPD call, one of login, update or logout
+	 * @param status HTTP status received, or 0 if the request failed without a response
+	 */
+	public static void recordResponse(String operation, int status) {
+		responses.computeIfAbsent(operation + "|" + status, key -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Record the result of an application on the RPD server named in the {@link LogFields#TARGET}
+	 * thread context entry of the calling thread.
+	 * @param appName application rotated
+	 * @param attempts number of update requests sent for the application
+	 * @param outcome e.g. rotated or failed
+	 */
+	public static void recordApp(String appName, int attempts, String outcome) {
+		String target = ThreadContext.get(LogFields.TARGET);
+		apps.computeIfAbsent(target == null ? "" : target, key -> new ConcurrentHashMap<>())
+			.put(appName, new AppResult(attempts, outcome));
+	}
+
+	public static void addBytesSent(long bytes) {
+		bytesSent.add(bytes);
+	}
+
+	public static void addBytesReceived(long bytes) {
+		bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Write the report for the run so far. The file is written alongside and renamed into
+	 * place so a scraper never reads a partial report.
+	 * @param file destination, JSON if the name ends .json otherwise Prometheus text format
+	 * @throws IOException report cannot be written
+	 */
+	public static void writeReport(Path file) throws IOException {
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (Writer out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+			if (file.getFileName().toString().endsWith(".json")) {
+				writeJson(out);
+			} else {
+				writePrometheus(out);
+			}
+		}
+		Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		LOG.trace("Metrics report written to {}", file);
+	}
+
+	private static void writePrometheus(Writer out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("# HELP ").append(PREFIX).append("phase_duration_seconds Time spent in each phase of the run.\n");
+		sb.append("# TYPE ").append(PREFIX).append("phase_duration_seconds histogram\n");
+		for (Map.Entry<String, Histogram> phase : new TreeMap<>(phases).entrySet()) {
+			Histogram histogram = phase.getValue();
+			long[] cumulative = histogram.getCumulativeCounts();
+			for (int i = 0; i < cumulative.length; i++) {
+				String le = i < Histogram.BOUNDS.length ? String.valueOf(Histogram.BOUNDS[i]) : "+Inf";
+				sb.append(PREFIX).append("phase_duration_seconds_bucket{phase=\"").append(phase.getKey())
+				  .append("\",le=\"").append(le).append("\"} ").append(cumulative[i]).append('\n');
+			}
+			sb.append(PREFIX).append("phase_duration_seconds_sum{phase=\"").append(phase.getKey()).append("\"} ")
+			  .append(histogram.getSumSeconds()).append('\n');
+			sb.append(PREFIX).append("phase_duration_seconds_count{phase=\"").append(phase.getKey()).append("\"} ")
+			  .append(histogram.getCount()).append('\n');
+		}
+
+		sb.append("# HELP ").append(PREFIX).append("http_responses_total RPD responses by operation and HTTP status, 0 when no response was received.\n");
+		sb.append("# TYPE ").append(PREFIX).append("http_responses_total counter\n");
+		for (Map.Entry<String, LongAdder> response : new TreeMap<>(responses).entrySet()) {
+			String[] key = response.getKey().split("\\|");
+			sb.append(PREFIX).append("http_responses_total{operation=\"").append(key[0]).append("\",status=\"")
+			  .append(key[1]).append("\"} ").append(response.getValue().sum()).append('\n');
+		}
+
+		sb.append("# HELP ").append(PREFIX).append("app_attempts Update requests sent for each application, by RPD server when there is more than one.\n");
+		sb.append("# TYPE ").append(PREFIX).append("app_attempts gauge\n");
+		for (Map.Entry<String, ConcurrentMap<String, AppResult>> target : new TreeMap<>(apps).entrySet()) {
+			for (Map.Entry<String, AppResult> app : new TreeMap<>(target.getValue()).entrySet()) {
+				sb.append(PREFIX).append("app_attempts{target=\"").append(escapeLabel(target.getKey())).append("\",app=\"")
+				  .append(escapeLabel(app.getKey())).append("\",outcome=\"").append(app.getValue().outcome).append("\"} ")
+				  .append(app.getValue().attempts).append('\n');
+			}
+		}
+
+		sb.append("# HELP ").append(PREFIX).append("bytes_sent_total Request body bytes sent to RPD.\n");
+		sb.append("# TYPE ").append(PREFIX).append("bytes_sent_total counter\n");
+		sb.append(PREFIX).append("bytes_sent_total ").append(bytesSent.sum()).append('\n');
+		sb.append("# HELP ").append(PREFIX).append("bytes_received_total Response body bytes received from RPD.\n");
+		sb.append("# TYPE ").append(PREFIX).append("bytes_received_total counter\n");
+		sb.append(PREFIX).append("bytes_received_total ").append(bytesReceived.sum()).append('\n');
+
+		sb.append("# HELP ").append(PREFIX).append("run_duration_seconds Time taken by the run.\n");
+		sb.append("# TYPE ").append(PREFIX).append("run_duration_seconds gauge\n");
+		sb.append(PREFIX).append("run_duration_seconds ").append(runSeconds()).append('\n');
+		sb.append("# HELP ").append(PREFIX).append("last_run_timestamp_seconds Time the run finished.\n");
+		sb.append("# TYPE ").append(PREFIX).append("last_run_timestamp_seconds gauge\n");
+		sb.append(PREFIX).append("last_run_timestamp_seconds ").append(System.currentTimeMillis() / 1000).append('\n');
+
+		out.write(sb.toString());
+	}
+
+	private static void writeJson(Writer out) {
+		JsonObject report = new JsonObject();
+		report.addProperty("timestamp", System.currentTimeMillis() / 1000);
+		report.addProperty("runDurationSeconds", runSeconds());
+		report.addProperty("bytesSent", bytesSent.sum());
+		report.addProperty("bytesReceived", bytesReceived.sum());
+
+		JsonObject phaseReport = new JsonObject();
+		for (Map.Entry<String, Histogram> phase : new TreeMap<>(phases).entrySet()) {
+			Histogram histogram = phase.getValue();
+			JsonObject entry = new JsonObject();
+			entry.addProperty("count", histogram.getCount());
+			entry.addProperty("sumSeconds", histogram.getSumSeconds());
+			JsonArray buckets = new JsonArray();
+			long[] cumulative = histogram.getCumulativeCounts();
+			for (int i = 0; i < cumulative.length; i++) {
+				JsonObject bucket = new JsonObject();
+				bucket.addProperty("le", i < Histogram.BOUNDS.length ? String.valueOf(Histogram.BOUNDS[i]) : "+Inf");
+				bucket.addProperty("count", cumulative[i]);
+				buckets.add(bucket);
+			}
+			entry.add("buckets", buckets);
+			phaseReport.add(phase.getKey(), entry);
+		}
+		report.add("phases", phaseReport);
+
+		JsonObject responseReport = new JsonObject();
+		for (Map.Entry<String, LongAdder> response : new TreeMap<>(responses).entrySet()) {
+			String[] key = response.getKey().split("\\|");
+			if (!responseReport.has(key[0])) {
+				responseReport.add(key[0], new JsonObject());
+			}
+			responseReport.getAsJsonObject(key[0]).addProperty(key[1], response.getValue().sum());
+		}
+		report.add("httpResponses", responseReport);
+
+		JsonArray appReport = new JsonArray();
+		for (Map.Entry<String, ConcurrentMap<String, AppResult>> target : new TreeMap<>(apps).entrySet()) {
+			for (Map.Entry<String, AppResult> app : new TreeMap<>(target.getValue()).entrySet()) {
+				JsonObject entry = new JsonObject();
+				if (!target.getKey().isEmpty()) {
+					entry.addProperty("target", target.getKey());
+				}
+				entry.addProperty("app", app.getKey());
+				entry.addProperty("attempts", app.getValue().attempts);
+				entry.addProperty("outcome", app.getValue().outcome);
+				appReport.add(entry);
+			}
+		}
+		report.add("apps", appReport);
+
+		new GsonBuilder().setPrettyPrinting().create().toJson(report, out);
+	}
+
+	private static double runSeconds() {
+		return (System.nanoTime() - runStart) / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+
+	private static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static class AppResult {
+		final int attempts;
+		final String outcome;
+
+		AppResult(int attempts, String outcome) {
+			this.attempts = attempts;
+			this.outcome = outcome;
+		}
+	}
+
+	// Suppress default constructor for noninstantiability
+	private RunMetrics() {
+		throw new AssertionError();
+	}
+}
@@ -0,0 +1,49 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import java.util.List;
+
+/*
+ * Models the Json response for an RPD batch password update, one result for each application.
+ * The format is assumed rather than taken from the RPD documentation, only the RPD simulator
+ * implements it.
+ */
+public class BatchUpdateResponseModel {
+
+    private List<Result> results;
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    public void setResults(List<Result> results) {
+        this.results = results;
+    }
+
+    /*
+     * Outcome of the update for one application, with errors in the same form as a single update.
+     */
+    public static class Result extends LoginBadResponseModel {
+
+        private String name;
+        private int status;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return HTTP status RPD would have returned had the update been sent on its own
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+    }
+}
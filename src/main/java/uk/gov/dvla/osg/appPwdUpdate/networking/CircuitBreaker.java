@@ -0,0 +1,195 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Stops requests being sent to RPD while it is unreachable, so that an outage costs one
+ * connection timeout per worker rather than one for every application left to rotate.
+ * <p>
+ * The breaker starts CLOSED and opens after a number of consecutive requests that received
+ * no response. While OPEN requests are refused straight away. Once the open period has passed
+ * the next request is let through as a trial (HALF_OPEN) and other requests wait for its
+ * outcome: any response from RPD closes the breaker, no response opens it again.
+ */
+public class CircuitBreaker {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	public enum State {
+		/** Requests are sent */
+		CLOSED,
+		/** RPD is unreachable, requests are refused */
+		OPEN,
+		/** A trial request is in flight, other requests wait for its outcome */
+		HALF_OPEN
+	}
+
+	private final int threshold;
+	private final long openNanos;
+	private final Lock lock = new ReentrantLock();
+	private final Condition trialComplete = lock.newCondition();
+
+	// Guarded by lock
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+
+	/**
+	 * @param threshold consecutive requests without a response that open the breaker
+	 * @param openMillis time the breaker stays open before a trial request is sent
+	 */
+	public CircuitBreaker(int threshold, long openMillis) {
+		this.threshold = Math.max(1, threshold);
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+	}
+
+	/**
+	 * @param config supplies circuitBreakerThreshold and circuitBreakerOpenSeconds
+	 */
+	public CircuitBreaker(NetworkConfig config) {
+		this(config.getCircuitBreakerThreshold(), TimeUnit.SECONDS.toMillis(config.getCircuitBreakerOpenSeconds()));
+	}
+
+	/**
+	 * Check whether a request may be sent. If the caller is let through as the trial request it
+	 * must report the outcome with {@link #onResponse()} or {@link #onNoResponse()}.
+	 * @return true if the request may be sent, false if RPD is unreachable
+	 * @throws InterruptedException interrupted while waiting for a trial request
+	 */
+	public boolean allowRequest() throws InterruptedException {
+		lock.lock();
+		try {
+			while (state == State.HALF_OPEN) {
+				trialComplete.await();
+			}
+			return allow();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Check whether a request may be sent without waiting for the outcome of a trial request.
+	 * If the caller is let through as the trial request it must report the outcome as for
+	 * {@link #allowRequest()}.
+	 * @return true if the request may be sent, false if RPD is unreachable or a trial request is in flight
+	 */
+	public boolean tryAllowRequest() {
+		lock.lock();
+		try {
+			return state != State.HALF_OPEN && allow();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for the outcome of a trial request in flight, if there is one, without sending a request.
+	 * @throws InterruptedException interrupted while waiting
+	 */
+	public void awaitTrial() throws InterruptedException {
+		lock.lock();
+		try {
+			while (state == State.HALF_OPEN) {
+				trialComplete.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Withdraw a request let through by the breaker that was never sent. A withdrawn trial
+	 * request leaves the breaker open, so the next request becomes the trial.
+	 */
+	public void cancel() {
+		lock.lock();
+		try {
+			if (state == State.HALF_OPEN) {
+				state = State.OPEN;
+				LOG.info("Trial request to RPD not sent");
+				trialComplete.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record a response from RPD. Any response, including an error, shows RPD is reachable.
+	 */
+	public void onResponse() {
+		lock.lock();
+		try {
+			failures = 0;
+			if (state != State.CLOSED) {
+				state = State.CLOSED;
+				LOG.info("RPD is responding again, resuming updates");
+				trialComplete.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record a request that failed to connect or timed out without a response.
+	 */
+	public void onNoResponse() {
+		lock.lock();
+		try {
+			failures++;
+			if (state == State.HALF_OPEN || state == State.CLOSED && failures >= threshold) {
+				state = State.OPEN;
+				openedAt = System.nanoTime();
+				LOG.error("No response from RPD to {} consecutive requests, deferring updates for {} seconds",
+						failures, TimeUnit.NANOSECONDS.toSeconds(openNanos));
+				trialComplete.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return time until a trial request may be sent, 0 unless the breaker is open
+	 */
+	public long getRetryDelayMillis() {
+		lock.lock();
+		try {
+			if (state != State.OPEN) {
+				return 0;
+			}
+			return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openedAt + openNanos - System.nanoTime()));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Guarded by lock
+	private boolean allow() {
+		if (state == State.OPEN) {
+			if (System.nanoTime() - openedAt < openNanos) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			LOG.info("Sending trial request to RPD");
+		}
+		return true;
+	}
+
+	public State getState() {
+		lock.lock();
+		try {
+			return state;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -18,6 +18,13 @@ public class LoginBadResponseModel {
         this.attributeErrors = attributeErrors;
     }
 
+    /**
+     * @return true if RPD supplied at least one general error
+     */
+    public boolean hasErrors() {
+        return generalErrors != null && !generalErrors.isEmpty();
+    }
+
     public String getMessage() {
         return generalErrors.get(0).getMessage();
     }
@@ -1,8 +1,56 @@
 package uk.gov.dvla.osg.appPwdUpdate.networking;
 
+import uk.gov.dvla.osg.appPwdUpdate.rotation.RotationPolicy;
+
 public class NetworkConfig {
 
-	private String protocol, host, port, loginUrl, logoutUrl, updateUrl;
+	private static final int DEFAULT_PARALLELISM = 1;
+	private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	private static final int DEFAULT_SOCKET_TIMEOUT = 30000;
+	private static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+	private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS = 30;
+	private static final int DEFAULT_CIRCUIT_BREAKER_PROBES = 3;
+	private static final int DEFAULT_PUBLISH_BATCH_SIZE = 10;
+	private static final int DEFAULT_PUBLISH_INTERVAL_SECONDS = 5;
+	private static final int DEFAULT_UPDATE_BATCH_SIZE = 20;
+
+	private String protocol, host, port, loginUrl, logoutUrl, updateUrl, batchUpdateUrl, metricsFile, tokenRejectedCode;
+	private int parallelism, maxConnections, connectTimeout, socketTimeout, maxConcurrentRequests, tokenMaxAgeSeconds;
+	private int circuitBreakerThreshold, circuitBreakerOpenSeconds, circuitBreakerProbes;
+	private int publishBatchSize, publishIntervalSeconds, updateBatchSize;
+	private double maxRequestsPerSecond;
+	private RotationPolicy rotationPolicy;
+
+	/**
+	 * Used by Gson when reading the config file.
+	 */
+	public NetworkConfig() {
+	}
+
+	/**
+	 * Build a configuration in code, used when running against the RPD simulator.
+	 * @param protocol e.g. http://
+	 * @param host RPD host name
+	 * @param port RPD port
+	 * @param loginUrl path of the login service
+	 * @param logoutUrl path of the logout service
+	 * @param updateUrl path of the password update service, the application name is appended
+	 */
+	public NetworkConfig(String protocol, String host, String port, String loginUrl, String logoutUrl, String updateUrl) {
+		this.protocol = protocol;
+		this.host = host;
+		this.port = port;
+		this.loginUrl = loginUrl;
+		this.logoutUrl = logoutUrl;
+		this.updateUrl = updateUrl;
+	}
+
+	/**
+	 * @return protocol, host and port of the RPD server
+	 */
+	public String getTarget() {
+		return protocol + host + ":" + port;
+	}
 
 	public String getLoginUrl() {
 		return protocol + host + ":" + port + loginUrl;
@@ -11,9 +59,190 @@ public class NetworkConfig {
 	public String getLogoutUrl() {
 		return protocol + host + ":" + port + logoutUrl;
 	}
-	
+
 	public String getUpdateUrl() {
 		return protocol + host + ":" + port + updateUrl;
 	}
-	
+
+	/**
+	 * Batch password update service, which takes the updates for several applications in one
+	 * request. Optional in the config file, if it is not given or RPD does not provide the
+	 * service each application is updated with its own request. The request and response
+	 * formats of the service are assumed, see {@link RestClient#rpdUpdatePwdBatch}.
+	 * @return URL of the batch update service, or null if updates are not batched
+	 */
+	public String getBatchUpdateUrl() {
+		return batchUpdateUrl == null ? null : protocol + host + ":" + port + batchUpdateUrl;
+	}
+
+	/**
+	 * @param batchUpdateUrl path of the batch password update service, or null to update each
+	 *        application with its own request
+	 */
+	public void setBatchUpdateUrl(String batchUpdateUrl) {
+		this.batchUpdateUrl = batchUpdateUrl;
+	}
+
+	/**
+	 * Largest number of applications updated by one batch request. Optional in the config file,
+	 * defaults to 20. Only used with a batchUpdateUrl.
+	 * @return updates sent in each batch request
+	 */
+	public int getUpdateBatchSize() {
+		return updateBatchSize > 0 ? updateBatchSize : DEFAULT_UPDATE_BATCH_SIZE;
+	}
+
+	public void setUpdateBatchSize(int updateBatchSize) {
+		this.updateBatchSize = updateBatchSize;
+	}
+
+	/**
+	 * Maximum number of applications that may have their password updated at the same time.
+	 * Optional in the config file, defaults to 1 so that applications are updated one at a time
+	 * unless more are configured.
+	 * @return number of concurrent update requests allowed against RPD
+	 */
+	public int getParallelism() {
+		return parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Upper limit on the rate of update requests sent to RPD. Optional in the config file,
+	 * defaults to no limit. The rate actually used is reduced while RPD appears overloaded.
+	 * @return requests per second, or 0 if the rate is not limited
+	 */
+	public double getMaxRequestsPerSecond() {
+		return maxRequestsPerSecond > 0 ? maxRequestsPerSecond : 0;
+	}
+
+	/**
+	 * Upper limit on the number of update requests waiting for a response from RPD. Optional in
+	 * the config file, defaults to the parallelism. The limit actually used is reduced while RPD
+	 * appears overloaded.
+	 * @return maximum number of requests in flight
+	 */
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests > 0 ? maxConcurrentRequests : getParallelism();
+	}
+
+	/**
+	 * Age at which the session token is renewed before it is next used. Optional in the config
+	 * file, by default the token is only renewed when RPD rejects it.
+	 * @return maximum token age in seconds, or 0 if tokens are not renewed on age
+	 */
+	public int getTokenMaxAgeSeconds() {
+		return tokenMaxAgeSeconds > 0 ? tokenMaxAgeSeconds : 0;
+	}
+
+	/**
+	 * Error code RPD returns with 401 Unauthorized when it rejects the session token rather than
+	 * the update. Optional in the config file. When it is set an update rejected with the code is
+	 * sent again with a renewed token without counting as a password attempt. Without it a 401
+	 * may be RPD refusing the current password, so it counts as an attempt towards the account
+	 * lockout and the next attempt is sent with a renewed token.
+	 * @return error code of a rejected token, or null if it is not known
+	 */
+	public String getTokenRejectedCode() {
+		return tokenRejectedCode;
+	}
+
+	public void setTokenRejectedCode(String tokenRejectedCode) {
+		this.tokenRejectedCode = tokenRejectedCode;
+	}
+
+	/**
+	 * Number of consecutive update requests RPD does not respond to before the remaining
+	 * applications are deferred. Optional in the config file, defaults to 5.
+	 * @return consecutive requests without a response that open the circuit breaker
+	 */
+	public int getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold > 0 ? circuitBreakerThreshold : DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+	}
+
+	/**
+	 * Time to wait after RPD stops responding before a trial request is sent. Optional in the
+	 * config file, defaults to 30 seconds.
+	 * @return time in seconds the circuit breaker stays open
+	 */
+	public int getCircuitBreakerOpenSeconds() {
+		return circuitBreakerOpenSeconds > 0 ? circuitBreakerOpenSeconds : DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS;
+	}
+
+	/**
+	 * Number of times deferred applications are tried again before the run gives up on them.
+	 * Optional in the config file, defaults to 3.
+	 * @return trial requests sent once every application has been tried or deferred
+	 */
+	public int getCircuitBreakerProbes() {
+		return circuitBreakerProbes > 0 ? circuitBreakerProbes : DEFAULT_CIRCUIT_BREAKER_PROBES;
+	}
+
+	/**
+	 * Number of new passwords written to the passwords file together while the run is in
+	 * progress. Optional in the config file, defaults to 10.
+	 * @return commits published in each batch
+	 */
+	public int getPublishBatchSize() {
+		return publishBatchSize > 0 ? publishBatchSize : DEFAULT_PUBLISH_BATCH_SIZE;
+	}
+
+	/**
+	 * Time after which a new password is written to the passwords file without waiting for a
+	 * full batch. Optional in the config file, defaults to 5 seconds.
+	 * @return publish interval in seconds
+	 */
+	public int getPublishIntervalSeconds() {
+		return publishIntervalSeconds > 0 ? publishIntervalSeconds : DEFAULT_PUBLISH_INTERVAL_SECONDS;
+	}
+
+	/**
+	 * Which applications are rotated and in what order. Optional in the config file, by default
+	 * every application is rotated in file order.
+	 * @return rotation policy for the passwords file
+	 */
+	public RotationPolicy getRotationPolicy() {
+		if (rotationPolicy == null) {
+			rotationPolicy = new RotationPolicy();
+		}
+		return rotationPolicy;
+	}
+
+	/**
+	 * Location of the run report. Optional in the config file, a name ending .json gives a
+	 * JSON report, anything else Prometheus text format for the node exporter textfile collector.
+	 * @return report file, or null if no report is required
+	 */
+	public String getMetricsFile() {
+		return metricsFile;
+	}
+
+	/**
+	 * Size of the RPD connection pool. Optional in the config file, defaults to one
+	 * connection per update thread plus one for the login session.
+	 * @return maximum number of open connections to RPD
+	 */
+	public int getMaxConnections() {
+		return maxConnections > 0 ? maxConnections : getParallelism() + 1;
+	}
+
+	/**
+	 * Optional in the config file, defaults to 10 seconds.
+	 * @return time in milliseconds allowed to establish a connection to RPD
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout > 0 ? connectTimeout : DEFAULT_CONNECT_TIMEOUT;
+	}
+
+	/**
+	 * Optional in the config file, defaults to 30 seconds.
+	 * @return time in milliseconds allowed waiting for data from RPD
+	 */
+	public int getSocketTimeout() {
+		return socketTimeout > 0 ? socketTimeout : DEFAULT_SOCKET_TIMEOUT;
+	}
+
 }
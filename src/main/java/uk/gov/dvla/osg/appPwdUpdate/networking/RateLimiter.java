@@ -0,0 +1,154 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import uk.gov.dvla.osg.appPwdUpdate.metrics.RunMetrics;
+
+/**
+ * Client side limit on the requests sent to RPD. Requests are paced to a maximum rate and the
+ * number in flight is capped. Both limits adapt AIMD style: they are halved when RPD shows signs
+ * of overload (429 or 5xx responses, timeouts or a latency well above the best seen) and
+ * recovered gradually while RPD responds normally.
+ * <p>
+ * Callers wait for a permit rather than failing, so a request held back here never costs an
+ * application one of its password change attempts.
+ */
+public class RateLimiter {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	private static final double MIN_RATE = 0.2;
+	private static final double LATENCY_FACTOR = 2.0;
+	private static final long MIN_LATENCY_SIGNAL = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final double EWMA_WEIGHT = 0.2;
+
+	private final double maxRate;
+	private final int maxConcurrency;
+	private final Lock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+
+	// Guarded by lock
+	private double concurrencyLimit;
+	private int inFlight;
+	private double rate;
+	private long nextFreeNanos;
+	private long minLatency = Long.MAX_VALUE;
+	private double averageLatency;
+	private long lastDecrease;
+
+	/**
+	 * @param maxRate requests per second, zero for no rate limit
+	 * @param maxConcurrency maximum requests in flight
+	 */
+	public RateLimiter(double maxRate, int maxConcurrency) {
+		this.maxRate = maxRate;
+		this.maxConcurrency = Math.max(1, maxConcurrency);
+		this.rate = maxRate;
+		this.concurrencyLimit = this.maxConcurrency;
+		this.lastDecrease = System.nanoTime();
+	}
+
+	/**
+	 * @param config supplies maxRequestsPerSecond and maxConcurrentRequests
+	 */
+	public RateLimiter(NetworkConfig config) {
+		this(config.getMaxRequestsPerSecond(), config.getMaxConcurrentRequests());
+	}
+
+	/**
+	 * Wait until a request may be sent.
+	 * @return permit to pass to {@link #release(long, int)} once the response is received
+	 * @throws InterruptedException interrupted while waiting, no permit is held
+	 */
+	public long acquire() throws InterruptedException {
+		long waitNanos = 0;
+		long start = System.nanoTime();
+		lock.lock();
+		try {
+			while (inFlight >= (int) concurrencyLimit) {
+				available.await();
+			}
+			inFlight++;
+			if (rate > 0) {
+				long now = System.nanoTime();
+				long slot = Math.max(nextFreeNanos, now);
+				nextFreeNanos = slot + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+				waitNanos = slot - now;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (waitNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (InterruptedException ex) {
+				release();
+				throw ex;
+			}
+		}
+		long permit = System.nanoTime();
+		if (permit - start > TimeUnit.MILLISECONDS.toNanos(1)) {
+			RunMetrics.recordPhase(RunMetrics.THROTTLE, start);
+		}
+		return permit;
+	}
+
+	/**
+	 * Return a permit and adjust the limits from the outcome of the request.
+	 * @param permit value returned by {@link #acquire()}
+	 * @param status HTTP status received, or 0 if no response was received
+	 */
+	public void release(long permit, int status) {
+		long now = System.nanoTime();
+		long latency = now - permit;
+		lock.lock();
+		try {
+			inFlight--;
+			boolean overloaded = status == 0 || status == 429 || status >= 500;
+			if (!overloaded) {
+				minLatency = Math.min(minLatency, latency);
+				averageLatency = averageLatency == 0 ? latency : averageLatency + EWMA_WEIGHT * (latency - averageLatency);
+				overloaded = averageLatency > MIN_LATENCY_SIGNAL && averageLatency > minLatency * LATENCY_FACTOR;
+			}
+			if (overloaded) {
+				// Only back off once for requests already in flight when the last decrease happened
+				if (permit > lastDecrease) {
+					concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+					if (maxRate > 0) {
+						rate = Math.max(MIN_RATE, rate / 2);
+					}
+					// Latency will take time to recover, start the average again from the best seen
+					averageLatency = minLatency == Long.MAX_VALUE ? 0 : minLatency;
+					lastDecrease = now;
+					LOG.warn("RPD overloaded ({}), reducing to {} concurrent requests{}",
+							status == 0 ? "no response" : status < 500 && status != 429 ? "latency rising" : "status " + status,
+							(int) concurrencyLimit, maxRate > 0 ? String.format(" at %.1f per second", rate) : "");
+				}
+			} else {
+				concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+				if (maxRate > 0) {
+					rate = Math.min(maxRate, rate + maxRate / 50);
+				}
+			}
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void release() {
+		lock.lock();
+		try {
+			inFlight--;
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -1,62 +1,96 @@
 package uk.gov.dvla.osg.appPwdUpdate.networking;
 
-import javax.ws.rs.ProcessingException;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.conn.HttpHostConnectException;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-
-import com.google.gson.GsonBuilder;
+import org.apache.logging.log4j.ThreadContext;
 
 import uk.gov.dvla.osg.appPwdUpdate.email.DevNotifyEmail;
+import uk.gov.dvla.osg.appPwdUpdate.metrics.CountingEntity;
+import uk.gov.dvla.osg.appPwdUpdate.metrics.RunMetrics;
 import uk.gov.dvla.osg.appPwdUpdate.utils.JsonUtils;
+import uk.gov.dvla.osg.appPwdUpdate.utils.LogFields;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
 
 /**
- * Utility methods to transmit messages to the RPD REST service. 
+ * Utility methods to transmit messages to the RPD REST service.
  * These are set by the RPD REST api and shouldn't be amended.
+ * All calls share the pooled client held by {@link RpdTransport}.
+ * <p>
+ * While a call is in progress the HTTP status and latency of its response are held in the
+ * {@link LogFields#STATUS} and {@link LogFields#LATENCY} thread context entries, so that they
+ * are included in the events logged for it.
  */
 public class RestClient {
 
 	static final Logger LOG = LogManager.getLogger();
 
 	/**
-	 * Log an application into RPD and obtain a session token.
+	 * Log an application into RPD and obtain a session token. The RPD login service only takes
+	 * the password as a query parameter, so unlike an update it has to be copied into the
+	 * request URI as a String.
 	 * @param config Contains the URL to locate the LogIn service
 	 * @param appName Name of the application
 	 * @param appPwd Current password for the application
-	 * @return active token for the session
+	 * @return active token for the session, empty if RPD refused the login, or null if no
+	 *         response was received
 	 */
-	public static String rpdLogin(NetworkConfig config, String appName, String appPwd) {
-        
+	public static String rpdLogin(NetworkConfig config, String appName, Secret appPwd) {
+
         try {
-        	Response response = ClientBuilder.newClient()
-        									 .target(config.getLoginUrl())
-        									 .queryParam("name", appName)
-        									 .queryParam("pwd", appPwd)
-        									 .request(MediaType.APPLICATION_JSON)
-        									 .get();
-        	String data = response.readEntity(String.class); 
-            if (response.getStatus() == 200) {
-            	LOG.trace("Login succeeded");
-            	String token = JsonUtils.getTokenFromJson(data);
-            	return token;
-            } else {
-            	// RPD provides clear error information, and so is mapped to model
-                LoginBadResponseModel br = new GsonBuilder().create().fromJson(data, LoginBadResponseModel.class);
-                LOG.error("{} {} {}",br.getMessage(), br.getAction(), br.getCode());
-            }
-        } catch (ProcessingException e) {
+        	URI uri = new URIBuilder(config.getLoginUrl())
+        							.addParameter("name", appName)
+        							.addParameter("pwd", appPwd.reveal())
+        							.build();
+        	HttpGet httpGet = new HttpGet(uri);
+        	httpGet.addHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+        	try (CloseableHttpResponse response = execute(config, httpGet, RunMetrics.LOGIN);
+        		 Reader data = responseReader(response)) {
+        		if (response.getStatusLine().getStatusCode() == 200) {
+        			LOG.trace("Login succeeded");
+        			String token = JsonUtils.readToken(data);
+        			return token;
+        		} else {
+        			// RPD provides clear error information, and so is mapped to model
+        			LoginBadResponseModel br = JsonUtils.readErrors(data);
+        			if (br != null) {
+        				LOG.error("{} {} {}",br.getMessage(), br.getAction(), br.getCode());
+        			} else {
+        				LOG.error("Login failed, Error code = {}", response.getStatusLine().getStatusCode());
+        			}
+        		}
+        	}
+        } catch (IOException e) {
         	LOG.error("Failed to connect to RPD", e);
+        	return null;
         } catch (Exception e) {
         	LOG.error("Failed to log into RPD", e);
+        } finally {
+        	clearResponse();
         }
         return "";
 	}
@@ -70,63 +104,264 @@ public class RestClient {
 	public static void rpdLogOut(NetworkConfig config, String appName, String token) {
 
 		try {
-			Response response = ClientBuilder.newClient()
-									.target(config.getLogoutUrl())
-									.path(appName)
-									.request(MediaType.APPLICATION_JSON)
-									.header("token", token)
-									.post(null);
-			if (response.getStatus() != 200) {
-				LOG.error("Logout failed - Unable to log application out of RPD web service.");
-				DevNotifyEmail.send();
+			URIBuilder builder = new URIBuilder(config.getLogoutUrl());
+			String path = builder.getPath() == null ? "" : builder.getPath();
+			URI uri = builder.setPath(path.endsWith("/") ? path + appName : path + "/" + appName).build();
+			HttpPost httpPost = new HttpPost(uri);
+			httpPost.addHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+			httpPost.addHeader("token", token);
+			try (CloseableHttpResponse response = execute(config, httpPost, RunMetrics.LOGOUT)) {
+				EntityUtils.consume(response.getEntity());
+				int statusCode = response.getStatusLine().getStatusCode();
+				if (statusCode != 200) {
+					LOG.error("Logout failed - Unable to log application out of RPD web service.");
+					DevNotifyEmail.send(appName, "HTTP " + statusCode, "Logout failed");
+				}
 			}
-		} catch (ProcessingException e) {
-			LOG.error("Connection timed out - Unable to log application " + appName + " out of RPD web service.");
-			DevNotifyEmail.send();
+		} catch (IOException e) {
+			LOG.error("Connection timed out - Unable to log application {} out of RPD web service.", appName);
+			DevNotifyEmail.send(appName, "NO_RESPONSE", "Logout timed out");
 		} catch (Exception e) {
-			LOG.error("Unable to log application " + appName + " out of RPD", e);
-			DevNotifyEmail.send();
+			LOG.error("Unable to log application {} out of RPD", appName, e);
+			DevNotifyEmail.send(appName, "ERROR", "Logout failed: " + e);
+		} finally {
+			clearResponse();
 		}
 	}
-	
+
 	/**
 	 * Request RPD updaes the password for the applicaiton. This may fail due to the provided password
 	 * being too similar to the previous one.
 	 * @param config Network configuration data required to build the URL
 	 * @param appName Application whose credentials are being updated
 	 * @param token Session token required by RPD
-	 * @param json RPD reqires the HTML body to be in JSON format
-	 * @return true if password succesfully updated in RPD
+	 * @param oldPassword current password for the application
+	 * @param newPassword replacement password, sent to RPD in a JSON body
+	 * @return outcome of the request, including the RPD error code if the update was rejected
 	 */
-	public static boolean rpdUpdatePwd(NetworkConfig config, String appName, String token, String json) {
-        
+	public static UpdateResult rpdUpdatePwd(NetworkConfig config, String appName, String token, Secret oldPassword, Secret newPassword) {
+
+        UpdateBodyEntity body = null;
         try {
-        	// Create an Apache HttpClient as Jersey client has no PATCH method
-        	HttpClient httpclient  = HttpClientBuilder.create().build();
+        	// PATCH is sent through the shared pooled client
         	String patchUrl = config.getUpdateUrl() + appName;
         	HttpPatch httpPatch  = new HttpPatch(patchUrl);
         	// Add message headers
         	httpPatch.addHeader("token", token);
-        	// Set content type and message body
-            StringEntity params = new StringEntity(json);
-            params.setContentType("application/json");
-            httpPatch.setEntity(params);
-            // Send the request to RPD
-            HttpResponse response = httpclient.execute(httpPatch);
-            int statusCode = response.getStatusLine().getStatusCode();
-            LOG.trace("Response Code for" + appName + ": " + response.getStatusLine().getStatusCode());
-            // Check the status of the response
-            if (statusCode == 200) {
-            	LOG.info(appName + " password updated");
-            	return true;
-            } else {
-                LOG.error("Unable to update password for {}, Error code = {}", appName, statusCode);
+        	// JSON message body is encoded from the passwords, and wiped once the request completes
+        	body = new UpdateBodyEntity(JsonUtils.encodeUpdateBody(oldPassword, newPassword));
+            httpPatch.setEntity(new CountingEntity(body, RunMetrics::addBytesSent));
+            // Send the request to RPD, the response must be consumed to return the connection to the pool
+            try (CloseableHttpResponse response = execute(config, httpPatch, RunMetrics.UPDATE)) {
+            	int statusCode = response.getStatusLine().getStatusCode();
+            	LOG.trace("Response code for {}: {}", appName, statusCode);
+            	// Check the status of the response
+            	if (statusCode == 200) {
+            		EntityUtils.consume(response.getEntity());
+            		LOG.info("{} password updated", appName);
+            		return UpdateResult.success();
+            	} else {
+            		LoginBadResponseModel br;
+            		try (Reader data = responseReader(response)) {
+            			br = JsonUtils.readErrors(data);
+            		}
+            		if (br != null) {
+            			LOG.error("Unable to update password for {}, Error code = {}, {} {} {}",
+            					appName, statusCode, br.getMessage(), br.getAction(), br.getCode());
+            			return UpdateResult.rejected(statusCode, br.getCode(), br.getMessage());
+            		}
+            		LOG.error("Unable to update password for {}, Error code = {}", appName, statusCode);
+            		return UpdateResult.rejected(statusCode, null, null);
+            	}
             }
         } catch (HttpHostConnectException ex) {
         	LOG.error("Unable to connect to RPD!", ex);
+        	return UpdateResult.notSent("Unable to connect to RPD");
         } catch (Exception e) {
 			LOG.error("An error occured while updating the password.", e);
+			// Nothing reached RPD unless the body was being written
+			return body != null && body.isWritten() ? UpdateResult.failed(e.toString()) : UpdateResult.notSent(e.toString());
+        } finally {
+        	if (body != null) {
+        		body.clear();
+        	}
+        	clearResponse();
         }
-        return false;
+	}
+
+	/**
+	 * Request RPD updates the passwords for several applications in one call to the batch update
+	 * service. RPD checks each update separately, so some may be accepted and others rejected.
+	 * <p>
+	 * The batch service is not in the RPD documentation, so its formats are assumed and only the
+	 * RPD simulator implements them. The request is {"updates":[...]}, each update as for a single
+	 * application with its name added. The response is {"results":[...]}, each result holding the
+	 * name, the status the update would have had on its own and any errors in the usual form. A
+	 * 404, 405, 415 or 501 is taken to mean the service is not provided in this form, nothing
+	 * has been applied and the updates can be sent on their own. A 200 whose body cannot be read
+	 * may follow RPD applying the whole batch, so every update is treated as unanswered.
+	 * @param config Network configuration data, supplies the batch update URL
+	 * @param token Session token required by RPD, shared by every update in the batch
+	 * @param appNames Applications whose credentials are being updated
+	 * @param oldPasswords current password for each application
+	 * @param newPasswords replacement password for each application
+	 * @return outcome of each update in the order of appNames, or null if RPD does not provide
+	 *         the batch update service
+	 */
+	public static UpdateResult[] rpdUpdatePwdBatch(NetworkConfig config, String token, List<String> appNames,
+			List<Secret> oldPasswords, List<Secret> newPasswords) {
+
+		UpdateResult[] results = new UpdateResult[appNames.size()];
+		UpdateBodyEntity body = null;
+		try {
+			HttpPost httpPost = new HttpPost(config.getBatchUpdateUrl());
+			httpPost.addHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+			httpPost.addHeader("token", token);
+			body = new UpdateBodyEntity(JsonUtils.encodeBatchUpdateBody(appNames, oldPasswords, newPasswords));
+			httpPost.setEntity(new CountingEntity(body, RunMetrics::addBytesSent));
+			try (CloseableHttpResponse response = execute(config, httpPost, RunMetrics.BATCH_UPDATE)) {
+				int statusCode = response.getStatusLine().getStatusCode();
+				LOG.trace("Response code for batch of {}: {}", appNames.size(), statusCode);
+				if (statusCode == HttpStatus.SC_NOT_FOUND || statusCode == HttpStatus.SC_METHOD_NOT_ALLOWED
+						|| statusCode == HttpStatus.SC_NOT_IMPLEMENTED || statusCode == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+					EntityUtils.consume(response.getEntity());
+					return null;
+				}
+				if (statusCode == 200) {
+					BatchUpdateResponseModel model;
+					try (Reader data = responseReader(response)) {
+						model = JsonUtils.readBatchResults(data);
+					}
+					if (model == null) {
+						// RPD may have applied every update, so none can be sent again with the old password
+						LOG.error("Batch update response for batch of {} does not hold the results", appNames.size());
+						return fill(results, UpdateResult.failed("Batch update response not readable"));
+					}
+					Map<String, BatchUpdateResponseModel.Result> byName = new HashMap<>();
+					model.getResults().forEach(result -> byName.put(result.getName(), result));
+					for (int i = 0; i < results.length; i++) {
+						ThreadContext.put(LogFields.APP, appNames.get(i));
+						results[i] = itemResult(appNames.get(i), byName.get(appNames.get(i)));
+					}
+				} else {
+					// The whole batch was turned away, e.g. token not accepted or RPD overloaded
+					LoginBadResponseModel br;
+					try (Reader data = responseReader(response)) {
+						br = JsonUtils.readErrors(data);
+					}
+					String code = br != null ? br.getCode() : null;
+					String message = br != null ? br.getMessage() : null;
+					LOG.error("Unable to update passwords for batch of {}, Error code = {}, {}", appNames.size(), statusCode, message);
+					for (int i = 0; i < results.length; i++) {
+						results[i] = UpdateResult.rejected(statusCode, code, message);
+					}
+				}
+				return results;
+			}
+		} catch (HttpHostConnectException ex) {
+			LOG.error("Unable to connect to RPD!", ex);
+			return fill(results, UpdateResult.notSent("Unable to connect to RPD"));
+		} catch (Exception e) {
+			LOG.error("An error occured while updating a batch of passwords.", e);
+			// Nothing reached RPD unless the body was being written
+			return fill(results, body != null && body.isWritten() ? UpdateResult.failed(e.toString()) : UpdateResult.notSent(e.toString()));
+		} finally {
+			if (body != null) {
+				body.clear();
+			}
+			ThreadContext.remove(LogFields.APP);
+			clearResponse();
+		}
+	}
+
+	/**
+	 * Map the result RPD returned for one application of a batch.
+	 */
+	private static UpdateResult itemResult(String appName, BatchUpdateResponseModel.Result result) {
+		if (result == null) {
+			// Not known whether RPD applied it, treated as if no response was received
+			LOG.error("No result for {} in batch update response", appName);
+			return UpdateResult.failed("No result in batch update response");
+		}
+		if (result.getStatus() == 200) {
+			LOG.info("{} password updated", appName);
+			return UpdateResult.success();
+		}
+		if (result.hasErrors()) {
+			LOG.error("Unable to update password for {}, Error code = {}, {} {} {}",
+					appName, result.getStatus(), result.getMessage(), result.getAction(), result.getCode());
+			return UpdateResult.rejected(result.getStatus(), result.getCode(), result.getMessage());
+		}
+		LOG.error("Unable to update password for {}, Error code = {}", appName, result.getStatus());
+		return UpdateResult.rejected(result.getStatus(), null, null);
+	}
+
+	private static UpdateResult[] fill(UpdateResult[] results, UpdateResult result) {
+		for (int i = 0; i < results.length; i++) {
+			results[i] = result;
+		}
+		return results;
+	}
+
+	/**
+	 * Send a request through the shared client, recording its latency, status and body size.
+	 * The client is shared by every RPD server, so the timeouts of the server are set on the request.
+	 * @param config network configuration of the RPD server, supplies the timeouts
+	 * @param request request to send
+	 * @param operation RPD operation, used as the metrics label
+	 * @return response from RPD, which must be closed by the caller
+	 * @throws IOException no response received
+	 */
+	private static CloseableHttpResponse execute(NetworkConfig config, HttpRequestBase request, String operation) throws IOException {
+		request.setConfig(RequestConfig.custom()
+				.setConnectTimeout(config.getConnectTimeout())
+				.setConnectionRequestTimeout(config.getConnectTimeout())
+				.setSocketTimeout(config.getSocketTimeout())
+				.build());
+		long start = System.nanoTime();
+		try {
+			CloseableHttpResponse response = RpdTransport.getClient(config).execute(request);
+			RunMetrics.recordPhase(operation, start);
+			int statusCode = response.getStatusLine().getStatusCode();
+			RunMetrics.recordResponse(operation, statusCode);
+			ThreadContext.put(LogFields.STATUS, Integer.toString(statusCode));
+			ThreadContext.put(LogFields.LATENCY, Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+			HttpEntity entity = response.getEntity();
+			if (entity != null) {
+				if (entity.getContentLength() >= 0) {
+					RunMetrics.addBytesReceived(entity.getContentLength());
+				} else {
+					response.setEntity(new CountingEntity(entity, RunMetrics::addBytesReceived));
+				}
+			}
+			return response;
+		} catch (IOException ex) {
+			RunMetrics.recordPhase(operation, start);
+			RunMetrics.recordResponse(operation, 0);
+			ThreadContext.put(LogFields.LATENCY, Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+			throw ex;
+		}
+	}
+
+	/**
+	 * Remove the response details of a completed call, so they are not logged with later events.
+	 */
+	private static void clearResponse() {
+		ThreadContext.remove(LogFields.STATUS);
+		ThreadContext.remove(LogFields.LATENCY);
+	}
+
+	/**
+	 * Reader over the response body, decoded with the charset given by RPD or UTF-8.
+	 */
+	private static Reader responseReader(CloseableHttpResponse response) throws IOException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return new StringReader("");
+		}
+		ContentType contentType = ContentType.get(entity);
+		Charset charset = contentType == null || contentType.getCharset() == null
+				? StandardCharsets.UTF_8 : contentType.getCharset();
+		return new InputStreamReader(entity.getContent(), charset);
 	}
 }
@@ -0,0 +1,93 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Holds the single HTTP client used for every call to RPD during a run. Connections are
+ * pooled and kept alive between requests so that each application does not pay for its
+ * own TCP and TLS handshake. The client is created on first use and must be closed once
+ * the session has been logged out. The pool is sized when each server first uses it, so the
+ * daemon closes it after every run and a changed config file takes effect on the next one.
+ * <p>
+ * When several RPD servers are rotated in the same run they share the client. The pool grows
+ * by each server's maxConnections and every server may use up to the largest of them. Timeouts
+ * are not set on the client, {@link RestClient} sets those of each server on its requests.
+ */
+public class RpdTransport {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	/** Pooled connections left idle this long are closed */
+	private static final long IDLE_TIMEOUT_MILLIS = 30000;
+
+	private static CloseableHttpClient client;
+	private static PoolingHttpClientConnectionManager connectionManager;
+	private static final Set<String> targets = new HashSet<>();
+
+	/**
+	 * Get the shared client, creating it if required, with room in the pool for the server.
+	 * @param config pool size settings
+	 * @return pooled HTTP client shared by all RPD calls
+	 */
+	static synchronized CloseableHttpClient getClient(NetworkConfig config) {
+		if (client == null) {
+			connectionManager = new PoolingHttpClientConnectionManager();
+			connectionManager.setMaxTotal(config.getMaxConnections());
+			connectionManager.setDefaultMaxPerRoute(config.getMaxConnections());
+			targets.add(config.getTarget());
+
+			client = HttpClients.custom()
+					.setConnectionManager(connectionManager)
+					.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+					.evictIdleConnections(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+					.build();
+			LOG.trace("Created RPD connection pool, max connections {}", config.getMaxConnections());
+		} else if (targets.add(config.getTarget())) {
+			connectionManager.setMaxTotal(connectionManager.getMaxTotal() + config.getMaxConnections());
+			connectionManager.setDefaultMaxPerRoute(Math.max(connectionManager.getDefaultMaxPerRoute(), config.getMaxConnections()));
+			LOG.trace("Added {} to RPD connection pool, max connections {}", config.getTarget(), config.getMaxConnections());
+		}
+		return client;
+	}
+
+	/**
+	 * @return connection pool of the shared client, null until the client is created
+	 */
+	static synchronized PoolingHttpClientConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+
+	/**
+	 * Close the shared client and release all pooled connections.
+	 */
+	public static synchronized void close() {
+		if (client == null) {
+			return;
+		}
+		try {
+			client.close();
+			LOG.trace("RPD connection pool closed");
+		} catch (IOException ex) {
+			LOG.warn("Unable to cleanly close RPD connection pool", ex);
+		} finally {
+			client = null;
+			connectionManager = null;
+			targets.clear();
+		}
+	}
+
+	// Suppress default constructor for noninstantiability
+	private RpdTransport() {
+		throw new AssertionError();
+	}
+}
@@ -0,0 +1,259 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Holds the RPD session shared by the rotation workers. The token is renewed before it
+ * reaches the configured maximum age, and again whenever RPD rejects it. Only one worker
+ * logs in at a time; workers that find the token already renewed simply pick up the new one.
+ * A token replaced because of its age is still valid and other workers may have requests in
+ * flight with it, so it is only logged out when the session logs out.
+ * <p>
+ * Any application can open the session. The application that opened it is tried first when
+ * logging in again, followed by the remaining applications in file order. Applications whose
+ * login is rejected are not used again, and are not rotated as their password may be wrong.
+ * The session owns the passwords it is given and wipes them when it logs out.
+ * <p>
+ * Logins pass through the session's {@link CircuitBreaker}, which the rotation engine shares for
+ * its updates. A login that gets no response stops the session trying further applications, as
+ * none of them would fare better, and RPD is reported as unreachable rather than the password as
+ * wrong. A session lost while RPD is unreachable is opened again once the breaker lets a request
+ * through. The session is never locked while waiting for the outcome of a trial request, so a
+ * worker waits for it before logging in, and a login refused because another trial request has
+ * started since is treated as RPD being unreachable.
+ */
+public class SessionManager {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	/** Applications tried when renewing a session, so that a lost session cannot work through every account */
+	private static final int MAX_RELOGIN_CANDIDATES = 3;
+
+	private final NetworkConfig config;
+	private final List<String> appNames;
+	private final Map<String, Secret> passwords;
+	private final Set<String> failedLogins = Collections.newSetFromMap(new ConcurrentHashMap<>());
+	private final long maxAgeNanos;
+	private final CircuitBreaker breaker;
+
+	// Guarded by this
+	private String token = "";
+	private final Map<String, String> replaced = new LinkedHashMap<>();
+	private String loginApp;
+	private long loginTime;
+	private boolean broken;
+	private boolean unreachable;
+
+	/**
+	 * @param config RPD server and token lifetime settings
+	 * @param credentials application names mapped to their current password, in the order to try them.
+	 *        The passwords are wiped when the session logs out.
+	 */
+	public SessionManager(NetworkConfig config, Map<String, Secret> credentials) {
+		this.config = config;
+		this.appNames = new ArrayList<>(credentials.keySet());
+		this.passwords = new ConcurrentHashMap<>(credentials);
+		this.maxAgeNanos = TimeUnit.SECONDS.toNanos(config.getTokenMaxAgeSeconds());
+		this.breaker = new CircuitBreaker(config);
+	}
+
+	/**
+	 * Open the session with the first application that RPD accepts.
+	 * @return true if logged in, false if every application was refused or RPD is unreachable
+	 */
+	public synchronized boolean login() {
+		for (String appName : appNames) {
+			if (loginWith(appName)) {
+				return true;
+			}
+			if (unreachable) {
+				LOG.error("RPD is unreachable, not logging in with the remaining applications");
+				break;
+			}
+		}
+		broken = true;
+		return false;
+	}
+
+	/**
+	 * Get the token for the next request, renewing it first if it has reached its maximum age.
+	 * @return active session token, or null if no session can be established
+	 */
+	public String getToken() {
+		awaitTrial();
+		synchronized (this) {
+			if (broken) {
+				return null;
+			}
+			if (unreachable) {
+				return relogin() ? token : null;
+			}
+			if (maxAgeNanos > 0 && System.nanoTime() - loginTime > maxAgeNanos) {
+				LOG.info("Session token older than {} seconds, logging in again", config.getTokenMaxAgeSeconds());
+				String expired = token;
+				String expiredApp = loginApp;
+				if (!relogin()) {
+					return null;
+				}
+				// Still valid and possibly in use, so released when the session logs out
+				replaced.put(expired, expiredApp);
+			}
+			return token;
+		}
+	}
+
+	/**
+	 * Replace a token that RPD has rejected. If another worker has already replaced it the
+	 * new token is returned without logging in again.
+	 * @param rejected token RPD refused
+	 * @return new session token, or null if no session can be established
+	 */
+	public String renew(String rejected) {
+		awaitTrial();
+		synchronized (this) {
+			if (broken) {
+				return null;
+			}
+			if (!unreachable && !token.equals(rejected)) {
+				return token;
+			}
+			LOG.warn("Session token rejected by RPD, logging in again");
+			return relogin() ? token : null;
+		}
+	}
+
+	/**
+	 * Record a password change so that a later login uses the password RPD now holds.
+	 * @param appName application whose password changed
+	 * @param newPassword password accepted by RPD, the session keeps its own copy
+	 */
+	public synchronized void passwordChanged(String appName, Secret newPassword) {
+		Secret previous = passwords.replace(appName, newPassword.copy());
+		if (previous != null) {
+			previous.clear();
+		}
+	}
+
+	/**
+	 * @param appName application name
+	 * @return true if RPD rejected a login with the application's current password
+	 */
+	public boolean loginFailed(String appName) {
+		return failedLogins.contains(appName);
+	}
+
+	/**
+	 * @return true if a session is open
+	 */
+	public synchronized boolean isLoggedIn() {
+		return !broken && !unreachable && !token.isEmpty();
+	}
+
+	/**
+	 * @return true if the last login got no response from RPD, or was refused by the circuit breaker
+	 */
+	public synchronized boolean isUnreachable() {
+		return unreachable;
+	}
+
+	/**
+	 * @return breaker guarding every request sent to this RPD server, shared with the rotation engine
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Log the session out of RPD, along with the tokens it replaced on reaching their maximum
+	 * age, and wipe the passwords held. The session cannot log in again.
+	 */
+	public synchronized void logout() {
+		for (Map.Entry<String, String> expired : replaced.entrySet()) {
+			RestClient.rpdLogOut(config, expired.getValue(), expired.getKey());
+		}
+		replaced.clear();
+		if (isLoggedIn()) {
+			RestClient.rpdLogOut(config, loginApp, token);
+		}
+		token = "";
+		broken = true;
+		passwords.values().forEach(Secret::clear);
+	}
+
+	private boolean relogin() {
+		Set<String> candidates = new LinkedHashSet<>();
+		candidates.add(loginApp);
+		candidates.addAll(appNames);
+		int tried = 0;
+		for (String appName : candidates) {
+			if (tried == MAX_RELOGIN_CANDIDATES) {
+				break;
+			}
+			if (failedLogins.contains(appName)) {
+				continue;
+			}
+			tried++;
+			if (loginWith(appName)) {
+				return true;
+			}
+			if (unreachable) {
+				// Not broken, logging in is tried again once RPD responds
+				LOG.error("Unable to log in to RPD again, RPD is unreachable");
+				return false;
+			}
+		}
+		LOG.error("Unable to log in to RPD again after {} attempts", tried);
+		broken = true;
+		return false;
+	}
+
+	private boolean loginWith(String appName) {
+		if (!breaker.tryAllowRequest()) {
+			unreachable = true;
+			return false;
+		}
+		LOG.info("Logging in with application {}", appName);
+		String newToken = RestClient.rpdLogin(config, appName, passwords.get(appName));
+		if (newToken == null) {
+			// The password was not checked, so the application is not marked as failed
+			breaker.onNoResponse();
+			unreachable = true;
+			return false;
+		}
+		breaker.onResponse();
+		unreachable = false;
+		// Log in was successful if token isn't empty
+		if (newToken.isEmpty()) {
+			LOG.error("Unable to log in with application {}", appName);
+			failedLogins.add(appName);
+			return false;
+		}
+		LOG.trace("Log in successful.");
+		token = newToken;
+		loginApp = appName;
+		loginTime = System.nanoTime();
+		return true;
+	}
+
+	private void awaitTrial() {
+		try {
+			breaker.awaitTrial();
+		} catch (InterruptedException ex) {
+			// Stop waiting, a login is refused while the trial request is still in flight
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.HttpStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.LogFields;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Sends password updates to RPD through the {@link RateLimiter}. When a batch update service is
+ * configured the updates of concurrent callers are combined into one request, so that a large
+ * run costs one round trip per batch rather than one per application. Each caller still
+ * receives the result for its own application and handles retries itself.
+ * <p>
+ * The first caller to find no batch being collected leads the next one: it waits briefly for
+ * other callers to add their updates, takes up to the batch size of them and sends the request
+ * while the rest wait for their result. Updates are only batched with others using the same
+ * session token. The batch takes a single permit from the limiter.
+ * <p>
+ * If RPD does not provide the batch service, batching is turned off for the rest of the run and
+ * every update, including those already queued, is sent with its own request. A batch RPD
+ * answered in a form that cannot be read leaves each of its updates without a response, as RPD
+ * may have applied them, and they are not sent again. The same applies to a batch that fails
+ * unexpectedly once its permit has been taken.
+ */
+public class UpdateBatcher {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	/** Time the leader of a batch waits for more updates before sending the ones it has */
+	private static final long LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final NetworkConfig config;
+	private final RateLimiter limiter;
+	private final int batchSize;
+	private final Lock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	// Guarded by lock
+	private final List<Update> queue = new ArrayList<>();
+	private boolean collecting;
+
+	private volatile boolean batching;
+
+	/**
+	 * @param config supplies batchUpdateUrl and updateBatchSize
+	 * @param limiter limit on the requests sent to RPD
+	 */
+	public UpdateBatcher(NetworkConfig config, RateLimiter limiter) {
+		this.config = config;
+		this.limiter = limiter;
+		this.batchSize = config.getUpdateBatchSize();
+		this.batching = config.getBatchUpdateUrl() != null && batchSize > 1;
+	}
+
+	/**
+	 * @return true while updates are being combined into batch requests
+	 */
+	public boolean isBatching() {
+		return batching;
+	}
+
+	/**
+	 * Send a password update and wait for its result.
+	 * @param appName application whose credentials are being updated
+	 * @param token session token required by RPD
+	 * @param oldPassword current password for the application
+	 * @param newPassword replacement password
+	 * @return outcome of the update
+	 * @throws InterruptedException interrupted before the update was sent
+	 */
+	public UpdateResult update(String appName, String token, Secret oldPassword, Secret newPassword) throws InterruptedException {
+		if (batching) {
+			UpdateResult result = updateInBatch(new Update(appName, token, oldPassword, newPassword));
+			if (result != null) {
+				return result;
+			}
+		}
+		long permit = limiter.acquire();
+		UpdateResult result = RestClient.rpdUpdatePwd(config, appName, token, oldPassword, newPassword);
+		limiter.release(permit, result.getStatus());
+		return result;
+	}
+
+	/**
+	 * Queue the update and wait until it has been sent, leading batches while it is still queued.
+	 * Once a leader has taken the update it may be sending the passwords, so an interrupt no
+	 * longer stops the wait. The leader's result is returned with the interrupt flag still set.
+	 * @return outcome of the update, or null if it must be sent on its own
+	 */
+	private UpdateResult updateInBatch(Update update) throws InterruptedException {
+		lock.lock();
+		try {
+			queue.add(update);
+			changed.signalAll();
+			while (!update.done) {
+				if (update.taken) {
+					// The caller must not wipe the passwords while the leader may be sending them
+					changed.awaitUninterruptibly();
+					continue;
+				}
+				if (collecting) {
+					changed.await();
+					continue;
+				}
+				collecting = true;
+				List<Update> batch;
+				try {
+					batch = collect();
+				} finally {
+					collecting = false;
+					changed.signalAll();
+				}
+				if (!batch.isEmpty()) {
+					send(batch);
+				}
+			}
+			return update.result;
+		} catch (InterruptedException | RuntimeException ex) {
+			// The caller treats its update as failed, so no other leader may send it
+			queue.remove(update);
+			throw ex;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for the batch to fill or the linger time to pass, then take the updates to send.
+	 * Called holding the lock with the leader's own update queued.
+	 * @return updates to send, empty if batching was turned off while waiting
+	 */
+	private List<Update> collect() throws InterruptedException {
+		long deadline = System.nanoTime() + LINGER_NANOS;
+		long remaining;
+		while (batching && queue.size() < batchSize && (remaining = deadline - System.nanoTime()) > 0) {
+			changed.awaitNanos(remaining);
+		}
+		List<Update> batch = new ArrayList<>(batchSize);
+		if (queue.isEmpty()) {
+			return batch;
+		}
+		String token = queue.get(0).token;
+		for (Iterator<Update> it = queue.iterator(); it.hasNext() && batch.size() < batchSize;) {
+			Update update = it.next();
+			if (update.token.equals(token)) {
+				update.taken = true;
+				batch.add(update);
+				it.remove();
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Send a batch and hand out the results. Called holding the lock, which is released while
+	 * the request is in flight so that other callers can queue and lead batches of their own.
+	 * If the batch fails once the request may have been sent, every update in it is left
+	 * without a response.
+	 */
+	private void send(List<Update> batch) throws InterruptedException {
+		UpdateResult[] results = null;
+		boolean sent = false;
+		lock.unlock();
+		try {
+			try {
+				results = batching ? sendBatch(batch) : null;
+			} catch (RuntimeException ex) {
+				// RPD may have applied the batch, so none of its updates can be sent again
+				LOG.error("Batch update of {} failed, RPD may have applied it", batch.size(), ex);
+				results = new UpdateResult[batch.size()];
+				Arrays.fill(results, UpdateResult.failed(ex.toString()));
+			}
+			sent = true;
+		} finally {
+			lock.lock();
+			if (!sent) {
+				// Interrupted before the request was sent, put back for another leader
+				for (Update update : batch) {
+					update.taken = false;
+				}
+				queue.addAll(0, batch);
+				changed.signalAll();
+			}
+		}
+		if (results == null && batching) {
+			batching = false;
+			LOG.warn("RPD does not provide the batch update service, sending each update on its own");
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			Update update = batch.get(i);
+			update.result = results == null ? null : results[i];
+			update.done = true;
+		}
+		if (!batching) {
+			// Updates still queued are sent on their own by their callers
+			for (Update update : queue) {
+				update.done = true;
+			}
+			queue.clear();
+		}
+		changed.signalAll();
+	}
+
+	private UpdateResult[] sendBatch(List<Update> batch) throws InterruptedException {
+		List<String> appNames = new ArrayList<>(batch.size());
+		List<Secret> oldPasswords = new ArrayList<>(batch.size());
+		List<Secret> newPasswords = new ArrayList<>(batch.size());
+		for (Update update : batch) {
+			appNames.add(update.appName);
+			oldPasswords.add(update.oldPassword);
+			newPasswords.add(update.newPassword);
+		}
+		// The request is for the whole batch, not the leader's application
+		String app = ThreadContext.get(LogFields.APP);
+		String attempt = ThreadContext.get(LogFields.ATTEMPT);
+		ThreadContext.remove(LogFields.APP);
+		ThreadContext.remove(LogFields.ATTEMPT);
+		long permit = limiter.acquire();
+		int status = 0;
+		try {
+			UpdateResult[] results = RestClient.rpdUpdatePwdBatch(config, batch.get(0).token, appNames, oldPasswords, newPasswords);
+			status = results == null ? HttpStatus.SC_NOT_FOUND : worstStatus(results);
+			return results;
+		} finally {
+			limiter.release(permit, status);
+			if (app != null) {
+				ThreadContext.put(LogFields.APP, app);
+			}
+			if (attempt != null) {
+				ThreadContext.put(LogFields.ATTEMPT, attempt);
+			}
+		}
+	}
+
+	/**
+	 * @return status reported to the limiter for the batch: no response or overload if any
+	 *         update received one, otherwise success
+	 */
+	private static int worstStatus(UpdateResult[] results) {
+		int status = HttpStatus.SC_OK;
+		for (UpdateResult result : results) {
+			if (result.getStatus() == 0) {
+				return 0;
+			}
+			if (result.isThrottled() || result.getStatus() >= 500) {
+				status = result.getStatus();
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Update waiting to be sent. Fields other than the request are guarded by the lock.
+	 */
+	private static class Update {
+		final String appName;
+		final String token;
+		final Secret oldPassword;
+		final Secret newPassword;
+		boolean taken;
+		boolean done;
+		UpdateResult result;
+
+		Update(String appName, String token, Secret oldPassword, Secret newPassword) {
+			this.appName = appName;
+			this.token = token;
+			this.oldPassword = oldPassword;
+			this.newPassword = newPassword;
+		}
+	}
+}
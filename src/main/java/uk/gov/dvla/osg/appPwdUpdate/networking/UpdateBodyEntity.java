@@ -0,0 +1,74 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Request entity for an RPD password update. The JSON body is encoded once from the password
+ * characters and sent with its Content-Length, so the passwords are never held as a String.
+ * The encoded bytes are kept so the request can be sent again, and must be wiped with
+ * {@link #clear()} once the request has completed.
+ */
+class UpdateBodyEntity extends AbstractHttpEntity {
+
+	private final byte[] body;
+	private volatile boolean written;
+
+	/**
+	 * @param body encoded body, e.g. from {@link uk.gov.dvla.osg.appPwdUpdate.utils.JsonUtils#encodeUpdateBody},
+	 *        owned by the entity from now on and wiped when it is cleared
+	 */
+	UpdateBodyEntity(byte[] body) {
+		this.body = body;
+		setContentType(ContentType.APPLICATION_JSON.toString());
+	}
+
+	/**
+	 * @return true once writing the body to a connection has begun, after which RPD may have
+	 *         received the request
+	 */
+	boolean isWritten() {
+		return written;
+	}
+
+	/**
+	 * Overwrite the encoded body. The entity cannot be sent afterwards.
+	 */
+	void clear() {
+		Arrays.fill(body, (byte) 0);
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return body.length;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		// Only used if the entity is read back rather than sent, e.g. by wire logging
+		return new ByteArrayInputStream(body);
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		written = true;
+		out.write(body);
+		out.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+}
@@ -0,0 +1,121 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+/**
+ * Outcome of a single password update request sent to RPD.
+ */
+public class UpdateResult {
+
+	private static final UpdateResult SUCCESS = new UpdateResult(200, null, null, true);
+
+	private final int status;
+	private final String errorCode;
+	private final String message;
+	private final boolean sent;
+
+	private UpdateResult(int status, String errorCode, String message, boolean sent) {
+		this.status = status;
+		this.errorCode = errorCode;
+		this.message = message;
+		this.sent = sent;
+	}
+
+	static UpdateResult success() {
+		return SUCCESS;
+	}
+
+	/**
+	 * @param status HTTP status returned by RPD
+	 * @param errorCode RPD error code from the response, may be null
+	 * @param message RPD error message from the response, may be null
+	 */
+	static UpdateResult rejected(int status, String errorCode, String message) {
+		return new UpdateResult(status, errorCode, message, true);
+	}
+
+	/**
+	 * The request was sent, or may have been, but no response was received. RPD may have
+	 * applied the new password.
+	 * @param message description of the failure
+	 */
+	static UpdateResult failed(String message) {
+		return new UpdateResult(0, null, message, true);
+	}
+
+	/**
+	 * The request failed before any of it was written to RPD, e.g. the connection was refused,
+	 * so the password is certainly unchanged.
+	 * @param message description of the failure
+	 */
+	static UpdateResult notSent(String message) {
+		return new UpdateResult(0, null, message, false);
+	}
+
+	/**
+	 * @return true if RPD accepted the new password
+	 */
+	public boolean isSuccess() {
+		return status == 200;
+	}
+
+	/**
+	 * RPD turned the request away because it is overloaded, so the password was not checked and
+	 * the request does not count towards the account lockout.
+	 * @return true if RPD returned 429 Too Many Requests or 503 Service Unavailable
+	 */
+	public boolean isThrottled() {
+		return status == 429 || status == 503;
+	}
+
+	/**
+	 * RPD did not accept the session token, so the password was not checked and the request
+	 * does not count towards the account lockout. A 401 alone may also mean the current password
+	 * was refused, so it is only known to be a rejected token when RPD returns the configured code.
+	 * @param tokenRejectedCode error code RPD returns with a rejected token, see
+	 *        {@link NetworkConfig#getTokenRejectedCode()}, or null if it is not known
+	 * @return true if RPD returned 401 Unauthorized with the rejected token error code
+	 */
+	public boolean isTokenRejected(String tokenRejectedCode) {
+		return status == 401 && tokenRejectedCode != null && tokenRejectedCode.equals(errorCode);
+	}
+
+	/**
+	 * RPD never received the request, so it can be sent again later without risk of the
+	 * password having been changed.
+	 * @return true if the request failed before it was written
+	 */
+	public boolean isNotSent() {
+		return !sent;
+	}
+
+	/**
+	 * @return HTTP status returned by RPD, or 0 if no response was received
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the RPD error code if one was supplied, otherwise the HTTP status, NOT_SENT or NO_RESPONSE
+	 */
+	public String getErrorCode() {
+		if (errorCode != null) {
+			return errorCode;
+		}
+		if (!sent) {
+			return "NOT_SENT";
+		}
+		return status == 0 ? "NO_RESPONSE" : "HTTP " + status;
+	}
+
+	/**
+	 * @return error message from RPD or describing the failure, may be null
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return isSuccess() ? "SUCCESS" : getErrorCode();
+	}
+}
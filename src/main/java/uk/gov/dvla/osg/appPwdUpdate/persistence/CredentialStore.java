@@ -0,0 +1,119 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Where the application passwords are kept between runs. A change made with
+ * {@link #compareAndSet(String, Secret, Secret)} is seen by {@link #get(String)} straight away,
+ * but is only certain to be on disk, and seen by other programs reading the store, once the
+ * store has been flushed. Implementations are thread safe.
+ * <p>
+ * Two backends are provided: {@link PropertiesCredentialStore}, the key=value passwords file
+ * read by the applications themselves, and {@link EncryptedCredentialStore}, which encrypts each
+ * password and updates a single entry without rewriting the rest. {@link #open(Path)} chooses
+ * between them by file name.
+ */
+public interface CredentialStore extends Closeable {
+
+	/**
+	 * Open the store for a passwords file. A name ending {@value EncryptedCredentialStore#FILE_SUFFIX}
+	 * is an encrypted store, using the key from the environment, anything else a properties file.
+	 * @param file passwords file
+	 * @return store for the file, not yet loaded
+	 * @throws IOException the store needs a key that is not available
+	 */
+	static CredentialStore open(Path file) throws IOException {
+		if (file.getFileName().toString().endsWith(EncryptedCredentialStore.FILE_SUFFIX)) {
+			return new EncryptedCredentialStore(file, EncryptedCredentialStore.keyFromEnvironment());
+		}
+		return new PropertiesCredentialStore(file);
+	}
+
+	/**
+	 * Read the store, or read it again if it has changed on disk since it was last read or
+	 * flushed. Changes not yet flushed are lost if the store is read again.
+	 * @return true if the store was read, false if it was already up to date
+	 * @throws IOException store cannot be read
+	 */
+	boolean load() throws IOException;
+
+	/**
+	 * Read the store as {@link #load()} does, but without creating or changing any file, e.g.
+	 * when planning a rotation. The store is not changed or flushed until it has been loaded
+	 * again with {@link #load()}. By default the same as {@link #load()}, for a store that only
+	 * writes when flushed.
+	 * @return true if the store was read, false if it was already up to date
+	 * @throws IOException store does not exist or cannot be read
+	 */
+	default boolean loadReadOnly() throws IOException {
+		return load();
+	}
+
+	/**
+	 * @return number of applications held
+	 */
+	int size();
+
+	/**
+	 * @return every application name, in the order the applications were added
+	 */
+	List<String> appNames();
+
+	/**
+	 * @param appName application name
+	 * @return copy of the application's password for the caller to clear, or null if not present
+	 * @throws IOException password cannot be read
+	 */
+	Secret get(String appName) throws IOException;
+
+	/**
+	 * Change an application's password, but only if it still holds the password expected.
+	 * @param appName application name
+	 * @param expected password the application must hold now, or null to add an application not yet present
+	 * @param newPassword replacement password, copied into the store
+	 * @return true if the password was changed, false if the application held another password
+	 * @throws IOException change could not be written
+	 */
+	boolean compareAndSet(String appName, Secret expected, Secret newPassword) throws IOException;
+
+	/**
+	 * Protect a password kept outside the store, such as a staged password in the journal, as
+	 * well as the store protects its own. A properties file holds the passwords as they are, so
+	 * by default the password is kept as it is.
+	 * @param appName application the password belongs to
+	 * @param password password to protect
+	 * @return text to keep in place of the password
+	 * @throws IOException password cannot be protected
+	 */
+	default CharSequence seal(String appName, Secret password) throws IOException {
+		return password.chars();
+	}
+
+	/**
+	 * Recover a password protected by {@link #seal(String, Secret)}.
+	 * @param appName application the password belongs to
+	 * @param sealed text kept in place of the password
+	 * @return copy of the password for the caller to clear
+	 * @throws IOException text was not sealed by this store for the application
+	 */
+	default Secret unseal(String appName, String sealed) throws IOException {
+		return Secret.of(sealed);
+	}
+
+	/**
+	 * Make every change so far durable and visible to other readers of the store.
+	 * @throws IOException changes could not be written, they are written by the next flush
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Release any file handles without flushing.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,672 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.FileVersion;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Credential store kept in an encrypted file, for password sets too large to read or rewrite
+ * in full for every change. Each password is encrypted with AES-GCM under its own random IV,
+ * with the application name and a sequence number as associated data, so an entry cannot be
+ * read under another name or replaced by an older copy without the change being detected.
+ * <p>
+ * The file holds a header followed by one fixed size entry per application, in the order the
+ * applications were added. Each entry has two slots: a change is written to the slot not
+ * holding the current password, with the next sequence number, so the current password
+ * survives a write torn by a crash and a lookup or change costs one read and one write
+ * wherever the entry is. The slot is written in place and visible to readers straight away,
+ * and synced when the store is flushed.
+ * <p>
+ * Application names are kept in an index file alongside, listing the name and entry number
+ * of each application, so that opening the store reads only the index. Both files only grow
+ * at the end: a new entry is written before its index record, and entries missing from the
+ * index after a crash are recovered from the names held in their slots when the store is
+ * loaded. The store file is locked while the store is open, so only one process can change it
+ * at a time and a second process is refused rather than kept waiting. The daemon keeps the
+ * store open between runs, and loads it again if either file has been replaced or changed.
+ * A store loaded read only, as when planning a rotation, is neither locked nor changed.
+ * <p>
+ * Passwords kept outside the store, such as those staged in the journal, are sealed with the
+ * same key, with the application name and a sequence number of 0 as associated data.
+ * <p>
+ * The 256 bit key is supplied by the caller, {@link #keyFromEnvironment()} reads it base64
+ * encoded from {@value #KEY_VARIABLE} so that it is never kept alongside the store. An
+ * existing passwords file is copied into a store with:
+ * <p>
+ * java -cp appPwdUpdate.jar uk.gov.dvla.osg.appPwdUpdate.persistence.EncryptedCredentialStore {passwords.properties} {passwords.enc}
+ */
+public class EncryptedCredentialStore implements CredentialStore {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	/** Passwords files with this name ending are opened as encrypted stores */
+	public static final String FILE_SUFFIX = ".enc";
+	private static final String USAGE = "Usage: EncryptedCredentialStore {passwords.properties} {passwords" + FILE_SUFFIX + "}";
+	/** Environment variable holding the base64 encoded key */
+	public static final String KEY_VARIABLE = "APPPWDUPDATE_STORE_KEY";
+
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final int MAGIC = 0x41505753;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int DEFAULT_SLOT_SIZE = 256;
+	private static final String CIPHER = "AES/GCM/NoPadding";
+	private static final int KEY_LENGTH = 32;
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_LENGTH = 16;
+	// Sequence number, name length, ciphertext length and IV
+	private static final int SLOT_HEADER = 8 + IV_LENGTH;
+
+	private final Path file;
+	private final Path indexFile;
+	private final SecretKey key;
+	private final SecureRandom random = new SecureRandom();
+
+	// Guarded by this
+	private FileChannel data;
+	private FileChannel index;
+	private FileLock lock;
+	private boolean readOnly;
+	private FileVersion dataVersion;
+	private FileVersion indexVersion;
+	private int slotSize;
+	private final Map<String, Integer> entries = new HashMap<>();
+	private final List<String> appNames = new ArrayList<>();
+
+	/**
+	 * @param file store file, created when the store is loaded if it does not exist
+	 * @param key AES key, 256 bits
+	 */
+	public EncryptedCredentialStore(Path file, SecretKey key) {
+		this.file = file;
+		this.indexFile = file.resolveSibling(file.getFileName() + INDEX_SUFFIX);
+		this.key = key;
+	}
+
+	/**
+	 * @return key read from the {@value #KEY_VARIABLE} environment variable
+	 * @throws IOException variable not set or not a base64 encoded 256 bit key
+	 */
+	public static SecretKey keyFromEnvironment() throws IOException {
+		String encoded = System.getenv(KEY_VARIABLE);
+		if (encoded == null) {
+			throw new IOException(KEY_VARIABLE + " must be set to open an encrypted credential store");
+		}
+		byte[] bytes;
+		try {
+			bytes = Base64.getDecoder().decode(encoded.trim());
+		} catch (IllegalArgumentException ex) {
+			throw new IOException(KEY_VARIABLE + " is not base64 encoded", ex);
+		}
+		if (bytes.length != KEY_LENGTH) {
+			Arrays.fill(bytes, (byte) 0);
+			throw new IOException(KEY_VARIABLE + " must hold a " + KEY_LENGTH * 8 + " bit key");
+		}
+		SecretKey key = new SecretKeySpec(bytes, "AES");
+		Arrays.fill(bytes, (byte) 0);
+		return key;
+	}
+
+	/**
+	 * Copy a properties passwords file into an encrypted store, creating the store if needed.
+	 * @param args source passwords file and store file
+	 */
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			LOG.fatal("Incorrect number of args. {}", USAGE);
+			exit(1);
+		}
+		try {
+			PasswordStore source = PropertiesFormat.read(Paths.get(args[0]));
+			try (EncryptedCredentialStore store = new EncryptedCredentialStore(Paths.get(args[1]), keyFromEnvironment())) {
+				store.load();
+				for (int i = 0; i < source.size(); i++) {
+					try (Secret current = store.get(source.keyAt(i)); Secret password = Secret.of(source.valueAt(i))) {
+						store.compareAndSet(source.keyAt(i), current, password);
+					}
+				}
+				store.flush();
+				LOG.info("Copied {} passwords from {} to {}", source.size(), args[0], args[1]);
+			}
+		} catch (IOException | RuntimeException ex) {
+			LOG.fatal("Unable to copy passwords from {} to {}", args[0], args[1], ex);
+			exit(1);
+		}
+		LogManager.shutdown();
+	}
+
+	/**
+	 * Stop the JVM once the log events still queued by the async loggers have been written,
+	 * as Log4j's own shutdown hook is disabled.
+	 * @param status exit status
+	 */
+	private static void exit(int status) {
+		LogManager.shutdown();
+		System.exit(status);
+	}
+
+	@Override
+	public synchronized boolean load() throws IOException {
+		return open(false);
+	}
+
+	/**
+	 * Read the store without creating, locking or changing either file. Incomplete records at
+	 * the end of either file are ignored rather than removed, and entries missing from the index
+	 * are recovered in memory only. The store cannot be changed until it is loaded again with
+	 * {@link #load()}.
+	 */
+	@Override
+	public synchronized boolean loadReadOnly() throws IOException {
+		return open(true);
+	}
+
+	private boolean open(boolean readOnly) throws IOException {
+		if (data != null) {
+			if (isCurrent() && (readOnly || !this.readOnly)) {
+				return false;
+			}
+			// Changed by something other than this store, e.g. replaced by a copy while unlocked,
+			// or opened read only and now to be changed
+			close();
+		}
+		this.readOnly = readOnly;
+		if (readOnly) {
+			data = FileChannel.open(file, StandardOpenOption.READ);
+			index = Files.exists(indexFile) ? FileChannel.open(indexFile, StandardOpenOption.READ) : null;
+		} else {
+			data = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		try {
+			if (!readOnly) {
+				lock();
+			}
+			readHeader();
+			readIndex();
+			recoverIndex();
+			recordVersions();
+		} catch (IOException | RuntimeException ex) {
+			close();
+			throw ex;
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized int size() {
+		return appNames.size();
+	}
+
+	@Override
+	public synchronized List<String> appNames() {
+		return new ArrayList<>(appNames);
+	}
+
+	@Override
+	public synchronized Secret get(String appName) throws IOException {
+		checkOpen();
+		Integer entry = entries.get(appName);
+		if (entry == null) {
+			return null;
+		}
+		return readCurrent(appName, entry).password;
+	}
+
+	@Override
+	public synchronized boolean compareAndSet(String appName, Secret expected, Secret newPassword) throws IOException {
+		checkWritable();
+		Integer entry = entries.get(appName);
+		if (entry == null) {
+			if (expected != null) {
+				return false;
+			}
+			add(appName, newPassword);
+			return true;
+		}
+		if (expected == null) {
+			return false;
+		}
+		Slot current = readCurrent(appName, entry);
+		try {
+			if (!expected.contentEquals(current.password.chars())) {
+				return false;
+			}
+		} finally {
+			current.password.clear();
+		}
+		ByteBuffer slot = encodeSlot(appName, current.sequence + 1, newPassword);
+		write(data, slot, entryOffset(entry) + (1 - current.slot) * slotSize);
+		return true;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		checkWritable();
+		data.force(false);
+		index.force(false);
+		recordVersions();
+	}
+
+	@Override
+	public CharSequence seal(String appName, Secret password) throws IOException {
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		byte[] ciphertext = encrypt(appName, 0, iv, password);
+		byte[] sealed = Arrays.copyOf(iv, IV_LENGTH + ciphertext.length);
+		System.arraycopy(ciphertext, 0, sealed, IV_LENGTH, ciphertext.length);
+		return Base64.getEncoder().encodeToString(sealed);
+	}
+
+	@Override
+	public Secret unseal(String appName, String sealed) throws IOException {
+		byte[] bytes;
+		try {
+			bytes = Base64.getDecoder().decode(sealed);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException("Sealed password for " + appName + " is not base64 encoded", ex);
+		}
+		if (bytes.length < IV_LENGTH + TAG_LENGTH) {
+			throw new IOException("Sealed password for " + appName + " is too short");
+		}
+		try {
+			return decrypt(appName.getBytes(StandardCharsets.UTF_8), 0, bytes, 0, IV_LENGTH, bytes.length - IV_LENGTH);
+		} catch (GeneralSecurityException | CharacterCodingException ex) {
+			throw new IOException("Sealed password for " + appName + " cannot be decrypted with the key of credential store " + file, ex);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		for (FileChannel channel : Arrays.asList(data, index)) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ex) {
+					LOG.warn("Unable to close credential store {}", file, ex);
+				}
+			}
+		}
+		// Closing the data file released the lock
+		data = null;
+		index = null;
+		lock = null;
+		readOnly = false;
+		dataVersion = null;
+		indexVersion = null;
+		entries.clear();
+		appNames.clear();
+	}
+
+	/**
+	 * Lock the store file against other processes, without waiting for one holding it.
+	 */
+	private void lock() throws IOException {
+		try {
+			lock = data.tryLock();
+		} catch (OverlappingFileLockException ex) {
+			// Held by another store open on the same file in this process
+			lock = null;
+		}
+		if (lock == null) {
+			throw new IOException("Credential store " + file + " is in use by another process");
+		}
+	}
+
+	/**
+	 * @return true if neither file has changed since the store was loaded or last flushed
+	 */
+	private boolean isCurrent() {
+		return new FileVersion(file.toFile()).equals(dataVersion) && new FileVersion(indexFile.toFile()).equals(indexVersion);
+	}
+
+	private void recordVersions() {
+		dataVersion = new FileVersion(file.toFile());
+		indexVersion = new FileVersion(indexFile.toFile());
+	}
+
+	/**
+	 * Check the header of an existing store, or write the header of a new one.
+	 */
+	private void readHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (data.size() == 0) {
+			slotSize = DEFAULT_SLOT_SIZE;
+			if (readOnly) {
+				return;
+			}
+			header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(slotSize).putInt(0).flip();
+			write(data, header, 0);
+			data.force(true);
+			PropertiesFormat.syncDirectory(file);
+			return;
+		}
+		read(data, header, 0);
+		header.flip();
+		if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+			throw new IOException(file + " is not an encrypted credential store");
+		}
+		slotSize = header.getInt();
+		if (slotSize < SLOT_HEADER + TAG_LENGTH + 2) {
+			throw new IOException(file + " has an invalid slot size " + slotSize);
+		}
+	}
+
+	/**
+	 * Read every name and entry number from the index, dropping a torn record at the end.
+	 */
+	private void readIndex() throws IOException {
+		long length = index == null ? 0 : index.size();
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, Integer.MAX_VALUE));
+		if (index != null) {
+			read(index, buffer, 0);
+		}
+		buffer.flip();
+		long entryCount = entryCount();
+		int valid = 0;
+		while (buffer.remaining() >= 2) {
+			int nameLength = buffer.getShort() & 0xFFFF;
+			if (buffer.remaining() < nameLength + 4) {
+				break;
+			}
+			byte[] name = new byte[nameLength];
+			buffer.get(name);
+			int entry = buffer.getInt();
+			if (entry != appNames.size() || entry >= entryCount) {
+				break;
+			}
+			String appName = new String(name, StandardCharsets.UTF_8);
+			entries.put(appName, entry);
+			appNames.add(appName);
+			valid = buffer.position();
+		}
+		if (valid < length) {
+			LOG.warn("Ignoring incomplete records at end of index {}", indexFile);
+			if (!readOnly) {
+				index.truncate(valid);
+			}
+		}
+	}
+
+	/**
+	 * Add index records for entries written to the store but not the index before a crash,
+	 * and drop an entry torn at the end of the store.
+	 */
+	private void recoverIndex() throws IOException {
+		long entryCount = entryCount();
+		if (data.size() > entryOffset(entryCount)) {
+			LOG.warn("Ignoring incomplete entry at end of credential store {}", file);
+			if (!readOnly) {
+				data.truncate(entryOffset(entryCount));
+			}
+		}
+		for (int entry = appNames.size(); entry < entryCount; entry++) {
+			ByteBuffer buffer = ByteBuffer.allocate(2 * slotSize);
+			read(data, buffer, entryOffset(entry));
+			String appName = slotName(buffer, 0);
+			if (appName == null) {
+				appName = slotName(buffer, slotSize);
+			}
+			if (appName == null) {
+				throw new IOException("Entry " + entry + " of credential store " + file + " has no application name");
+			}
+			if (readOnly) {
+				entries.put(appName, entry);
+				appNames.add(appName);
+			} else {
+				appendIndex(appName, entry);
+			}
+			LOG.warn("Recovered {} missing from index {}", appName, indexFile);
+		}
+	}
+
+	/**
+	 * Add a new application in a new entry at the end of the store, then its index record.
+	 */
+	private void add(String appName, Secret password) throws IOException {
+		int entry = appNames.size();
+		ByteBuffer buffer = ByteBuffer.allocate(2 * slotSize);
+		buffer.put(encodeSlot(appName, 1, password));
+		buffer.clear();
+		write(data, buffer, entryOffset(entry));
+		appendIndex(appName, entry);
+	}
+
+	private void appendIndex(String appName, int entry) throws IOException {
+		byte[] name = appName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(2 + name.length + 4);
+		record.putShort((short) name.length).put(name).putInt(entry).flip();
+		write(index, record, index.size());
+		entries.put(appName, entry);
+		appNames.add(appName);
+	}
+
+	/**
+	 * Read both slots of an entry and decrypt the one holding the current password.
+	 */
+	private Slot readCurrent(String appName, int entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(2 * slotSize);
+		read(data, buffer, entryOffset(entry));
+		int first = buffer.getInt(0);
+		int second = buffer.getInt(slotSize);
+		// Latest first, falling back to the other slot if the latest write was torn
+		int latest = Integer.compareUnsigned(first, second) >= 0 ? 0 : 1;
+		for (int slot : new int[] { latest, 1 - latest }) {
+			Secret password = decryptSlot(appName, buffer, slot * slotSize);
+			if (password != null) {
+				return new Slot(slot, buffer.getInt(slot * slotSize), password);
+			}
+		}
+		throw new IOException("Password for " + appName + " in credential store " + file + " cannot be decrypted");
+	}
+
+	private ByteBuffer encodeSlot(String appName, int sequence, Secret password) throws IOException {
+		byte[] name = appName.getBytes(StandardCharsets.UTF_8);
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		byte[] ciphertext = encrypt(appName, sequence, iv, password);
+		if (SLOT_HEADER + name.length + ciphertext.length > slotSize) {
+			throw new IOException("Name and password of " + appName + " too long for credential store " + file);
+		}
+		ByteBuffer slot = ByteBuffer.allocate(slotSize);
+		slot.putInt(sequence).putShort((short) name.length).putShort((short) ciphertext.length)
+				.put(iv).put(name).put(ciphertext).clear();
+		return slot;
+	}
+
+	/**
+	 * @return password held in the slot, or null if the slot is empty, torn or for another application
+	 */
+	private Secret decryptSlot(String appName, ByteBuffer buffer, int offset) {
+		int sequence = buffer.getInt(offset);
+		int nameLength = buffer.getShort(offset + 4) & 0xFFFF;
+		int cipherLength = buffer.getShort(offset + 6) & 0xFFFF;
+		if (sequence == 0 || SLOT_HEADER + nameLength + cipherLength > slotSize) {
+			return null;
+		}
+		byte[] name = appName.getBytes(StandardCharsets.UTF_8);
+		if (nameLength != name.length) {
+			return null;
+		}
+		try {
+			return decrypt(name, sequence, buffer.array(), offset + 8, offset + SLOT_HEADER + nameLength, cipherLength);
+		} catch (AEADBadTagException ex) {
+			return null;
+		} catch (GeneralSecurityException | CharacterCodingException ex) {
+			LOG.warn("Unable to decrypt password for {}", appName, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Encrypt a password with the application name and sequence number as associated data.
+	 */
+	private byte[] encrypt(String appName, int sequence, byte[] iv, Secret password) throws IOException {
+		byte[] plain = encode(password);
+		try {
+			Cipher cipher = Cipher.getInstance(CIPHER);
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+			cipher.updateAAD(associatedData(appName.getBytes(StandardCharsets.UTF_8), sequence));
+			return cipher.doFinal(plain);
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Unable to encrypt password for " + appName, ex);
+		} finally {
+			Arrays.fill(plain, (byte) 0);
+		}
+	}
+
+	/**
+	 * Decrypt a password, the IV and ciphertext both held in the array given.
+	 */
+	private Secret decrypt(byte[] name, int sequence, byte[] bytes, int ivOffset, int offset, int length)
+			throws GeneralSecurityException, CharacterCodingException {
+		byte[] plain = null;
+		try {
+			Cipher cipher = Cipher.getInstance(CIPHER);
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, bytes, ivOffset, IV_LENGTH));
+			cipher.updateAAD(associatedData(name, sequence));
+			plain = cipher.doFinal(bytes, offset, length);
+			return decode(plain);
+		} finally {
+			if (plain != null) {
+				Arrays.fill(plain, (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * @return application name written in the slot, or null if the slot is empty or damaged
+	 */
+	private String slotName(ByteBuffer buffer, int offset) {
+		int nameLength = buffer.getShort(offset + 4) & 0xFFFF;
+		if (buffer.getInt(offset) == 0 || SLOT_HEADER + nameLength > slotSize) {
+			return null;
+		}
+		String appName = new String(buffer.array(), offset + SLOT_HEADER, nameLength, StandardCharsets.UTF_8);
+		Secret password = decryptSlot(appName, buffer, offset);
+		if (password == null) {
+			return null;
+		}
+		password.clear();
+		return appName;
+	}
+
+	private static byte[] associatedData(byte[] name, int sequence) {
+		return ByteBuffer.allocate(name.length + 4).put(name).putInt(sequence).array();
+	}
+
+	/**
+	 * Encode the password as UTF-8 without copying it into a String.
+	 */
+	private static byte[] encode(Secret password) {
+		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+		ByteBuffer out = ByteBuffer.allocate(password.length() * 3);
+		CharBuffer in = password.chars();
+		encoder.encode(in, out, true);
+		encoder.flush(out);
+		byte[] bytes = Arrays.copyOf(out.array(), out.position());
+		Arrays.fill(out.array(), (byte) 0);
+		return bytes;
+	}
+
+	/**
+	 * Decode a UTF-8 password without copying it into a String.
+	 */
+	private static Secret decode(byte[] plain) throws CharacterCodingException {
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+		CharBuffer out = CharBuffer.allocate(plain.length);
+		CoderResult result = decoder.decode(ByteBuffer.wrap(plain), out, true);
+		try {
+			if (result.isError()) {
+				result.throwException();
+			}
+			decoder.flush(out);
+			return Secret.wrap(Arrays.copyOf(out.array(), out.position()));
+		} finally {
+			Arrays.fill(out.array(), '\0');
+		}
+	}
+
+	private long entryCount() throws IOException {
+		return Math.max(0, (data.size() - HEADER_SIZE) / (2L * slotSize));
+	}
+
+	private long entryOffset(long entry) {
+		return HEADER_SIZE + entry * 2 * slotSize;
+	}
+
+	private void checkOpen() throws IOException {
+		if (data == null) {
+			throw new IOException("Credential store " + file + " has not been loaded");
+		}
+	}
+
+	private void checkWritable() throws IOException {
+		checkOpen();
+		if (readOnly) {
+			throw new IOException("Credential store " + file + " has been loaded read only");
+		}
+	}
+
+	private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	/**
+	 * Current password of an entry and the slot it was read from.
+	 */
+	private static class Slot {
+		final int slot;
+		final int sequence;
+		final Secret password;
+
+		Slot(int slot, int sequence, Secret password) {
+			this.slot = slot;
+			this.sequence = sequence;
+			this.password = password;
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Write-ahead journal for passwords sent to RPD, committed in two phases. Each new password
+ * is staged, appended and synced to disk, before it is sent to RPD, and a commit record is
+ * appended and synced as soon as RPD accepts it. A crash part way through a run cannot lose a
+ * password RPD has accepted, and a password sent without a reply is still on disk even though
+ * RPD may or may not hold it. Passwords RPD definitely did not take are marked aborted.
+ * <p>
+ * The journal is replayed over the credential store on startup: committed passwords are applied
+ * and staged passwords that were never committed reported. Once the run completes the store is
+ * flushed and the journal compacted, keeping only uncommitted staged records.
+ * <p>
+ * Each record is a single line: the CRC32 of the entry in hex, a space and the entry. The entry
+ * is the record type, S staged, C committed or A aborted, a space and the application in
+ * properties file format, with the new password for a staged record. A crash can only tear the
+ * final record, so a final record that fails its checksum or has no line feed is dropped. A bad
+ * record with valid records after it means the journal has been damaged, and it is not replayed.
+ * <p>
+ * Staged passwords are sealed by the credential store given to the journal, so the journal of an
+ * {@link EncryptedCredentialStore} holds them encrypted with the store's key.
+ */
+public class PasswordJournal {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	private static final String JOURNAL_SUFFIX = ".journal";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final char STAGED = 'S', COMMITTED = 'C', ABORTED = 'A';
+
+	private final Path journalFile;
+	private final CredentialStore sealer;
+	// Applications with a staged password that is neither committed nor aborted
+	private final Set<String> uncommitted = new HashSet<>();
+	private FileChannel channel;
+
+	/**
+	 * Journal for a properties passwords file, which keeps staged passwords as they are.
+	 * @param passwordsFile the passwords file protected by this journal, the journal is kept alongside it
+	 */
+	public PasswordJournal(Path passwordsFile) {
+		this(passwordsFile, null);
+	}
+
+	/**
+	 * @param passwordsFile the passwords file protected by this journal, the journal is kept alongside it
+	 * @param store credential store for the passwords file, which seals the staged passwords,
+	 *        or null to keep them as they are
+	 */
+	public PasswordJournal(Path passwordsFile, CredentialStore store) {
+		this.journalFile = passwordsFile.resolveSibling(passwordsFile.getFileName() + JOURNAL_SUFFIX);
+		this.sealer = store;
+	}
+
+	/**
+	 * Apply passwords committed by a previous run that did not complete.
+	 * @param store credential store loaded from the passwords file
+	 * @return number of passwords recovered from the journal
+	 * @throws IOException journal exists but cannot be read, or the store cannot be changed
+	 */
+	public int replay(CredentialStore store) throws IOException {
+		return replay(store, appName -> { });
+	}
+
+	/**
+	 * Apply passwords committed by a previous run that did not complete. Applications with a
+	 * staged password that was never committed are logged, as RPD may hold that password.
+	 * @param store credential store loaded from the passwords file
+	 * @param recovered receives the name of each application recovered from the journal
+	 * @return number of passwords recovered from the journal
+	 * @throws IOException journal exists but cannot be read or is damaged, or the store cannot be changed.
+	 *         A damaged journal is left as it is and nothing is applied to the store.
+	 */
+	public synchronized int replay(CredentialStore store, Consumer<String> recovered) throws IOException {
+		int count = 0;
+		for (Map.Entry<String, String> entry : read(true, new HashMap<>()).entrySet()) {
+			// The committed password is the one RPD holds, whatever the store holds now
+			try (Secret current = store.get(entry.getKey()); Secret password = unseal(entry.getKey(), entry.getValue())) {
+				if (store.compareAndSet(entry.getKey(), current, password)) {
+					recovered.accept(entry.getKey());
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Read the passwords committed by a previous run that did not complete, without applying
+	 * them to the store or changing the journal, e.g. to plan a run.
+	 * @return application names mapped to the password RPD holds, in journal order. The caller
+	 *         should wipe the passwords.
+	 * @throws IOException journal exists but cannot be read or is damaged
+	 */
+	public synchronized Map<String, Secret> readCommitted() throws IOException {
+		Map<String, Secret> passwords = new LinkedHashMap<>();
+		for (Map.Entry<String, String> entry : read(false, new HashMap<>()).entrySet()) {
+			passwords.put(entry.getKey(), unseal(entry.getKey(), entry.getValue()));
+		}
+		return passwords;
+	}
+
+	/**
+	 * Read the passwords staged by a previous run that were sent to RPD without a reply, and
+	 * so neither committed nor aborted, e.g. to find out which password RPD holds.
+	 * @return application names mapped to the password last staged for them, in journal order.
+	 *         The caller should wipe the passwords.
+	 * @throws IOException journal exists but cannot be read or is damaged
+	 */
+	public synchronized Map<String, Secret> readUncommitted() throws IOException {
+		Map<String, String> staged = new LinkedHashMap<>();
+		read(false, staged);
+		Map<String, Secret> passwords = new LinkedHashMap<>();
+		for (Map.Entry<String, String> entry : staged.entrySet()) {
+			passwords.put(entry.getKey(), unseal(entry.getKey(), entry.getValue()));
+		}
+		return passwords;
+	}
+
+	/**
+	 * Read the journal, noting the applications with a staged password that was never committed.
+	 * @param dropTorn remove a torn final record from the file, before new records are appended
+	 * @param staged receives the applications with a staged password that was never committed,
+	 *        mapped to the password last staged
+	 * @return application names mapped to their committed password, in journal order
+	 */
+	private Map<String, String> read(boolean dropTorn, Map<String, String> staged) throws IOException {
+		uncommitted.clear();
+		Map<String, String> committed = new LinkedHashMap<>();
+		if (!Files.exists(journalFile)) {
+			return committed;
+		}
+		long validLength = 0;
+		boolean torn = false;
+		// Records are ISO-8859-1 and terminated by a single line feed, so the last line is empty unless the final record is torn
+		String[] lines = new String(Files.readAllBytes(journalFile), StandardCharsets.ISO_8859_1).split("\n", -1);
+		int records = lines[lines.length - 1].isEmpty() ? lines.length - 1 : lines.length;
+		for (int i = 0; i < records; i++) {
+			String line = lines[i];
+			int space = line.indexOf(' ');
+			String entry = space < 0 ? "" : line.substring(space + 1);
+			if (i == lines.length - 1 || space < 0 || !checksum(entry).equals(line.substring(0, space))) {
+				if (i < records - 1) {
+					throw new IOException("Journal " + journalFile + " is damaged at record " + (i + 1) + " of "
+							+ records + ", not replayed. Check which passwords RPD holds before removing it");
+				}
+				LOG.warn("Ignoring incomplete record at end of journal {}", journalFile);
+				torn = true;
+				break;
+			}
+			char type = recordType(entry);
+			if (type == 0) {
+				throw new IOException("Journal " + journalFile + " has a record of unknown type at record " + (i + 1) + ", not replayed");
+			}
+			// Later records override earlier ones
+			PropertiesFormat.read(new StringReader(entry.substring(2)), (app, pwd) -> {
+				switch (type) {
+				case STAGED:
+					staged.put(app, pwd);
+					uncommitted.add(app);
+					return;
+				case ABORTED:
+					staged.remove(app);
+					uncommitted.remove(app);
+					return;
+				case COMMITTED:
+					String password = staged.remove(app);
+					uncommitted.remove(app);
+					if (password != null) {
+						committed.put(app, password);
+					}
+					return;
+				}
+			});
+			validLength += line.length() + 1;
+		}
+		if (torn && dropTorn) {
+			// Drop the torn record so that new records do not get appended to it
+			try (FileChannel truncate = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+				truncate.truncate(validLength);
+				truncate.force(true);
+			}
+		}
+		for (String appName : uncommitted) {
+			LOG.warn("New password for {} was sent to RPD without a reply, it is staged in journal {} in case RPD holds it",
+					appName, journalFile);
+		}
+		return committed;
+	}
+
+	/**
+	 * Record a new password before it is sent to RPD. Returns only once the record is on disk.
+	 * The record is built from the password characters and the buffers wiped once written.
+	 * @param appName application whose password is changing
+	 * @param newPassword password about to be sent to RPD
+	 * @throws IOException record could not be written or synced, the password must not be sent
+	 */
+	public synchronized void stage(String appName, Secret newPassword) throws IOException {
+		append(STAGED, appName, sealer == null ? newPassword.chars() : sealer.seal(appName, newPassword), true);
+		uncommitted.add(appName);
+	}
+
+	/**
+	 * Record that RPD has accepted the password last staged for an application. Returns only
+	 * once the record is on disk.
+	 * @param appName application whose password changed
+	 * @throws IOException record could not be written or synced
+	 */
+	public synchronized void commit(String appName) throws IOException {
+		append(COMMITTED, appName, "", true);
+		uncommitted.remove(appName);
+	}
+
+	/**
+	 * Record that RPD did not take any of the passwords staged for an application, so they
+	 * need not be kept. Not synced, as a lost record only leaves a password kept unnecessarily.
+	 * @param appName application whose password is unchanged
+	 * @throws IOException record could not be written
+	 */
+	public synchronized void abort(String appName) throws IOException {
+		if (uncommitted.remove(appName)) {
+			append(ABORTED, appName, "", false);
+		}
+	}
+
+	/**
+	 * Flush every password changed during the run to the credential store. The journal is then
+	 * removed, or if any staged password was never committed, replaced by one holding only those
+	 * records.
+	 * @param store credential store holding all application passwords, including those changed during the run
+	 * @throws IOException store could not be flushed, the journal is left in place
+	 */
+	public synchronized void compact(CredentialStore store) throws IOException {
+		store.flush();
+		close();
+		if (uncommitted.isEmpty()) {
+			Files.deleteIfExists(journalFile);
+			return;
+		}
+		Path tempFile = journalFile.resolveSibling(journalFile.getFileName() + TEMP_SUFFIX);
+		try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.ISO_8859_1);
+			 FileChannel tempChannel = PropertiesFormat.createTemp(tempFile)) {
+			Writer out = new BufferedWriter(Channels.newWriter(tempChannel, StandardCharsets.ISO_8859_1.newEncoder(), -1));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int space = line.indexOf(' ');
+				String entry = line.substring(space + 1);
+				if (recordType(entry) == STAGED && uncommitted.contains(recordKey(entry))) {
+					out.write(line);
+					out.write('\n');
+				}
+			}
+			out.flush();
+			tempChannel.force(true);
+		}
+		Files.move(tempFile, journalFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		PropertiesFormat.syncDirectory(journalFile);
+		LOG.warn("{} staged passwords without a reply from RPD kept in journal {}", uncommitted.size(), journalFile);
+	}
+
+	/**
+	 * Release the journal file handle without removing it.
+	 */
+	public synchronized void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				LOG.warn("Unable to close journal {}", journalFile, ex);
+			}
+			channel = null;
+		}
+	}
+
+	private Secret unseal(String appName, String sealed) throws IOException {
+		return sealer == null ? Secret.of(sealed) : sealer.unseal(appName, sealed);
+	}
+
+	/**
+	 * Append a record and optionally wait for it to reach the disk.
+	 */
+	private void append(char type, String appName, CharSequence value, boolean sync) throws IOException {
+		if (channel == null) {
+			// Holds new passwords, so only readable by this user whatever the passwords file allows
+			channel = FileChannel.open(journalFile, EnumSet.of(StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND), PropertiesFormat.ownerOnly(journalFile));
+		}
+		// Sized for the longest escaping so the builder never copies its contents to a larger array
+		StringBuilder entry = new StringBuilder(6 * (appName.length() + value.length()) + 3);
+		entry.append(type).append(' ');
+		PropertiesFormat.appendEntry(entry, appName, value);
+		// Escaped entries are plain ASCII, so each char is one ISO-8859-1 byte
+		byte[] entryBytes = new byte[entry.length()];
+		for (int i = 0; i < entryBytes.length; i++) {
+			entryBytes[i] = (byte) entry.charAt(i);
+			entry.setCharAt(i, '\0');
+		}
+		byte[] crc = checksum(entryBytes).getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer buffer = ByteBuffer.allocate(crc.length + entryBytes.length + 2);
+		buffer.put(crc).put((byte) ' ').put(entryBytes).put((byte) '\n');
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			if (sync) {
+				channel.force(false);
+			}
+		} finally {
+			Arrays.fill(entryBytes, (byte) 0);
+			Arrays.fill(buffer.array(), (byte) 0);
+		}
+	}
+
+	/**
+	 * @param entry record following the checksum
+	 * @return record type, or 0 if the entry does not start with a known type
+	 */
+	private static char recordType(String entry) {
+		if (entry.length() > 1 && entry.charAt(1) == ' ') {
+			char type = entry.charAt(0);
+			if (type == STAGED || type == COMMITTED || type == ABORTED) {
+				return type;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param entry record following the checksum
+	 * @return application name of the record
+	 */
+	private static String recordKey(String entry) throws IOException {
+		String[] key = new String[1];
+		PropertiesFormat.read(new StringReader(entry.substring(2)), (app, pwd) -> key[0] = app);
+		return key[0];
+	}
+
+	private static String checksum(String entry) {
+		return checksum(entry.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static String checksum(byte[] entry) {
+		CRC32 crc = new CRC32();
+		crc.update(entry);
+		return Long.toHexString(crc.getValue());
+	}
+}
@@ -0,0 +1,140 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import uk.gov.dvla.osg.appPwdUpdate.email.DevNotifyEmail;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Publishes passwords committed during a run to the credential store, so that the
+ * applications reading it pick up their new password soon after RPD accepts it rather than
+ * at the end of the run. Each commit is made in the store straight away, and the store is
+ * flushed in batches: once the batch is full, or on the first commit after the interval has
+ * passed since the last publish, so the time the store on disk lags behind RPD does not grow
+ * with the number of applications. The worker whose commit completes a batch flushes it without
+ * holding the publisher's lock, and a commit made while another worker is flushing is left for
+ * the next batch rather than waiting, so workers are not held up by the file being written.
+ * <p>
+ * A password is only changed in the store if it still holds the password RPD replaced. The
+ * journal remains the record of every commit: a flush that fails is retried with the next
+ * batch and the store is always flushed at the end of the run, and a password the store would
+ * not take is left in the journal for the next run to apply.
+ */
+public class PasswordPublisher {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	private final CredentialStore store;
+	private final int batchSize;
+	private final long intervalNanos;
+	private final Lock writeLock = new ReentrantLock();
+
+	// Guarded by this
+	private int pending;
+	private int version;
+	private int unsaved;
+	private long lastPublished = System.nanoTime();
+
+	/**
+	 * @param store every application's password, updated as passwords are committed
+	 * @param batchSize commits flushed together
+	 * @param intervalMillis longest time a commit waits for the rest of its batch, as long as
+	 *        another commit follows
+	 */
+	public PasswordPublisher(CredentialStore store, int batchSize, long intervalMillis) {
+		this.store = store;
+		this.batchSize = Math.max(1, batchSize);
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+	}
+
+	/**
+	 * Change a committed password in the store and publish it with its batch.
+	 * @param appName application whose password changed
+	 * @param oldPassword password RPD replaced
+	 * @param newPassword password RPD has accepted
+	 */
+	public void publish(String appName, Secret oldPassword, Secret newPassword) {
+		try {
+			if (!store.compareAndSet(appName, oldPassword, newPassword)) {
+				notSaved();
+				LOG.error("Password for {} changed in credential store during rotation, new password kept in journal", appName);
+				DevNotifyEmail.send(appName, "STORE_CONFLICT", "Password changed in credential store during rotation");
+				return;
+			}
+		} catch (IOException ex) {
+			notSaved();
+			LOG.error("Unable to save new password for {} in credential store, new password kept in journal", appName, ex);
+			DevNotifyEmail.send(appName, "STORE", "New password not saved in credential store");
+			return;
+		}
+		boolean due;
+		synchronized (this) {
+			pending++;
+			due = pending >= batchSize || System.nanoTime() - lastPublished >= intervalNanos;
+		}
+		// A batch already being written is left to finish, this commit goes with the next one
+		if (due && writeLock.tryLock()) {
+			try {
+				write();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Publish any commits still waiting for their batch, once a batch being written has finished.
+	 */
+	public void flush() {
+		writeLock.lock();
+		try {
+			write();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of committed passwords the store would not take, which must stay in the journal
+	 */
+	public synchronized int getUnsaved() {
+		return unsaved;
+	}
+
+	private synchronized void notSaved() {
+		unsaved++;
+	}
+
+	/**
+	 * Flush the store, called holding the write lock but not the publisher's lock.
+	 */
+	private void write() {
+		int batch;
+		synchronized (this) {
+			batch = pending;
+		}
+		if (batch == 0) {
+			return;
+		}
+		try {
+			store.flush();
+			synchronized (this) {
+				version++;
+				pending -= batch;
+				LOG.debug("Published version {} of credential store with {} new passwords", version, batch);
+			}
+		} catch (IOException ex) {
+			// Left pending, the next batch or the end of the run writes them
+			LOG.warn("Unable to publish new passwords to credential store", ex);
+		}
+		synchronized (this) {
+			lastPublished = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Compact, insertion ordered map of application name to password. Entries are held in two
+ * parallel arrays with an open addressing index of ints, avoiding the per-entry objects and
+ * locking of {@link java.util.Properties}. Not thread safe, callers updating the store from
+ * several threads must synchronize externally.
+ */
+public class PasswordStore {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private String[] keys;
+	private String[] values;
+	// Index into keys/values plus one, zero marks an empty slot
+	private int[] table;
+	private int size;
+
+	public PasswordStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of entries the store should hold without resizing
+	 */
+	public PasswordStore(int expectedSize) {
+		int capacity = Math.max(expectedSize, DEFAULT_CAPACITY);
+		keys = new String[capacity];
+		values = new String[capacity];
+		table = new int[tableSizeFor(capacity)];
+	}
+
+	/**
+	 * @param key application name
+	 * @return password for the application, or null if not present
+	 */
+	public String get(String key) {
+		int index = indexOf(key);
+		return index < 0 ? null : values[index];
+	}
+
+	/**
+	 * @param key application name
+	 * @return true if the store holds a password for the application
+	 */
+	public boolean containsKey(String key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Add or replace the password for an application. New applications are added after
+	 * existing ones, replacing a password keeps its original position.
+	 * @param key application name
+	 * @param value password
+	 * @return previous password, or null if the application was not present
+	 */
+	public String put(String key, String value) {
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+		int mask = table.length - 1;
+		int slot = hash(key) & mask;
+		while (table[slot] != 0) {
+			int index = table[slot] - 1;
+			if (keys[index].equals(key)) {
+				String old = values[index];
+				values[index] = value;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		keys[size] = key;
+		values[size] = value;
+		table[slot] = ++size;
+		// Keep the load factor at or below one half so probe chains stay short
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of applications held
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param index position in insertion order
+	 * @return application name at the position
+	 */
+	public String keyAt(int index) {
+		checkIndex(index);
+		return keys[index];
+	}
+
+	/**
+	 * @param index position in insertion order
+	 * @return password at the position
+	 */
+	public String valueAt(int index) {
+		checkIndex(index);
+		return values[index];
+	}
+
+	/**
+	 * Visit every entry in insertion order.
+	 * @param action called with each application name and password
+	 */
+	public void forEach(BiConsumer<String, String> action) {
+		for (int i = 0; i < size; i++) {
+			action.accept(keys[i], values[i]);
+		}
+	}
+
+	private int indexOf(String key) {
+		int mask = table.length - 1;
+		int slot = hash(key) & mask;
+		while (table[slot] != 0) {
+			int index = table[slot] - 1;
+			if (keys[index].equals(key)) {
+				return index;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void rehash(int newLength) {
+		int[] newTable = new int[newLength];
+		int mask = newLength - 1;
+		for (int i = 0; i < size; i++) {
+			int slot = hash(keys[i]) & mask;
+			while (newTable[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			newTable[slot] = i + 1;
+		}
+		table = newTable;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static int tableSizeFor(int capacity) {
+		int n = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		return Math.max(n, DEFAULT_CAPACITY);
+	}
+}
@@ -0,0 +1,146 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.FileVersion;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Credential store kept in the key=value passwords file read by the applications. The whole
+ * file is held in a {@link PasswordStore} once loaded, and every flush replaces the file in
+ * full with {@link PropertiesFormat#replace(Path, PasswordStore, Map)}, so readers never see a
+ * partly written file. The file is only read again once it has changed on disk.
+ * <p>
+ * Passwords changed through the store are held as secrets alongside the passwords read from
+ * the file and written from their characters, so a new password never becomes a String.
+ * <p>
+ * A flush writes a copy of the store taken under its lock, so passwords can be read and changed
+ * while the file is written and synced. Only one flush writes the file at a time.
+ */
+public class PropertiesCredentialStore implements CredentialStore {
+
+	private final Path file;
+	private final Object flushLock = new Object();
+
+	// Guarded by this
+	private PasswordStore passwords = new PasswordStore();
+	private final Map<String, Secret> changes = new HashMap<>();
+	private FileVersion version;
+	private boolean changed;
+	private long modifications;
+
+	/**
+	 * @param file passwords file
+	 */
+	public PropertiesCredentialStore(Path file) {
+		this.file = file;
+	}
+
+	@Override
+	public synchronized boolean load() throws IOException {
+		FileVersion current = new FileVersion(file.toFile());
+		if (current.equals(version)) {
+			return false;
+		}
+		passwords = PropertiesFormat.read(file);
+		clearChanges();
+		version = current;
+		changed = false;
+		return true;
+	}
+
+	@Override
+	public synchronized int size() {
+		return passwords.size();
+	}
+
+	@Override
+	public synchronized List<String> appNames() {
+		List<String> appNames = new ArrayList<>(passwords.size());
+		for (int i = 0; i < passwords.size(); i++) {
+			appNames.add(passwords.keyAt(i));
+		}
+		return appNames;
+	}
+
+	@Override
+	public synchronized Secret get(String appName) {
+		Secret changedPassword = changes.get(appName);
+		if (changedPassword != null) {
+			return changedPassword.copy();
+		}
+		String password = passwords.get(appName);
+		return password == null ? null : Secret.of(password);
+	}
+
+	@Override
+	public synchronized boolean compareAndSet(String appName, Secret expected, Secret newPassword) {
+		Secret changedPassword = changes.get(appName);
+		CharSequence current = changedPassword != null ? changedPassword.chars() : passwords.get(appName);
+		if (current == null ? expected != null : expected == null || !expected.contentEquals(current)) {
+			return false;
+		}
+		if (current == null) {
+			// Holds the position of a new application in the file, the password is in changes
+			passwords.put(appName, "");
+		}
+		Secret previous = changes.put(appName, newPassword.copy());
+		if (previous != null) {
+			previous.clear();
+		}
+		changed = true;
+		modifications++;
+		return true;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		synchronized (flushLock) {
+			PasswordStore snapshot;
+			List<Secret> copies = new ArrayList<>();
+			Map<String, CharSequence> values = new HashMap<>();
+			long flushed;
+			synchronized (this) {
+				if (!changed) {
+					return;
+				}
+				snapshot = new PasswordStore(passwords.size());
+				passwords.forEach(snapshot::put);
+				changes.forEach((appName, password) -> {
+					Secret copy = password.copy();
+					copies.add(copy);
+					values.put(appName, copy.chars());
+				});
+				flushed = modifications;
+			}
+			try {
+				PropertiesFormat.replace(file, snapshot, values);
+			} finally {
+				copies.forEach(Secret::clear);
+			}
+			synchronized (this) {
+				// The file now matches the store as copied, so need not be read again
+				version = new FileVersion(file.toFile());
+				changed = modifications != flushed;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		// No file is held open, wipe the changed passwords and read the file again if reloaded
+		clearChanges();
+		version = null;
+		changed = false;
+	}
+
+	private void clearChanges() {
+		changes.values().forEach(Secret::clear);
+		changes.clear();
+	}
+}
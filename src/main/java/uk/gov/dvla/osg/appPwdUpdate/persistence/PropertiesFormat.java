@@ -0,0 +1,383 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Streaming reader and writer for the key=value file format. Escaping matches
+ * {@link java.util.Properties#store(java.io.OutputStream, String)} and parsing matches
+ * {@link java.util.Properties#load(java.io.InputStream)}, so files remain interchangeable with
+ * other applications reading the passwords file. Entries are handed over one at a time rather
+ * than the whole file being held in memory.
+ */
+public class PropertiesFormat {
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * Load a key=value file into a new store, preserving the order of the file.
+	 * @param file ISO-8859-1 encoded file, as written by {@code Properties.store}
+	 * @return entries in file order, later duplicate keys override earlier ones
+	 * @throws IOException file cannot be read or contains a malformed unicode escape
+	 */
+	public static PasswordStore read(Path file) throws IOException {
+		PasswordStore store = new PasswordStore();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+			read(reader, store::put);
+		}
+		return store;
+	}
+
+	/**
+	 * Parse key=value entries one logical line at a time.
+	 * @param in source text
+	 * @param consumer called with each unescaped key and value in the order read
+	 * @throws IOException source cannot be read or contains a malformed unicode escape
+	 */
+	public static void read(Reader in, BiConsumer<String, String> consumer) throws IOException {
+		BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+		StringBuilder logical = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int start = skipWhitespace(line, 0);
+			if (start == line.length()) {
+				continue;
+			}
+			char first = line.charAt(start);
+			if (first == '#' || first == '!') {
+				continue;
+			}
+			logical.setLength(0);
+			logical.append(line, start, line.length());
+			// An odd number of trailing backslashes continues the entry onto the next line
+			while (endsWithContinuation(logical)) {
+				logical.setLength(logical.length() - 1);
+				String next = reader.readLine();
+				if (next == null) {
+					break;
+				}
+				logical.append(next, skipWhitespace(next, 0), next.length());
+			}
+			parseEntry(logical, consumer);
+		}
+	}
+
+	/**
+	 * Write every entry in insertion order, preceded by a date comment as {@code Properties.store} does.
+	 * @param out destination, written as ISO-8859-1
+	 * @param store entries to write
+	 * @throws IOException destination cannot be written
+	 */
+	public static void write(OutputStream out, PasswordStore store) throws IOException {
+		write(out, store, Collections.emptyMap());
+	}
+
+	/**
+	 * Write every entry in insertion order, taking the values of changed entries from a
+	 * separate map so that they can be written from characters rather than Strings.
+	 * @param out destination, written as ISO-8859-1
+	 * @param store entries to write
+	 * @param changes values written in place of those held in the store
+	 * @throws IOException destination cannot be written
+	 */
+	public static void write(OutputStream out, PasswordStore store, Map<String, ? extends CharSequence> changes) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.ISO_8859_1));
+		String newLine = System.lineSeparator();
+		writer.write("#" + new Date().toString() + newLine);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < store.size(); i++) {
+			sb.setLength(0);
+			CharSequence value = changes.get(store.keyAt(i));
+			appendEntry(sb, store.keyAt(i), value != null ? value : store.valueAt(i)).append(newLine);
+			writer.append(sb);
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Replace a file with every entry in the store. The entries are written to a temporary file
+	 * alongside, synced and renamed over the file, so a reader opening the file sees either the
+	 * old or the new contents in full and never a partly written file. Readers need no lock.
+	 * The new file is given the owner, group and permissions of the file it replaces, and is
+	 * readable only by its owner until then.
+	 * @param file file to replace
+	 * @param store entries to write
+	 * @throws IOException file could not be replaced, it is left unchanged
+	 */
+	public static void replace(Path file, PasswordStore store) throws IOException {
+		replace(file, store, Collections.emptyMap());
+	}
+
+	/**
+	 * Replace a file as {@link #replace(Path, PasswordStore)} does, taking the values of changed
+	 * entries from a separate map.
+	 * @param file file to replace
+	 * @param store entries to write
+	 * @param changes values written in place of those held in the store
+	 * @throws IOException file could not be replaced, it is left unchanged
+	 */
+	public static void replace(Path file, PasswordStore store, Map<String, ? extends CharSequence> changes) throws IOException {
+		Path tempFile = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+		try {
+			try (FileChannel tempChannel = createTemp(tempFile);
+				 OutputStream out = Channels.newOutputStream(tempChannel)) {
+				write(out, store, changes);
+				out.flush();
+				tempChannel.force(true);
+			}
+			copyAttributes(file, tempFile);
+			Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			Files.deleteIfExists(tempFile);
+			throw ex;
+		}
+		syncDirectory(file);
+	}
+
+	/**
+	 * Create the temporary file that will replace a file, readable only by this user.
+	 * @param tempFile temporary file, replaced if left behind by an earlier failure
+	 * @return channel open for writing
+	 * @throws IOException file could not be created
+	 */
+	static FileChannel createTemp(Path tempFile) throws IOException {
+		Files.deleteIfExists(tempFile);
+		return FileChannel.open(tempFile, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), ownerOnly(tempFile));
+	}
+
+	/**
+	 * @param file file about to be created
+	 * @return attribute creating the file readable and writable only by its owner, none where
+	 *         the file system has no POSIX permissions
+	 */
+	static FileAttribute<?>[] ownerOnly(Path file) {
+		if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			return new FileAttribute<?>[0];
+		}
+		return new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")) };
+	}
+
+	/**
+	 * Give a replacement the owner, group and permissions of the file it replaces, which writing
+	 * the file in place would have kept. Does nothing if there is no file to replace.
+	 * @param file file being replaced
+	 * @param tempFile replacement
+	 * @throws IOException replacement could not be given the owner or group of the file
+	 */
+	private static void copyAttributes(Path file, Path tempFile) throws IOException {
+		PosixFileAttributeView view = Files.getFileAttributeView(tempFile, PosixFileAttributeView.class);
+		if (view == null || !Files.exists(file)) {
+			return;
+		}
+		PosixFileAttributes original = Files.readAttributes(file, PosixFileAttributes.class);
+		PosixFileAttributes replacement = view.readAttributes();
+		try {
+			// Only root may give a file away, so leave the owner alone when it already matches
+			if (!replacement.owner().equals(original.owner())) {
+				view.setOwner(original.owner());
+			}
+			if (!replacement.group().equals(original.group())) {
+				view.setGroup(original.group());
+			}
+		} catch (IOException ex) {
+			throw new IOException("Unable to give the new " + file + " the owner and group of the old one, it is left unchanged", ex);
+		}
+		view.setPermissions(original.permissions());
+	}
+
+	/**
+	 * Sync the directory entry so a rename survives a crash. Not supported on all platforms.
+	 * @param file file whose directory is synced
+	 */
+	static void syncDirectory(Path file) {
+		Path dir = file.toAbsolutePath().getParent();
+		try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			dirChannel.force(true);
+		} catch (IOException ex) {
+			// Directory sync not supported, e.g. on Windows
+		}
+	}
+
+	/**
+	 * Append a single escaped key=value line, without the line terminator.
+	 * @param sb destination for the escaped text
+	 * @param key property key
+	 * @param value property value
+	 * @return the supplied builder
+	 */
+	public static StringBuilder appendEntry(StringBuilder sb, String key, CharSequence value) {
+		escape(sb, key, true);
+		sb.append('=');
+		escape(sb, value, false);
+		return sb;
+	}
+
+	/**
+	 * Escape text so that it survives a round trip through {@code Properties.load}.
+	 * @param sb destination for the escaped text
+	 * @param text key or value to escape
+	 * @param isKey keys have every space escaped, values only a leading space
+	 */
+	public static void escape(StringBuilder sb, CharSequence text, boolean isKey) {
+		int len = text.length();
+		for (int i = 0; i < len; i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case ' ':
+				if (i == 0 || isKey) {
+					sb.append('\\');
+				}
+				sb.append(' ');
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\f':
+				sb.append("\\f");
+				break;
+			case '\\':
+			case '=':
+			case ':':
+			case '#':
+			case '!':
+				sb.append('\\').append(c);
+				break;
+			default:
+				if (c < 0x0020 || c > 0x007e) {
+					sb.append("\\u")
+					  .append(HEX[(c >> 12) & 0xF])
+					  .append(HEX[(c >> 8) & 0xF])
+					  .append(HEX[(c >> 4) & 0xF])
+					  .append(HEX[c & 0xF]);
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+	}
+
+	private static void parseEntry(CharSequence line, BiConsumer<String, String> consumer) throws IOException {
+		int len = line.length();
+		int keyEnd = 0;
+		boolean escaped = false;
+		// Key ends at the first unescaped separator or whitespace
+		while (keyEnd < len) {
+			char c = line.charAt(keyEnd);
+			if (escaped) {
+				escaped = false;
+			} else if (c == '\\') {
+				escaped = true;
+			} else if (c == '=' || c == ':' || c == ' ' || c == '\t' || c == '\f') {
+				break;
+			}
+			keyEnd++;
+		}
+		int valueStart = skipWhitespace(line, keyEnd);
+		if (valueStart < len && (line.charAt(valueStart) == '=' || line.charAt(valueStart) == ':')) {
+			valueStart = skipWhitespace(line, valueStart + 1);
+		}
+		String key = unescape(line, 0, keyEnd);
+		consumer.accept(key, unescape(line, valueStart, len));
+	}
+
+	/**
+	 * Remove the escapes from a key or value.
+	 * @throws IOException malformed unicode escape. {@code Properties.load} throws
+	 *         IllegalArgumentException, here a damaged file is reported as unreadable
+	 */
+	private static String unescape(CharSequence text, int start, int end) throws IOException {
+		StringBuilder sb = new StringBuilder(end - start);
+		int i = start;
+		while (i < end) {
+			char c = text.charAt(i++);
+			if (c != '\\' || i == end) {
+				sb.append(c);
+				continue;
+			}
+			c = text.charAt(i++);
+			switch (c) {
+			case 'u':
+				if (i + 4 > end) {
+					throw new IOException("Malformed \\uxxxx encoding.");
+				}
+				int value = 0;
+				for (int j = 0; j < 4; j++) {
+					int digit = Character.digit(text.charAt(i++), 16);
+					if (digit < 0) {
+						throw new IOException("Malformed \\uxxxx encoding.");
+					}
+					value = (value << 4) + digit;
+				}
+				sb.append((char) value);
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static boolean endsWithContinuation(CharSequence line) {
+		int backslashes = 0;
+		for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--) {
+			backslashes++;
+		}
+		return (backslashes & 1) == 1;
+	}
+
+	private static int skipWhitespace(CharSequence text, int from) {
+		while (from < text.length()) {
+			char c = text.charAt(from);
+			if (c != ' ' && c != '\t' && c != '\f') {
+				break;
+			}
+			from++;
+		}
+		return from;
+	}
+
+	// Suppress default constructor for noninstantiability
+	private PropertiesFormat() {
+		throw new AssertionError();
+	}
+}
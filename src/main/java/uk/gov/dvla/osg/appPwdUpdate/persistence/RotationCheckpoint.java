@@ -0,0 +1,193 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records how far a run got with each application so that a failed or interrupted run can be
+ * resumed without rotating applications that already have new passwords. The checkpoint is
+ * kept alongside the passwords file and removed once every application has been rotated.
+ * <p>
+ * Each state change is appended as a line in properties file format, the last entry for an
+ * application being its current state. An application with no entry is pending.
+ */
+public class RotationCheckpoint {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+	/**
+	 * Progress of a single application.
+	 */
+	public enum State {
+		/** Not yet sent to RPD */
+		PENDING,
+		/** Sent to RPD without a definite answer, RPD may or may not hold the new password */
+		IN_FLIGHT,
+		/** New password accepted by RPD and written to the journal */
+		ROTATED,
+		/** Rejected by RPD, the current password is unchanged */
+		FAILED,
+		/** Not sent as RPD was unreachable, the current password is unchanged */
+		DEFERRED
+	}
+
+	private final Path checkpointFile;
+	private final Map<String, State> states = new LinkedHashMap<>();
+	private FileChannel channel;
+
+	/**
+	 * @param passwordsFile the passwords file being rotated, the checkpoint is kept alongside it
+	 */
+	public RotationCheckpoint(Path passwordsFile) {
+		this.checkpointFile = passwordsFile.resolveSibling(passwordsFile.getFileName() + CHECKPOINT_SUFFIX);
+	}
+
+	/**
+	 * @return true if a previous run left a checkpoint
+	 */
+	public boolean exists() {
+		return Files.exists(checkpointFile);
+	}
+
+	/**
+	 * Load the states recorded by a previous run. New states are appended to the same file.
+	 * @throws IOException checkpoint exists but cannot be read
+	 */
+	public synchronized void load() throws IOException {
+		states.clear();
+		if (!exists()) {
+			return;
+		}
+		try (Reader in = Files.newBufferedReader(checkpointFile, StandardCharsets.ISO_8859_1)) {
+			PropertiesFormat.read(in, (app, state) -> {
+				try {
+					states.put(app, State.valueOf(state));
+				} catch (IllegalArgumentException ex) {
+					// Torn entry at the end of the file, the previous state stands
+					LOG.warn("Ignoring unreadable entry for {} in checkpoint {}", app, checkpointFile);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Start a new checkpoint with every application pending, replacing any previous checkpoint.
+	 * @param apps all applications in the passwords file
+	 * @throws IOException checkpoint cannot be written
+	 */
+	public synchronized void start(Iterable<String> apps) throws IOException {
+		close();
+		states.clear();
+		StringBuilder sb = new StringBuilder();
+		for (String app : apps) {
+			states.put(app, State.PENDING);
+			PropertiesFormat.appendEntry(sb, app, State.PENDING.name()).append('\n');
+		}
+		channel = FileChannel.open(checkpointFile, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		write(sb);
+	}
+
+	/**
+	 * Record a change of state. Returns only once the entry is on disk.
+	 * @param appName application whose state changed
+	 * @param state new state
+	 * @throws IOException entry could not be written or synced
+	 */
+	public synchronized void mark(String appName, State state) throws IOException {
+		states.put(appName, state);
+		if (channel == null) {
+			open();
+		}
+		write(PropertiesFormat.appendEntry(new StringBuilder(), appName, state.name()).append('\n'));
+	}
+
+	/**
+	 * @param appName application name
+	 * @return last recorded state, PENDING if none has been recorded
+	 */
+	public synchronized State getState(String appName) {
+		return states.getOrDefault(appName, State.PENDING);
+	}
+
+	/**
+	 * @return applications in the checkpoint, in the order first recorded
+	 */
+	public synchronized List<String> getApps() {
+		return new ArrayList<>(states.keySet());
+	}
+
+	/**
+	 * @return true if every application in the checkpoint has been rotated
+	 */
+	public synchronized boolean isComplete() {
+		for (State state : states.values()) {
+			if (state != State.ROTATED) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remove the checkpoint once every application has been rotated.
+	 * @throws IOException checkpoint could not be removed
+	 */
+	public synchronized void delete() throws IOException {
+		close();
+		states.clear();
+		Files.deleteIfExists(checkpointFile);
+	}
+
+	/**
+	 * Release the checkpoint file handle without removing it.
+	 */
+	public synchronized void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				LOG.warn("Unable to close checkpoint {}", checkpointFile, ex);
+			}
+			channel = null;
+		}
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(checkpointFile, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+		channel.position(size);
+		if (size > 0) {
+			// Terminate a torn entry so that it does not run into the next one
+			ByteBuffer last = ByteBuffer.allocate(1);
+			channel.read(last, size - 1);
+			if (last.get(0) != '\n') {
+				write(new StringBuilder("\n"));
+			}
+		}
+	}
+
+	private void write(CharSequence entries) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(entries.toString().getBytes(StandardCharsets.ISO_8859_1));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+	}
+}
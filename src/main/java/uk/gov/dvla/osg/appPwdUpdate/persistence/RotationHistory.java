@@ -0,0 +1,71 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Time each application's password was last rotated, kept in a sidecar file alongside the
+ * passwords file so that the passwords file itself keeps its existing format. Entries are
+ * application name mapped to milliseconds since the epoch, in properties file format.
+ */
+public class RotationHistory {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	private static final String HISTORY_SUFFIX = ".rotated";
+
+	private final Path historyFile;
+	private PasswordStore rotated = new PasswordStore();
+
+	/**
+	 * @param passwordsFile the passwords file the history describes, the history is kept alongside it
+	 */
+	public RotationHistory(Path passwordsFile) {
+		this.historyFile = passwordsFile.resolveSibling(passwordsFile.getFileName() + HISTORY_SUFFIX);
+	}
+
+	/**
+	 * Load the history written by previous runs. A missing file is an empty history.
+	 * @throws IOException history exists but cannot be read
+	 */
+	public synchronized void load() throws IOException {
+		rotated = Files.exists(historyFile) ? PropertiesFormat.read(historyFile) : new PasswordStore();
+	}
+
+	/**
+	 * @param appName application name
+	 * @return time of the last rotation in milliseconds since the epoch, or -1 if not known
+	 */
+	public synchronized long getLastRotated(String appName) {
+		String value = rotated.get(appName);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException ex) {
+			LOG.warn("Ignoring invalid rotation time {} for {} in {}", value, appName, historyFile);
+			return -1;
+		}
+	}
+
+	/**
+	 * @param appName application whose password was rotated
+	 * @param timeMillis time of the rotation in milliseconds since the epoch
+	 */
+	public synchronized void recordRotation(String appName, long timeMillis) {
+		rotated.put(appName, Long.toString(timeMillis));
+	}
+
+	/**
+	 * Replace the history file with {@link PropertiesFormat#replace(Path, PasswordStore)}.
+	 * @throws IOException history could not be written, the previous history is left in place
+	 */
+	public synchronized void save() throws IOException {
+		PropertiesFormat.replace(historyFile, rotated);
+	}
+}
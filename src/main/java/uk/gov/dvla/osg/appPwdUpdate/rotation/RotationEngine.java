@@ -0,0 +1,435 @@
+package uk.gov.dvla.osg.appPwdUpdate.rotation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import uk.gov.dvla.osg.appPwdUpdate.email.DevNotifyEmail;
+import uk.gov.dvla.osg.appPwdUpdate.metrics.RunMetrics;
+import uk.gov.dvla.osg.appPwdUpdate.networking.CircuitBreaker;
+import uk.gov.dvla.osg.appPwdUpdate.networking.NetworkConfig;
+import uk.gov.dvla.osg.appPwdUpdate.networking.RateLimiter;
+import uk.gov.dvla.osg.appPwdUpdate.networking.SessionManager;
+import uk.gov.dvla.osg.appPwdUpdate.networking.UpdateBatcher;
+import uk.gov.dvla.osg.appPwdUpdate.networking.UpdateResult;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordJournal;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordPublisher;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint.State;
+import uk.gov.dvla.osg.appPwdUpdate.utils.LogFields;
+import uk.gov.dvla.osg.appPwdUpdate.utils.RandomPasswordGenerator;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Sends new passwords to RPD for a set of applications using a bounded pool of worker threads.
+ * All workers share the session held by the {@link SessionManager}, the degree of parallelism is
+ * taken from the network configuration file. Each new password is staged in the journal before
+ * it is sent and committed as soon as RPD accepts it, then handed to the publisher to be changed
+ * in the credential store and flushed with the next batch. The progress of each application is
+ * recorded in the checkpoint so an incomplete run can be resumed.
+ * <p>
+ * Updates are sent by an {@link UpdateBatcher}, which combines those of concurrent workers into
+ * batch requests when RPD provides a batch update service. The pool then has enough workers to
+ * fill a batch for each request allowed in flight. Each application's result is handled as if
+ * its update had been sent on its own.
+ * <p>
+ * Requests pass through a {@link RateLimiter} that backs off while RPD is overloaded. Requests
+ * RPD turns away as overloaded are retried after a delay without using up one of the attempts,
+ * as RPD has not checked the password. The same applies once in each attempt when RPD rejects
+ * the session token with the configured error code, the token is renewed before the request is
+ * sent again. Any other 401 counts as an attempt, and the next attempt uses a renewed token.
+ * <p>
+ * Requests also pass through a {@link CircuitBreaker}. Once RPD has stopped responding the
+ * remaining applications are deferred without being sent, as is an application whose request
+ * could not be sent at all. When every application has been tried or deferred, the deferred ones
+ * are tried again once the breaker lets a trial request through, up to the number of probes
+ * configured. Applications still deferred after that are left for a resumed run and reported in
+ * a single notification.
+ * <p>
+ * New passwords are generated as {@link Secret}s, and any RPD does not accept are wiped straight
+ * away.
+ * <p>
+ * While an application is being rotated its name and the number of the request being sent are
+ * held in the {@link LogFields#APP} and {@link LogFields#ATTEMPT} thread context entries. The
+ * thread context is not inherited, so the {@link LogFields#TARGET} entry of the thread calling
+ * {@link #rotate(Map)} is copied to the worker for each application.
+ */
+public class RotationEngine {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	private static final int MAX_ATTEMPTS = 2;
+	private static final int MAX_THROTTLED = 5;
+	private static final long BACKOFF_MILLIS = 500;
+	private static final long MAX_BACKOFF_MILLIS = 30000;
+
+	private final NetworkConfig config;
+	private final SessionManager session;
+	private final PasswordJournal journal;
+	private final PasswordPublisher publisher;
+	private final RotationCheckpoint checkpoint;
+	private final UpdateBatcher updater;
+	private final CircuitBreaker breaker;
+	private final Set<String> deferred = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param config network configuration for the RPD server
+	 * @param session logged in session used for every update request
+	 * @param journal records each password before it is sent and once RPD accepts it
+	 * @param publisher writes accepted passwords to the credential store
+	 * @param checkpoint records the progress of each application
+	 */
+	public RotationEngine(NetworkConfig config, SessionManager session, PasswordJournal journal,
+			PasswordPublisher publisher, RotationCheckpoint checkpoint) {
+		this(config, session, journal, publisher, checkpoint, new UpdateBatcher(config, new RateLimiter(config)));
+	}
+
+	/**
+	 * @param updater sends the update requests, replaced when testing the engine without RPD
+	 */
+	RotationEngine(NetworkConfig config, SessionManager session, PasswordJournal journal,
+			PasswordPublisher publisher, RotationCheckpoint checkpoint, UpdateBatcher updater) {
+		this.config = config;
+		this.session = session;
+		this.journal = journal;
+		this.publisher = publisher;
+		this.checkpoint = checkpoint;
+		this.updater = updater;
+		this.breaker = session.getCircuitBreaker();
+	}
+
+	/**
+	 * Rotate the password of every application supplied.
+	 * @param apps application names mapped to their current password
+	 * @return application names mapped to the new password accepted by RPD, in the order supplied.
+	 *         Applications that could not be updated are not included. The caller should wipe
+	 *         the new passwords once they have been saved.
+	 */
+	public Map<String, Secret> rotate(Map<String, Secret> apps) {
+		Map<String, Secret> updated = new LinkedHashMap<>();
+		if (apps.isEmpty()) {
+			return updated;
+		}
+
+		int workers = updater.isBatching() ? config.getParallelism() * config.getUpdateBatchSize() : config.getParallelism();
+		int threads = Math.min(workers, apps.size());
+		LOG.debug("Rotating {} applications with {} threads", apps.size(), threads);
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+		String target = ThreadContext.get(LogFields.TARGET);
+
+		try {
+			rotateAll(pool, target, apps, updated);
+			int probes = 0;
+			while (!deferred.isEmpty() && probes++ < config.getCircuitBreakerProbes()) {
+				long delay = breaker.getRetryDelayMillis();
+				LOG.info("{} applications deferred, trying RPD again in {} seconds", deferred.size(), (delay + 999) / 1000);
+				TimeUnit.MILLISECONDS.sleep(delay);
+				Map<String, Secret> retry = new LinkedHashMap<>();
+				apps.forEach((appName, appPwd) -> {
+					if (deferred.remove(appName)) {
+						retry.put(appName, appPwd);
+					}
+				});
+				rotateAll(pool, target, retry, updated);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			LOG.error("Interrupted while waiting to retry deferred applications");
+		} finally {
+			pool.shutdownNow();
+		}
+		if (!deferred.isEmpty()) {
+			// One notification for the whole outage rather than one for each application
+			LOG.error("{} applications deferred as RPD was unreachable, run with --resume to rotate them", deferred.size());
+			DevNotifyEmail.send(null, "RPD_UNREACHABLE", deferred.size() + " applications deferred as RPD was unreachable");
+		}
+		if (updated.size() < apps.size()) {
+			// Applications rotated on a retry are returned in the order supplied
+			Map<String, Secret> ordered = new LinkedHashMap<>();
+			for (String appName : apps.keySet()) {
+				if (updated.containsKey(appName)) {
+					ordered.put(appName, updated.get(appName));
+				}
+			}
+			return ordered;
+		}
+		return updated;
+	}
+
+	/**
+	 * Submit every application to the pool and wait for them all to complete.
+	 * @param pool worker threads
+	 * @param target RPD server label of the calling job, null when there is only one job
+	 * @param apps application names mapped to their current password
+	 * @param updated receives the new password of each application RPD accepts
+	 */
+	private void rotateAll(ExecutorService pool, String target, Map<String, Secret> apps, Map<String, Secret> updated) {
+		List<String> names = new ArrayList<>(apps.size());
+		List<Future<Secret>> results = new ArrayList<>(apps.size());
+		for (Map.Entry<String, Secret> app : apps.entrySet()) {
+			names.add(app.getKey());
+			results.add(pool.submit(() -> rotateApp(target, app.getKey(), app.getValue())));
+		}
+		// Collect in submission order so the result matches a sequential run
+		for (int i = 0; i < names.size(); i++) {
+			Secret newPassword = awaitResult(names.get(i), results.get(i));
+			if (newPassword != null) {
+				updated.put(names.get(i), newPassword);
+			}
+		}
+	}
+
+	/**
+	 * Generate a new password for a single application and send it to RPD.
+	 * @param target RPD server label of the calling job, null when there is only one job
+	 * @param appName application to update
+	 * @param appPwd current password for the application
+	 * @return the new password if accepted by RPD, otherwise null. An application deferred as
+	 *         RPD is unreachable is added to the deferred set.
+	 * @throws InterruptedException interrupted while waiting to send a request
+	 */
+	private Secret rotateApp(String target, String appName, Secret appPwd) throws InterruptedException {
+		if (target != null) {
+			ThreadContext.put(LogFields.TARGET, target);
+		}
+		ThreadContext.put(LogFields.APP, appName);
+		try {
+			return sendNewPassword(appName, appPwd);
+		} finally {
+			ThreadContext.remove(LogFields.TARGET);
+			ThreadContext.remove(LogFields.APP);
+			ThreadContext.remove(LogFields.ATTEMPT);
+		}
+	}
+
+	private Secret sendNewPassword(String appName, Secret appPwd) throws InterruptedException {
+		UpdateResult result = null;
+		int retry = 0;
+		int throttled = 0;
+		int renewals = 0;
+		boolean renewed = false;
+		boolean unanswered = false;
+		Secret newPassword = null;
+
+		/* Send new pasword to RPD - update may fail RPD deems the new password
+		 * to be too similar to previous one. As this is unlikely due to the randomization
+		 * algorithms being used to build the new password, we allow RPD to make this check.
+		 * Two attempts are made as RPD will lock the account after the third attempt and
+		 * this would prevent the application from working.
+		 */
+		try {
+			do {
+				// Generate random password, replacing one RPD did not accept
+				if (newPassword != null) {
+					newPassword.clear();
+				}
+				newPassword = RandomPasswordGenerator.generateSecret();
+				String token = session.getToken();
+				if (token == null) {
+					if (session.isUnreachable()) {
+						// Session lost while RPD is unreachable, nothing has been sent
+						newPassword.clear();
+						defer(appName, retry);
+						return null;
+					}
+					// No session, nothing can be sent
+					break;
+				}
+				if (!breaker.allowRequest()) {
+					newPassword.clear();
+					defer(appName, retry);
+					return null;
+				}
+				boolean sent = false;
+				try {
+					try {
+						journal.stage(appName, newPassword);
+					} catch (IOException ex) {
+						// Without the staged record a crash could lose a password RPD has accepted
+						newPassword.clear();
+						throw new UncheckedIOException("New password not staged in journal, not sent to RPD", ex);
+					}
+					ThreadContext.put(LogFields.ATTEMPT, Integer.toString(retry + throttled + renewals + 1));
+					if (retry == 0 && throttled == 0 && renewals == 0) {
+						mark(appName, State.IN_FLIGHT);
+					}
+					result = updater.update(appName, token, appPwd, newPassword);
+					sent = true;
+				} finally {
+					if (!sent) {
+						// Nothing was sent, so a trial request must not leave other workers waiting for its outcome
+						breaker.cancel();
+					}
+				}
+				if (result.isNotSent()) {
+					// RPD never saw the request, so the password is unchanged and can be sent in a later trial
+					breaker.onNoResponse();
+					newPassword.clear();
+					defer(appName, retry);
+					return null;
+				}
+				if (result.getStatus() == 0) {
+					// RPD may have applied the change, so appPwd may no longer be current and must not be sent again
+					breaker.onNoResponse();
+					unanswered = true;
+					retry++;
+					LOG.debug("Transmitted to RPD {}, Attempt {}, no response", appName, retry);
+					break;
+				}
+				breaker.onResponse();
+				if (result.isTokenRejected(config.getTokenRejectedCode()) && !renewed) {
+					renewed = true;
+					renewals++;
+					if (session.renew(token) == null) {
+						break;
+					}
+					continue;
+				}
+				if (result.isThrottled()) {
+					if (++throttled > MAX_THROTTLED) {
+						break;
+					}
+					LOG.warn("RPD busy updating {}, retrying {} of {}", appName, throttled, MAX_THROTTLED);
+					backOff(throttled);
+					continue;
+				}
+				retry++;
+				renewed = false;
+				LOG.debug("Transmitted to RPD {}, Attempt {}, Result {}", appName, retry, result);
+				if (result.getStatus() == 401 && retry < MAX_ATTEMPTS) {
+					// The token may have expired, so the next attempt has a new one and no other renewal
+					renewed = true;
+					renewals++;
+					if (session.renew(token) == null) {
+						break;
+					}
+				}
+			} while (!result.isSuccess() && retry < MAX_ATTEMPTS);
+		} catch (InterruptedException ex) {
+			if (newPassword != null) {
+				newPassword.clear();
+			}
+			throw ex;
+		}
+
+		boolean success = result != null && result.isSuccess();
+		RunMetrics.recordApp(appName, retry, success ? "rotated" : "failed");
+		if (success) {
+			LOG.info("Password updated for {}", appName);
+			session.passwordChanged(appName, newPassword);
+			try {
+				journal.commit(appName);
+			} catch (IOException ex) {
+				// Password is still published to the credential store
+				LOG.error("Unable to commit new password for {} in journal", appName, ex);
+				DevNotifyEmail.send(appName, "JOURNAL", "New password not committed in journal");
+			}
+			publisher.publish(appName, appPwd, newPassword);
+			mark(appName, State.ROTATED);
+			return newPassword;
+		}
+		// Without a response RPD may have applied the change, leave the application in flight
+		if (!unanswered) {
+			abort(appName);
+			mark(appName, State.FAILED);
+		}
+		newPassword.clear();
+		LOG.error("Unable to set password for {}", appName);
+		DevNotifyEmail.send(appName, result == null ? "NO_SESSION" : result.getErrorCode(), "Unable to set password");
+		return null;
+	}
+
+	/**
+	 * Leave an application for a later trial or a resumed run, its password is unchanged.
+	 * @param appName application not sent to RPD
+	 * @param attempts update requests already sent for the application
+	 */
+	private void defer(String appName, int attempts) {
+		LOG.debug("Deferring {}, RPD is unreachable", appName);
+		deferred.add(appName);
+		RunMetrics.recordApp(appName, attempts, "deferred");
+		abort(appName);
+		mark(appName, State.DEFERRED);
+	}
+
+	/**
+	 * Drop the passwords staged for an application RPD has not taken. Only affects what the
+	 * journal keeps, so a failure is reported but does not stop the rotation.
+	 */
+	private void abort(String appName) {
+		try {
+			journal.abort(appName);
+		} catch (IOException ex) {
+			LOG.warn("Unable to record aborted update of {} in journal", appName, ex);
+		}
+	}
+
+	/**
+	 * Record the state of an application. The checkpoint only affects which applications a
+	 * resumed run skips, so a failure to write it is reported but does not stop the rotation.
+	 */
+	private void mark(String appName, State state) {
+		try {
+			checkpoint.mark(appName, state);
+		} catch (IOException ex) {
+			LOG.warn("Unable to record {} for {} in checkpoint", state, appName, ex);
+		}
+	}
+
+	/**
+	 * Exponential delay with jitter so throttled workers do not return to RPD together.
+	 * @param throttled number of times the request has been throttled
+	 */
+	private static void backOff(int throttled) throws InterruptedException {
+		long delay = Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << (throttled - 1));
+		TimeUnit.MILLISECONDS.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+	}
+
+	private Secret awaitResult(String appName, Future<Secret> result) {
+		try {
+			return result.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			LOG.error("Interrupted while waiting for password update of {}", appName);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof InterruptedException) {
+				LOG.error("Password update of {} interrupted", appName);
+				return null;
+			}
+			LOG.error("Password update failed for {}", appName, ex.getCause());
+			DevNotifyEmail.send(appName, "ERROR", "Password update failed: " + ex.getCause());
+		}
+		return null;
+	}
+
+	/**
+	 * Names worker threads so that log entries can be traced back to the rotation pool.
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "rotation-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
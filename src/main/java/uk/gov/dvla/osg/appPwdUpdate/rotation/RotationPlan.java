@@ -0,0 +1,83 @@
+package uk.gov.dvla.osg.appPwdUpdate.rotation;
+
+import java.util.concurrent.TimeUnit;
+
+import uk.gov.dvla.osg.appPwdUpdate.networking.NetworkConfig;
+
+/**
+ * Estimate of how long a rotation will take, made without sending any passwords to RPD.
+ * The time of an update request is taken to be that of a measured logout, which like the
+ * updates reuses the connection opened by the login, and requests are assumed to run at the
+ * configured parallelism unless the rate limit is lower. When a batch update service is
+ * configured the applications are assumed to be sent in full batches, each one request. RPD
+ * rejections and retries are not included.
+ */
+public class RotationPlan {
+
+	private final int apps;
+	private final int batchSize;
+	private final int requests;
+	private final int concurrency;
+	private final double maxRate;
+	private final long loginNanos, logoutNanos, generateNanos;
+
+	/**
+	 * @param config parallelism, rate limits and batch size for the RPD server
+	 * @param apps number of applications to be rotated
+	 * @param loginNanos measured time of a login request
+	 * @param logoutNanos measured time of a logout request
+	 * @param generateNanos time taken to generate a password for every application
+	 */
+	public RotationPlan(NetworkConfig config, int apps, long loginNanos, long logoutNanos, long generateNanos) {
+		this.apps = apps;
+		this.batchSize = config.getBatchUpdateUrl() != null ? Math.max(1, config.getUpdateBatchSize()) : 1;
+		this.requests = (apps + batchSize - 1) / batchSize;
+		this.concurrency = Math.max(1, Math.min(Math.min(config.getParallelism(), config.getMaxConcurrentRequests()), requests));
+		this.maxRate = config.getMaxRequestsPerSecond();
+		this.loginNanos = loginNanos;
+		this.logoutNanos = logoutNanos;
+		this.generateNanos = generateNanos;
+	}
+
+	/**
+	 * @return estimated time of an update request
+	 */
+	public long getRequestNanos() {
+		return logoutNanos;
+	}
+
+	/**
+	 * @return number of update requests, one per batch when updates are batched
+	 */
+	public int getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return estimated time for the whole run, including login and logout
+	 */
+	public long getEstimatedNanos() {
+		long updates = (long) Math.ceil((double) requests / concurrency) * getRequestNanos();
+		if (maxRate > 0) {
+			// A batch takes a single permit from the rate limiter
+			updates = Math.max(updates, (long) (requests / maxRate * TimeUnit.SECONDS.toNanos(1)));
+		}
+		return loginNanos + updates + generateNanos + logoutNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d applications%s, %d concurrent requests%s, %d ms per request, estimated %s",
+				apps, batchSize > 1 ? String.format(" in %d batches of up to %d", requests, batchSize) : "", concurrency, maxRate > 0 ? String.format(" at up to %.1f per second", maxRate) : "",
+				TimeUnit.NANOSECONDS.toMillis(getRequestNanos()), format(getEstimatedNanos()));
+	}
+
+	/**
+	 * @param nanos duration
+	 * @return duration as hours, minutes and seconds
+	 */
+	public static String format(long nanos) {
+		long seconds = TimeUnit.NANOSECONDS.toSeconds(nanos + TimeUnit.MILLISECONDS.toNanos(500));
+		return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+}
@@ -0,0 +1,135 @@
+package uk.gov.dvla.osg.appPwdUpdate.rotation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationHistory;
+
+/**
+ * Chooses which applications a run rotates and in what order. Read from the rotationPolicy
+ * object of the network config file, every setting is optional and the default policy
+ * rotates every application in file order.
+ * <ul>
+ * <li>maxAgeDays - only rotate applications last rotated at least this many days ago</li>
+ * <li>include - regular expressions, only matching applications are rotated</li>
+ * <li>exclude - regular expressions, matching applications are never rotated</li>
+ * <li>priority - regular expressions, matching applications go first in the order listed</li>
+ * <li>maxAppsPerRun - rotate at most this many applications, so that a run has a predictable length</li>
+ * </ul>
+ * Within the same priority the applications rotated longest ago go first, followed by file order.
+ */
+public class RotationPolicy {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	private int maxAgeDays, maxAppsPerRun;
+	private List<String> include, exclude, priority;
+
+	private transient List<Pattern> includePatterns, excludePatterns, priorityPatterns;
+
+	/**
+	 * Select the applications due for rotation.
+	 * @param appNames all applications in the credential store, in store order
+	 * @param history time each application was last rotated
+	 * @param nowMillis current time in milliseconds since the epoch
+	 * @return names of the applications to rotate, in the order to rotate them
+	 */
+	public List<String> select(List<String> appNames, RotationHistory history, long nowMillis) {
+		compile();
+		long maxAgeMillis = TimeUnit.DAYS.toMillis(maxAgeDays);
+		List<Candidate> candidates = new ArrayList<>(appNames.size());
+		for (String appName : appNames) {
+			if (!includePatterns.isEmpty() && !matchesAny(includePatterns, appName)) {
+				continue;
+			}
+			if (matchesAny(excludePatterns, appName)) {
+				continue;
+			}
+			long lastRotated = history.getLastRotated(appName);
+			if (maxAgeDays > 0 && lastRotated >= 0 && nowMillis - lastRotated < maxAgeMillis) {
+				continue;
+			}
+			candidates.add(new Candidate(appName, rank(appName), lastRotated));
+		}
+		// Stable sort keeps file order for applications of equal priority and age
+		candidates.sort(Comparator.comparingInt((Candidate c) -> c.rank).thenComparingLong(c -> c.lastRotated));
+
+		int limit = maxAppsPerRun > 0 ? Math.min(maxAppsPerRun, candidates.size()) : candidates.size();
+		List<String> selected = new ArrayList<>(limit);
+		for (int i = 0; i < limit; i++) {
+			selected.add(candidates.get(i).appName);
+		}
+		if (selected.size() < appNames.size()) {
+			LOG.info("Selected {} of {} applications for rotation", selected.size(), appNames.size());
+		}
+		return selected;
+	}
+
+	/**
+	 * Order applications by priority alone, used when resuming a run whose selection has already been made.
+	 * @param appNames applications to order
+	 * @return the applications, highest priority first and otherwise in the order supplied
+	 */
+	public List<String> order(List<String> appNames) {
+		compile();
+		List<String> ordered = new ArrayList<>(appNames);
+		ordered.sort(Comparator.comparingInt(this::rank));
+		return ordered;
+	}
+
+	private int rank(String appName) {
+		for (int i = 0; i < priorityPatterns.size(); i++) {
+			if (priorityPatterns.get(i).matcher(appName).matches()) {
+				return i;
+			}
+		}
+		return priorityPatterns.size();
+	}
+
+	private synchronized void compile() {
+		if (includePatterns == null) {
+			includePatterns = compile(include);
+			excludePatterns = compile(exclude);
+			priorityPatterns = compile(priority);
+		}
+	}
+
+	private static List<Pattern> compile(List<String> expressions) {
+		if (expressions == null) {
+			return Collections.emptyList();
+		}
+		List<Pattern> patterns = new ArrayList<>(expressions.size());
+		for (String expression : expressions) {
+			patterns.add(Pattern.compile(expression));
+		}
+		return patterns;
+	}
+
+	private static boolean matchesAny(List<Pattern> patterns, String appName) {
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher(appName).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static class Candidate {
+		final String appName;
+		final int rank;
+		final long lastRotated;
+
+		Candidate(String appName, int rank, long lastRotated) {
+			this.appName = appName;
+			this.rank = rank;
+			this.lastRotated = lastRotated;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package uk.gov.dvla.osg.appPwdUpdate.utils;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * Schedule in the five field crontab format: minute, hour, day of month, month and day of week.
+ * Each field is *, a number or a range such as 1-5, optionally followed by a step such as
+ * *&#47;15, or a comma separated list of these. Months and days of the week may also be given
+ * by their first three letters, and Sunday is either 0 or 7. As in cron, when both the day of
+ * month and day of week are restricted a day matching either is included.
+ */
+public class CronSchedule {
+
+	private static final String[] MONTHS = { "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC" };
+	private static final String[] DAYS = { "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT" };
+
+	/** Furthest ahead to look for a matching time, so that a schedule such as 30 February fails rather than loops */
+	private static final int MAX_YEARS = 5;
+
+	private final String expression;
+	private final BitSet minutes, hours, daysOfMonth, months, daysOfWeek;
+	private final boolean anyDayOfMonth, anyDayOfWeek;
+
+	private CronSchedule(String expression, String[] fields) {
+		this.expression = expression;
+		this.minutes = parseField(fields[0], 0, 59, null, 0);
+		this.hours = parseField(fields[1], 0, 23, null, 0);
+		this.daysOfMonth = parseField(fields[2], 1, 31, null, 0);
+		this.months = parseField(fields[3], 1, 12, MONTHS, 1);
+		this.daysOfWeek = parseField(fields[4], 0, 7, DAYS, 0);
+		if (daysOfWeek.get(7)) {
+			daysOfWeek.set(0);
+		}
+		this.anyDayOfMonth = fields[2].startsWith("*");
+		this.anyDayOfWeek = fields[4].startsWith("*");
+	}
+
+	/**
+	 * @param expression five field crontab schedule, e.g. "0 2 * * MON-FRI"
+	 * @return the schedule
+	 * @throws IllegalArgumentException expression is not a valid schedule or never matches
+	 */
+	public static CronSchedule parse(String expression) {
+		String[] fields = expression.trim().split("\\s+");
+		if (fields.length != 5) {
+			throw new IllegalArgumentException("Schedule '" + expression + "' must have five fields: minute hour day month weekday");
+		}
+		CronSchedule schedule = new CronSchedule(expression, fields);
+		schedule.next(ZonedDateTime.now());
+		return schedule;
+	}
+
+	/**
+	 * @param after time to search from
+	 * @return first time matching the schedule that is later than the time given, in the same time zone
+	 * @throws IllegalArgumentException no time matches the schedule
+	 */
+	public ZonedDateTime next(ZonedDateTime after) {
+		LocalDateTime limit = after.toLocalDateTime().plusYears(MAX_YEARS);
+		LocalDateTime time = after.toLocalDateTime().truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+		while (time.isBefore(limit)) {
+			if (!months.get(time.getMonthValue())) {
+				time = time.toLocalDate().withDayOfMonth(1).plusMonths(1).atStartOfDay();
+			} else if (!dayMatches(time.toLocalDate())) {
+				time = time.toLocalDate().plusDays(1).atStartOfDay();
+			} else if (!hours.get(time.getHour())) {
+				time = time.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+			} else if (!minutes.get(time.getMinute())) {
+				time = time.plusMinutes(1);
+			} else {
+				// A time skipped by a clock change runs once the clocks have gone forward
+				ZonedDateTime next = time.atZone(after.getZone());
+				if (next.isAfter(after)) {
+					return next;
+				}
+				time = time.plusMinutes(1);
+			}
+		}
+		throw new IllegalArgumentException("Schedule '" + expression + "' never matches");
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	private boolean dayMatches(LocalDate date) {
+		boolean dayOfMonth = daysOfMonth.get(date.getDayOfMonth());
+		// DayOfWeek numbers Monday to Sunday as 1 to 7, cron Sunday to Saturday as 0 to 6
+		boolean dayOfWeek = daysOfWeek.get(date.getDayOfWeek().getValue() % 7);
+		if (anyDayOfMonth || anyDayOfWeek) {
+			return dayOfMonth && dayOfWeek;
+		}
+		return dayOfMonth || dayOfWeek;
+	}
+
+	private BitSet parseField(String field, int min, int max, String[] names, int firstName) {
+		BitSet values = new BitSet(max + 1);
+		for (String part : field.split(",")) {
+			int step = 1;
+			int slash = part.indexOf('/');
+			if (slash >= 0) {
+				step = parseValue(part.substring(slash + 1), null, 0);
+				part = part.substring(0, slash);
+			}
+			int low, high;
+			int dash = part.indexOf('-');
+			if ("*".equals(part)) {
+				low = min;
+				high = max;
+			} else if (dash > 0) {
+				low = parseValue(part.substring(0, dash), names, firstName);
+				high = parseValue(part.substring(dash + 1), names, firstName);
+			} else {
+				low = parseValue(part, names, firstName);
+				// A single value with a step, e.g. 5/15, runs from that value to the end of the range
+				high = slash >= 0 ? max : low;
+			}
+			if (low < min || high > max || low > high || step < 1) {
+				throw new IllegalArgumentException("Invalid field '" + field + "' in schedule '" + expression + "'");
+			}
+			for (int i = low; i <= high; i += step) {
+				values.set(i);
+			}
+		}
+		return values;
+	}
+
+	private int parseValue(String value, String[] names, int firstName) {
+		if (names != null) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equalsIgnoreCase(value)) {
+					return i + firstName;
+				}
+			}
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid value '" + value + "' in schedule '" + expression + "'");
+		}
+	}
+}
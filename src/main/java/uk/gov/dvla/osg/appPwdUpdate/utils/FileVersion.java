@@ -0,0 +1,37 @@
+package uk.gov.dvla.osg.appPwdUpdate.utils;
+
+import java.io.File;
+
+/**
+ * Identifies the version of a file on disk by path, modification time and size, so that a
+ * file is only read again once it has changed.
+ */
+public class FileVersion {
+
+	private final String path;
+	private final long modified;
+	private final long length;
+
+	/**
+	 * @param file file as it is on disk now
+	 */
+	public FileVersion(File file) {
+		this.path = file.getAbsolutePath();
+		this.modified = file.lastModified();
+		this.length = file.length();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof FileVersion)) {
+			return false;
+		}
+		FileVersion other = (FileVersion) obj;
+		return path.equals(other.path) && modified == other.modified && length == other.length;
+	}
+
+	@Override
+	public int hashCode() {
+		return path.hashCode() * 31 + Long.hashCode(modified);
+	}
+}
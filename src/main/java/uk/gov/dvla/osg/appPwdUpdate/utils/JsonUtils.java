@@ -1,35 +1,227 @@
 package uk.gov.dvla.osg.appPwdUpdate.utils;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import uk.gov.dvla.osg.appPwdUpdate.networking.BatchUpdateResponseModel;
+import uk.gov.dvla.osg.appPwdUpdate.networking.LoginBadResponseModel;
 
 /**
- * Utility methods to extract information from the JSON data responses that are
- * returned from the RPD REST api.
+ * Utility methods to build the JSON requests sent to, and extract information from the JSON
+ * data responses that are returned from the RPD REST api. Requests and responses are streamed
+ * rather than built as strings or parsed into trees, and the Gson type adapters are created once.
+ * Requests are encoded straight from the password characters so that no password is copied into a String.
  */
 public class JsonUtils {
-	
+
 	static final Logger LOG = LogManager.getLogger();
-	
+
+	private static final Gson GSON = new Gson();
+	private static final TypeAdapter<LoginBadResponseModel> ERROR_ADAPTER = GSON.getAdapter(LoginBadResponseModel.class);
+	private static final TypeAdapter<BatchUpdateResponseModel> BATCH_ADAPTER = GSON.getAdapter(BatchUpdateResponseModel.class);
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final String NAME = "\"name\":\"";
+	private static final String PASSWORD = "\"User.password\":\"";
+	private static final String PASSWORD_NEW = "\",\"User.passwordNew\":\"";
+	private static final String PASSWORD_CONFIRM = "\",\"User.passwordConfirm\":\"";
+	private static final String BATCH_START = "{\"updates\":[";
+	private static final String BATCH_END = "]}";
+
 	/**
 	 * Extracts the user token from message body of a successful RPD login request
 	 * @param jsonString RPD login request message body
 	 * @return session token, or blank string if token not available
 	 */
 	public static String getTokenFromJson(String jsonString) {
-		try {
-			return new JsonParser().parse(jsonString).getAsJsonObject().get("token").getAsString();
-		} catch (JsonSyntaxException e) {
+		return readToken(new StringReader(jsonString));
+	}
+
+	/**
+	 * Reads the user token from the message body of a successful RPD login request
+	 * without building the whole document.
+	 * @param in RPD login request message body
+	 * @return session token, or blank string if token not available
+	 */
+	public static String readToken(Reader in) {
+		try (JsonReader reader = new JsonReader(in)) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if ("token".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+					return reader.nextString();
+				}
+				reader.skipValue();
+			}
+			LOG.error("Unable to extract token from JSON.");
+		} catch (IOException | IllegalStateException e) {
 			LOG.error("String is not valid JSON.", e);
-		} catch (Exception e) {
-			LOG.error("Unable to extract token from JSON.", e);
 		}
 		return "";
 	}
-	
+
+	/**
+	 * Reads the error information RPD returns with an unsuccessful request.
+	 * @param in RPD response message body
+	 * @return error model, or null if the body does not contain RPD error information
+	 */
+	public static LoginBadResponseModel readErrors(Reader in) {
+		try (JsonReader reader = new JsonReader(in)) {
+			LoginBadResponseModel model = ERROR_ADAPTER.read(reader);
+			return model != null && model.hasErrors() ? model : null;
+		} catch (IOException | JsonParseException | IllegalStateException e) {
+			LOG.trace("Response does not contain RPD error information", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the result of each update from the response to a batch password update.
+	 * @param in RPD response message body
+	 * @return results, or null if the body does not contain them
+	 */
+	public static BatchUpdateResponseModel readBatchResults(Reader in) {
+		try (JsonReader reader = new JsonReader(in)) {
+			BatchUpdateResponseModel model = BATCH_ADAPTER.read(reader);
+			return model != null && model.getResults() != null ? model : null;
+		} catch (IOException | JsonParseException | IllegalStateException e) {
+			LOG.error("Batch update response is not valid JSON.", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Encodes the message body for an RPD password update request as UTF-8. Passwords are
+	 * escaped as required by JSON, but not HTML escaped as RPD expects characters such as =
+	 * as they are. The working buffers are wiped before returning, the caller should wipe the
+	 * body once it has been sent.
+	 * @param oldPassword current password for the application
+	 * @param newPassword password to replace it with
+	 * @return JSON message body
+	 */
+	public static byte[] encodeUpdateBody(Secret oldPassword, Secret newPassword) {
+		char[] text = new char[maxUpdateLength(null, oldPassword, newPassword)];
+		int length = appendUpdate(text, 0, null, oldPassword, newPassword);
+		return encode(text, length);
+	}
+
+	/**
+	 * Encodes the message body for an RPD batch password update request as UTF-8, an array of
+	 * updates each in the same form as a single update with the application name added. The
+	 * format is assumed rather than taken from the RPD documentation, only the RPD simulator
+	 * implements it. The working buffers are wiped before returning, the caller should wipe the
+	 * body once it has been sent.
+	 * @param appNames applications to update
+	 * @param oldPasswords current password for each application
+	 * @param newPasswords password to replace each with
+	 * @return JSON message body
+	 */
+	public static byte[] encodeBatchUpdateBody(List<String> appNames, List<Secret> oldPasswords, List<Secret> newPasswords) {
+		int size = BATCH_START.length() + BATCH_END.length();
+		for (int i = 0; i < appNames.size(); i++) {
+			size += maxUpdateLength(appNames.get(i), oldPasswords.get(i), newPasswords.get(i)) + 1;
+		}
+		char[] text = new char[size];
+		int length = append(text, 0, BATCH_START);
+		for (int i = 0; i < appNames.size(); i++) {
+			if (i > 0) {
+				text[length++] = ',';
+			}
+			length = appendUpdate(text, length, appNames.get(i), oldPasswords.get(i), newPasswords.get(i));
+		}
+		length = append(text, length, BATCH_END);
+		return encode(text, length);
+	}
+
+	private static int maxUpdateLength(String appName, Secret oldPassword, Secret newPassword) {
+		// Worst case every character needs a six character escape
+		int length = PASSWORD.length() + PASSWORD_NEW.length() + PASSWORD_CONFIRM.length() + 3
+				+ 6 * (oldPassword.length() + 2 * newPassword.length());
+		if (appName != null) {
+			length += NAME.length() + 2 + 6 * appName.length();
+		}
+		return length;
+	}
+
+	private static int appendUpdate(char[] dest, int offset, String appName, Secret oldPassword, Secret newPassword) {
+		dest[offset++] = '{';
+		if (appName != null) {
+			offset = append(dest, offset, NAME);
+			offset = appendEscaped(dest, offset, appName);
+			dest[offset++] = '"';
+			dest[offset++] = ',';
+		}
+		offset = append(dest, offset, PASSWORD);
+		offset = appendEscaped(dest, offset, oldPassword.chars());
+		offset = append(dest, offset, PASSWORD_NEW);
+		offset = appendEscaped(dest, offset, newPassword.chars());
+		offset = append(dest, offset, PASSWORD_CONFIRM);
+		offset = appendEscaped(dest, offset, newPassword.chars());
+		dest[offset++] = '"';
+		dest[offset++] = '}';
+		return offset;
+	}
+
+	/**
+	 * Encode the text as UTF-8, wiping the text and the working buffer.
+	 */
+	private static byte[] encode(char[] text, int length) {
+		// No more than three bytes for each UTF-16 char
+		byte[] encoded = new byte[length * 3];
+		ByteBuffer out = ByteBuffer.wrap(encoded);
+		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		encoder.encode(CharBuffer.wrap(text, 0, length), out, true);
+		encoder.flush(out);
+		byte[] body = Arrays.copyOf(encoded, out.position());
+		Arrays.fill(text, '\0');
+		Arrays.fill(encoded, (byte) 0);
+		return body;
+	}
+
+	private static int append(char[] dest, int offset, String text) {
+		text.getChars(0, text.length(), dest, offset);
+		return offset + text.length();
+	}
+
+	private static int appendEscaped(char[] dest, int offset, CharSequence value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				dest[offset++] = '\\';
+				dest[offset++] = c;
+			} else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+				// Control characters, and the separators JavaScript treats as line ends
+				dest[offset++] = '\\';
+				dest[offset++] = 'u';
+				dest[offset++] = HEX[(c >> 12) & 0xF];
+				dest[offset++] = HEX[(c >> 8) & 0xF];
+				dest[offset++] = HEX[(c >> 4) & 0xF];
+				dest[offset++] = HEX[c & 0xF];
+			} else {
+				dest[offset++] = c;
+			}
+		}
+		return offset;
+	}
+
 	// Suppress default constructor for noninstantiability
 	private JsonUtils() {
 		throw new AssertionError();
@@ -0,0 +1,25 @@
+package uk.gov.dvla.osg.appPwdUpdate.utils;
+
+/**
+ * Keys of the Log4j ThreadContext entries that describe what a thread is working on. Each is
+ * written as a separate field of the JSON log events, so that the events for one application
+ * or RPD server can be found without parsing the message.
+ */
+public class LogFields {
+
+	/** Passwords file of the RPD server, only set when more than one server is rotated */
+	public static final String TARGET = "target";
+	/** Application being rotated */
+	public static final String APP = "app";
+	/** Number of the request being sent for the application, starting at 1 */
+	public static final String ATTEMPT = "attempt";
+	/** HTTP status of the last response from RPD */
+	public static final String STATUS = "status";
+	/** Time taken by the last request to RPD, in milliseconds */
+	public static final String LATENCY = "latencyMs";
+
+	// Suppress default constructor for noninstantiability
+	private LogFields() {
+		throw new AssertionError();
+	}
+}
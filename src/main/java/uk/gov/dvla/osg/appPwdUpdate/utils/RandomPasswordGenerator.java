@@ -1,56 +1,135 @@
 package uk.gov.dvla.osg.appPwdUpdate.utils;
 
-import java.util.Random;
+import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
+ * Generates random passwords that meet the RPD complexity rules: 8 to 15 characters with one
+ * capital letter, one digit and one special character, the remainder lower case letters.
+ * <p>
+ * Each thread has its own platform default SecureRandom so concurrent rotations do not contend
+ * on a shared lock. Random bytes are drawn in blocks rather than per character and zeroed once
+ * used, so a heap dump cannot rebuild the passwords from them. Required characters are written
+ * first and then spread through the password with a Fisher-Yates shuffle.
  * @author http://theopentutorials.com/tutorials/java/util/generating-a-random-password-with-restriction-in-java/
  *
  */
 public class RandomPasswordGenerator {
-    private static final String ALPHA_CAPS  = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
-    private static final String ALPHA   = "abcdefghijklmnopqrstuvwxyz";
-    private static final String NUM     = "0123456789";
-    private static final String SPL_CHARS   = "!@";
- 
+    private static final char[] ALPHA_CAPS  = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final char[] ALPHA   = "abcdefghijklmnopqrstuvwxyz".toCharArray();
+    private static final char[] NUM     = "0123456789".toCharArray();
+    private static final char[] SPL_CHARS   = "!@".toCharArray();
+
     private static final int NO_OF_CAPS_ALPHA = 1;
     private static final int NO_OF_DGITS = 1;
     private static final int NO_OF_SPECIAL_CHARS = 1;
     private static final int MIN_LENGTH = 8;
-    private static final int MAX_LENGTH = 15;
-	
+    public static final int MAX_LENGTH = 15;
+
+    private static final ThreadLocal<RandomBlock> RANDOM = ThreadLocal.withInitial(RandomBlock::new);
+
+    /**
+     * @return a new random password
+     */
     public static String generatePswd() {
-        Random rnd = new Random();
+        char[] pswd = new char[MAX_LENGTH];
+        int len = generatePswd(pswd, 0);
+        return new String(pswd, 0, len);
+    }
+
+    /**
+     * @return a new random password held as characters that can be wiped
+     */
+    public static Secret generateSecret() {
+        char[] pswd = new char[MAX_LENGTH];
+        int len = generatePswd(pswd, 0);
+        Secret secret = Secret.wrap(Arrays.copyOf(pswd, len));
+        Arrays.fill(pswd, '\0');
+        return secret;
+    }
+
+    /**
+     * Write a new random password into an existing buffer.
+     * @param dest buffer with at least {@link #MAX_LENGTH} characters free from the offset
+     * @param offset position in the buffer to write the password
+     * @return length of the password written
+     */
+    public static int generatePswd(char[] dest, int offset) {
+        RandomBlock rnd = RANDOM.get();
         int len = rnd.nextInt(MAX_LENGTH - MIN_LENGTH + 1) + MIN_LENGTH;
-        char[] pswd = new char[len];
-        int index = 0;
+        int end = offset + len;
+        int index = offset;
         for (int i = 0; i < NO_OF_CAPS_ALPHA; i++) {
-            index = getNextIndex(rnd, len, pswd);
-            pswd[index] = ALPHA_CAPS.charAt(rnd.nextInt(ALPHA_CAPS.length()));
+            dest[index++] = ALPHA_CAPS[rnd.nextInt(ALPHA_CAPS.length)];
         }
         for (int i = 0; i < NO_OF_DGITS; i++) {
-            index = getNextIndex(rnd, len, pswd);
-            pswd[index] = NUM.charAt(rnd.nextInt(NUM.length()));
+            dest[index++] = NUM[rnd.nextInt(NUM.length)];
         }
         for (int i = 0; i < NO_OF_SPECIAL_CHARS; i++) {
-            index = getNextIndex(rnd, len, pswd);
-            pswd[index] = SPL_CHARS.charAt(rnd.nextInt(SPL_CHARS.length()));
+            dest[index++] = SPL_CHARS[rnd.nextInt(SPL_CHARS.length)];
         }
-        for(int i = 0; i < len; i++) {
-            if(pswd[i] == 0) {
-                pswd[i] = ALPHA.charAt(rnd.nextInt(ALPHA.length()));
-            }
+        while (index < end) {
+            dest[index++] = ALPHA[rnd.nextInt(ALPHA.length)];
         }
-        return new String(pswd);
+        // Fisher-Yates shuffle places the required characters at random positions
+        for (int i = len - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            char tmp = dest[offset + i];
+            dest[offset + i] = dest[offset + j];
+            dest[offset + j] = tmp;
+        }
+        return len;
     }
-     
-    private static int getNextIndex(Random rnd, int len, char[] pswd) {
-        int index = rnd.nextInt(len);
-        while(pswd[index = rnd.nextInt(len)] != 0);
-        return index;
+
+    /**
+     * Write several passwords back to back into a reusable buffer.
+     * @param dest destination, must hold at least count * {@link #MAX_LENGTH} characters
+     * @param count number of passwords to generate
+     * @param offsets receives the end offset (exclusive) of each password, password i starts at offsets[i - 1] or 0
+     * @return total number of characters written
+     */
+    public static int generatePswds(char[] dest, int count, int[] offsets) {
+        if (dest.length < count * MAX_LENGTH || offsets.length < count) {
+            throw new IllegalArgumentException("Buffers too small for " + count + " passwords");
+        }
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            offset += generatePswd(dest, offset);
+            offsets[i] = offset;
+        }
+        return offset;
     }
-    
+
+    /**
+     * Per-thread block of random bytes refilled from a SecureRandom when exhausted.
+     */
+    private static class RandomBlock {
+        private static final int BLOCK_SIZE = 512;
+
+        private final SecureRandom random = new SecureRandom();
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int position = BLOCK_SIZE;
+
+        /**
+         * @param bound upper bound (exclusive), must be positive
+         * @return uniformly distributed value from 0 to bound - 1, bias is below bound / 2^32
+         */
+        int nextInt(int bound) {
+            if (position == BLOCK_SIZE) {
+                random.nextBytes(block);
+                position = 0;
+            }
+            long value = ((block[position] & 0xFFL) << 24) | ((block[position + 1] & 0xFFL) << 16)
+                    | ((block[position + 2] & 0xFFL) << 8) | (block[position + 3] & 0xFFL);
+            Arrays.fill(block, position, position + 4, (byte) 0);
+            position += 4;
+            // Multiply and shift maps 32 random bits onto the range without a rejection loop
+            return (int) ((value * bound) >>> 32);
+        }
+    }
+
 	// Suppress default constructor for noninstantiability
 	private RandomPasswordGenerator() {
 		throw new AssertionError();
 	}
-}
\ No newline at end of file
+}
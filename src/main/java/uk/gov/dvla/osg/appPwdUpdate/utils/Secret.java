@@ -0,0 +1,111 @@
+package uk.gov.dvla.osg.appPwdUpdate.utils;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Password held in a char array that is wiped as soon as it is no longer needed, rather than
+ * in a String that stays on the heap until it happens to be garbage collected. The text is
+ * only reachable through {@link #chars()} and {@link #reveal()}; {@link #toString()} is
+ * redacted so that a secret passed to a logger by mistake never reaches the log file.
+ */
+public final class Secret implements AutoCloseable {
+
+	private static final String REDACTED = "******";
+
+	private final char[] value;
+	private volatile boolean cleared;
+
+	private Secret(char[] value) {
+		this.value = value;
+	}
+
+	/**
+	 * @param value password characters, owned by the secret from now on and wiped when it is cleared
+	 * @return secret holding the characters
+	 */
+	public static Secret wrap(char[] value) {
+		return new Secret(value);
+	}
+
+	/**
+	 * @param password password read as a String, e.g. from the passwords file. Only the copy
+	 *        held by the secret can be wiped, not the String itself.
+	 * @return secret holding a copy of the password
+	 */
+	public static Secret of(String password) {
+		return new Secret(password.toCharArray());
+	}
+
+	/**
+	 * @return independent copy that can be cleared separately
+	 */
+	public Secret copy() {
+		checkNotCleared();
+		return new Secret(value.clone());
+	}
+
+	/**
+	 * @return number of characters in the password
+	 */
+	public int length() {
+		checkNotCleared();
+		return value.length;
+	}
+
+	/**
+	 * @return read only view of the password characters, valid until the secret is cleared
+	 */
+	public CharBuffer chars() {
+		checkNotCleared();
+		return CharBuffer.wrap(value).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Copy the password into a String. Only for destinations that cannot take characters, as
+	 * the String cannot be wiped.
+	 * @return the password
+	 */
+	public String reveal() {
+		checkNotCleared();
+		return new String(value);
+	}
+
+	/**
+	 * Compare the password with other text, taking the same time wherever they differ.
+	 * @param text password to compare with, e.g. {@link #chars()} of another secret
+	 * @return true if the characters are the same
+	 */
+	public boolean contentEquals(CharSequence text) {
+		checkNotCleared();
+		int difference = value.length ^ text.length();
+		for (int i = 0; i < value.length; i++) {
+			difference |= value[i] ^ (i < text.length() ? text.charAt(i) : 0);
+		}
+		return difference == 0;
+	}
+
+	/**
+	 * Overwrite the password. The secret cannot be used afterwards.
+	 */
+	public void clear() {
+		Arrays.fill(value, '\0');
+		cleared = true;
+	}
+
+	@Override
+	public void close() {
+		clear();
+	}
+
+	@Override
+	public String toString() {
+		return REDACTED;
+	}
+
+	private void checkNotCleared() {
+		if (cleared) {
+			throw new IllegalStateException("Secret has been cleared");
+		}
+	}
+}
@@ -0,0 +1,660 @@
+package uk.gov.dvla.osg.appPwdUpdate.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.gov.dvla.osg.appPwdUpdate.networking.LoginError;
+import uk.gov.dvla.osg.appPwdUpdate.networking.NetworkConfig;
+
+/**
+ * Embeddable stand-in for the RPD login, password update and logout services. Responses use
+ * the same JSON shapes as RPD so the application can be load tested offline. Latency, server
+ * errors, overload and "password too similar" rejections can be injected, and accounts are locked after
+ * the configured number of failed password changes as RPD does. The batch update service can be
+ * turned on to exercise batched updates, otherwise it answers 404 as an RPD without it would.
+ * <p>
+ * The simulator is not part of the application jar, it is compiled with the test classes by the
+ * benchmark profile and run from the test class path:
+ * <p>
+ * mvn -Pbenchmark test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=uk.gov.dvla.osg.appPwdUpdate.simulator.RpdSimulator -Dexec.args={port}
+ */
+public class RpdSimulator implements Closeable {
+
+	static final Logger LOG = LogManager.getLogger();
+
+	static final String LOGIN_PATH = "/rpd/login";
+	static final String LOGOUT_PATH = "/rpd/logout";
+	static final String UPDATE_PATH = "/rpd/update/";
+	static final String BATCH_UPDATE_PATH = "/rpd/update-batch";
+	/** Error code returned with 401 for an expired or unknown session token */
+	static final String TOKEN_REJECTED_CODE = "RPD-TOKEN";
+
+	private final Builder settings;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+	private final Map<String, String> sessions = new ConcurrentHashMap<>();
+	private final Map<String, Long> sessionStart = new ConcurrentHashMap<>();
+	private final Gson gson = new Gson();
+
+	private final AtomicLong loginRequests = new AtomicLong();
+	private final AtomicLong updateRequests = new AtomicLong();
+	private final AtomicLong batchUpdateRequests = new AtomicLong();
+	private final AtomicLong logoutRequests = new AtomicLong();
+	private final AtomicLong rejectedUpdates = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicLong throttledUpdates = new AtomicLong();
+	private final AtomicInteger activeUpdates = new AtomicInteger();
+
+	private RpdSimulator(Builder settings) throws IOException {
+		this.settings = settings;
+		settings.accounts.forEach((name, pwd) -> accounts.put(name, new Account(pwd)));
+		server = HttpServer.create(new InetSocketAddress(settings.host, settings.port), 0);
+		server.createContext(LOGIN_PATH, this::handleLogin);
+		server.createContext(LOGOUT_PATH, this::handleLogout);
+		server.createContext(UPDATE_PATH, this::handleUpdate);
+		server.createContext(BATCH_UPDATE_PATH, this::handleBatchUpdate);
+		executor = Executors.newFixedThreadPool(settings.threads);
+		server.setExecutor(executor);
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Run the simulator standalone, logging the network configuration to point the application at.
+	 * @param args optional port number, defaults to 8080
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		RpdSimulator simulator = builder().port(port).start();
+		LOG.info("RPD simulator listening on port {}, network configuration {}", simulator.getPort(), new Gson().toJson(simulator.networkConfig()));
+	}
+
+	/**
+	 * @return port the simulator is listening on, useful when started on an ephemeral port
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return network configuration pointing at this simulator, including the batch update
+	 *         service when it is turned on
+	 */
+	public NetworkConfig networkConfig() {
+		NetworkConfig config = new NetworkConfig("http://", settings.host, String.valueOf(getPort()), LOGIN_PATH, LOGOUT_PATH, UPDATE_PATH);
+		config.setTokenRejectedCode(TOKEN_REJECTED_CODE);
+		if (settings.batchUpdates) {
+			config.setBatchUpdateUrl(BATCH_UPDATE_PATH);
+		}
+		return config;
+	}
+
+	/**
+	 * @param appName application name
+	 * @return the password the simulator currently holds for the application, or null if unknown
+	 */
+	public String getPassword(String appName) {
+		Account account = accounts.get(appName);
+		return account == null ? null : account.password;
+	}
+
+	/**
+	 * @param appName application name
+	 * @return true if the account has been locked by repeated failures
+	 */
+	public boolean isLocked(String appName) {
+		Account account = accounts.get(appName);
+		return account != null && account.locked;
+	}
+
+	public long getLoginRequests() {
+		return loginRequests.get();
+	}
+
+	public long getUpdateRequests() {
+		return updateRequests.get();
+	}
+
+	/**
+	 * @return batch update requests received, each counted once however many updates it carried
+	 */
+	public long getBatchUpdateRequests() {
+		return batchUpdateRequests.get();
+	}
+
+	public long getLogoutRequests() {
+		return logoutRequests.get();
+	}
+
+	public long getRejectedUpdates() {
+		return rejectedUpdates.get();
+	}
+
+	public long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	public long getThrottledUpdates() {
+		return throttledUpdates.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handleLogin(HttpExchange exchange) throws IOException {
+		loginRequests.incrementAndGet();
+		drain(exchange);
+		delay();
+		if (!"GET".equals(exchange.getRequestMethod())) {
+			sendError(exchange, 405, "method", "RPD-405", "Method not allowed");
+			return;
+		}
+		String name = null, pwd = null;
+		for (NameValuePair param : URLEncodedUtils.parse(exchange.getRequestURI(), StandardCharsets.UTF_8)) {
+			if ("name".equals(param.getName())) {
+				name = param.getValue();
+			} else if ("pwd".equals(param.getName())) {
+				pwd = param.getValue();
+			}
+		}
+		if (injectError(exchange)) {
+			return;
+		}
+		Account account = account(name, pwd);
+		if (account == null) {
+			sendError(exchange, 401, "authentication", "RPD-401", "Unknown user");
+			return;
+		}
+		synchronized (account) {
+			if (account.locked) {
+				sendError(exchange, 401, "authentication", "RPD-LOCKED", "Account locked");
+				return;
+			}
+			if (!account.password.equals(pwd)) {
+				account.fail(settings.lockoutThreshold);
+				sendError(exchange, 401, "authentication", "RPD-401", "Invalid credentials");
+				return;
+			}
+			account.failures = 0;
+		}
+		String token = UUID.randomUUID().toString();
+		sessions.put(token, name);
+		sessionStart.put(token, System.nanoTime());
+		JsonObject body = new JsonObject();
+		body.addProperty("token", token);
+		send(exchange, 200, body.toString());
+	}
+
+	private void handleUpdate(HttpExchange exchange) throws IOException {
+		updateRequests.incrementAndGet();
+		try {
+			if (activeUpdates.incrementAndGet() > settings.maxConcurrentUpdates && settings.maxConcurrentUpdates > 0) {
+				throttledUpdates.incrementAndGet();
+				drain(exchange);
+				sendError(exchange, 429, "server", "RPD-BUSY", "Too many requests");
+				return;
+			}
+			updatePassword(exchange);
+		} finally {
+			activeUpdates.decrementAndGet();
+		}
+	}
+
+	private void updatePassword(HttpExchange exchange) throws IOException {
+		String json = readBody(exchange);
+		delay();
+		if (!"PATCH".equals(exchange.getRequestMethod())) {
+			sendError(exchange, 405, "method", "RPD-405", "Method not allowed");
+			return;
+		}
+		if (!validToken(exchange)) {
+			sendError(exchange, 401, "authentication", TOKEN_REJECTED_CODE, "Session token invalid or expired");
+			return;
+		}
+		if (injectError(exchange)) {
+			return;
+		}
+		JsonObject body;
+		try {
+			body = new JsonParser().parse(json).getAsJsonObject();
+		} catch (RuntimeException ex) {
+			sendError(exchange, 400, "request", "RPD-400", "Malformed JSON");
+			return;
+		}
+		String current = stringField(body, "User.password");
+		String newPwd = stringField(body, "User.passwordNew");
+		String confirm = stringField(body, "User.passwordConfirm");
+
+		String appName = exchange.getRequestURI().getPath().substring(UPDATE_PATH.length());
+		Rejection rejection = changePassword(appName, current, newPwd, confirm);
+		if (rejection != null) {
+			sendError(exchange, rejection.status, rejection.name, rejection.code, rejection.message);
+			return;
+		}
+		send(exchange, 200, "{}");
+	}
+
+	private void handleBatchUpdate(HttpExchange exchange) throws IOException {
+		batchUpdateRequests.incrementAndGet();
+		if (!settings.batchUpdates) {
+			drain(exchange);
+			sendError(exchange, 404, "request", "RPD-404", "Not found");
+			return;
+		}
+		try {
+			// The batch is processed as one update, and turned away as a whole when busy
+			if (activeUpdates.incrementAndGet() > settings.maxConcurrentUpdates && settings.maxConcurrentUpdates > 0) {
+				throttledUpdates.incrementAndGet();
+				drain(exchange);
+				sendError(exchange, 429, "server", "RPD-BUSY", "Too many requests");
+				return;
+			}
+			updatePasswords(exchange);
+		} finally {
+			activeUpdates.decrementAndGet();
+		}
+	}
+
+	private void updatePasswords(HttpExchange exchange) throws IOException {
+		String json = readBody(exchange);
+		delay();
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			sendError(exchange, 405, "method", "RPD-405", "Method not allowed");
+			return;
+		}
+		if (!validToken(exchange)) {
+			sendError(exchange, 401, "authentication", TOKEN_REJECTED_CODE, "Session token invalid or expired");
+			return;
+		}
+		if (injectError(exchange)) {
+			return;
+		}
+		JsonArray updates;
+		try {
+			updates = new JsonParser().parse(json).getAsJsonObject().getAsJsonArray("updates");
+		} catch (RuntimeException ex) {
+			updates = null;
+		}
+		if (updates == null) {
+			sendError(exchange, 400, "request", "RPD-400", "Malformed JSON");
+			return;
+		}
+		JsonArray results = new JsonArray();
+		for (JsonElement element : updates) {
+			JsonObject update = element.getAsJsonObject();
+			String appName = stringField(update, "name");
+			Rejection rejection = changePassword(appName, stringField(update, "User.password"),
+					stringField(update, "User.passwordNew"), stringField(update, "User.passwordConfirm"));
+			JsonObject result = rejection == null ? new JsonObject() : errorBody(rejection.name, rejection.code, rejection.message);
+			result.addProperty("name", appName);
+			result.addProperty("status", rejection == null ? 200 : rejection.status);
+			results.add(result);
+		}
+		JsonObject body = new JsonObject();
+		body.add("results", results);
+		send(exchange, 200, body.toString());
+	}
+
+	/**
+	 * Apply one password change as RPD does, failures count towards the account lockout.
+	 * @return null if the password was changed, otherwise why it was rejected
+	 */
+	private Rejection changePassword(String appName, String current, String newPwd, String confirm) {
+		Account account = account(appName, current);
+		if (account == null) {
+			return new Rejection(404, "user", "RPD-404", "Unknown user " + appName);
+		}
+
+		synchronized (account) {
+			if (account.locked) {
+				rejectedUpdates.incrementAndGet();
+				return new Rejection(403, "user", "RPD-LOCKED", "Account locked");
+			}
+			String code = null, message = null;
+			if (!account.password.equals(current)) {
+				code = "RPD-PWD-INVALID";
+				message = "Current password incorrect";
+			} else if (newPwd == null || !newPwd.equals(confirm)) {
+				code = "RPD-PWD-CONFIRM";
+				message = "New password and confirmation do not match";
+			} else if (ThreadLocalRandom.current().nextDouble() < settings.similarRejectionRate) {
+				code = "RPD-PWD-SIMILAR";
+				message = "Password too similar to previous password";
+			}
+			if (code != null) {
+				rejectedUpdates.incrementAndGet();
+				account.fail(settings.lockoutThreshold);
+				return new Rejection(400, "password", code, message);
+			}
+			account.password = newPwd;
+			account.failures = 0;
+		}
+		return null;
+	}
+
+	private void handleLogout(HttpExchange exchange) throws IOException {
+		logoutRequests.incrementAndGet();
+		drain(exchange);
+		delay();
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			sendError(exchange, 405, "method", "RPD-405", "Method not allowed");
+			return;
+		}
+		String token = exchange.getRequestHeaders().getFirst("token");
+		if (token == null || sessions.remove(token) == null) {
+			sendError(exchange, 401, "authentication", TOKEN_REJECTED_CODE, "Session token invalid or expired");
+			return;
+		}
+		sessionStart.remove(token);
+		send(exchange, 200, "{}");
+	}
+
+	/**
+	 * Find the account for a request, registering unknown applications with the
+	 * supplied password when enabled.
+	 */
+	private Account account(String name, String pwd) {
+		if (name == null || pwd == null) {
+			return null;
+		}
+		if (settings.acceptUnknownAccounts) {
+			return accounts.computeIfAbsent(name, key -> new Account(pwd));
+		}
+		return accounts.get(name);
+	}
+
+	private boolean validToken(HttpExchange exchange) {
+		String token = exchange.getRequestHeaders().getFirst("token");
+		if (token == null || !sessions.containsKey(token)) {
+			return false;
+		}
+		if (settings.tokenLifetime > 0
+				&& System.nanoTime() - sessionStart.get(token) > TimeUnit.MILLISECONDS.toNanos(settings.tokenLifetime)) {
+			sessions.remove(token);
+			sessionStart.remove(token);
+			return false;
+		}
+		return true;
+	}
+
+	private boolean injectError(HttpExchange exchange) throws IOException {
+		if (ThreadLocalRandom.current().nextDouble() < settings.errorRate) {
+			injectedErrors.incrementAndGet();
+			sendError(exchange, 500, "server", "RPD-500", "Internal server error");
+			return true;
+		}
+		return false;
+	}
+
+	private void delay() {
+		long min = settings.minLatency, max = settings.maxLatency;
+		if (max <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(min >= max ? max : ThreadLocalRandom.current().nextLong(min, max + 1));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void sendError(HttpExchange exchange, int status, String name, String code, String message) throws IOException {
+		send(exchange, status, errorBody(name, code, message).toString());
+	}
+
+	private JsonObject errorBody(String name, String code, String message) {
+		LoginError error = new LoginError();
+		error.setName(name);
+		error.setCode(code);
+		error.setTime(LocalDateTime.now().toString());
+		error.setSeverity("ERROR");
+		error.setMessage(message);
+		error.setAction("Contact the RPD administrator");
+		JsonObject body = new JsonObject();
+		body.add("attributeErrors", new JsonObject());
+		body.add("generalErrors", gson.toJsonTree(Collections.singletonList(error)));
+		return body;
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+			char[] buffer = new char[256];
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				sb.append(buffer, 0, read);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void drain(HttpExchange exchange) throws IOException {
+		try (InputStream in = exchange.getRequestBody()) {
+			byte[] buffer = new byte[256];
+			while (in.read(buffer) != -1) {
+				// discard, allows the connection to be kept alive
+			}
+		}
+	}
+
+	private static String stringField(JsonObject body, String name) {
+		JsonElement element = body.get(name);
+		return element == null || element.isJsonNull() ? null : element.getAsString();
+	}
+
+	/**
+	 * Simulated RPD account. Guarded by its own monitor.
+	 */
+	private static class Account {
+		String password;
+		int failures;
+		boolean locked;
+
+		Account(String password) {
+			this.password = password;
+		}
+
+		void fail(int lockoutThreshold) {
+			if (++failures >= lockoutThreshold) {
+				locked = true;
+			}
+		}
+	}
+
+	/**
+	 * Password change turned down by the simulated RPD.
+	 */
+	private static class Rejection {
+		final int status;
+		final String name;
+		final String code;
+		final String message;
+
+		Rejection(int status, String name, String code, String message) {
+			this.status = status;
+			this.name = name;
+			this.code = code;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Settings for a simulator instance. All fault injection is off by default.
+	 */
+	public static class Builder {
+		private String host = "127.0.0.1";
+		private int port = 0;
+		private int threads = 16;
+		private long minLatency, maxLatency;
+		private double errorRate, similarRejectionRate;
+		private int lockoutThreshold = 3;
+		private int maxConcurrentUpdates;
+		private long tokenLifetime;
+		private boolean acceptUnknownAccounts = true;
+		private boolean batchUpdates;
+		private final Map<String, String> accounts = new ConcurrentHashMap<>();
+
+		private Builder() {
+		}
+
+		/**
+		 * @param host address to bind to, defaults to the loopback address
+		 */
+		public Builder host(String host) {
+			this.host = host;
+			return this;
+		}
+
+		/**
+		 * @param port port to listen on, zero picks a free port
+		 */
+		public Builder port(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * @param threads number of request handling threads
+		 */
+		public Builder threads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * Delay each response by a random time within the range.
+		 * @param minMillis shortest delay in milliseconds
+		 * @param maxMillis longest delay in milliseconds
+		 */
+		public Builder latency(long minMillis, long maxMillis) {
+			this.minLatency = minMillis;
+			this.maxLatency = maxMillis;
+			return this;
+		}
+
+		/**
+		 * @param errorRate fraction of requests, 0 to 1, answered with a 500
+		 */
+		public Builder errorRate(double errorRate) {
+			this.errorRate = errorRate;
+			return this;
+		}
+
+		/**
+		 * @param maxConcurrentUpdates updates processed at once before further updates are
+		 *        answered with a 429, zero for no limit
+		 */
+		public Builder maxConcurrentUpdates(int maxConcurrentUpdates) {
+			this.maxConcurrentUpdates = maxConcurrentUpdates;
+			return this;
+		}
+
+		/**
+		 * @param tokenLifetime milliseconds before a session token expires, zero for no expiry
+		 */
+		public Builder tokenLifetime(long tokenLifetime) {
+			this.tokenLifetime = tokenLifetime;
+			return this;
+		}
+
+		/**
+		 * @param similarRejectionRate fraction of valid updates, 0 to 1, rejected as too similar
+		 */
+		public Builder similarRejectionRate(double similarRejectionRate) {
+			this.similarRejectionRate = similarRejectionRate;
+			return this;
+		}
+
+		/**
+		 * @param lockoutThreshold consecutive failures before an account is locked, RPD uses 3
+		 */
+		public Builder lockoutThreshold(int lockoutThreshold) {
+			this.lockoutThreshold = lockoutThreshold;
+			return this;
+		}
+
+		/**
+		 * @param acceptUnknownAccounts register unknown applications on their first login, on by default
+		 */
+		public Builder acceptUnknownAccounts(boolean acceptUnknownAccounts) {
+			this.acceptUnknownAccounts = acceptUnknownAccounts;
+			return this;
+		}
+
+		/**
+		 * @param batchUpdates provide the batch update service and include it in the network
+		 *        configuration, off by default
+		 */
+		public Builder batchUpdates(boolean batchUpdates) {
+			this.batchUpdates = batchUpdates;
+			return this;
+		}
+
+		/**
+		 * Pre-register an application account.
+		 * @param appName application name
+		 * @param password current password
+		 */
+		public Builder account(String appName, String password) {
+			accounts.put(appName, password);
+			return this;
+		}
+
+		/**
+		 * Start the simulator with the current settings.
+		 * @return running simulator, close it to stop
+		 * @throws IOException port cannot be bound
+		 */
+		public RpdSimulator start() throws IOException {
+			RpdSimulator simulator = new RpdSimulator(this);
+			simulator.server.start();
+			return simulator;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package uk.gov.dvla.osg.appPwdUpdate.simulator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import com.google.gson.Gson;
+
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PropertiesFormat;
+import uk.gov.dvla.osg.appPwdUpdate.utils.RandomPasswordGenerator;
+
+/**
+ * Rotates a few dummy applications against an embedded simulator so that the JVM loads the
+ * same classes as a real rotation, and records them in an AppCDS archive as the startup build
+ * profile does. The rotation runs in a new JVM started with -XX:ArchiveClassesAtExit and the
+ * same -jar command line as a real rotation, so the simulator classes are neither needed in the
+ * jar nor recorded in the archive. The archive is only used with the jar it was made from, at
+ * the same path, so run this again wherever the jar is deployed:
+ * <p>
+ * java -cp target/test-classes:appPwdUpdate.jar uk.gov.dvla.osg.appPwdUpdate.simulator.TrainingRun {java} {jar} {archive}
+ * <p>
+ * then start rotations with java -XX:SharedArchiveFile=appPwdUpdate.jsa -jar appPwdUpdate.jar
+ */
+public class TrainingRun {
+
+	private static final int APPS = 10;
+
+	/**
+	 * @param args java executable of JDK 13 or later, the application jar and the archive to write
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length != 3) {
+			throw new IllegalArgumentException("Usage: TrainingRun {java} {jar} {archive}");
+		}
+		Path dir = Files.createTempDirectory("appPwdUpdate-training");
+		try (RpdSimulator simulator = RpdSimulator.builder().start()) {
+			Path configFile = dir.resolve("config.json");
+			try (Writer out = Files.newBufferedWriter(configFile, StandardCharsets.UTF_8)) {
+				new Gson().toJson(simulator.networkConfig(), out);
+			}
+			Path passwordsFile = dir.resolve("passwords.properties");
+			PasswordStore passwords = new PasswordStore();
+			for (int i = 0; i < APPS; i++) {
+				passwords.put("TRAINING" + i, RandomPasswordGenerator.generatePswd());
+			}
+			try (OutputStream out = Files.newOutputStream(passwordsFile)) {
+				PropertiesFormat.write(out, passwords);
+			}
+			Process process = new ProcessBuilder(args[0],
+					// Classes that cannot be archived are reported as warnings, only show failures
+					"-Xlog:cds=error",
+					"-XX:ArchiveClassesAtExit=" + Paths.get(args[2]).toAbsolutePath(),
+					"-jar", Paths.get(args[1]).toAbsolutePath().toString(),
+					configFile.toString(), passwordsFile.toString())
+					.directory(dir.toFile())
+					.inheritIO()
+					.start();
+			int status = process.waitFor();
+			if (status != 0) {
+				throw new IllegalStateException("Training rotation exited with status " + status);
+			}
+		} finally {
+			try (Stream<Path> files = Files.walk(dir)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+		}
+	}
+
+	// Suppress default constructor for noninstantiability
+	private TrainingRun() {
+		throw new AssertionError();
+	}
+}
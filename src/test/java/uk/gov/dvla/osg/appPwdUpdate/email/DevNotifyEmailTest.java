@@ -0,0 +1,111 @@
+package uk.gov.dvla.osg.appPwdUpdate.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DevNotifyEmailTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File emailFile, contactsFile;
+
+	@Before
+	public void setUp() {
+		emailFile = new File(folder.getRoot(), "email.xml");
+		contactsFile = new File(folder.getRoot(), "contacts.xml");
+		DevNotifyEmail.setConfigFiles(emailFile.getPath(), contactsFile.getPath());
+	}
+
+	@After
+	public void tearDown() {
+		// Left pointing at files that no longer exist, so nothing can be emailed
+		DevNotifyEmail.setConfigFiles(emailFile.getPath(), contactsFile.getPath());
+	}
+
+	@Test
+	public void configCachedUntilFileChanges() throws IOException, JAXBException {
+		writeConfig("smtp1", "5");
+		Credentials first = DevNotifyEmail.loadCredentials();
+		assertEquals("smtp1", first.getHost());
+		assertSame(first, DevNotifyEmail.loadCredentials());
+		assertEquals(TimeUnit.SECONDS.toMillis(5), DevNotifyEmail.getDigestWindow());
+
+		writeConfig("smtp2", "120");
+		Credentials second = DevNotifyEmail.loadCredentials();
+		assertNotSame(first, second);
+		assertEquals("smtp2", second.getHost());
+		assertEquals(TimeUnit.SECONDS.toMillis(120), DevNotifyEmail.getDigestWindow());
+	}
+
+	@Test
+	public void windowReadFromCachedConfig() throws IOException, JAXBException {
+		writeConfig("smtp1", "5");
+		assertEquals(TimeUnit.SECONDS.toMillis(5), DevNotifyEmail.getDigestWindow());
+		Credentials loaded = DevNotifyEmail.loadCredentials();
+
+		// Only reloaded when a digest is sent, not for each window
+		writeConfig("smtp2", "120");
+		assertEquals(TimeUnit.SECONDS.toMillis(5), DevNotifyEmail.getDigestWindow());
+		assertNotSame(loaded, DevNotifyEmail.loadCredentials());
+		assertEquals(TimeUnit.SECONDS.toMillis(120), DevNotifyEmail.getDigestWindow());
+	}
+
+	@Test
+	public void defaultWindow() throws IOException {
+		writeConfig("smtp1", null);
+		assertEquals(TimeUnit.SECONDS.toMillis(60), DevNotifyEmail.getDigestWindow());
+
+		DevNotifyEmail.setConfigFiles(emailFile.getPath(), contactsFile.getPath());
+		writeConfig("smtp1", "soon");
+		assertEquals(TimeUnit.SECONDS.toMillis(60), DevNotifyEmail.getDigestWindow());
+	}
+
+	@Test
+	public void missingConfigFile() {
+		assertEquals(TimeUnit.SECONDS.toMillis(60), DevNotifyEmail.getDigestWindow());
+		try {
+			DevNotifyEmail.loadCredentials();
+			fail("Missing config file loaded");
+		} catch (JAXBException | RuntimeException ex) {
+		}
+		// Reported in the log rather than thrown
+		DevNotifyEmail.sendDigest(Collections.singletonList(new ErrorNotification(null, "APP1", null, "Failed")), 0);
+	}
+
+	@Test
+	public void configCreatedAfterMissing() throws IOException {
+		assertEquals(TimeUnit.SECONDS.toMillis(60), DevNotifyEmail.getDigestWindow());
+		writeConfig("smtp1", "5");
+		assertEquals(TimeUnit.SECONDS.toMillis(5), DevNotifyEmail.getDigestWindow());
+	}
+
+	private void writeConfig(String host, String digestWindow) throws IOException {
+		long previous = emailFile.lastModified();
+		String xml = "<credentials><host>" + host + "</host><port>25</port><from>appPwdUpdate@example.com</from>"
+				+ (digestWindow == null ? "" : "<digestWindow>" + digestWindow + "</digestWindow>")
+				+ "</credentials>";
+		Files.write(emailFile.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+		// Modification times can be too coarse to tell quick rewrites apart
+		if (previous != 0) {
+			emailFile.setLastModified(previous + 2000);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package uk.gov.dvla.osg.appPwdUpdate.email;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class NotificationQueueTest {
+
+	private final BlockingQueue<List<String>> digests = new LinkedBlockingQueue<>();
+	private NotificationQueue queue;
+
+	@After
+	public void tearDown() {
+		if (queue != null) {
+			queue.shutdown();
+		}
+	}
+
+	@Test
+	public void errorsInOneWindowSentAsOneDigest() throws InterruptedException {
+		queue = new NotificationQueue(this::record, () -> 300);
+		offer("one", "two", "three");
+
+		assertEquals(list("one", "two", "three"), next());
+		assertNull(digests.poll(500, TimeUnit.MILLISECONDS));
+
+		offer("four");
+		assertEquals(list("four"), next());
+	}
+
+	@Test
+	public void senderFailureDoesNotStopLaterDigests() throws InterruptedException {
+		AtomicInteger calls = new AtomicInteger();
+		queue = new NotificationQueue((errors, dropped) -> {
+			if (calls.incrementAndGet() == 1) {
+				throw new IllegalStateException("SMTP down");
+			}
+			record(errors, dropped);
+		}, () -> 50);
+		offer("lost");
+		waitFor(calls, 1);
+
+		offer("sent");
+		assertEquals(list("sent"), next());
+	}
+
+	@Test
+	public void windowFailureDoesNotStopLaterDigests() throws InterruptedException {
+		AtomicInteger calls = new AtomicInteger();
+		queue = new NotificationQueue(this::record, () -> {
+			if (calls.incrementAndGet() == 1) {
+				// As JAXB does for a missing config file
+				throw new IllegalArgumentException("email.xml");
+			}
+			return 50;
+		});
+		// Sent straight away rather than lost
+		offer("first");
+		assertEquals(list("first"), next());
+
+		offer("second");
+		assertEquals(list("second"), next());
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void shutdownSendsQueuedErrors() throws InterruptedException {
+		queue = new NotificationQueue(this::record, () -> TimeUnit.HOURS.toMillis(1));
+		offer("one", "two");
+		queue.shutdown();
+
+		assertEquals(list("one", "two"), digests.poll());
+		// Nothing queued after shutdown
+		offer("three");
+		assertNull(digests.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void shutdownWithoutErrors() {
+		queue = new NotificationQueue(this::record, () -> 50);
+		queue.shutdown();
+		assertNull(digests.poll());
+	}
+
+	private void record(List<ErrorNotification> errors, int dropped) {
+		List<String> details = new ArrayList<>();
+		for (ErrorNotification error : errors) {
+			details.add(error.getDetail());
+		}
+		digests.add(details);
+	}
+
+	private void offer(String... details) {
+		for (String detail : details) {
+			queue.offer(new ErrorNotification(null, null, null, detail));
+		}
+	}
+
+	private List<String> next() throws InterruptedException {
+		List<String> digest = digests.poll(5, TimeUnit.SECONDS);
+		assertNotNull("No digest sent", digest);
+		return digest;
+	}
+
+	private static List<String> list(String... details) {
+		List<String> list = new ArrayList<>();
+		for (String detail : details) {
+			list.add(detail);
+		}
+		return list;
+	}
+
+	private static void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (counter.get() < value && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(value, counter.get());
+	}
+}
@@ -0,0 +1,95 @@
+package uk.gov.dvla.osg.appPwdUpdate.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.ZonedDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.CronSchedule;
+
+public class DaemonTest {
+
+	private static final CronSchedule EVERY_MINUTE = CronSchedule.parse("* * * * *");
+
+	private final AtomicInteger runs = new AtomicInteger();
+	private Daemon daemon;
+
+	@After
+	public void stopDaemon() {
+		if (daemon != null) {
+			daemon.stop();
+		}
+	}
+
+	@Test
+	public void nextRotationScheduledAfterRun() {
+		daemon = new Daemon(EVERY_MINUTE, () -> runs.incrementAndGet() > 0);
+		assertNull(daemon.getNextRun());
+		ZonedDateTime due = ZonedDateTime.now();
+
+		daemon.rotate(due);
+
+		assertEquals(1, runs.get());
+		assertTrue(daemon.getNextRun().isAfter(due));
+	}
+
+	@Test
+	public void timesMissedWhileStillRunningSkipped() {
+		// The run took long enough that three more were due before it ended
+		daemon = new Daemon(EVERY_MINUTE, () -> runs.incrementAndGet() > 0);
+		ZonedDateTime due = ZonedDateTime.now().minusMinutes(3);
+		ZonedDateTime ended = ZonedDateTime.now();
+
+		daemon.rotate(due);
+
+		// Only the run given is made, and the next is the first due after it ended rather than one it overran
+		assertEquals(1, runs.get());
+		assertTrue(daemon.getNextRun().isAfter(ended));
+		assertFalse(daemon.getNextRun().isAfter(ended.plusMinutes(1)));
+	}
+
+	@Test
+	public void failedRotationStillSchedulesNext() {
+		daemon = new Daemon(EVERY_MINUTE, () -> runs.incrementAndGet() < 0);
+		ZonedDateTime due = ZonedDateTime.now();
+
+		daemon.rotate(due);
+
+		assertEquals(1, runs.get());
+		assertTrue(daemon.getNextRun().isAfter(due));
+	}
+
+	@Test
+	public void throwingRotationStillSchedulesNext() {
+		daemon = new Daemon(EVERY_MINUTE, () -> {
+			runs.incrementAndGet();
+			throw new IllegalStateException("Unexpected");
+		});
+		ZonedDateTime due = ZonedDateTime.now();
+
+		daemon.rotate(due);
+		daemon.rotate(daemon.getNextRun());
+
+		// The daemon keeps running and tries again at the next scheduled time
+		assertEquals(2, runs.get());
+		assertTrue(daemon.getNextRun().isAfter(due));
+	}
+
+	@Test
+	public void nothingScheduledOnceStopped() {
+		daemon = new Daemon(EVERY_MINUTE, () -> runs.incrementAndGet() > 0);
+		daemon.stop();
+
+		// A run ending as the daemon stops does not fail trying to schedule another
+		daemon.rotate(ZonedDateTime.now());
+
+		assertEquals(1, runs.get());
+		assertNull(daemon.getNextRun());
+	}
+}
@@ -0,0 +1,150 @@
+package uk.gov.dvla.osg.appPwdUpdate.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.appPwdUpdate.metrics.RunMetrics;
+import uk.gov.dvla.osg.appPwdUpdate.networking.RpdTransport;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PropertiesCredentialStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint;
+
+public class MainTest {
+
+	private static final List<String> APPS = Arrays.asList("APP1", "APP2", "APP3");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private StubRpd rpd1, rpd2;
+	private Path config1, config2, passwords1, passwords2;
+
+	@Before
+	public void createTargets() throws IOException {
+		rpd1 = new StubRpd();
+		rpd2 = new StubRpd();
+		config1 = rpd1.writeConfig(folder.getRoot().toPath().resolve("rpd1.json"), "");
+		config2 = rpd2.writeConfig(folder.getRoot().toPath().resolve("rpd2.json"), "\"parallelism\":2");
+		passwords1 = passwords(rpd1, "rpd1.properties");
+		passwords2 = passwords(rpd2, "rpd2.properties");
+	}
+
+	@After
+	public void stopServers() {
+		rpd1.stop();
+		rpd2.stop();
+		RpdTransport.close();
+	}
+
+	@Test
+	public void everyTargetRotated() throws IOException {
+		Main.processArgs(args(config1, passwords1, config2, passwords2));
+
+		assertTrue(Main.rotate());
+		assertRotated(rpd1, passwords1);
+		assertRotated(rpd2, passwords2);
+		// Each target has its own session, logged out at the end of its run
+		assertEquals(1, rpd1.getLogouts());
+		assertEquals(1, rpd2.getLogouts());
+	}
+
+	@Test
+	public void unreachableTargetDoesNotStopOthers() throws IOException {
+		rpd2.stop();
+		Main.processArgs(args(config1, passwords1, config2, passwords2));
+
+		assertTrue(Main.rotate());
+		assertRotated(rpd1, passwords1);
+		// Left for a resumed run
+		for (String appName : APPS) {
+			assertEquals("old" + appName, storedPassword(passwords2, appName));
+		}
+		assertTrue(new RotationCheckpoint(passwords2).exists());
+	}
+
+	@Test
+	public void failedTargetFailsRunWithoutStoppingOthers() throws IOException {
+		Files.write(config2, "{ not a config".getBytes(StandardCharsets.UTF_8));
+		Main.processArgs(args(config1, passwords1, config2, passwords2));
+
+		assertFalse(Main.rotate());
+		assertRotated(rpd1, passwords1);
+		assertTrue(rpd2.getLogins().isEmpty());
+	}
+
+	@Test
+	public void sharedReportCoversEveryTarget() throws IOException {
+		Path report = folder.getRoot().toPath().resolve("apppwdupdate.prom");
+		String metricsFile = "\"metricsFile\":\"" + report.toString().replace("\\", "\\\\") + "\"";
+		rpd1.writeConfig(config1, metricsFile);
+		rpd2.writeConfig(config2, metricsFile);
+		RunMetrics.reset();
+		Main.processArgs(args(config1, passwords1, config2, passwords2));
+
+		assertTrue(Main.rotate());
+		List<String> lines = Files.readAllLines(report, StandardCharsets.UTF_8);
+		for (String appName : APPS) {
+			assertTrue(lines.contains("apppwdupdate_app_attempts{target=\"rpd1.properties\",app=\"" + appName + "\",outcome=\"rotated\"} 1"));
+			assertTrue(lines.contains("apppwdupdate_app_attempts{target=\"rpd2.properties\",app=\"" + appName + "\",outcome=\"rotated\"} 1"));
+		}
+	}
+
+	@Test
+	public void everyTargetPlannedWithoutSending() throws IOException {
+		Main.processArgs(args("--plan", config1, passwords1, config2, passwords2));
+
+		assertTrue(Main.planJobs());
+		assertTrue(rpd1.getUpdates().isEmpty());
+		assertTrue(rpd2.getUpdates().isEmpty());
+	}
+
+	@Test
+	public void failedPlanFailsRun() throws IOException {
+		rpd2.account("APP1", "changed").account("APP2", "changed").account("APP3", "changed");
+		Main.processArgs(args("--plan", config1, passwords1, config2, passwords2));
+
+		assertFalse(Main.planJobs());
+	}
+
+	private static String[] args(Object... args) {
+		return Arrays.stream(args).map(Object::toString).toArray(String[]::new);
+	}
+
+	private Path passwords(StubRpd rpd, String fileName) throws IOException {
+		List<String> lines = new ArrayList<>();
+		for (String appName : APPS) {
+			rpd.account(appName, "old" + appName);
+			lines.add(appName + "=old" + appName);
+		}
+		return Files.write(folder.getRoot().toPath().resolve(fileName), lines, StandardCharsets.ISO_8859_1);
+	}
+
+	private static void assertRotated(StubRpd rpd, Path passwordsFile) throws IOException {
+		for (String appName : APPS) {
+			assertNotEquals("old" + appName, storedPassword(passwordsFile, appName));
+			assertEquals(rpd.getPassword(appName), storedPassword(passwordsFile, appName));
+		}
+		assertFalse(new RotationCheckpoint(passwordsFile).exists());
+	}
+
+	private static String storedPassword(Path passwordsFile, String appName) throws IOException {
+		PropertiesCredentialStore store = new PropertiesCredentialStore(passwordsFile);
+		store.load();
+		return store.get(appName).reveal();
+	}
+}
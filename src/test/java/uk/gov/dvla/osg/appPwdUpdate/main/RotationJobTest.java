@@ -0,0 +1,230 @@
+package uk.gov.dvla.osg.appPwdUpdate.main;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.appPwdUpdate.networking.RpdTransport;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PropertiesCredentialStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint.State;
+import uk.gov.dvla.osg.appPwdUpdate.rotation.RotationPlan;
+
+public class RotationJobTest {
+
+	private static final List<String> APPS = Arrays.asList("APP1", "APP2", "APP3");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private StubRpd rpd;
+	private Path configFile;
+	private Path passwordsFile;
+
+	@Before
+	public void createFiles() throws IOException {
+		rpd = new StubRpd();
+		List<String> lines = new ArrayList<>();
+		for (String appName : APPS) {
+			rpd.account(appName, "old" + appName);
+			lines.add(appName + "=old" + appName);
+		}
+		configFile = rpd.writeConfig(folder.getRoot().toPath().resolve("config.json"), "");
+		passwordsFile = Files.write(folder.getRoot().toPath().resolve("passwords.properties"), lines, StandardCharsets.ISO_8859_1);
+	}
+
+	@After
+	public void stopServer() {
+		rpd.stop();
+		RpdTransport.close();
+	}
+
+	@Test
+	public void everyApplicationRotated() throws IOException {
+		assertTrue(job(false).run());
+
+		for (String appName : APPS) {
+			assertEquals(rpd.getPassword(appName), storedPassword(appName));
+			assertNotEquals("old" + appName, storedPassword(appName));
+		}
+		assertFalse(new RotationCheckpoint(passwordsFile).exists());
+	}
+
+	@Test
+	public void unansweredUpdateLeftInFlight() throws IOException {
+		rpd.noResponse("APP2", true);
+		assertTrue(job(false).run());
+
+		// RPD holds a password the store does not
+		assertEquals("oldAPP2", storedPassword("APP2"));
+		assertNotEquals("oldAPP2", rpd.getPassword("APP2"));
+		assertEquals(State.IN_FLIGHT, checkpointState("APP2"));
+	}
+
+	@Test
+	public void resumeCommitsStagedPasswordRpdHolds() throws IOException {
+		rpd.noResponse("APP2", true);
+		assertTrue(job(false).run());
+		int updates = rpd.getUpdates().size();
+
+		assertTrue(job(true).run());
+
+		// The staged password logs in, so it is saved without sending another update
+		assertEquals(updates, rpd.getUpdates().size());
+		assertEquals(rpd.getPassword("APP2"), storedPassword("APP2"));
+		assertFalse(new RotationCheckpoint(passwordsFile).exists());
+	}
+
+	@Test
+	public void resumeRotatesAgainWhenRpdKeptCurrentPassword() throws IOException {
+		rpd.noResponse("APP2", false);
+		assertTrue(job(false).run());
+		assertEquals("oldAPP2", rpd.getPassword("APP2"));
+		int updates = rpd.getUpdates().size();
+
+		assertTrue(job(true).run());
+
+		assertEquals(Collections.singletonList("APP2"), rpd.getUpdates().subList(updates, rpd.getUpdates().size()));
+		assertNotEquals("oldAPP2", storedPassword("APP2"));
+		assertEquals(rpd.getPassword("APP2"), storedPassword("APP2"));
+		assertFalse(new RotationCheckpoint(passwordsFile).exists());
+	}
+
+	@Test
+	public void resumeTriesCurrentPasswordWhenNoneStaged() throws IOException {
+		rpd.noResponse("APP2", false);
+		assertTrue(job(false).run());
+		// Staged record lost, e.g. torn by a crash
+		Files.delete(passwordsFile.resolveSibling(passwordsFile.getFileName() + ".journal"));
+		int updates = rpd.getUpdates().size();
+
+		assertTrue(job(true).run());
+
+		// RPD still holds the current password, so the application is rotated again
+		assertEquals(Collections.singletonList("APP2"), rpd.getUpdates().subList(updates, rpd.getUpdates().size()));
+		assertEquals(rpd.getPassword("APP2"), storedPassword("APP2"));
+		assertFalse(new RotationCheckpoint(passwordsFile).exists());
+	}
+
+	@Test
+	public void resumeSkipsApplicationNeitherPasswordLogsInWith() throws IOException {
+		rpd.noResponse("APP2", true);
+		assertTrue(job(false).run());
+		// Changed on RPD by someone else
+		rpd.account("APP2", "elsewhere");
+		int updates = rpd.getUpdates().size();
+
+		assertTrue(job(true).run());
+
+		assertEquals(updates, rpd.getUpdates().size());
+		assertEquals("oldAPP2", storedPassword("APP2"));
+		assertEquals(State.IN_FLIGHT, checkpointState("APP2"));
+
+		// Once the passwords file holds the password RPD has, the next resumed run rotates it
+		String passwords = new String(Files.readAllBytes(passwordsFile), StandardCharsets.ISO_8859_1);
+		Files.write(passwordsFile, passwords.replace("APP2=oldAPP2", "APP2=elsewhere").getBytes(StandardCharsets.ISO_8859_1));
+		assertTrue(job(true).run());
+
+		assertNotEquals("elsewhere", storedPassword("APP2"));
+		assertEquals(rpd.getPassword("APP2"), storedPassword("APP2"));
+		assertFalse(new RotationCheckpoint(passwordsFile).exists());
+	}
+
+	@Test
+	public void unresolvedApplicationNotUsedToLogIn() throws IOException {
+		// First in the passwords file, so the session would otherwise try it first
+		rpd.noResponse("APP1", true);
+		assertTrue(job(false).run());
+		rpd.account("APP1", "elsewhere");
+
+		assertTrue(job(true).run());
+
+		// Staged and current passwords tried once each, and never a third time
+		assertEquals(2, rpd.getRefusedLogins("APP1"));
+		assertEquals(State.IN_FLIGHT, checkpointState("APP1"));
+		assertEquals(rpd.getPassword("APP2"), storedPassword("APP2"));
+	}
+
+	@Test
+	public void planSendsNothing() throws IOException {
+		byte[] passwords = Files.readAllBytes(passwordsFile);
+		RotationPlan plan = job(false).plan();
+
+		assertNotNull(plan);
+		assertEquals(APPS.size(), plan.getRequests());
+		assertTrue(rpd.getUpdates().isEmpty());
+		// Logged in once to measure RPD, and out again
+		assertEquals(1, rpd.getLogins().size());
+		assertEquals(1, rpd.getLogouts());
+		assertArrayEquals(passwords, Files.readAllBytes(passwordsFile));
+		assertFalse(new RotationCheckpoint(passwordsFile).exists());
+	}
+
+	@Test
+	public void planOfResumedRunLeavesJournalAndCheckpoint() throws IOException {
+		rpd.noResponse("APP2", true);
+		assertTrue(job(false).run());
+		Path journalFile = passwordsFile.resolveSibling(passwordsFile.getFileName() + ".journal");
+		Path checkpointFile = passwordsFile.resolveSibling(passwordsFile.getFileName() + ".checkpoint");
+		byte[] journal = Files.readAllBytes(journalFile);
+		byte[] checkpoint = Files.readAllBytes(checkpointFile);
+		int updates = rpd.getUpdates().size();
+
+		RotationPlan plan = job(true).plan();
+
+		// Only the application left in flight remains to be sent
+		assertEquals(1, plan.getRequests());
+		assertEquals(updates, rpd.getUpdates().size());
+		assertArrayEquals(journal, Files.readAllBytes(journalFile));
+		assertArrayEquals(checkpoint, Files.readAllBytes(checkpointFile));
+	}
+
+	@Test
+	public void planFailsWhenRpdRefusesLogin() throws IOException {
+		for (String appName : APPS) {
+			rpd.account(appName, "changed");
+		}
+
+		assertNull(job(false).plan());
+		assertTrue(rpd.getUpdates().isEmpty());
+	}
+
+	private RotationJob job(boolean resume) {
+		return new RotationJob(configFile.toString(), passwordsFile.toString(), null, resume);
+	}
+
+	private String storedPassword(String appName) throws IOException {
+		PropertiesCredentialStore store = new PropertiesCredentialStore(passwordsFile);
+		store.load();
+		return store.get(appName).reveal();
+	}
+
+	private State checkpointState(String appName) throws IOException {
+		RotationCheckpoint checkpoint = new RotationCheckpoint(passwordsFile);
+		checkpoint.load();
+		try {
+			return checkpoint.getState(appName);
+		} finally {
+			checkpoint.close();
+		}
+	}
+}
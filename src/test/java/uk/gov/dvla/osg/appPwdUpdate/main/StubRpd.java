@@ -0,0 +1,191 @@
+package uk.gov.dvla.osg.appPwdUpdate.main;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal RPD login, update and logout services for testing rotation jobs end to end. Holds a
+ * password for each application and checks the token and current password of each update.
+ * An update can be made to go unanswered, applied or not, as if the connection dropped.
+ */
+public class StubRpd {
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Map<String, String> passwords = new ConcurrentHashMap<>();
+	private final Set<String> tokens = ConcurrentHashMap.newKeySet();
+	private final Map<String, Boolean> unanswered = new ConcurrentHashMap<>();
+	private final List<String> logins = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> refusedLogins = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> updates = Collections.synchronizedList(new ArrayList<>());
+	private final AtomicInteger logouts = new AtomicInteger();
+	private final AtomicInteger tokenCount = new AtomicInteger();
+
+	public StubRpd() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/login", this::handleLogin);
+		server.createContext("/logout/", this::handleLogout);
+		server.createContext("/update/", this::handleUpdate);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public StubRpd account(String appName, String password) {
+		passwords.put(appName, password);
+		return this;
+	}
+
+	/**
+	 * Drop the connection instead of answering the next update for an application.
+	 * @param appName application
+	 * @param apply change the password before dropping the connection
+	 */
+	public StubRpd noResponse(String appName, boolean apply) {
+		unanswered.put(appName, apply);
+		return this;
+	}
+
+	public String getPassword(String appName) {
+		return passwords.get(appName);
+	}
+
+	/**
+	 * @return application of each login request, in the order received
+	 */
+	public List<String> getLogins() {
+		synchronized (logins) {
+			return new ArrayList<>(logins);
+		}
+	}
+
+	/**
+	 * @param appName application
+	 * @return number of logins refused for the application, as counted by RPD towards locking it
+	 */
+	public int getRefusedLogins(String appName) {
+		synchronized (refusedLogins) {
+			return Collections.frequency(refusedLogins, appName);
+		}
+	}
+
+	/**
+	 * @return application of each update request, in the order received
+	 */
+	public List<String> getUpdates() {
+		synchronized (updates) {
+			return new ArrayList<>(updates);
+		}
+	}
+
+	public int getLogouts() {
+		return logouts.get();
+	}
+
+	/**
+	 * Write a network config file pointing at this server.
+	 * @param file config file to write
+	 * @param settings further settings as JSON members, e.g. "parallelism":4, or empty
+	 * @return the file
+	 */
+	public Path writeConfig(Path file, String settings) throws IOException {
+		String json = "{\"protocol\":\"http://\",\"host\":\"localhost\",\"port\":\"" + server.getAddress().getPort()
+				+ "\",\"loginUrl\":\"/login\",\"logoutUrl\":\"/logout\",\"updateUrl\":\"/update/\",\"socketTimeout\":5000"
+				+ (settings.isEmpty() ? "" : "," + settings) + "}";
+		return Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handleLogin(HttpExchange exchange) throws IOException {
+		String appName = null, pwd = null;
+		for (NameValuePair param : URLEncodedUtils.parse(exchange.getRequestURI(), StandardCharsets.UTF_8)) {
+			if ("name".equals(param.getName())) {
+				appName = param.getValue();
+			} else if ("pwd".equals(param.getName())) {
+				pwd = param.getValue();
+			}
+		}
+		logins.add(appName);
+		if (pwd == null || !pwd.equals(passwords.get(appName))) {
+			refusedLogins.add(appName);
+			send(exchange, 401, error("RPD-401"));
+			return;
+		}
+		String token = appName + "-" + tokenCount.incrementAndGet();
+		tokens.add(token);
+		send(exchange, 200, "{\"token\":\"" + token + "\"}");
+	}
+
+	private void handleLogout(HttpExchange exchange) throws IOException {
+		logouts.incrementAndGet();
+		tokens.remove(exchange.getRequestHeaders().getFirst("token"));
+		send(exchange, 200, "{}");
+	}
+
+	private void handleUpdate(HttpExchange exchange) throws IOException {
+		String appName = exchange.getRequestURI().getPath().substring("/update/".length());
+		JsonObject body;
+		try (Reader in = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+			body = new JsonParser().parse(in).getAsJsonObject();
+		}
+		updates.add(appName);
+		if (!tokens.contains(exchange.getRequestHeaders().getFirst("token"))) {
+			send(exchange, 401, error("RPD-TOKEN"));
+			return;
+		}
+		String current = passwords.get(appName);
+		if (current == null || !current.equals(body.get("User.password").getAsString())) {
+			send(exchange, 401, error("RPD-401"));
+			return;
+		}
+		Boolean apply = unanswered.remove(appName);
+		if (apply == null || apply) {
+			passwords.put(appName, body.get("User.passwordNew").getAsString());
+		}
+		if (apply != null) {
+			// Closing without a response drops the connection
+			exchange.close();
+			return;
+		}
+		send(exchange, 200, "{}");
+	}
+
+	private static String error(String code) {
+		return "{\"generalErrors\":[{\"code\":\"" + code + "\",\"message\":\"Rejected\"}]}";
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
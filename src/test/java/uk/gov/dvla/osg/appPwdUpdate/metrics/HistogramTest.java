@@ -0,0 +1,102 @@
+package uk.gov.dvla.osg.appPwdUpdate.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void boundsAreInclusive() {
+		Histogram histogram = new Histogram();
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(5) + 1);
+		histogram.record(TimeUnit.SECONDS.toNanos(60));
+		histogram.record(TimeUnit.SECONDS.toNanos(61));
+
+		long[] cumulative = histogram.getCumulativeCounts();
+		assertEquals(Histogram.BOUNDS.length + 1, cumulative.length);
+		assertEquals(1, cumulative[0]);
+		assertEquals(2, cumulative[1]);
+		assertEquals(3, cumulative[Histogram.BOUNDS.length - 1]);
+		assertEquals(4, cumulative[Histogram.BOUNDS.length]);
+	}
+
+	@Test
+	public void countAndSum() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getSumSeconds(), 0);
+		assertArrayEquals(new long[Histogram.BOUNDS.length + 1], histogram.getCumulativeCounts());
+
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(250));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(1750));
+		assertEquals(2, histogram.getCount());
+		assertEquals(2.0, histogram.getSumSeconds(), 1e-9);
+	}
+
+	@Test
+	public void percentilesFromCumulativeCounts() {
+		Histogram histogram = new Histogram();
+		// 1 to 1000 milliseconds
+		for (int millis = 1; millis <= 1000; millis++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+		assertEquals(0.5, percentileBound(histogram, 0.50), 0);
+		assertEquals(1, percentileBound(histogram, 0.90), 0);
+		assertEquals(1, percentileBound(histogram, 0.99), 0);
+		assertEquals(0.005, percentileBound(histogram, 0.005), 0);
+		assertEquals(0.01, percentileBound(histogram, 0.006), 0);
+		assertEquals(0.25, percentileBound(histogram, 0.25), 0);
+		assertEquals(0.5, percentileBound(histogram, 0.251), 0);
+
+		// Slow tail beyond the largest bound
+		for (int i = 0; i < 1000; i++) {
+			histogram.record(TimeUnit.SECONDS.toNanos(90));
+		}
+		assertEquals(1, percentileBound(histogram, 0.50), 0);
+		assertEquals(Double.POSITIVE_INFINITY, percentileBound(histogram, 0.51), 0);
+	}
+
+	@Test
+	public void concurrentRecords() throws InterruptedException {
+		Histogram histogram = new Histogram();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					histogram.record(TimeUnit.MILLISECONDS.toNanos(i % 100));
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, histogram.getCount());
+		assertEquals(40000, histogram.getCumulativeCounts()[Histogram.BOUNDS.length]);
+		// 0 to 5 milliseconds, six of every hundred
+		assertEquals(2400, histogram.getCumulativeCounts()[0]);
+	}
+
+	/**
+	 * Upper bound of the bucket holding the given quantile, as a Prometheus histogram_quantile
+	 * query would place it.
+	 */
+	private static double percentileBound(Histogram histogram, double quantile) {
+		long[] cumulative = histogram.getCumulativeCounts();
+		double rank = quantile * histogram.getCount();
+		for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+			if (cumulative[i] >= rank) {
+				return Histogram.BOUNDS[i];
+			}
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+}
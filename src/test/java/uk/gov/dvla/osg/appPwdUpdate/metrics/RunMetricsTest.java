@@ -0,0 +1,128 @@
+package uk.gov.dvla.osg.appPwdUpdate.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.logging.log4j.ThreadContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.LogFields;
+
+public class RunMetricsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	@After
+	public void reset() {
+		RunMetrics.reset();
+	}
+
+	@Test
+	public void prometheusReport() throws IOException {
+		record();
+		Path file = folder.getRoot().toPath().resolve("apppwdupdate.prom");
+		RunMetrics.writeReport(file);
+
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertTrue(lines.contains("apppwdupdate_phase_duration_seconds_bucket{phase=\"update\",le=\"+Inf\"} 2"));
+		assertTrue(lines.contains("apppwdupdate_phase_duration_seconds_count{phase=\"update\"} 2"));
+		assertTrue(lines.contains("apppwdupdate_http_responses_total{operation=\"update\",status=\"200\"} 2"));
+		assertTrue(lines.contains("apppwdupdate_http_responses_total{operation=\"update\",status=\"400\"} 1"));
+		assertTrue(lines.contains("apppwdupdate_app_attempts{target=\"\",app=\"APP \\\"1\\\"\",outcome=\"rotated\"} 2"));
+		assertTrue(lines.contains("apppwdupdate_bytes_sent_total 300"));
+		assertTrue(lines.contains("apppwdupdate_bytes_received_total 40"));
+		assertFalse(Files.exists(file.resolveSibling("apppwdupdate.prom.tmp")));
+	}
+
+	@Test
+	public void jsonReport() throws IOException {
+		record();
+		Path file = folder.getRoot().toPath().resolve("apppwdupdate.json");
+		RunMetrics.writeReport(file);
+
+		JsonObject report = new Gson().fromJson(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), JsonObject.class);
+		JsonObject update = report.getAsJsonObject("phases").getAsJsonObject("update");
+		assertEquals(2, update.get("count").getAsLong());
+		JsonArray buckets = update.getAsJsonArray("buckets");
+		assertEquals(Histogram.BOUNDS.length + 1, buckets.size());
+		assertEquals("+Inf", buckets.get(Histogram.BOUNDS.length).getAsJsonObject().get("le").getAsString());
+		assertEquals(2, buckets.get(Histogram.BOUNDS.length).getAsJsonObject().get("count").getAsLong());
+		assertEquals(2, report.getAsJsonObject("httpResponses").getAsJsonObject("update").get("200").getAsLong());
+		JsonObject app = report.getAsJsonArray("apps").get(0).getAsJsonObject();
+		assertEquals("APP \"1\"", app.get("app").getAsString());
+		assertEquals("rotated", app.get("outcome").getAsString());
+		assertFalse(app.has("target"));
+		assertEquals(300, report.get("bytesSent").getAsLong());
+	}
+
+	@Test
+	public void resetClearsMetrics() throws IOException {
+		record();
+		RunMetrics.reset();
+		Path file = folder.getRoot().toPath().resolve("apppwdupdate.json");
+		RunMetrics.writeReport(file);
+
+		JsonObject report = new Gson().fromJson(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), JsonObject.class);
+		assertEquals(0, report.getAsJsonObject("phases").size());
+		assertEquals(0, report.getAsJsonObject("httpResponses").size());
+		assertEquals(0, report.getAsJsonArray("apps").size());
+		assertEquals(0, report.get("bytesSent").getAsLong());
+	}
+
+	@Test
+	public void sameApplicationOnEachTargetReported() throws IOException {
+		for (String target : new String[] { "rpd1.properties", "rpd2.properties" }) {
+			ThreadContext.put(LogFields.TARGET, target);
+			try {
+				RunMetrics.recordApp("APP1", target.startsWith("rpd1") ? 1 : 2, target.startsWith("rpd1") ? "rotated" : "failed");
+			} finally {
+				ThreadContext.remove(LogFields.TARGET);
+			}
+		}
+		Path prometheus = folder.getRoot().toPath().resolve("apppwdupdate.prom");
+		RunMetrics.writeReport(prometheus);
+		Path json = folder.getRoot().toPath().resolve("apppwdupdate.json");
+		RunMetrics.writeReport(json);
+
+		List<String> lines = Files.readAllLines(prometheus, StandardCharsets.UTF_8);
+		assertTrue(lines.contains("apppwdupdate_app_attempts{target=\"rpd1.properties\",app=\"APP1\",outcome=\"rotated\"} 1"));
+		assertTrue(lines.contains("apppwdupdate_app_attempts{target=\"rpd2.properties\",app=\"APP1\",outcome=\"failed\"} 2"));
+		JsonObject report = new Gson().fromJson(new String(Files.readAllBytes(json), StandardCharsets.UTF_8), JsonObject.class);
+		JsonArray apps = report.getAsJsonArray("apps");
+		assertEquals(2, apps.size());
+		assertEquals("rpd1.properties", apps.get(0).getAsJsonObject().get("target").getAsString());
+		assertEquals("rotated", apps.get(0).getAsJsonObject().get("outcome").getAsString());
+		assertEquals("rpd2.properties", apps.get(1).getAsJsonObject().get("target").getAsString());
+		assertEquals("failed", apps.get(1).getAsJsonObject().get("outcome").getAsString());
+	}
+
+	private static void record() {
+		long start = System.nanoTime();
+		RunMetrics.recordPhase(RunMetrics.UPDATE, start);
+		RunMetrics.recordPhase(RunMetrics.UPDATE, start);
+		RunMetrics.recordResponse("update", 200);
+		RunMetrics.recordResponse("update", 200);
+		RunMetrics.recordResponse("update", 400);
+		RunMetrics.recordApp("APP \"1\"", 2, "rotated");
+		RunMetrics.addBytesSent(100);
+		RunMetrics.addBytesSent(200);
+		RunMetrics.addBytesReceived(40);
+	}
+}
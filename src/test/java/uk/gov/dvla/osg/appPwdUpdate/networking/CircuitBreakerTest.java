@@ -0,0 +1,126 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import uk.gov.dvla.osg.appPwdUpdate.networking.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void opensAfterThresholdRequestsWithoutResponse() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(3, TimeUnit.MINUTES.toMillis(1));
+		breaker.onNoResponse();
+		breaker.onNoResponse();
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		assertEquals(0, breaker.getRetryDelayMillis());
+
+		breaker.onNoResponse();
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		assertTrue(breaker.getRetryDelayMillis() > 0);
+	}
+
+	@Test
+	public void responseResetsFailureCount() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(3, TimeUnit.MINUTES.toMillis(1));
+		breaker.onNoResponse();
+		breaker.onNoResponse();
+		breaker.onResponse();
+		breaker.onNoResponse();
+		breaker.onNoResponse();
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void trialResponseCloses() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(1, 50);
+		breaker.onNoResponse();
+		assertFalse(breaker.allowRequest());
+
+		Thread.sleep(100);
+		assertTrue(breaker.allowRequest());
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		breaker.onResponse();
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void trialWithoutResponseOpensAgain() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(5, 50);
+		for (int i = 0; i < 5; i++) {
+			breaker.onNoResponse();
+		}
+		Thread.sleep(100);
+		assertTrue(breaker.allowRequest());
+
+		// A single trial failure is enough, not another threshold
+		breaker.onNoResponse();
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void requestsWaitForTrial() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(1, 0);
+		breaker.onNoResponse();
+		assertTrue(breaker.allowRequest());
+		assertEquals(State.HALF_OPEN, breaker.getState());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> waiting = executor.submit(breaker::allowRequest);
+			Thread.sleep(100);
+			assertFalse(waiting.isDone());
+
+			breaker.onResponse();
+			assertTrue(waiting.get(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void cancelledTrialPassesToNextRequest() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(1, 0);
+		breaker.onNoResponse();
+		assertTrue(breaker.allowRequest());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> waiting = executor.submit(breaker::allowRequest);
+			Thread.sleep(100);
+			assertFalse(waiting.isDone());
+
+			breaker.cancel();
+			assertTrue(waiting.get(5, TimeUnit.SECONDS));
+			assertEquals(State.HALF_OPEN, breaker.getState());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void tryAllowRequestDoesNotWaitForTrial() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(1, 0);
+		breaker.onNoResponse();
+		assertTrue(breaker.tryAllowRequest());
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.tryAllowRequest());
+
+		breaker.onResponse();
+		breaker.awaitTrial();
+		assertTrue(breaker.tryAllowRequest());
+	}
+}
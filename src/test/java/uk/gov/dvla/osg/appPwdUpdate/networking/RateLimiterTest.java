@@ -0,0 +1,85 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.junit.After;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void waitsForPermitOnceLimitReached() throws Exception {
+		RateLimiter limiter = new RateLimiter(0, 2);
+		long first = limiter.acquire();
+		limiter.acquire();
+
+		Future<Long> waiting = executor.submit(limiter::acquire);
+		assertBlocked(waiting);
+		limiter.release(first, HttpStatus.SC_OK);
+		waiting.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void overloadHalvesConcurrencyOnce() throws Exception {
+		RateLimiter limiter = new RateLimiter(0, 4);
+		long[] permits = new long[4];
+		for (int i = 0; i < permits.length; i++) {
+			permits[i] = limiter.acquire();
+		}
+		// Both were in flight when the limit was cut, so only the first halves it, to 2
+		limiter.release(permits[0], HttpStatus.SC_SERVICE_UNAVAILABLE);
+		limiter.release(permits[1], 429);
+
+		Future<Long> waiting = executor.submit(limiter::acquire);
+		assertBlocked(waiting);
+		limiter.release(permits[2], HttpStatus.SC_OK);
+		waiting.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void successesRecoverConcurrency() throws Exception {
+		RateLimiter limiter = new RateLimiter(0, 4);
+		limiter.release(limiter.acquire(), 0);
+		limiter.release(limiter.acquire(), 0);
+		limiter.release(limiter.acquire(), 0);
+		// Limit is now 1, each success adds 1/limit
+		for (int i = 0; i < 20; i++) {
+			limiter.release(limiter.acquire(), HttpStatus.SC_OK);
+		}
+		for (int i = 0; i < 4; i++) {
+			limiter.acquire();
+		}
+		Future<Long> waiting = executor.submit(limiter::acquire);
+		assertBlocked(waiting);
+	}
+
+	@Test
+	public void pacesRequestsAtRate() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(20, 10);
+		long start = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			limiter.release(limiter.acquire(), HttpStatus.SC_OK);
+		}
+		// Four intervals of 50ms after the first request
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(180));
+	}
+
+	private static void assertBlocked(Future<?> waiting) throws InterruptedException {
+		Thread.sleep(100);
+		assertFalse(waiting.isDone());
+	}
+}
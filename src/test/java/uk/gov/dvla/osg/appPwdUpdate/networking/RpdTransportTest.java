@@ -0,0 +1,114 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+public class RpdTransportTest {
+
+	@After
+	public void closeClient() {
+		RpdTransport.close();
+	}
+
+	@Test
+	public void poolSizedByFirstTarget() {
+		RpdTransport.getClient(config("rpd1", 4));
+
+		assertEquals(4, RpdTransport.getConnectionManager().getMaxTotal());
+		assertEquals(4, RpdTransport.getConnectionManager().getDefaultMaxPerRoute());
+	}
+
+	@Test
+	public void poolGrowsForEachNewTarget() {
+		CloseableHttpClient client = RpdTransport.getClient(config("rpd1", 4));
+		assertSame(client, RpdTransport.getClient(config("rpd2", 6)));
+		assertSame(client, RpdTransport.getClient(config("rpd3", 2)));
+
+		assertEquals(12, RpdTransport.getConnectionManager().getMaxTotal());
+		// Every target may use as many connections as the largest asks for
+		assertEquals(6, RpdTransport.getConnectionManager().getDefaultMaxPerRoute());
+	}
+
+	@Test
+	public void poolNotGrownForSameTargetAgain() {
+		RpdTransport.getClient(config("rpd1", 4));
+		RpdTransport.getClient(config("rpd1", 4));
+		RpdTransport.getClient(config("rpd2", 3));
+		RpdTransport.getClient(config("rpd2", 3));
+
+		assertEquals(7, RpdTransport.getConnectionManager().getMaxTotal());
+	}
+
+	@Test
+	public void closeStartsNewPool() {
+		RpdTransport.getClient(config("rpd1", 4));
+		RpdTransport.getClient(config("rpd2", 6));
+		RpdTransport.close();
+		assertNull(RpdTransport.getConnectionManager());
+
+		// Targets added to the closed pool are counted again
+		RpdTransport.getClient(config("rpd2", 6));
+		RpdTransport.getClient(config("rpd1", 4));
+		assertEquals(10, RpdTransport.getConnectionManager().getMaxTotal());
+	}
+
+	@Test
+	public void timeoutsTakenFromEachTarget() throws IOException {
+		// Answers every login after a second
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/login", exchange -> {
+			try {
+				TimeUnit.SECONDS.sleep(1);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			byte[] body = "{\"token\":\"token\"}".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		try (Secret password = Secret.of("pwd")) {
+			String port = String.valueOf(server.getAddress().getPort());
+			NetworkConfig patient = timeoutConfig("localhost", port, 5000);
+			NetworkConfig impatient = timeoutConfig("127.0.0.1", port, 200);
+
+			// The client is created for the patient target, but the impatient one keeps its own timeout
+			assertEquals("token", RestClient.rpdLogin(patient, "APP1", password));
+			assertNull(RestClient.rpdLogin(impatient, "APP1", password));
+			assertEquals("token", RestClient.rpdLogin(patient, "APP1", password));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private static NetworkConfig timeoutConfig(String host, String port, int socketTimeout) {
+		return new Gson().fromJson("{\"protocol\":\"http://\",\"host\":\"" + host + "\",\"port\":\"" + port
+				+ "\",\"loginUrl\":\"/login\",\"socketTimeout\":" + socketTimeout + "}", NetworkConfig.class);
+	}
+
+	private static NetworkConfig config(String host, int maxConnections) {
+		return new Gson().fromJson("{\"protocol\":\"http://\",\"host\":\"" + host + "\",\"port\":\"80\",\"maxConnections\":"
+				+ maxConnections + "}", NetworkConfig.class);
+	}
+}
@@ -0,0 +1,259 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+public class SessionManagerTest {
+
+	private HttpServer server;
+	private final Map<String, String> rpdPasswords = new ConcurrentHashMap<>();
+	private final List<String> logins = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> logouts = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> updateTokens = Collections.synchronizedList(new ArrayList<>());
+	private final AtomicInteger tokens = new AtomicInteger();
+
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/login", this::handleLogin);
+		server.createContext("/logout/", this::handleLogout);
+		server.createContext("/update/", this::handleUpdate);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		for (String appName : Arrays.asList("APP1", "APP2", "APP3", "APP4", "APP5")) {
+			rpdPasswords.put(appName, "pwd" + appName);
+		}
+	}
+
+	@After
+	public void stopServer() {
+		RpdTransport.close();
+		server.stop(0);
+	}
+
+	@Test
+	public void loginTriesApplicationsInOrder() {
+		rpdPasswords.put("APP1", "changed");
+		SessionManager session = new SessionManager(config(0), credentials());
+
+		assertTrue(session.login());
+		assertEquals(Arrays.asList("APP1", "APP2"), logins);
+		assertTrue(session.loginFailed("APP1"));
+		assertFalse(session.loginFailed("APP2"));
+		assertEquals("APP2-1", session.getToken());
+	}
+
+	@Test
+	public void reloginTriesLoginApplicationFirstThenFileOrder() {
+		rpdPasswords.put("APP1", "changed");
+		SessionManager session = new SessionManager(config(0), credentials());
+		assertTrue(session.login());
+		String token = session.getToken();
+
+		// APP1 was refused before so is not tried again
+		rpdPasswords.put("APP2", "changed");
+		assertEquals("APP3-2", session.renew(token));
+		assertEquals(Arrays.asList("APP1", "APP2", "APP2", "APP3"), logins);
+	}
+
+	@Test
+	public void reloginGivesUpAfterThreeApplications() {
+		SessionManager session = new SessionManager(config(0), credentials());
+		assertTrue(session.login());
+		String token = session.getToken();
+
+		rpdPasswords.replaceAll((appName, password) -> "changed");
+		assertNull(session.renew(token));
+		assertEquals(Arrays.asList("APP1", "APP1", "APP2", "APP3"), logins);
+		assertNull(session.getToken());
+		assertFalse(session.isLoggedIn());
+	}
+
+	@Test
+	public void renewedTokenReturnedWithoutLoggingInAgain() {
+		SessionManager session = new SessionManager(config(0), credentials());
+		assertTrue(session.login());
+		String rejected = session.getToken();
+
+		String renewed = session.renew(rejected);
+		assertNotEquals(rejected, renewed);
+		// Another worker rejected with the same token picks up the renewed one
+		assertEquals(renewed, session.renew(rejected));
+		assertEquals(Arrays.asList("APP1", "APP1"), logins);
+	}
+
+	@Test
+	public void tokenRenewedOnceMaximumAgeReached() throws InterruptedException {
+		SessionManager session = new SessionManager(config(1), credentials());
+		assertTrue(session.login());
+		String first = session.getToken();
+		assertEquals(first, session.getToken());
+
+		Thread.sleep(1100);
+		String second = session.getToken();
+		assertNotEquals(first, second);
+		assertEquals(Arrays.asList("APP1", "APP1"), logins);
+		// The replaced token is released with the session
+		assertTrue(logouts.isEmpty());
+		session.logout();
+		assertEquals(Arrays.asList("APP1 " + first, "APP1 " + second), logouts);
+	}
+
+	@Test
+	public void requestInFlightAcrossRefreshNotRejected() throws Exception {
+		NetworkConfig config = config(1);
+		SessionManager session = new SessionManager(config, credentials());
+		assertTrue(session.login());
+		CountDownLatch refreshed = new CountDownLatch(1);
+		ExecutorService workers = Executors.newFixedThreadPool(2);
+		try {
+			// First worker takes the token, then sends its update after the second has refreshed it
+			Future<UpdateResult> inFlight = workers.submit(() -> {
+				String token = session.getToken();
+				refreshed.await();
+				try (Secret oldPassword = Secret.of("pwdAPP4"); Secret newPassword = Secret.of("newAPP4")) {
+					return RestClient.rpdUpdatePwd(config, "APP4", token, oldPassword, newPassword);
+				}
+			});
+			Future<String> refresh = workers.submit(() -> {
+				Thread.sleep(1100);
+				String token = session.getToken();
+				refreshed.countDown();
+				return token;
+			});
+			assertEquals("APP1-2", refresh.get(10, TimeUnit.SECONDS));
+			UpdateResult result = inFlight.get(10, TimeUnit.SECONDS);
+			assertTrue(result.toString(), result.isSuccess());
+			assertEquals(Collections.singletonList("APP1-1"), updateTokens);
+		} finally {
+			workers.shutdownNow();
+		}
+		session.logout();
+		assertEquals(Arrays.asList("APP1 APP1-1", "APP1 APP1-2"), logouts);
+	}
+
+	@Test
+	public void reloginUsesChangedPassword() {
+		SessionManager session = new SessionManager(config(0), credentials());
+		assertTrue(session.login());
+		String token = session.getToken();
+
+		rpdPasswords.put("APP1", "newAPP1");
+		try (Secret newPassword = Secret.of("newAPP1")) {
+			session.passwordChanged("APP1", newPassword);
+		}
+		assertEquals("APP1-2", session.renew(token));
+	}
+
+	@Test
+	public void logoutWipesPasswords() {
+		char[] password = "pwdAPP1".toCharArray();
+		Map<String, Secret> credentials = new LinkedHashMap<>();
+		credentials.put("APP1", Secret.wrap(password));
+		SessionManager session = new SessionManager(config(0), credentials);
+		assertTrue(session.login());
+		String token = session.getToken();
+
+		session.logout();
+		assertEquals(Collections.singletonList("APP1 " + token), logouts);
+		assertArrayEquals(new char[password.length], password);
+		assertFalse(session.isLoggedIn());
+		assertNull(session.getToken());
+	}
+
+	private NetworkConfig config(int tokenMaxAgeSeconds) {
+		return new Gson().fromJson("{\"protocol\":\"http://\",\"host\":\"localhost\",\"port\":\"" + server.getAddress().getPort()
+				+ "\",\"loginUrl\":\"/login\",\"logoutUrl\":\"/logout\",\"updateUrl\":\"/update/\",\"tokenMaxAgeSeconds\":"
+				+ tokenMaxAgeSeconds + "}", NetworkConfig.class);
+	}
+
+	private static Map<String, Secret> credentials() {
+		Map<String, Secret> credentials = new LinkedHashMap<>();
+		for (String appName : Arrays.asList("APP1", "APP2", "APP3", "APP4", "APP5")) {
+			credentials.put(appName, Secret.of("pwd" + appName));
+		}
+		return credentials;
+	}
+
+	private void handleLogin(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new LinkedHashMap<>();
+		for (NameValuePair param : URLEncodedUtils.parse(exchange.getRequestURI(), StandardCharsets.UTF_8)) {
+			params.put(param.getName(), param.getValue());
+		}
+		String appName = params.get("name");
+		logins.add(appName);
+		if (params.get("pwd").equals(rpdPasswords.get(appName))) {
+			send(exchange, 200, "{\"token\":\"" + appName + "-" + tokens.incrementAndGet() + "\"}");
+		} else {
+			send(exchange, 401, "{}");
+		}
+	}
+
+	private void handleUpdate(HttpExchange exchange) throws IOException {
+		try (InputStream in = exchange.getRequestBody()) {
+			while (in.read() != -1) {
+				// discard
+			}
+		}
+		String token = exchange.getRequestHeaders().getFirst("token");
+		updateTokens.add(token);
+		// A token that has been logged out is rejected
+		boolean loggedOut = false;
+		synchronized (logouts) {
+			for (String logout : logouts) {
+				loggedOut |= logout.endsWith(" " + token);
+			}
+		}
+		send(exchange, loggedOut ? 401 : 200, "{}");
+	}
+
+	private void handleLogout(HttpExchange exchange) throws IOException {
+		logouts.add(exchange.getRequestURI().getPath().substring("/logout/".length()) + " "
+				+ exchange.getRequestHeaders().getFirst("token"));
+		send(exchange, 200, "{}");
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.ThreadContext;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.LogFields;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+/**
+ * Answers password updates from a script instead of sending them to RPD, so that the rotation
+ * engine can be tested on its own. Results are returned in the order they were added, the last
+ * one for every update after that.
+ */
+public class StubUpdater extends UpdateBatcher {
+
+	private final Queue<UpdateResult> script = new ConcurrentLinkedQueue<>();
+	private final List<String> tokens = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> targets = Collections.synchronizedList(new ArrayList<>());
+	private volatile UpdateResult last;
+
+	public StubUpdater(NetworkConfig config) {
+		super(config, new RateLimiter(0, config.getParallelism()));
+	}
+
+	public StubUpdater thenSuccess() {
+		return then(UpdateResult.success());
+	}
+
+	public StubUpdater thenRejected(int status, String errorCode) {
+		return then(UpdateResult.rejected(status, errorCode, null));
+	}
+
+	public StubUpdater thenNoResponse() {
+		return then(UpdateResult.failed("timed out"));
+	}
+
+	public StubUpdater thenNotSent() {
+		return then(UpdateResult.notSent("connection refused"));
+	}
+
+	/**
+	 * @return session token of each update received, in the order received
+	 */
+	public List<String> getTokens() {
+		synchronized (tokens) {
+			return new ArrayList<>(tokens);
+		}
+	}
+
+	/**
+	 * @return {@link LogFields#TARGET} thread context entry of each update received, in the order received
+	 */
+	public List<String> getTargets() {
+		synchronized (targets) {
+			return new ArrayList<>(targets);
+		}
+	}
+
+	@Override
+	public boolean isBatching() {
+		return false;
+	}
+
+	@Override
+	public UpdateResult update(String appName, String token, Secret oldPassword, Secret newPassword) {
+		tokens.add(token);
+		targets.add(ThreadContext.get(LogFields.TARGET));
+		UpdateResult result = script.poll();
+		if (result == null) {
+			return last;
+		}
+		last = result;
+		return result;
+	}
+
+	private StubUpdater then(UpdateResult result) {
+		script.add(result);
+		return this;
+	}
+}
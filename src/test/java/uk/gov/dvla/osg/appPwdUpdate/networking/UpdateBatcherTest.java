@@ -0,0 +1,333 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+public class UpdateBatcherTest {
+
+	private static final int UPDATES = 12;
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private volatile boolean batchService = true;
+	private volatile String unexpectedResponse;
+	private volatile CountDownLatch batchReceived, releaseBatch;
+	private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> batchTokens = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> singleUpdates = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/batch", this::handleBatch);
+		server.createContext("/update/", this::handleUpdate);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		executor = Executors.newFixedThreadPool(UPDATES);
+	}
+
+	@After
+	public void stopServer() {
+		executor.shutdownNow();
+		RpdTransport.close();
+		server.stop(0);
+	}
+
+	@Test
+	public void concurrentUpdatesSentInBatches() throws Exception {
+		UpdateBatcher batcher = new UpdateBatcher(config(5), new RateLimiter(0, 1));
+		assertTrue(batcher.isBatching());
+
+		List<UpdateResult> results = updateAll(batcher, "token");
+		for (int i = 0; i < UPDATES; i++) {
+			assertTrue(results.get(i).toString(), results.get(i).isSuccess());
+		}
+		assertTrue(singleUpdates.isEmpty());
+		List<String> sent = new ArrayList<>();
+		for (List<String> batch : batches) {
+			assertTrue(batch.size() <= 5);
+			sent.addAll(batch);
+		}
+		Collections.sort(sent);
+		assertEquals(appNames(), sent);
+		// One permit at a time, so callers queue behind the batch in flight
+		assertTrue(batches.size() < UPDATES);
+	}
+
+	@Test
+	public void eachUpdateHasItsOwnResult() throws Exception {
+		UpdateBatcher batcher = new UpdateBatcher(config(UPDATES), new RateLimiter(0, 1));
+		try (Secret oldPassword = Secret.of("old"); Secret newPassword = Secret.of("new")) {
+			UpdateResult rejected = batcher.update("REJECT", "token", oldPassword, newPassword);
+			assertFalse(rejected.isSuccess());
+			assertEquals(400, rejected.getStatus());
+			assertEquals("RPD-400", rejected.getErrorCode());
+			assertTrue(batcher.update("APP", "token", oldPassword, newPassword).isSuccess());
+		}
+	}
+
+	@Test
+	public void updatesBatchedOnlyWithSameToken() throws Exception {
+		UpdateBatcher batcher = new UpdateBatcher(config(UPDATES), new RateLimiter(0, 1));
+		List<Future<UpdateResult>> futures = new ArrayList<>();
+		for (int i = 0; i < UPDATES; i++) {
+			futures.add(submit(batcher, String.format("APP%02d", i), i % 2 == 0 ? "even" : "odd"));
+		}
+		for (Future<UpdateResult> future : futures) {
+			assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+		}
+		for (int i = 0; i < batches.size(); i++) {
+			String token = batchTokens.get(i);
+			for (String appName : batches.get(i)) {
+				int number = Integer.parseInt(appName.substring(3));
+				assertEquals(number % 2 == 0 ? "even" : "odd", token);
+			}
+		}
+	}
+
+	@Test
+	public void missingBatchServiceSendsEachUpdateOnItsOwn() throws Exception {
+		batchService = false;
+		UpdateBatcher batcher = new UpdateBatcher(config(5), new RateLimiter(0, 4));
+
+		List<UpdateResult> results = updateAll(batcher, "token");
+		for (UpdateResult result : results) {
+			assertTrue(result.toString(), result.isSuccess());
+		}
+		assertFalse(batcher.isBatching());
+		List<String> sent = new ArrayList<>(singleUpdates);
+		Collections.sort(sent);
+		assertEquals(appNames(), sent);
+	}
+
+	@Test
+	public void unreadableBatchResponseLeavesEachUpdateUnanswered() throws Exception {
+		unexpectedResponse = "<html>OK</html>";
+		UpdateBatcher batcher = new UpdateBatcher(config(5), new RateLimiter(0, 4));
+
+		List<UpdateResult> results = updateAll(batcher, "token");
+		for (UpdateResult result : results) {
+			assertFalse(result.isSuccess());
+			assertFalse(result.isNotSent());
+			assertEquals(0, result.getStatus());
+			assertEquals("NO_RESPONSE", result.getErrorCode());
+		}
+		// RPD may hold the new passwords, so none is sent again on its own
+		assertTrue(batcher.isBatching());
+		assertTrue(singleUpdates.isEmpty());
+	}
+
+	@Test
+	public void failedBatchNeitherResentNorRequeued() throws Exception {
+		// Fails once the first batch has been sent
+		RateLimiter limiter = new RateLimiter(0, 4) {
+			private final AtomicBoolean failed = new AtomicBoolean();
+
+			@Override
+			public void release(long permit, int status) {
+				super.release(permit, status);
+				if (failed.compareAndSet(false, true)) {
+					throw new IllegalStateException("Unexpected failure");
+				}
+			}
+		};
+		UpdateBatcher batcher = new UpdateBatcher(config(5), limiter);
+
+		List<UpdateResult> results = updateAll(batcher, "token");
+		List<String> sent = new ArrayList<>();
+		for (List<String> batch : batches) {
+			sent.addAll(batch);
+		}
+		int unanswered = 0;
+		for (UpdateResult result : results) {
+			if (result.getStatus() == 0) {
+				assertFalse(result.isNotSent());
+				unanswered++;
+			} else {
+				assertTrue(result.toString(), result.isSuccess());
+			}
+		}
+		// Every update of the failed batch is unanswered, and no update reaches RPD twice
+		assertEquals(batches.get(0).size(), unanswered);
+		assertEquals(UPDATES, sent.size());
+		assertEquals(UPDATES, new HashSet<>(sent).size());
+		assertTrue(singleUpdates.isEmpty());
+	}
+
+	@Test
+	public void interruptedFollowerWaitsForBatchInFlight() throws Exception {
+		batchReceived = new CountDownLatch(1);
+		releaseBatch = new CountDownLatch(1);
+		UpdateBatcher batcher = new UpdateBatcher(config(UPDATES), new RateLimiter(0, 1));
+		Map<String, Boolean> interrupted = new ConcurrentHashMap<>();
+		Map<String, Future<UpdateResult>> futures = new LinkedHashMap<>();
+		for (String appName : appNames()) {
+			futures.put(appName, executor.submit(() -> {
+				try (Secret oldPassword = Secret.of("old"); Secret newPassword = Secret.of("new")) {
+					UpdateResult result = batcher.update(appName, "token", oldPassword, newPassword);
+					interrupted.put(appName, Thread.currentThread().isInterrupted());
+					return result;
+				}
+			}));
+		}
+		assertTrue(batchReceived.await(10, TimeUnit.SECONDS));
+		// Interrupts the leader, the followers whose updates it is sending and any still queued
+		executor.shutdownNow();
+		releaseBatch.countDown();
+
+		List<String> sent = batches.get(0);
+		for (Map.Entry<String, Future<UpdateResult>> future : futures.entrySet()) {
+			if (sent.contains(future.getKey())) {
+				// Result of the batch returned, with the interrupt kept
+				assertTrue(future.getValue().get(10, TimeUnit.SECONDS).isSuccess());
+				assertTrue(future.getKey(), interrupted.get(future.getKey()));
+			} else {
+				try {
+					future.getValue().get(10, TimeUnit.SECONDS);
+					fail(future.getKey() + " was not sent but did not fail");
+				} catch (ExecutionException ex) {
+					assertTrue(ex.getCause() instanceof InterruptedException);
+				}
+			}
+		}
+		assertEquals(1, batches.size());
+		assertTrue(singleUpdates.isEmpty());
+	}
+
+	private NetworkConfig config(int batchSize) {
+		NetworkConfig config = new NetworkConfig("http://", "localhost", String.valueOf(server.getAddress().getPort()),
+				"/login", "/logout", "/update/");
+		config.setBatchUpdateUrl("/batch");
+		config.setUpdateBatchSize(batchSize);
+		return config;
+	}
+
+	private List<UpdateResult> updateAll(UpdateBatcher batcher, String token) throws Exception {
+		List<Future<UpdateResult>> futures = new ArrayList<>();
+		for (String appName : appNames()) {
+			futures.add(submit(batcher, appName, token));
+		}
+		List<UpdateResult> results = new ArrayList<>();
+		for (Future<UpdateResult> future : futures) {
+			results.add(future.get(10, TimeUnit.SECONDS));
+		}
+		return results;
+	}
+
+	private Future<UpdateResult> submit(UpdateBatcher batcher, String appName, String token) {
+		return executor.submit(() -> {
+			try (Secret oldPassword = Secret.of("old"); Secret newPassword = Secret.of("new")) {
+				return batcher.update(appName, token, oldPassword, newPassword);
+			}
+		});
+	}
+
+	private static List<String> appNames() {
+		List<String> appNames = new ArrayList<>();
+		for (int i = 0; i < UPDATES; i++) {
+			appNames.add(String.format("APP%02d", i));
+		}
+		return appNames;
+	}
+
+	private void handleBatch(HttpExchange exchange) throws IOException {
+		JsonObject request;
+		try (Reader in = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+			request = new JsonParser().parse(in).getAsJsonObject();
+		}
+		if (!batchService) {
+			send(exchange, 404, "{}");
+			return;
+		}
+		if (unexpectedResponse != null) {
+			send(exchange, 200, unexpectedResponse);
+			return;
+		}
+		List<String> batch = new ArrayList<>();
+		JsonArray results = new JsonArray();
+		for (JsonElement update : request.getAsJsonArray("updates")) {
+			String appName = update.getAsJsonObject().get("name").getAsString();
+			batch.add(appName);
+			JsonObject result = new JsonObject();
+			result.addProperty("name", appName);
+			if (appName.equals("REJECT")) {
+				result.addProperty("status", 400);
+				result.add("generalErrors", new JsonParser().parse("[{\"code\":\"RPD-400\",\"message\":\"Rejected\"}]"));
+			} else {
+				result.addProperty("status", 200);
+			}
+			results.add(result);
+		}
+		synchronized (batches) {
+			batches.add(batch);
+			batchTokens.add(exchange.getRequestHeaders().getFirst("token"));
+		}
+		if (releaseBatch != null) {
+			batchReceived.countDown();
+			try {
+				releaseBatch.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		JsonObject response = new JsonObject();
+		response.add("results", results);
+		send(exchange, 200, response.toString());
+	}
+
+	private void handleUpdate(HttpExchange exchange) throws IOException {
+		try (InputStream in = exchange.getRequestBody()) {
+			while (in.read() != -1) {
+				// discard, allows the connection to be kept alive
+			}
+		}
+		singleUpdates.add(exchange.getRequestURI().getPath().substring("/update/".length()));
+		send(exchange, 200, "{}");
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
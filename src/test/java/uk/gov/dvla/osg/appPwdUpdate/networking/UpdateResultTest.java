@@ -0,0 +1,25 @@
+package uk.gov.dvla.osg.appPwdUpdate.networking;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class UpdateResultTest {
+
+	@Test
+	public void unauthorizedIsNotRejectedTokenWithoutCode() {
+		assertFalse(UpdateResult.rejected(401, null, null).isTokenRejected(null));
+		assertFalse(UpdateResult.rejected(401, "ANY", "Unauthorized").isTokenRejected(null));
+		assertFalse(UpdateResult.rejected(403, null, null).isTokenRejected(null));
+		assertFalse(UpdateResult.failed("timed out").isTokenRejected(null));
+	}
+
+	@Test
+	public void configuredCodeMustMatch() {
+		assertTrue(UpdateResult.rejected(401, "TOKEN", "Expired").isTokenRejected("TOKEN"));
+		assertFalse(UpdateResult.rejected(401, "PASSWORD", "Wrong password").isTokenRejected("TOKEN"));
+		assertFalse(UpdateResult.rejected(401, null, null).isTokenRejected("TOKEN"));
+		assertFalse(UpdateResult.rejected(400, "TOKEN", null).isTokenRejected("TOKEN"));
+	}
+}
@@ -0,0 +1,308 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+public class EncryptedCredentialStoreTest {
+
+	private static final int HEADER_SIZE = 16;
+	private static final int SLOT_SIZE = 256;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path file;
+	private SecretKey key;
+	private EncryptedCredentialStore store;
+
+	@Before
+	public void createStore() throws IOException, GeneralSecurityException {
+		file = folder.getRoot().toPath().resolve("passwords.enc");
+		key = newKey();
+		store = open(key);
+		add("APP1", "old1");
+		add("APP2", "old2");
+		store.flush();
+	}
+
+	@After
+	public void closeStore() {
+		store.close();
+	}
+
+	@Test
+	public void reopenedStoreHoldsPasswords() throws IOException {
+		assertTrue(set("APP1", "old1", "new1"));
+		store.flush();
+		store.close();
+
+		store = open(key);
+		assertEquals(Arrays.asList("APP1", "APP2"), store.appNames());
+		assertPassword("new1", "APP1");
+		assertPassword("old2", "APP2");
+		assertNull(store.get("APP3"));
+	}
+
+	@Test
+	public void changeNeedsCurrentPassword() throws IOException {
+		assertFalse(set("APP1", "wrong", "new1"));
+		assertFalse(set("APP1", null, "new1"));
+		assertFalse(set("APP3", "old3", "new3"));
+		assertPassword("old1", "APP1");
+
+		// Changes alternate between the slots of the entry
+		assertTrue(set("APP1", "old1", "new1"));
+		assertTrue(set("APP1", "new1", "newer1"));
+		assertTrue(set("APP1", "newer1", "newest1"));
+		assertPassword("newest1", "APP1");
+		assertEquals(2, store.size());
+	}
+
+	@Test
+	public void wrongKeyCannotDecrypt() throws IOException, GeneralSecurityException {
+		store.close();
+		store = open(newKey());
+		assertEquals(2, store.size());
+		try {
+			store.get("APP1");
+			fail("Password decrypted with another key");
+		} catch (IOException expected) {
+			// Cannot be decrypted
+		}
+	}
+
+	@Test
+	public void tornWriteKeepsCurrentPassword() throws IOException {
+		assertTrue(set("APP1", "old1", "new1"));
+		store.close();
+		// new1 is in the second slot of the first entry, damage the start of its ciphertext,
+		// which follows the sequence number, lengths, IV and name
+		corrupt(HEADER_SIZE + SLOT_SIZE + 8 + 12 + "APP1".length());
+
+		store = open(key);
+		assertPassword("old1", "APP1");
+		assertPassword("old2", "APP2");
+	}
+
+	@Test
+	public void entryCannotBeReadUnderAnotherName() throws IOException {
+		store.close();
+		// Copy the entry of APP1 over the entry of APP2
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer entry = ByteBuffer.allocate(2 * SLOT_SIZE);
+			channel.read(entry, HEADER_SIZE);
+			entry.flip();
+			channel.write(entry, HEADER_SIZE + 2 * SLOT_SIZE);
+		}
+
+		store = open(key);
+		try {
+			store.get("APP2");
+			fail("Entry read under another name");
+		} catch (IOException expected) {
+			// Names are part of the associated data
+		}
+	}
+
+	@Test
+	public void missingIndexRecordsRecovered() throws IOException {
+		store.close();
+		Path indexFile = file.resolveSibling("passwords.enc.idx");
+		// Leave only the first record, APP1 is two bytes of length, four of name and four of entry
+		try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+			channel.truncate(2 + 4 + 4 + 3);
+		}
+
+		store = open(key);
+		assertEquals(Arrays.asList("APP1", "APP2"), store.appNames());
+		assertPassword("old2", "APP2");
+	}
+
+	@Test
+	public void readOnlyLoadChangesNothing() throws IOException {
+		store.close();
+		Path indexFile = file.resolveSibling("passwords.enc.idx");
+		try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+			channel.truncate(2 + 4 + 4 + 3);
+		}
+		Files.write(file, new byte[3], StandardOpenOption.APPEND);
+		byte[] data = Files.readAllBytes(file);
+		byte[] index = Files.readAllBytes(indexFile);
+
+		store = new EncryptedCredentialStore(file, key);
+		assertTrue(store.loadReadOnly());
+		assertEquals(Arrays.asList("APP1", "APP2"), store.appNames());
+		assertPassword("old2", "APP2");
+		try {
+			set("APP1", "old1", "new1");
+			fail("Changed a store loaded read only");
+		} catch (IOException expected) {
+			// Must be loaded again to be changed
+		}
+		assertTrue(Arrays.equals(data, Files.readAllBytes(file)));
+		assertTrue(Arrays.equals(index, Files.readAllBytes(indexFile)));
+
+		// Loading to change it repairs the files
+		assertTrue(store.load());
+		assertTrue(set("APP1", "old1", "new1"));
+		assertFalse(Arrays.equals(index, Files.readAllBytes(indexFile)));
+	}
+
+	@Test
+	public void readOnlyLoadDoesNotCreateStore() {
+		Path missing = file.resolveSibling("missing.enc");
+		try (EncryptedCredentialStore other = new EncryptedCredentialStore(missing, key)) {
+			other.loadReadOnly();
+			fail("Opened a store that does not exist");
+		} catch (IOException expected) {
+			// Not created
+		}
+		assertFalse(Files.exists(missing));
+		assertFalse(Files.exists(missing.resolveSibling("missing.enc.idx")));
+	}
+
+	@Test
+	public void readOnlyLoadNotLocked() throws IOException {
+		try (EncryptedCredentialStore other = new EncryptedCredentialStore(file, key)) {
+			assertTrue(other.loadReadOnly());
+			try (Secret password = other.get("APP1")) {
+				assertEquals("old1", password.reveal());
+			}
+		}
+	}
+
+	@Test
+	public void notAStoreRejected() throws IOException {
+		store.close();
+		Files.write(file, new byte[HEADER_SIZE]);
+		try {
+			store = open(key);
+			fail("Opened a file that is not a credential store");
+		} catch (IOException expected) {
+			// Header does not match
+		}
+	}
+
+	@Test
+	public void storeLockedWhileOpen() throws IOException {
+		try {
+			open(key);
+			fail("Opened a store already open");
+		} catch (IOException expected) {
+			// Locked by the store opened in createStore
+		}
+		store.close();
+		store = open(key);
+		assertPassword("old1", "APP1");
+	}
+
+	@Test
+	public void replacedStoreLoadedAgain() throws IOException {
+		assertFalse(store.load());
+		// Build a copy with another application and put it in place of the open store
+		Path copy = folder.newFolder().toPath().resolve("passwords.enc");
+		try (EncryptedCredentialStore other = new EncryptedCredentialStore(copy, key)) {
+			other.load();
+			for (String appName : Arrays.asList("APP1", "APP2", "APP3")) {
+				try (Secret password = Secret.of("copy")) {
+					other.compareAndSet(appName, null, password);
+				}
+			}
+			other.flush();
+		}
+		Files.copy(copy, file, StandardCopyOption.REPLACE_EXISTING);
+		Files.copy(copy.resolveSibling("passwords.enc.idx"), file.resolveSibling("passwords.enc.idx"), StandardCopyOption.REPLACE_EXISTING);
+
+		assertTrue(store.load());
+		assertEquals(Arrays.asList("APP1", "APP2", "APP3"), store.appNames());
+		assertPassword("copy", "APP3");
+	}
+
+	@Test
+	public void sealedPasswordOnlyForItsApplication() throws IOException, GeneralSecurityException {
+		String sealed;
+		try (Secret password = Secret.of("new1")) {
+			sealed = store.seal("APP1", password).toString();
+		}
+		assertFalse(sealed.contains("new1"));
+		try (Secret password = store.unseal("APP1", sealed)) {
+			assertEquals("new1", password.reveal());
+		}
+		try {
+			store.unseal("APP2", sealed);
+			fail("Password unsealed for another application");
+		} catch (IOException expected) {
+			// Names are part of the associated data
+		}
+		store.close();
+		store = open(newKey());
+		try {
+			store.unseal("APP1", sealed);
+			fail("Password unsealed with another key");
+		} catch (IOException expected) {
+			// Sealed with the key of the original store
+		}
+	}
+
+	private EncryptedCredentialStore open(SecretKey key) throws IOException {
+		EncryptedCredentialStore store = new EncryptedCredentialStore(file, key);
+		store.load();
+		return store;
+	}
+
+	private static SecretKey newKey() throws GeneralSecurityException {
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(256);
+		return generator.generateKey();
+	}
+
+	private void add(String appName, String password) throws IOException {
+		assertTrue(set(appName, null, password));
+	}
+
+	private boolean set(String appName, String expected, String password) throws IOException {
+		try (Secret current = expected == null ? null : Secret.of(expected); Secret newPassword = Secret.of(password)) {
+			return store.compareAndSet(appName, current, newPassword);
+		}
+	}
+
+	private void corrupt(long position) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer b = ByteBuffer.allocate(1);
+			channel.read(b, position);
+			b.put(0, (byte) (b.get(0) ^ 0xFF));
+			b.clear();
+			channel.write(b, position);
+		}
+	}
+
+	private void assertPassword(String expected, String appName) throws IOException {
+		try (Secret password = store.get(appName)) {
+			assertEquals(expected, password.reveal());
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+public class PasswordJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path passwordsFile;
+	private Path journalFile;
+	private PropertiesCredentialStore store;
+
+	@Before
+	public void createStore() throws IOException {
+		passwordsFile = folder.getRoot().toPath().resolve("passwords.properties");
+		journalFile = passwordsFile.resolveSibling("passwords.properties.journal");
+		PasswordStore passwords = new PasswordStore();
+		passwords.put("APP1", "old1");
+		passwords.put("APP2", "old2");
+		passwords.put("APP3", "old3");
+		PropertiesFormat.replace(passwordsFile, passwords);
+		store = new PropertiesCredentialStore(passwordsFile);
+		store.load();
+	}
+
+	@Test
+	public void replaysOnlyCommittedPasswords() throws IOException {
+		PasswordJournal journal = new PasswordJournal(passwordsFile);
+		stage(journal, "APP1", "new1");
+		journal.commit("APP1");
+		stage(journal, "APP2", "new2");
+		stage(journal, "APP3", "new3");
+		journal.abort("APP3");
+		journal.close();
+
+		List<String> recovered = new ArrayList<>();
+		assertEquals(1, new PasswordJournal(passwordsFile).replay(store, recovered::add));
+		assertEquals(Collections.singletonList("APP1"), recovered);
+		assertPassword("new1", "APP1");
+		assertPassword("old2", "APP2");
+		assertPassword("old3", "APP3");
+	}
+
+	@Test
+	public void commitAppliesLastStagedPassword() throws IOException {
+		PasswordJournal journal = new PasswordJournal(passwordsFile);
+		stage(journal, "APP1", "first");
+		stage(journal, "APP1", "second");
+		journal.commit("APP1");
+		journal.close();
+
+		assertEquals(1, new PasswordJournal(passwordsFile).replay(store));
+		assertPassword("second", "APP1");
+	}
+
+	@Test
+	public void journalReadableOnlyByOwner() throws IOException {
+		assumeTrue(journalFile.getFileSystem().supportedFileAttributeViews().contains("posix"));
+		Files.setPosixFilePermissions(passwordsFile, PosixFilePermissions.fromString("rw-r--r--"));
+		PasswordJournal journal = new PasswordJournal(passwordsFile);
+		stage(journal, "APP1", "new1");
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(journalFile)));
+
+		stage(journal, "APP2", "new2");
+		journal.commit("APP1");
+		journal.compact(store);
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(journalFile)));
+	}
+
+	@Test
+	public void missingJournalReplaysNothing() throws IOException {
+		assertEquals(0, new PasswordJournal(passwordsFile).replay(store));
+		assertFalse(Files.exists(journalFile));
+	}
+
+	@Test
+	public void tornFinalRecordIsDropped() throws IOException {
+		PasswordJournal journal = new PasswordJournal(passwordsFile);
+		stage(journal, "APP1", "new1");
+		journal.commit("APP1");
+		journal.close();
+		long validLength = Files.size(journalFile);
+		Files.write(journalFile, "1a2b3c4d S APP2=ne".getBytes(StandardCharsets.ISO_8859_1), StandardOpenOption.APPEND);
+
+		journal = new PasswordJournal(passwordsFile);
+		assertEquals(1, journal.replay(store));
+		assertPassword("new1", "APP1");
+		assertEquals(validLength, Files.size(journalFile));
+
+		// Records appended after the torn one was dropped are read back
+		stage(journal, "APP2", "new2");
+		journal.commit("APP2");
+		journal.close();
+		assertEquals(2, new PasswordJournal(passwordsFile).replay(store));
+		assertPassword("new2", "APP2");
+	}
+
+	@Test
+	public void finalRecordWithoutLineFeedIsDropped() throws IOException {
+		PasswordJournal journal = new PasswordJournal(passwordsFile);
+		stage(journal, "APP1", "new1");
+		long stagedLength = Files.size(journalFile);
+		journal.commit("APP1");
+		journal.close();
+		byte[] records = Files.readAllBytes(journalFile);
+		Files.write(journalFile, Arrays.copyOf(records, records.length - 1));
+
+		assertEquals(0, new PasswordJournal(passwordsFile).replay(store));
+		assertPassword("old1", "APP1");
+		assertEquals(stagedLength, Files.size(journalFile));
+	}
+
+	@Test
+	public void damagedRecordBeforeValidRecordsFailsReplay() throws IOException {
+		PasswordJournal journal = new PasswordJournal(passwordsFile);
+		stage(journal, "APP1", "new1");
+		journal.commit("APP1");
+		stage(journal, "APP2", "new2");
+		journal.commit("APP2");
+		journal.close();
+		byte[] records = Files.readAllBytes(journalFile);
+		// Change the password of the first record without changing its checksum
+		int value = new String(records, StandardCharsets.ISO_8859_1).indexOf("new1");
+		records[value] = 'N';
+		Files.write(journalFile, records);
+
+		try {
+			new PasswordJournal(passwordsFile).replay(store);
+			fail("Damaged journal replayed");
+		} catch (IOException expected) {
+			// Reported rather than the records after it being dropped
+		}
+		assertArrayEquals(records, Files.readAllBytes(journalFile));
+		assertPassword("old1", "APP1");
+		assertPassword("old2", "APP2");
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownRecordTypeFailsReplay() throws IOException {
+		String entry = "X APP1=new1";
+		CRC32 crc = new CRC32();
+		crc.update(entry.getBytes(StandardCharsets.ISO_8859_1));
+		Files.write(journalFile, (Long.toHexString(crc.getValue()) + " " + entry + "\n").getBytes(StandardCharsets.ISO_8859_1));
+
+		new PasswordJournal(passwordsFile).replay(store);
+	}
+
+	@Test
+	public void readCommittedChangesNothing() throws IOException {
+		PasswordJournal journal = new PasswordJournal(passwordsFile);
+		stage(journal, "APP1", "new1");
+		journal.commit("APP1");
+		journal.close();
+		Files.write(journalFile, "1a2b3c4d S APP2=ne".getBytes(StandardCharsets.ISO_8859_1), StandardOpenOption.APPEND);
+		byte[] records = Files.readAllBytes(journalFile);
+
+		Map<String, Secret> committed = new PasswordJournal(passwordsFile).readCommitted();
+		assertEquals(1, committed.size());
+		assertEquals("new1", committed.get("APP1").reveal());
+		assertArrayEquals(records, Files.readAllBytes(journalFile));
+		assertPassword("old1", "APP1");
+	}
+
+	@Test
+	public void compactKeepsOnlyUncommittedStagedRecords() throws IOException {
+		PasswordJournal journal = new PasswordJournal(passwordsFile);
+		stage(journal, "APP1", "new1");
+		journal.commit("APP1");
+		stage(journal, "APP2", "new2");
+		try (Secret expected = Secret.of("old1"); Secret newPassword = Secret.of("new1")) {
+			assertTrue(store.compareAndSet("APP1", expected, newPassword));
+		}
+		journal.compact(store);
+
+		List<String> lines = Files.readAllLines(journalFile, StandardCharsets.ISO_8859_1);
+		assertEquals(1, lines.size());
+		assertTrue(lines.get(0).endsWith(" S APP2=new2"));
+		assertEquals("new1", PropertiesFormat.read(passwordsFile).get("APP1"));
+	}
+
+	@Test
+	public void compactRemovesJournalOnceEveryPasswordIsCommitted() throws IOException {
+		PasswordJournal journal = new PasswordJournal(passwordsFile);
+		stage(journal, "APP1", "new1");
+		journal.commit("APP1");
+		stage(journal, "APP2", "new2");
+		journal.abort("APP2");
+		journal.compact(store);
+
+		assertFalse(Files.exists(journalFile));
+	}
+
+	@Test
+	public void journalOfEncryptedStoreHoldsNoPassword() throws Exception {
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(256);
+		Path storeFile = folder.getRoot().toPath().resolve("passwords.enc");
+		try (EncryptedCredentialStore encrypted = new EncryptedCredentialStore(storeFile, generator.generateKey())) {
+			encrypted.load();
+			try (Secret password = Secret.of("old1")) {
+				encrypted.compareAndSet("APP1", null, password);
+			}
+			PasswordJournal journal = new PasswordJournal(storeFile, encrypted);
+			stage(journal, "APP1", "secret1");
+			journal.commit("APP1");
+			journal.close();
+
+			byte[] records = Files.readAllBytes(storeFile.resolveSibling("passwords.enc.journal"));
+			assertFalse(new String(records, StandardCharsets.ISO_8859_1).contains("secret1"));
+			assertEquals(1, new PasswordJournal(storeFile, encrypted).replay(encrypted));
+			try (Secret password = encrypted.get("APP1")) {
+				assertEquals("secret1", password.reveal());
+			}
+		}
+	}
+
+	private static void stage(PasswordJournal journal, String appName, String password) throws IOException {
+		try (Secret secret = Secret.of(password)) {
+			journal.stage(appName, secret);
+		}
+	}
+
+	private void assertPassword(String expected, String appName) {
+		try (Secret password = store.get(appName)) {
+			assertEquals(expected, password.reveal());
+		}
+	}
+}
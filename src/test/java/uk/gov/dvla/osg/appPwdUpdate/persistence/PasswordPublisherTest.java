@@ -0,0 +1,200 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+public class PasswordPublisherTest {
+
+	private static final long HOUR = 3600000;
+
+	private final StubStore store = new StubStore();
+
+	@Test
+	public void flushedOnceBatchFull() {
+		PasswordPublisher publisher = new PasswordPublisher(store, 3, HOUR);
+		publish(publisher, "APP1", "APP2");
+		assertTrue(store.flushed.isEmpty());
+
+		publish(publisher, "APP3");
+		assertEquals(1, store.flushed.size());
+		assertEquals(passwords("APP1", "APP2", "APP3"), store.flushed.get(0));
+
+		// The next batch starts empty
+		publish(publisher, "APP4", "APP5");
+		assertEquals(1, store.flushed.size());
+	}
+
+	@Test
+	public void flushedByFirstCommitAfterInterval() throws InterruptedException {
+		PasswordPublisher publisher = new PasswordPublisher(store, 100, 200);
+		publish(publisher, "APP1");
+		assertTrue(store.flushed.isEmpty());
+
+		Thread.sleep(300);
+		publish(publisher, "APP2");
+		assertEquals(1, store.flushed.size());
+		assertEquals(passwords("APP1", "APP2"), store.flushed.get(0));
+
+		// The interval starts again from the flush
+		publish(publisher, "APP3");
+		assertEquals(1, store.flushed.size());
+	}
+
+	@Test
+	public void finalFlushWritesPartBatch() {
+		PasswordPublisher publisher = new PasswordPublisher(store, 100, HOUR);
+		publish(publisher, "APP1", "APP2", "APP3");
+		assertTrue(store.flushed.isEmpty());
+
+		publisher.flush();
+		assertEquals(1, store.flushed.size());
+		assertEquals(passwords("APP1", "APP2", "APP3"), store.flushed.get(0));
+
+		// Nothing left to write
+		publisher.flush();
+		assertEquals(1, store.flushed.size());
+		assertEquals(0, publisher.getUnsaved());
+	}
+
+	@Test
+	public void failedFlushRetriedWithNextBatch() {
+		PasswordPublisher publisher = new PasswordPublisher(store, 2, HOUR);
+		store.failFlushes = 1;
+		publish(publisher, "APP1", "APP2");
+		assertTrue(store.flushed.isEmpty());
+
+		publish(publisher, "APP3");
+		assertEquals(1, store.flushed.size());
+		assertEquals(passwords("APP1", "APP2", "APP3"), store.flushed.get(0));
+		assertEquals(0, publisher.getUnsaved());
+	}
+
+	@Test
+	public void failedFlushWrittenByFinalFlush() {
+		PasswordPublisher publisher = new PasswordPublisher(store, 2, HOUR);
+		store.failFlushes = 1;
+		publish(publisher, "APP1", "APP2");
+
+		publisher.flush();
+		assertEquals(1, store.flushed.size());
+		assertEquals(passwords("APP1", "APP2"), store.flushed.get(0));
+	}
+
+	@Test
+	public void passwordStoreWouldNotTakeReportedAndNotCounted() {
+		PasswordPublisher publisher = new PasswordPublisher(store, 2, HOUR);
+		store.failSet.add("APP2");
+		publish(publisher, "APP1", "APP2");
+
+		// Left in the journal for the next run, and not part of the batch
+		assertEquals(1, publisher.getUnsaved());
+		assertTrue(store.flushed.isEmpty());
+		publish(publisher, "APP3");
+		assertEquals(1, store.flushed.size());
+		assertEquals(passwords("APP1", "APP3"), store.flushed.get(0));
+	}
+
+	@Test
+	public void passwordChangedInStoreDuringRunNotOverwritten() throws IOException {
+		PasswordPublisher publisher = new PasswordPublisher(store, 1, HOUR);
+		store.passwords.put("APP1", "changed");
+		publish(publisher, "APP1");
+
+		assertEquals(1, publisher.getUnsaved());
+		assertEquals("changed", store.get("APP1").reveal());
+		publisher.flush();
+		assertTrue(store.flushed.isEmpty());
+	}
+
+	private static void publish(PasswordPublisher publisher, String... apps) {
+		for (String appName : apps) {
+			try (Secret oldPassword = Secret.of("old" + appName); Secret newPassword = Secret.of("new" + appName)) {
+				publisher.publish(appName, oldPassword, newPassword);
+			}
+		}
+	}
+
+	private static Map<String, String> passwords(String... apps) {
+		Map<String, String> passwords = new LinkedHashMap<>();
+		for (String appName : apps) {
+			passwords.put(appName, "new" + appName);
+		}
+		return passwords;
+	}
+
+	/**
+	 * Holds every password in memory, where each application's password starts as "old" and
+	 * its name, and records the new passwords in the store each time it is flushed.
+	 */
+	private static class StubStore implements CredentialStore {
+
+		final Map<String, String> passwords = new LinkedHashMap<>();
+		final List<Map<String, String>> flushed = new ArrayList<>();
+		final Set<String> failSet = new HashSet<>();
+		int failFlushes;
+
+		@Override
+		public boolean load() {
+			return false;
+		}
+
+		@Override
+		public int size() {
+			return passwords.size();
+		}
+
+		@Override
+		public List<String> appNames() {
+			return new ArrayList<>(passwords.keySet());
+		}
+
+		@Override
+		public synchronized Secret get(String appName) {
+			return Secret.of(passwords.getOrDefault(appName, "old" + appName));
+		}
+
+		@Override
+		public synchronized boolean compareAndSet(String appName, Secret expected, Secret newPassword) throws IOException {
+			if (failSet.contains(appName)) {
+				throw new IOException("Unable to write " + appName);
+			}
+			if (!expected.contentEquals(passwords.getOrDefault(appName, "old" + appName))) {
+				return false;
+			}
+			passwords.put(appName, newPassword.reveal());
+			return true;
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if (failFlushes > 0) {
+				failFlushes--;
+				throw new IOException("Unable to flush");
+			}
+			Map<String, String> changed = new LinkedHashMap<>();
+			passwords.forEach((appName, password) -> {
+				if (password.startsWith("new")) {
+					changed.put(appName, password);
+				}
+			});
+			flushed.add(changed);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+public class PropertiesCredentialStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path file;
+	private PropertiesCredentialStore store;
+
+	@Before
+	public void createStore() throws IOException {
+		file = folder.getRoot().toPath().resolve("passwords.properties");
+		PasswordStore passwords = new PasswordStore();
+		passwords.put("APP1", "old1");
+		passwords.put("APP2", "old2");
+		PropertiesFormat.replace(file, passwords);
+		store = new PropertiesCredentialStore(file);
+		assertTrue(store.load());
+	}
+
+	@Test
+	public void changedPasswordsWrittenInFileOrder() throws IOException {
+		assertTrue(set("APP1", "old1", "new1"));
+		assertTrue(set("APP1", "new1", "newer1"));
+		assertTrue(set("APP3", null, "new3"));
+		assertPassword("newer1", "APP1");
+		store.flush();
+		assertFalse(store.load());
+
+		PasswordStore written = PropertiesFormat.read(file);
+		assertEquals(3, written.size());
+		assertEquals("APP1", written.keyAt(0));
+		assertEquals("newer1", written.valueAt(0));
+		assertEquals("old2", written.get("APP2"));
+		assertEquals("new3", written.get("APP3"));
+		assertEquals(Arrays.asList("APP1", "APP2", "APP3"), store.appNames());
+	}
+
+	@Test
+	public void changeNeedsCurrentPassword() throws IOException {
+		assertFalse(set("APP1", "wrong", "new1"));
+		assertFalse(set("APP1", null, "new1"));
+		assertFalse(set("APP3", "old3", "new3"));
+		assertTrue(set("APP1", "old1", "new1"));
+		assertFalse(set("APP1", "old1", "newer1"));
+		assertPassword("new1", "APP1");
+	}
+
+	@Test
+	public void newPasswordHeldApartFromCaller() throws IOException {
+		Secret newPassword = Secret.of("new1");
+		try (Secret expected = Secret.of("old1")) {
+			assertTrue(store.compareAndSet("APP1", expected, newPassword));
+		}
+		newPassword.clear();
+		assertPassword("new1", "APP1");
+	}
+
+	@Test
+	public void fileChangedOnDiskReplacesChanges() throws IOException {
+		assertTrue(set("APP1", "old1", "new1"));
+		PasswordStore passwords = new PasswordStore();
+		passwords.put("APP1", "other1");
+		PropertiesFormat.replace(file, passwords);
+		file.toFile().setLastModified(System.currentTimeMillis() + 2000);
+
+		assertTrue(store.load());
+		assertPassword("other1", "APP1");
+	}
+
+	@Test
+	public void changesDuringFlushWrittenByNextFlush() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 50; i++) {
+				String appName = "NEW" + i;
+				futures.add(executor.submit(() -> {
+					assertTrue(set(appName, null, "new" + appName));
+					store.flush();
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		store.flush();
+
+		PasswordStore written = PropertiesFormat.read(file);
+		assertEquals(52, written.size());
+		for (int i = 0; i < 50; i++) {
+			assertEquals("newNEW" + i, written.get("NEW" + i));
+		}
+	}
+
+	@Test
+	public void closeWipesChanges() throws IOException {
+		assertTrue(set("APP1", "old1", "new1"));
+		store.close();
+		// Nothing left to write
+		store.flush();
+		assertTrue(store.load());
+		assertPassword("old1", "APP1");
+	}
+
+	private boolean set(String appName, String expected, String password) throws IOException {
+		try (Secret current = expected == null ? null : Secret.of(expected); Secret newPassword = Secret.of(password)) {
+			return store.compareAndSet(appName, current, newPassword);
+		}
+	}
+
+	private void assertPassword(String expected, String appName) throws IOException {
+		try (Secret password = store.get(appName)) {
+			assertEquals(expected, password.reveal());
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PropertiesFormatTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String[][] ENTRIES = {
+		{ "APP1", "Abcdefg1!" },
+		{ "key with spaces", "  leading and trailing  " },
+		{ "sep=a:b", "value=with:separators" },
+		{ "#hash", "!bang#hash" },
+		{ "!bang", "" },
+		{ "back\\slash", "ends with backslash\\" },
+		{ "controls", "tab\tnewline\nreturn\rfeed\f" },
+		{ "unicode", "p\u00e4ssw\u00f6rd \u20ac \u4e2d" },
+		{ "APP1", "later value wins" },
+	};
+
+	@Test
+	public void writtenFileLoadsWithProperties() throws IOException {
+		Properties expected = new Properties();
+		PasswordStore store = new PasswordStore();
+		for (String[] entry : ENTRIES) {
+			expected.setProperty(entry[0], entry[1]);
+			store.put(entry[0], entry[1]);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PropertiesFormat.write(out, store);
+
+		Properties loaded = new Properties();
+		loaded.load(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(expected, loaded);
+
+		// Read back in file order
+		Map<String, String> read = new LinkedHashMap<>();
+		PropertiesFormat.read(new InputStreamReader(new ByteArrayInputStream(out.toByteArray()), StandardCharsets.ISO_8859_1), read::put);
+		assertEquals(expected, toProperties(read));
+		assertEquals(store.size(), read.size());
+	}
+
+	@Test
+	public void fileStoredByPropertiesReadsTheSame() throws IOException {
+		Properties stored = new Properties();
+		for (String[] entry : ENTRIES) {
+			stored.setProperty(entry[0], entry[1]);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		stored.store(out, "comment line");
+
+		Map<String, String> read = new LinkedHashMap<>();
+		PropertiesFormat.read(new InputStreamReader(new ByteArrayInputStream(out.toByteArray()), StandardCharsets.ISO_8859_1), read::put);
+		assertEquals(stored, toProperties(read));
+	}
+
+	@Test
+	public void parsesLikeProperties() throws IOException {
+		String text = "# comment\n"
+				+ "! other comment\n"
+				+ "\n"
+				+ "   indented = value\n"
+				+ "colon:value\n"
+				+ "space separated value\n"
+				+ "tab\tseparated\n"
+				+ "escaped\\ key\\=x = y\n"
+				+ "continued = first \\\n"
+				+ "     second\\\n"
+				+ "third\n"
+				+ "even\\\\\n"
+				+ "next = line\n"
+				+ "noValue\n"
+				+ "unicode = \\u0041\\u00e9\n"
+				+ "unknown = \\q\\z\n";
+		Properties expected = new Properties();
+		expected.load(new StringReader(text));
+
+		Map<String, String> read = new LinkedHashMap<>();
+		PropertiesFormat.read(new StringReader(text), read::put);
+		assertEquals(expected, toProperties(read));
+	}
+
+	@Test
+	public void malformedUnicodeEscapeFailsRead() {
+		for (String text : new String[] { "key = \\u12", "key = \\u12x4", "key\\uzzzz = value" }) {
+			try {
+				PropertiesFormat.read(new StringReader(text), (key, value) -> fail("Read '" + text + "'"));
+				fail("Read '" + text + "'");
+			} catch (IOException expected) {
+				// Reported as unreadable
+			}
+		}
+	}
+
+	@Test
+	public void replaceKeepsPermissions() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("passwords.properties");
+		assumeTrue(file.getFileSystem().supportedFileAttributeViews().contains("posix"));
+		PasswordStore store = new PasswordStore();
+		store.put("APP1", "old1");
+		PropertiesFormat.replace(file, store);
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+
+		Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r-----"));
+		store.put("APP1", "new1");
+		PropertiesFormat.replace(file, store);
+		assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+		assertEquals("new1", PropertiesFormat.read(file).get("APP1"));
+		assertFalse(Files.exists(file.resolveSibling("passwords.properties.tmp")));
+	}
+
+	@Test
+	public void escapedEntryMatchesProperties() {
+		StringBuilder sb = new StringBuilder();
+		PropertiesFormat.appendEntry(sb, "a key", " a value");
+		assertEquals("a\\ key=\\ a value", sb.toString());
+	}
+
+	private static Properties toProperties(Map<String, String> entries) {
+		Properties properties = new Properties();
+		entries.forEach(properties::setProperty);
+		return properties;
+	}
+}
@@ -0,0 +1,121 @@
+package uk.gov.dvla.osg.appPwdUpdate.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint.State;
+
+public class RotationCheckpointTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path passwordsFile;
+	private RotationCheckpoint checkpoint;
+
+	@Before
+	public void createCheckpoint() {
+		passwordsFile = folder.getRoot().toPath().resolve("passwords.properties");
+		checkpoint = new RotationCheckpoint(passwordsFile);
+	}
+
+	@After
+	public void closeCheckpoint() {
+		checkpoint.close();
+	}
+
+	@Test
+	public void startsWithEveryApplicationPending() throws IOException {
+		assertFalse(checkpoint.exists());
+		checkpoint.start(Arrays.asList("APP1", "APP2"));
+
+		assertTrue(checkpoint.exists());
+		assertEquals(Arrays.asList("APP1", "APP2"), checkpoint.getApps());
+		assertEquals(State.PENDING, checkpoint.getState("APP1"));
+		assertFalse(checkpoint.isComplete());
+	}
+
+	@Test
+	public void loadsLastStateRecorded() throws IOException {
+		checkpoint.start(Arrays.asList("APP1", "APP2", "APP3"));
+		checkpoint.mark("APP1", State.IN_FLIGHT);
+		checkpoint.mark("APP1", State.ROTATED);
+		checkpoint.mark("APP2", State.FAILED);
+		checkpoint.close();
+
+		RotationCheckpoint resumed = new RotationCheckpoint(passwordsFile);
+		resumed.load();
+		assertEquals(Arrays.asList("APP1", "APP2", "APP3"), resumed.getApps());
+		assertEquals(State.ROTATED, resumed.getState("APP1"));
+		assertEquals(State.FAILED, resumed.getState("APP2"));
+		assertEquals(State.PENDING, resumed.getState("APP3"));
+
+		// Further states are appended to the same checkpoint
+		resumed.mark("APP3", State.DEFERRED);
+		resumed.close();
+		checkpoint.load();
+		assertEquals(State.DEFERRED, checkpoint.getState("APP3"));
+	}
+
+	@Test
+	public void tornEntryLeavesPreviousState() throws IOException {
+		checkpoint.start(Arrays.asList("APP1", "APP2"));
+		checkpoint.mark("APP1", State.IN_FLIGHT);
+		checkpoint.close();
+		Files.write(checkpointFile(), "APP1=ROTA".getBytes(StandardCharsets.ISO_8859_1), StandardOpenOption.APPEND);
+
+		checkpoint.load();
+		assertEquals(State.IN_FLIGHT, checkpoint.getState("APP1"));
+		assertEquals(State.PENDING, checkpoint.getState("APP2"));
+	}
+
+	@Test
+	public void completeOnceEveryApplicationRotated() throws IOException {
+		checkpoint.start(Arrays.asList("APP1", "APP2"));
+		checkpoint.mark("APP1", State.ROTATED);
+		checkpoint.mark("APP2", State.DEFERRED);
+		assertFalse(checkpoint.isComplete());
+		checkpoint.mark("APP2", State.ROTATED);
+		assertTrue(checkpoint.isComplete());
+
+		checkpoint.delete();
+		assertFalse(checkpoint.exists());
+		assertTrue(checkpoint.getApps().isEmpty());
+	}
+
+	@Test
+	public void startReplacesPreviousCheckpoint() throws IOException {
+		checkpoint.start(Arrays.asList("APP1", "APP2"));
+		checkpoint.mark("APP1", State.ROTATED);
+		checkpoint.start(Arrays.asList("APP3"));
+		checkpoint.close();
+
+		checkpoint.load();
+		assertEquals(Arrays.asList("APP3"), checkpoint.getApps());
+	}
+
+	@Test
+	public void missingCheckpointLoadsNothing() throws IOException {
+		checkpoint.load();
+		assertTrue(checkpoint.getApps().isEmpty());
+		assertFalse(checkpoint.exists());
+	}
+
+	private Path checkpointFile() {
+		return passwordsFile.resolveSibling("passwords.properties.checkpoint");
+	}
+}
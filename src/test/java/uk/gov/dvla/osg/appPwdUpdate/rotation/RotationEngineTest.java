@@ -0,0 +1,293 @@
+package uk.gov.dvla.osg.appPwdUpdate.rotation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.ThreadContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.gov.dvla.osg.appPwdUpdate.networking.NetworkConfig;
+import uk.gov.dvla.osg.appPwdUpdate.networking.RateLimiter;
+import uk.gov.dvla.osg.appPwdUpdate.networking.RpdTransport;
+import uk.gov.dvla.osg.appPwdUpdate.networking.SessionManager;
+import uk.gov.dvla.osg.appPwdUpdate.networking.StubUpdater;
+import uk.gov.dvla.osg.appPwdUpdate.networking.UpdateBatcher;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordJournal;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PasswordPublisher;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.PropertiesCredentialStore;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint;
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationCheckpoint.State;
+import uk.gov.dvla.osg.appPwdUpdate.utils.LogFields;
+import uk.gov.dvla.osg.appPwdUpdate.utils.Secret;
+
+public class RotationEngineTest {
+
+	private static final List<String> APPS = Arrays.asList("APP1", "APP2", "APP3", "APP4", "APP5", "APP6");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private NetworkConfig config;
+	private PropertiesCredentialStore store;
+	private PasswordJournal journal;
+	private RotationCheckpoint checkpoint;
+	private StubSession session;
+
+	@Before
+	public void createFiles() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("passwords.properties");
+		List<String> lines = new ArrayList<>();
+		for (String appName : APPS) {
+			lines.add(appName + "=old" + appName);
+		}
+		Files.write(file, lines, StandardCharsets.ISO_8859_1);
+		store = new PropertiesCredentialStore(file);
+		store.load();
+		journal = new PasswordJournal(file, store);
+		checkpoint = new RotationCheckpoint(file);
+		checkpoint.start(APPS);
+		config = new NetworkConfig("http://", "localhost", "0", "/login", "/logout", "/update/");
+		Map<String, Secret> credentials = new LinkedHashMap<>();
+		for (String appName : APPS) {
+			credentials.put(appName, store.get(appName));
+		}
+		session = new StubSession(config, credentials);
+	}
+
+	@Test
+	public void defaultsToOneUpdateAtATime() {
+		assertEquals(1, new NetworkConfig().getParallelism());
+	}
+
+	@Test
+	public void everyApplicationRotatedInOrderSupplied() throws IOException {
+		config.setParallelism(4);
+		Map<String, Secret> updated = rotate(new StubUpdater(config).thenSuccess(), APPS);
+
+		assertEquals(APPS, new ArrayList<>(updated.keySet()));
+		for (String appName : APPS) {
+			assertTrue(store.get(appName).contentEquals(updated.get(appName).chars()));
+			assertEquals(State.ROTATED, checkpoint.getState(appName));
+		}
+		assertEquals(APPS.size(), journal.readCommitted().size());
+	}
+
+	@Test
+	public void targetCopiedToWorkers() throws IOException {
+		config.setParallelism(4);
+		StubUpdater updater = new StubUpdater(config).thenSuccess();
+		ThreadContext.put(LogFields.TARGET, "rpd1.properties");
+		try {
+			rotate(updater, APPS);
+		} finally {
+			ThreadContext.remove(LogFields.TARGET);
+		}
+
+		assertEquals(Collections.nCopies(APPS.size(), "rpd1.properties"), updater.getTargets());
+	}
+
+	@Test
+	public void rejectedPasswordRetriedOnce() throws IOException {
+		StubUpdater updater = new StubUpdater(config).thenRejected(400, "RPD-400").thenSuccess();
+		Map<String, Secret> updated = rotate(updater, APPS.subList(0, 1));
+
+		assertEquals(2, updater.getTokens().size());
+		assertTrue(store.get("APP1").contentEquals(updated.get("APP1").chars()));
+		assertEquals(State.ROTATED, checkpoint.getState("APP1"));
+	}
+
+	@Test
+	public void secondRejectionFailsApplication() throws IOException {
+		StubUpdater updater = new StubUpdater(config).thenRejected(400, "RPD-400");
+		Map<String, Secret> updated = rotate(updater, APPS.subList(0, 1));
+
+		assertEquals(2, updater.getTokens().size());
+		assertTrue(updated.isEmpty());
+		assertTrue(store.get("APP1").contentEquals("oldAPP1"));
+		assertEquals(State.FAILED, checkpoint.getState("APP1"));
+		assertTrue(journal.readCommitted().isEmpty());
+	}
+
+	@Test
+	public void throttledUpdateDoesNotUseAnAttempt() throws IOException {
+		StubUpdater updater = new StubUpdater(config).thenRejected(503, null).thenRejected(400, "RPD-400").thenSuccess();
+		Map<String, Secret> updated = rotate(updater, APPS.subList(0, 1));
+
+		assertEquals(3, updater.getTokens().size());
+		assertTrue(updated.containsKey("APP1"));
+	}
+
+	@Test
+	public void rejectedTokenRenewedWithoutUsingAnAttempt() throws IOException {
+		config.setTokenRejectedCode("TOKEN");
+		StubUpdater updater = new StubUpdater(config).thenRejected(401, "TOKEN").thenRejected(400, "RPD-400").thenSuccess();
+		Map<String, Secret> updated = rotate(updater, APPS.subList(0, 1));
+
+		assertEquals(Arrays.asList("token0", "token1", "token1"), updater.getTokens());
+		assertEquals(1, session.renewals.get());
+		assertTrue(updated.containsKey("APP1"));
+	}
+
+	@Test
+	public void tokenRenewedOnceInEachAttempt() throws IOException {
+		config.setTokenRejectedCode("TOKEN");
+		StubUpdater updater = new StubUpdater(config).thenRejected(401, "TOKEN");
+		Map<String, Secret> updated = rotate(updater, APPS.subList(0, 1));
+
+		// A fresh token rejected again counts as an attempt
+		assertEquals(Arrays.asList("token0", "token1", "token2"), updater.getTokens());
+		assertTrue(updated.isEmpty());
+		assertEquals(State.FAILED, checkpoint.getState("APP1"));
+	}
+
+	@Test
+	public void unauthorizedWithoutCodeUsesAnAttempt() throws IOException {
+		StubUpdater updater = new StubUpdater(config).thenRejected(401, null);
+		Map<String, Secret> updated = rotate(updater, APPS.subList(0, 1));
+
+		// The current password may be wrong, so it is not sent more often than the attempts allow
+		assertEquals(Arrays.asList("token0", "token1"), updater.getTokens());
+		assertTrue(updated.isEmpty());
+		assertEquals(State.FAILED, checkpoint.getState("APP1"));
+	}
+
+	@Test
+	public void unsentUpdateDeferredAndTriedAgain() throws IOException {
+		StubUpdater updater = new StubUpdater(config).thenNotSent().thenSuccess();
+		Map<String, Secret> updated = rotate(updater, APPS.subList(0, 1));
+
+		assertEquals(2, updater.getTokens().size());
+		assertTrue(updated.containsKey("APP1"));
+		assertEquals(State.ROTATED, checkpoint.getState("APP1"));
+	}
+
+	@Test
+	public void unreachableApplicationLeftDeferred() throws IOException {
+		StubUpdater updater = new StubUpdater(config).thenNotSent();
+		Map<String, Secret> updated = rotate(updater, APPS.subList(0, 1));
+
+		// Sent once, then once for each probe
+		assertEquals(1 + config.getCircuitBreakerProbes(), updater.getTokens().size());
+		assertTrue(updated.isEmpty());
+		assertEquals(State.DEFERRED, checkpoint.getState("APP1"));
+		assertTrue(store.get("APP1").contentEquals("oldAPP1"));
+	}
+
+	@Test
+	public void unansweredApplicationLeftInFlight() throws IOException {
+		StubUpdater updater = new StubUpdater(config).thenNoResponse().thenSuccess();
+		Map<String, Secret> updated = rotate(updater, APPS.subList(0, 1));
+
+		// RPD may have applied the update, so the old password is not sent again
+		assertEquals(1, updater.getTokens().size());
+		assertTrue(updated.isEmpty());
+		assertEquals(State.IN_FLIGHT, checkpoint.getState("APP1"));
+		assertTrue(store.get("APP1").contentEquals("oldAPP1"));
+	}
+
+	@Test
+	public void unreadableBatchResponseNotSentAgain() throws IOException {
+		List<String> batched = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger singles = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/batch", exchange -> {
+			try (Reader in = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+				for (JsonElement update : new JsonParser().parse(in).getAsJsonObject().getAsJsonArray("updates")) {
+					batched.add(update.getAsJsonObject().get("name").getAsString());
+				}
+			}
+			respond(exchange, "<html>OK</html>");
+		});
+		server.createContext("/update/", exchange -> {
+			singles.incrementAndGet();
+			respond(exchange, "{}");
+		});
+		server.start();
+		try {
+			config = new NetworkConfig("http://", "localhost", String.valueOf(server.getAddress().getPort()),
+					"/login", "/logout", "/update/");
+			config.setBatchUpdateUrl("/batch");
+			config.setUpdateBatchSize(3);
+			config.setParallelism(3);
+			UpdateBatcher updater = new UpdateBatcher(config, new RateLimiter(0, 3));
+			Map<String, Secret> updated = rotate(updater, APPS);
+
+			assertTrue(updated.isEmpty());
+			List<String> sent = new ArrayList<>(batched);
+			Collections.sort(sent);
+			assertEquals(APPS, sent);
+			assertEquals(0, singles.get());
+			for (String appName : APPS) {
+				assertEquals(State.IN_FLIGHT, checkpoint.getState(appName));
+			}
+		} finally {
+			RpdTransport.close();
+			server.stop(0);
+		}
+	}
+
+	private Map<String, Secret> rotate(UpdateBatcher updater, List<String> appNames) throws IOException {
+		PasswordPublisher publisher = new PasswordPublisher(store, 1, 0);
+		Map<String, Secret> apps = new LinkedHashMap<>();
+		for (String appName : appNames) {
+			apps.put(appName, store.get(appName));
+		}
+		Map<String, Secret> updated = new RotationEngine(config, session, journal, publisher, checkpoint, updater).rotate(apps);
+		publisher.flush();
+		return updated;
+	}
+
+	private static void respond(HttpExchange exchange, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Session that is always logged in, each renewal giving a new token.
+	 */
+	private static class StubSession extends SessionManager {
+		final AtomicInteger renewals = new AtomicInteger();
+
+		StubSession(NetworkConfig config, Map<String, Secret> credentials) {
+			super(config, credentials);
+		}
+
+		@Override
+		public String getToken() {
+			return "token" + renewals.get();
+		}
+
+		@Override
+		public String renew(String rejected) {
+			return "token" + renewals.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package uk.gov.dvla.osg.appPwdUpdate.rotation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import uk.gov.dvla.osg.appPwdUpdate.networking.NetworkConfig;
+
+public class RotationPlanTest {
+
+	private static final long LOGIN = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final long LOGOUT = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long GENERATE = TimeUnit.MILLISECONDS.toNanos(5);
+
+	@Test
+	public void updatesRunAtConfiguredParallelism() {
+		RotationPlan plan = plan("{\"parallelism\":4}", 10);
+
+		assertEquals(10, plan.getRequests());
+		// Three rounds of four concurrent requests, each as long as a logout
+		assertEquals(LOGIN + 3 * LOGOUT + GENERATE + LOGOUT, plan.getEstimatedNanos());
+	}
+
+	@Test
+	public void concurrencyCappedByMaxConcurrentRequests() {
+		RotationPlan plan = plan("{\"parallelism\":8,\"maxConcurrentRequests\":2}", 10);
+
+		assertEquals(LOGIN + 5 * LOGOUT + GENERATE + LOGOUT, plan.getEstimatedNanos());
+	}
+
+	@Test
+	public void batchesCountedAsOneRequestEach() {
+		RotationPlan plan = plan("{\"parallelism\":8,\"batchUpdateUrl\":\"/batch\",\"updateBatchSize\":4}", 10);
+
+		assertEquals(3, plan.getRequests());
+		// Concurrency cannot exceed the number of requests, so all three are sent in one round
+		assertEquals(LOGIN + LOGOUT + GENERATE + LOGOUT, plan.getEstimatedNanos());
+	}
+
+	@Test
+	public void batchSizeIgnoredWithoutBatchService() {
+		assertEquals(10, plan("{\"updateBatchSize\":4}", 10).getRequests());
+	}
+
+	@Test
+	public void rateLimitSetsLowerBound() {
+		RotationPlan plan = plan("{\"parallelism\":10,\"maxRequestsPerSecond\":2}", 10);
+
+		// One round of requests would take 100ms, but ten requests at two a second take five seconds
+		assertEquals(LOGIN + TimeUnit.SECONDS.toNanos(5) + GENERATE + LOGOUT, plan.getEstimatedNanos());
+	}
+
+	@Test
+	public void noApplicationsOnlyLogsInAndOut() {
+		RotationPlan plan = plan("{\"parallelism\":4}", 0);
+
+		assertEquals(0, plan.getRequests());
+		assertEquals(LOGIN + GENERATE + LOGOUT, plan.getEstimatedNanos());
+	}
+
+	@Test
+	public void formatsAsHoursMinutesSeconds() {
+		assertEquals("0:00:00", RotationPlan.format(TimeUnit.MILLISECONDS.toNanos(499)));
+		assertEquals("0:00:01", RotationPlan.format(TimeUnit.MILLISECONDS.toNanos(500)));
+		assertEquals("1:02:03", RotationPlan.format(TimeUnit.SECONDS.toNanos(3723)));
+	}
+
+	private static RotationPlan plan(String json, int apps) {
+		return new RotationPlan(new Gson().fromJson(json, NetworkConfig.class), apps, LOGIN, LOGOUT, GENERATE);
+	}
+}
@@ -0,0 +1,130 @@
+package uk.gov.dvla.osg.appPwdUpdate.rotation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+import uk.gov.dvla.osg.appPwdUpdate.persistence.RotationHistory;
+
+public class RotationPolicyTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final long NOW = TimeUnit.DAYS.toMillis(20000);
+	private static final List<String> APPS = Arrays.asList("APP1", "APP2", "BATCH1", "APP3", "TEST1", "BATCH2");
+
+	private Path passwordsFile;
+	private RotationHistory history;
+
+	@Before
+	public void setUp() {
+		passwordsFile = folder.getRoot().toPath().resolve("passwords.properties");
+		history = new RotationHistory(passwordsFile);
+	}
+
+	@Test
+	public void defaultPolicyKeepsFileOrder() {
+		assertEquals(APPS, policy("{}").select(APPS, history, NOW));
+		assertEquals(APPS, policy("{}").order(APPS));
+	}
+
+	@Test
+	public void includeAndExclude() {
+		assertEquals(Arrays.asList("APP1", "APP2", "APP3"), policy("{include:['APP.*']}").select(APPS, history, NOW));
+		assertEquals(Arrays.asList("APP1", "APP2", "APP3", "BATCH2"),
+				policy("{exclude:['TEST.*','BATCH1']}").select(APPS, history, NOW));
+		// Exclude wins over include, and a pattern must match the whole name
+		assertEquals(Arrays.asList("APP1", "APP3"),
+				policy("{include:['APP.*','BATCH'],exclude:['APP2']}").select(APPS, history, NOW));
+	}
+
+	@Test
+	public void priorityOrder() {
+		RotationPolicy policy = policy("{priority:['TEST.*','BATCH.*']}");
+		List<String> expected = Arrays.asList("TEST1", "BATCH1", "BATCH2", "APP1", "APP2", "APP3");
+		assertEquals(expected, policy.select(APPS, history, NOW));
+		assertEquals(expected, policy.order(APPS));
+	}
+
+	@Test
+	public void longestAgoFirstWithinPriority() {
+		history.recordRotation("APP1", NOW - TimeUnit.DAYS.toMillis(1));
+		history.recordRotation("APP2", NOW - TimeUnit.DAYS.toMillis(30));
+		history.recordRotation("BATCH2", NOW - TimeUnit.DAYS.toMillis(60));
+		history.recordRotation("TEST1", NOW - TimeUnit.DAYS.toMillis(2));
+
+		// Never rotated go first, in file order
+		assertEquals(Arrays.asList("BATCH1", "APP3", "BATCH2", "APP2", "TEST1", "APP1"),
+				policy("{}").select(APPS, history, NOW));
+		assertEquals(Arrays.asList("TEST1", "BATCH1", "APP3", "BATCH2", "APP2", "APP1"),
+				policy("{priority:['TEST1']}").select(APPS, history, NOW));
+		// Resuming ignores age
+		assertEquals(Arrays.asList("TEST1", "APP1", "APP2", "BATCH1", "APP3", "BATCH2"),
+				policy("{priority:['TEST1']}").order(APPS));
+	}
+
+	@Test
+	public void maxAgeSkipsRecentlyRotated() {
+		history.recordRotation("APP1", NOW - TimeUnit.DAYS.toMillis(30) + 1);
+		history.recordRotation("APP2", NOW - TimeUnit.DAYS.toMillis(30));
+		history.recordRotation("APP3", NOW - TimeUnit.DAYS.toMillis(90));
+
+		assertEquals(Arrays.asList("BATCH1", "TEST1", "BATCH2", "APP3", "APP2"),
+				policy("{maxAgeDays:30}").select(APPS, history, NOW));
+	}
+
+	@Test
+	public void maxAppsPerRunTakesFirstInOrder() {
+		history.recordRotation("APP1", NOW - TimeUnit.DAYS.toMillis(1));
+		RotationPolicy policy = policy("{priority:['BATCH.*'],maxAppsPerRun:3}");
+		assertEquals(Arrays.asList("BATCH1", "BATCH2", "APP2"), policy.select(APPS, history, NOW));
+		assertEquals(Arrays.asList("APP2", "BATCH1"), policy("{maxAppsPerRun:2}").select(APPS, history, NOW));
+		// No limit
+		assertEquals(6, policy("{maxAppsPerRun:0}").select(APPS, history, NOW).size());
+	}
+
+	@Test
+	public void historySavedAndLoaded() throws IOException {
+		history.load();
+		assertEquals(-1, history.getLastRotated("APP1"));
+
+		history.recordRotation("APP1", NOW);
+		history.recordRotation("APP 2", NOW - 1);
+		history.save();
+
+		RotationHistory loaded = new RotationHistory(passwordsFile);
+		loaded.load();
+		assertEquals(NOW, loaded.getLastRotated("APP1"));
+		assertEquals(NOW - 1, loaded.getLastRotated("APP 2"));
+		assertEquals(-1, loaded.getLastRotated("APP3"));
+	}
+
+	@Test
+	public void invalidHistoryEntryTreatedAsNeverRotated() throws IOException {
+		Files.write(passwordsFile.resolveSibling("passwords.properties.rotated"),
+				"APP1=yesterday\nAPP2= 1000 \n".getBytes(StandardCharsets.ISO_8859_1));
+		history.load();
+		assertEquals(-1, history.getLastRotated("APP1"));
+		assertEquals(1000, history.getLastRotated("APP2"));
+		assertEquals(Arrays.asList("APP1", "BATCH1", "APP3", "TEST1", "BATCH2", "APP2"),
+				policy("{maxAgeDays:1}").select(APPS, history, NOW));
+	}
+
+	private static RotationPolicy policy(String json) {
+		return new Gson().fromJson(json, RotationPolicy.class);
+	}
+}
@@ -0,0 +1,154 @@
+package uk.gov.dvla.osg.appPwdUpdate.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import org.junit.Test;
+
+public class CronScheduleTest {
+
+	private static final ZoneId LONDON = ZoneId.of("Europe/London");
+
+	@Test
+	public void nextIsLaterThanTimeGiven() {
+		CronSchedule schedule = CronSchedule.parse("30 2 * * *");
+		assertEquals(time("2024-03-05T02:30"), schedule.next(time("2024-03-05T01:00")));
+		assertEquals(time("2024-03-06T02:30"), schedule.next(time("2024-03-05T02:30")));
+	}
+
+	@Test
+	public void stepsRangesAndLists() {
+		CronSchedule schedule = CronSchedule.parse("*/15 9-17/4 * * *");
+		assertEquals(time("2024-03-05T09:15"), schedule.next(time("2024-03-05T09:00")));
+		assertEquals(time("2024-03-05T13:00"), schedule.next(time("2024-03-05T09:45")));
+		assertEquals(time("2024-03-06T09:00"), schedule.next(time("2024-03-05T17:45")));
+
+		schedule = CronSchedule.parse("5/20 1,3 * * *");
+		assertEquals(time("2024-03-05T01:45"), schedule.next(time("2024-03-05T01:25")));
+		assertEquals(time("2024-03-05T03:05"), schedule.next(time("2024-03-05T01:45")));
+	}
+
+	@Test
+	public void namesAndSundayAsSeven() {
+		// 2024-03-05 is a Tuesday
+		CronSchedule weekdays = CronSchedule.parse("0 2 * * mon-FRI");
+		assertEquals(time("2024-03-11T02:00"), weekdays.next(time("2024-03-08T03:00")));
+
+		CronSchedule sunday = CronSchedule.parse("0 2 * * 7");
+		assertEquals(time("2024-03-10T02:00"), sunday.next(time("2024-03-05T00:00")));
+		assertEquals(sunday.next(time("2024-03-05T00:00")), CronSchedule.parse("0 2 * * SUN").next(time("2024-03-05T00:00")));
+
+		CronSchedule june = CronSchedule.parse("0 0 1 JUN *");
+		assertEquals(time("2024-06-01T00:00"), june.next(time("2024-03-05T00:00")));
+	}
+
+	@Test
+	public void dayOfMonthOrDayOfWeek() {
+		// Restricting both includes a day matching either
+		CronSchedule schedule = CronSchedule.parse("0 0 15 * MON");
+		assertEquals(time("2024-03-11T00:00"), schedule.next(time("2024-03-05T00:00")));
+		assertEquals(time("2024-03-15T00:00"), schedule.next(time("2024-03-11T00:00")));
+
+		// Restricting one leaves the other unrestricted
+		schedule = CronSchedule.parse("0 0 15 * *");
+		assertEquals(time("2024-03-15T00:00"), schedule.next(time("2024-03-05T00:00")));
+	}
+
+	@Test
+	public void leapDay() {
+		CronSchedule schedule = CronSchedule.parse("0 0 29 2 *");
+		assertEquals(time("2028-02-29T00:00"), schedule.next(time("2024-03-01T00:00")));
+	}
+
+	@Test
+	public void timeSkippedByClockChangeRunsAfterIt() {
+		// Clocks go forward from 01:00 to 02:00 on 2024-03-31
+		CronSchedule schedule = CronSchedule.parse("30 1 * * *");
+		assertEquals(ZonedDateTime.of(2024, 3, 31, 2, 30, 0, 0, LONDON), schedule.next(time("2024-03-31T00:00")));
+	}
+
+	@Test
+	public void monthAndDayOfWeekTogether() {
+		// Mondays in February only, 2024-03-05 is a Tuesday and 2025-02-03 the first Monday of February
+		CronSchedule schedule = CronSchedule.parse("0 0 * FEB MON");
+		assertEquals(time("2025-02-03T00:00"), schedule.next(time("2024-03-05T00:00")));
+		assertEquals(time("2025-02-10T00:00"), schedule.next(time("2025-02-03T00:00")));
+		assertEquals(time("2026-02-02T00:00"), schedule.next(time("2025-02-24T00:00")));
+
+		// Sundays in December, across the end of the year
+		schedule = CronSchedule.parse("0 3 * 12 0");
+		assertEquals(time("2025-12-07T03:00"), schedule.next(time("2024-12-29T03:00")));
+	}
+
+	@Test
+	public void monthsWithoutTheDaySkipped() {
+		CronSchedule schedule = CronSchedule.parse("0 0 31 * *");
+		assertEquals(time("2024-05-31T00:00"), schedule.next(time("2024-03-31T00:00")));
+		assertEquals(time("2025-01-31T00:00"), schedule.next(time("2024-12-31T00:00")));
+	}
+
+	@Test
+	public void lastMinuteOfYear() {
+		CronSchedule schedule = CronSchedule.parse("59 23 31 12 *");
+		assertEquals(time("2024-12-31T23:59"), schedule.next(time("2024-12-31T23:58")));
+		assertEquals(time("2025-12-31T23:59"), schedule.next(time("2024-12-31T23:59")));
+	}
+
+	@Test
+	public void everyMinuteAcrossClockChanges() {
+		CronSchedule schedule = CronSchedule.parse("* * * * *");
+		// The minute after 00:59 GMT is 02:00 BST
+		assertEquals(ZonedDateTime.of(2024, 3, 31, 2, 0, 0, 0, LONDON), schedule.next(time("2024-03-31T00:59")));
+		// The minute after 01:59 BST is 01:00 GMT, which is skipped as the local time has already passed
+		ZonedDateTime summer = ZonedDateTime.ofLocal(LocalDateTime.parse("2024-10-27T01:59"), LONDON, ZoneOffset.ofHours(1));
+		assertEquals(ZonedDateTime.ofLocal(LocalDateTime.parse("2024-10-27T02:00"), LONDON, null), schedule.next(summer));
+	}
+
+	@Test
+	public void timeRepeatedByClockChangeRunsOnce() {
+		// Clocks go back from 02:00 to 01:00 on 2024-10-27, so 01:30 happens twice
+		CronSchedule schedule = CronSchedule.parse("30 1 * * *");
+		ZonedDateTime first = schedule.next(time("2024-10-27T00:00"));
+		assertEquals(ZoneOffset.ofHours(1), first.getOffset());
+		assertEquals(time("2024-10-28T01:30"), schedule.next(first));
+
+		// Searching from the repeated hour does not find 01:30 again
+		ZonedDateTime repeated = ZonedDateTime.ofLocal(LocalDateTime.parse("2024-10-27T01:10"), LONDON, ZoneOffset.UTC);
+		assertEquals(time("2024-10-28T01:30"), schedule.next(repeated));
+	}
+
+	@Test
+	public void invalidSchedulesRejected() {
+		String[] invalid = {
+			"0 2 * *",
+			"0 2 * * * *",
+			"60 2 * * *",
+			"0 24 * * *",
+			"0 0 0 * *",
+			"0 0 * 13 *",
+			"0 0 * * 8",
+			"5-1 * * * *",
+			"*/0 * * * *",
+			"0 0 * * MONDAY",
+			"x * * * *",
+			"0 0 30 FEB *",
+		};
+		for (String expression : invalid) {
+			try {
+				CronSchedule.parse(expression);
+				fail("Accepted schedule '" + expression + "'");
+			} catch (IllegalArgumentException expected) {
+				// Rejected
+			}
+		}
+	}
+
+	private static ZonedDateTime time(String localTime) {
+		return ZonedDateTime.of(LocalDateTime.parse(localTime), LONDON);
+	}
+}
@@ -0,0 +1,170 @@
+package uk.gov.dvla.osg.appPwdUpdate.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import uk.gov.dvla.osg.appPwdUpdate.networking.BatchUpdateResponseModel;
+import uk.gov.dvla.osg.appPwdUpdate.networking.LoginBadResponseModel;
+
+public class JsonUtilsTest {
+
+	private static final Gson GSON = new Gson();
+
+	private static final String[] PASSWORDS = {
+		"Abcdefg1!",
+		"quote\"back\\slash/",
+		"controls\t\n\r\b\f\u0000\u001f",
+		"separators\u2028\u2029",
+		"html<>&='",
+		"unicode p\u00e4ssw\u00f6rd \u20ac \u4e2d \ud83d\udd11",
+		"",
+	};
+
+	@Test
+	public void updateBodyParsesBack() {
+		for (String oldPassword : PASSWORDS) {
+			for (String newPassword : PASSWORDS) {
+				JsonObject body = parse(JsonUtils.encodeUpdateBody(Secret.of(oldPassword), Secret.of(newPassword)));
+				assertEquals(3, body.size());
+				assertEquals(oldPassword, body.get("User.password").getAsString());
+				assertEquals(newPassword, body.get("User.passwordNew").getAsString());
+				assertEquals(newPassword, body.get("User.passwordConfirm").getAsString());
+			}
+		}
+	}
+
+	@Test
+	public void updateBodyNotHtmlEscaped() {
+		String body = new String(JsonUtils.encodeUpdateBody(Secret.of("a=b<c>&'"), Secret.of("\u00e4\"")), StandardCharsets.UTF_8);
+		assertEquals("{\"User.password\":\"a=b<c>&'\",\"User.passwordNew\":\"\u00e4\\\"\",\"User.passwordConfirm\":\"\u00e4\\\"\"}", body);
+	}
+
+	@Test
+	public void controlCharactersEscaped() {
+		String body = new String(JsonUtils.encodeUpdateBody(Secret.of("\n\u2028"), Secret.of("\\")), StandardCharsets.UTF_8);
+		assertEquals("{\"User.password\":\"\\u000a\\u2028\",\"User.passwordNew\":\"\\\\\",\"User.passwordConfirm\":\"\\\\\"}", body);
+	}
+
+	@Test
+	public void batchBodyParsesBack() {
+		List<String> names = Arrays.asList("APP1", "app \"two\"", "APP3");
+		List<Secret> oldPasswords = Arrays.asList(Secret.of(PASSWORDS[0]), Secret.of(PASSWORDS[1]), Secret.of(PASSWORDS[2]));
+		List<Secret> newPasswords = Arrays.asList(Secret.of(PASSWORDS[3]), Secret.of(PASSWORDS[4]), Secret.of(PASSWORDS[5]));
+
+		JsonArray updates = parse(JsonUtils.encodeBatchUpdateBody(names, oldPasswords, newPasswords)).getAsJsonArray("updates");
+		assertEquals(names.size(), updates.size());
+		for (int i = 0; i < names.size(); i++) {
+			JsonObject update = updates.get(i).getAsJsonObject();
+			assertEquals(4, update.size());
+			assertEquals(names.get(i), update.get("name").getAsString());
+			assertEquals(PASSWORDS[i], update.get("User.password").getAsString());
+			assertEquals(PASSWORDS[i + 3], update.get("User.passwordNew").getAsString());
+			assertEquals(PASSWORDS[i + 3], update.get("User.passwordConfirm").getAsString());
+		}
+	}
+
+	@Test
+	public void emptyBatchBody() {
+		byte[] body = JsonUtils.encodeBatchUpdateBody(Arrays.asList(), Arrays.asList(), Arrays.asList());
+		assertEquals("{\"updates\":[]}", new String(body, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void tokenRead() {
+		assertEquals("abc123", JsonUtils.getTokenFromJson("{\"token\":\"abc123\"}"));
+		assertEquals("abc123", JsonUtils.getTokenFromJson("{\"user\":{\"token\":\"nested\"},\"expires\":[1,2],\"token\":\"abc123\"}"));
+	}
+
+	@Test
+	public void tokenBlankWhenMissingOrMalformed() {
+		String[] bodies = {
+			"",
+			"{}",
+			"[\"token\"]",
+			"{\"token\":null}",
+			"{\"token\":{\"value\":\"abc\"}}",
+			"{\"token\":",
+			"{\"other\":1",
+			"not json",
+			"<html>Service Unavailable</html>",
+		};
+		for (String body : bodies) {
+			assertEquals(body, "", JsonUtils.getTokenFromJson(body));
+			assertEquals(body, "", JsonUtils.readToken(new StringReader(body)));
+		}
+	}
+
+	@Test
+	public void errorsRead() {
+		LoginBadResponseModel errors = JsonUtils.readErrors(new StringReader(
+				"{\"attributeErrors\":{},\"generalErrors\":[{\"code\":\"E1\",\"message\":\"Bad password\",\"action\":\"Retry\"},{\"code\":\"E2\"}]}"));
+		assertEquals("E1", errors.getCode());
+		assertEquals("Bad password", errors.getMessage());
+		assertEquals("Retry", errors.getAction());
+	}
+
+	@Test
+	public void errorsNullWhenAbsentOrMalformed() {
+		String[] bodies = {
+			"",
+			"{}",
+			"{\"generalErrors\":[]}",
+			"{\"generalErrors\":null}",
+			"{\"generalErrors\":\"E1\"}",
+			"{\"generalErrors\":[{\"code\":",
+			"<html>Internal Server Error</html>",
+		};
+		for (String body : bodies) {
+			assertNull(body, JsonUtils.readErrors(new StringReader(body)));
+		}
+	}
+
+	@Test
+	public void batchResultsRead() {
+		BatchUpdateResponseModel model = JsonUtils.readBatchResults(new StringReader(
+				"{\"results\":[{\"name\":\"APP1\",\"status\":200},"
+				+ "{\"name\":\"APP2\",\"status\":400,\"generalErrors\":[{\"code\":\"E1\",\"message\":\"Too short\"}]}]}"));
+		assertEquals(2, model.getResults().size());
+		BatchUpdateResponseModel.Result first = model.getResults().get(0);
+		assertEquals("APP1", first.getName());
+		assertEquals(200, first.getStatus());
+		assertFalse(first.hasErrors());
+		BatchUpdateResponseModel.Result second = model.getResults().get(1);
+		assertEquals("APP2", second.getName());
+		assertEquals(400, second.getStatus());
+		assertEquals("E1", second.getCode());
+		assertEquals("Too short", second.getMessage());
+	}
+
+	@Test
+	public void batchResultsNullWhenAbsentOrMalformed() {
+		String[] bodies = {
+			"",
+			"{}",
+			"{\"results\":null}",
+			"{\"results\":{}}",
+			"{\"results\":[{\"name\":\"APP1\",\"status\":\"OK\"}]}",
+			"{\"results\":[{\"name\":\"APP1\"",
+			"not json",
+		};
+		for (String body : bodies) {
+			assertNull(body, JsonUtils.readBatchResults(new StringReader(body)));
+		}
+	}
+
+	private static JsonObject parse(byte[] body) {
+		return GSON.fromJson(new String(body, StandardCharsets.UTF_8), JsonObject.class);
+	}
+}
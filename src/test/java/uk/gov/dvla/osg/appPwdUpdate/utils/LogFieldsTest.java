@@ -0,0 +1,98 @@
+package uk.gov.dvla.osg.appPwdUpdate.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.async.AsyncLoggerContext;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.StringMap;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Checks the logging set up by log4j2.xml and log4j2.component.properties.
+ */
+public class LogFieldsTest {
+
+	@Test
+	public void everyLoggerAsynchronous() {
+		assertTrue(LogManager.getContext(false) instanceof AsyncLoggerContext);
+	}
+
+	@Test
+	public void contextWrittenAsSeparateJsonFields() {
+		StringMap context = ContextDataFactory.createContextData();
+		context.putValue(LogFields.TARGET, "rpd1.properties");
+		context.putValue(LogFields.APP, "APP1");
+		context.putValue(LogFields.ATTEMPT, "2");
+		context.putValue(LogFields.STATUS, "401");
+		context.putValue(LogFields.LATENCY, "15");
+
+		JsonObject json = format(event("Rejected \"APP1\"\nRPD-401", context, null));
+
+		assertEquals("INFO", json.get("level").getAsString());
+		assertEquals("rotation-1", json.get("thread").getAsString());
+		assertEquals("uk.gov.dvla.osg.appPwdUpdate.Test", json.get("logger").getAsString());
+		assertEquals(1234567890123L, json.get("time").getAsLong());
+		// Quotes and line breaks in the message do not break the object
+		assertEquals("Rejected \"APP1\"\nRPD-401", json.get("message").getAsString());
+		assertEquals("rpd1.properties", json.get(LogFields.TARGET).getAsString());
+		assertEquals("APP1", json.get(LogFields.APP).getAsString());
+		// Numbers are written as JSON numbers
+		assertTrue(json.get(LogFields.ATTEMPT).getAsJsonPrimitive().isNumber());
+		assertEquals(2, json.get(LogFields.ATTEMPT).getAsInt());
+		assertEquals(401, json.get(LogFields.STATUS).getAsInt());
+		assertEquals(15, json.get(LogFields.LATENCY).getAsInt());
+		assertFalse(json.has("exception"));
+	}
+
+	@Test
+	public void fieldsNotInContextLeftOut() {
+		JsonObject json = format(event("Logging in", ContextDataFactory.createContextData(), null));
+
+		assertEquals("Logging in", json.get("message").getAsString());
+		for (String field : new String[] { LogFields.TARGET, LogFields.APP, LogFields.ATTEMPT, LogFields.STATUS, LogFields.LATENCY }) {
+			assertFalse(field, json.has(field));
+		}
+	}
+
+	@Test
+	public void exceptionWrittenAsField() {
+		JsonObject json = format(event("Failed", ContextDataFactory.createContextData(), new IllegalStateException("Unexpected \"failure\"")));
+
+		assertEquals("Failed", json.get("message").getAsString());
+		assertTrue(json.get("exception").getAsString().contains("IllegalStateException: Unexpected \"failure\""));
+	}
+
+	private static Log4jLogEvent event(String message, StringMap context, Throwable thrown) {
+		return Log4jLogEvent.newBuilder()
+				.setLoggerName("uk.gov.dvla.osg.appPwdUpdate.Test")
+				.setLevel(Level.INFO)
+				.setMessage(new SimpleMessage(message))
+				.setContextData(context)
+				.setThreadName("rotation-1")
+				.setTimeMillis(1234567890123L)
+				.setThrown(thrown)
+				.build();
+	}
+
+	/**
+	 * @return event as written by the JSON appender, which must be a single line
+	 */
+	private static JsonObject format(Log4jLogEvent event) {
+		Appender appender = ((LoggerContext) LogManager.getContext(false)).getConfiguration().getAppender("json");
+		String line = appender.getLayout().toSerializable(event).toString();
+		assertTrue(line.endsWith("\n"));
+		assertEquals(line.length() - 1, line.indexOf('\n'));
+		return new JsonParser().parse(line).getAsJsonObject();
+	}
+}
@@ -0,0 +1,102 @@
+package uk.gov.dvla.osg.appPwdUpdate.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RandomPasswordGeneratorTest {
+
+	private static final int PASSWORDS = 10000;
+
+	@Test
+	public void passwordsMeetComplexityRules() {
+		boolean[] lengths = new boolean[RandomPasswordGenerator.MAX_LENGTH + 1];
+		for (int i = 0; i < PASSWORDS; i++) {
+			try (Secret password = RandomPasswordGenerator.generateSecret()) {
+				String text = password.reveal();
+				assertComplex(text);
+				lengths[text.length()] = true;
+			}
+		}
+		// Every length is used
+		for (int length = 8; length <= RandomPasswordGenerator.MAX_LENGTH; length++) {
+			assertTrue("No password of length " + length, lengths[length]);
+		}
+	}
+
+	@Test
+	public void passwordWrittenAtOffset() {
+		char[] buffer = new char[RandomPasswordGenerator.MAX_LENGTH + 4];
+		for (int i = 0; i < PASSWORDS / 10; i++) {
+			Arrays.fill(buffer, '#');
+			int length = RandomPasswordGenerator.generatePswd(buffer, 2);
+			assertComplex(new String(buffer, 2, length));
+			assertEquals('#', buffer[0]);
+			assertEquals('#', buffer[1]);
+			for (int j = 2 + length; j < buffer.length; j++) {
+				assertEquals('#', buffer[j]);
+			}
+		}
+	}
+
+	@Test
+	public void batchWrittenBackToBack() {
+		int count = 50;
+		char[] buffer = new char[count * RandomPasswordGenerator.MAX_LENGTH];
+		int[] offsets = new int[count];
+		int total = RandomPasswordGenerator.generatePswds(buffer, count, offsets);
+		assertEquals(offsets[count - 1], total);
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			assertComplex(new String(buffer, start, offsets[i] - start));
+			start = offsets[i];
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void batchRejectsSmallBuffer() {
+		RandomPasswordGenerator.generatePswds(new char[RandomPasswordGenerator.MAX_LENGTH], 2, new int[2]);
+	}
+
+	@Test
+	public void requiredCharactersPlacedAnywhere() {
+		boolean[] capitalAt = new boolean[8];
+		for (int i = 0; i < PASSWORDS; i++) {
+			String text = RandomPasswordGenerator.generatePswd();
+			for (int j = 0; j < capitalAt.length; j++) {
+				if (Character.isUpperCase(text.charAt(j))) {
+					capitalAt[j] = true;
+				}
+			}
+		}
+		for (int j = 0; j < capitalAt.length; j++) {
+			assertTrue("No capital at position " + j, capitalAt[j]);
+		}
+	}
+
+	/**
+	 * 8 to 15 characters, exactly one capital letter, one digit and one special character,
+	 * the rest lower case letters.
+	 */
+	private static void assertComplex(String text) {
+		assertTrue(text, text.length() >= 8 && text.length() <= RandomPasswordGenerator.MAX_LENGTH);
+		int capitals = 0, digits = 0, specials = 0;
+		for (char c : text.toCharArray()) {
+			if (c >= 'A' && c <= 'Z') {
+				capitals++;
+			} else if (c >= '0' && c <= '9') {
+				digits++;
+			} else if (c == '!' || c == '@') {
+				specials++;
+			} else {
+				assertTrue(text, c >= 'a' && c <= 'z');
+			}
+		}
+		assertEquals(text, 1, capitals);
+		assertEquals(text, 1, digits);
+		assertEquals(text, 1, specials);
+	}
+}
@@ -0,0 +1,101 @@
+package uk.gov.dvla.osg.appPwdUpdate.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.CharBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import org.junit.Test;
+
+public class SecretTest {
+
+	@Test
+	public void wipedAfterClose() {
+		char[] value = "Abcdefg1!".toCharArray();
+		try (Secret secret = Secret.wrap(value)) {
+			assertEquals("Abcdefg1!", secret.reveal());
+		}
+		assertArrayEquals(new char[9], value);
+	}
+
+	@Test
+	public void unusableAfterClear() {
+		Secret secret = Secret.of("Abcdefg1!");
+		secret.clear();
+		try {
+			secret.reveal();
+			fail("Cleared secret revealed");
+		} catch (IllegalStateException ex) {
+			assertEquals("Secret has been cleared", ex.getMessage());
+		}
+		try {
+			secret.chars();
+			fail("Cleared secret read");
+		} catch (IllegalStateException ex) {
+		}
+		try {
+			secret.length();
+			fail("Cleared secret length read");
+		} catch (IllegalStateException ex) {
+		}
+		try {
+			secret.copy();
+			fail("Cleared secret copied");
+		} catch (IllegalStateException ex) {
+		}
+		try {
+			secret.contentEquals("Abcdefg1!");
+			fail("Cleared secret compared");
+		} catch (IllegalStateException ex) {
+		}
+		// Clearing again is harmless
+		secret.close();
+	}
+
+	@Test
+	public void toStringRedacted() {
+		Secret secret = Secret.of("Abcdefg1!");
+		assertEquals("******", secret.toString());
+		assertEquals("******", String.valueOf(secret));
+		secret.clear();
+		assertEquals("******", secret.toString());
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		Secret secret = Secret.of("Abcdefg1!");
+		Secret copy = secret.copy();
+		secret.clear();
+		assertEquals("Abcdefg1!", copy.reveal());
+		copy.clear();
+	}
+
+	@Test
+	public void charsReadOnly() {
+		Secret secret = Secret.of("Abcdefg1!");
+		CharBuffer chars = secret.chars();
+		assertEquals("Abcdefg1!", chars.toString());
+		try {
+			chars.put(0, 'X');
+			fail("Secret modified through chars");
+		} catch (ReadOnlyBufferException ex) {
+		}
+		assertEquals(9, secret.length());
+	}
+
+	@Test
+	public void contentEquals() {
+		Secret secret = Secret.of("Abcdefg1!");
+		assertTrue(secret.contentEquals("Abcdefg1!"));
+		assertTrue(secret.contentEquals(Secret.of("Abcdefg1!").chars()));
+		assertFalse(secret.contentEquals("Abcdefg1@"));
+		assertFalse(secret.contentEquals("Abcdefg1"));
+		assertFalse(secret.contentEquals("Abcdefg1!!"));
+		assertFalse(secret.contentEquals(""));
+		assertTrue(Secret.of("").contentEquals(""));
+	}
+}